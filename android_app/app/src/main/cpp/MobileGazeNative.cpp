@@ -49,6 +49,219 @@ void saveFloatArray(string path, float* array, int length)
 
 
 
+// Repack the YUV_420_888 planes into I420, honouring the row and pixel strides of each plane.
+void packI420(const uchar* yPlane, const uchar* uPlane, const uchar* vPlane,
+              int yRowStride, int uvRowStride, int uvPixelStride,
+              int width, int height, uchar* dst)
+{
+    for(int r = 0; r < height; ++r)
+    {
+        memcpy(dst + r * width, yPlane + r * yRowStride, width);
+    }
+    int uvWidth = width / 2;
+    int uvHeight = height / 2;
+    uchar* uDst = dst + width * height;
+    uchar* vDst = uDst + uvWidth * uvHeight;
+    if (uvPixelStride == 1) {
+        for(int r = 0; r < uvHeight; ++r)
+        {
+            memcpy(uDst + r * uvWidth, uPlane + r * uvRowStride, uvWidth);
+            memcpy(vDst + r * uvWidth, vPlane + r * uvRowStride, uvWidth);
+        }
+    } else {
+        for(int r = 0; r < uvHeight; ++r)
+        {
+            const uchar* uRow = uPlane + r * uvRowStride;
+            const uchar* vRow = vPlane + r * uvRowStride;
+            uchar* uOut = uDst + r * uvWidth;
+            uchar* vOut = vDst + r * uvWidth;
+            for(int c = 0; c < uvWidth; ++c)
+            {
+                uOut[c] = uRow[c * uvPixelStride];
+                vOut[c] = vRow[c * uvPixelStride];
+            }
+        }
+    }
+}
+
+
+
+// BT.601 video-range coefficients in 20-bit fixed point, same as cv::cvtColor(COLOR_YUV2BGR_*)
+#define YUV2BGR_SHIFT   20
+#define YUV2BGR_CY      1220542
+#define YUV2BGR_CUB     2116026
+#define YUV2BGR_CUG     (-409993)
+#define YUV2BGR_CVG     (-852492)
+#define YUV2BGR_CVR     1673527
+
+static inline uchar clampToByte(int value)
+{
+    return (uchar) (value < 0 ? 0 : (value > 255 ? 255 : value));
+}
+
+// Convert the YUV_420_888 planes to BGR and rotate in the same pass. The chroma planes are
+// addressed through their own pointers and pixel stride, so NV12, NV21 and planar I420/YV12
+// layouts all go through the same loop. rotateCode follows cv::RotateFlags (-1 = no rotation).
+void yuvPlanesToBGR(const uchar* yPlane, const uchar* uPlane, const uchar* vPlane,
+                    int yRowStride, int uvRowStride, int uvPixelStride,
+                    int width, int height, int rotateCode, Mat& bgr)
+{
+    bool isTransposed = rotateCode == ROTATE_90_CLOCKWISE || rotateCode == ROTATE_90_COUNTERCLOCKWISE;
+    int dstRows = isTransposed ? width : height;
+    int dstCols = isTransposed ? height : width;
+    bgr.create(dstRows, dstCols, CV_8UC3);
+    uchar* dst = bgr.data;
+    size_t dstStep = bgr.step;
+    const int round = 1 << (YUV2BGR_SHIFT - 1);
+    for(int r = 0; r < height; ++r)
+    {
+        const uchar* yRow = yPlane + r * yRowStride;
+        const uchar* uRow = uPlane + (r >> 1) * uvRowStride;
+        const uchar* vRow = vPlane + (r >> 1) * uvRowStride;
+        for(int c = 0; c < width; ++c)
+        {
+            int y = max(0, (int) yRow[c] - 16) * YUV2BGR_CY;
+            int u = (int) uRow[(c >> 1) * uvPixelStride] - 128;
+            int v = (int) vRow[(c >> 1) * uvPixelStride] - 128;
+            int dstR, dstC;
+            switch (rotateCode) {
+                case ROTATE_90_CLOCKWISE:           dstR = c;               dstC = height - 1 - r;  break;
+                case ROTATE_180:                    dstR = height - 1 - r;  dstC = width - 1 - c;   break;
+                case ROTATE_90_COUNTERCLOCKWISE:    dstR = width - 1 - c;   dstC = r;               break;
+                default:                            dstR = r;               dstC = c;               break;
+            }
+            uchar* px = dst + dstR * dstStep + dstC * 3;
+            px[0] = clampToByte((y + YUV2BGR_CUB * u + round) >> YUV2BGR_SHIFT);
+            px[1] = clampToByte((y + YUV2BGR_CUG * u + YUV2BGR_CVG * v + round) >> YUV2BGR_SHIFT);
+            px[2] = clampToByte((y + YUV2BGR_CVR * v + round) >> YUV2BGR_SHIFT);
+        }
+    }
+}
+
+
+// Convert only the rect (x, y, width, height) of the YUV_420_888 planes, writing it into the same
+// rect of bgr, which must already be image sized. With 4 channels the alpha is set opaque, as
+// cvtColor(COLOR_YUV2BGRA_*) does. Pixels outside the rect are left untouched.
+void yuvRegionToBGR(const uchar* yPlane, const uchar* uPlane, const uchar* vPlane,
+                    int yRowStride, int uvRowStride, int uvPixelStride,
+                    int width, int height, int rx, int ry, int rw, int rh, Mat& bgr)
+{
+    int x0 = max(0, rx);
+    int y0 = max(0, ry);
+    int x1 = min(min(width, bgr.cols), rx + rw);
+    int y1 = min(min(height, bgr.rows), ry + rh);
+    int channels = bgr.channels();
+    const int round = 1 << (YUV2BGR_SHIFT - 1);
+    for(int r = y0; r < y1; ++r)
+    {
+        const uchar* yRow = yPlane + r * yRowStride;
+        const uchar* uRow = uPlane + (r >> 1) * uvRowStride;
+        const uchar* vRow = vPlane + (r >> 1) * uvRowStride;
+        uchar* px = bgr.ptr<uchar>(r) + x0 * channels;
+        for(int c = x0; c < x1; ++c, px += channels)
+        {
+            int y = max(0, (int) yRow[c] - 16) * YUV2BGR_CY;
+            int u = (int) uRow[(c >> 1) * uvPixelStride] - 128;
+            int v = (int) vRow[(c >> 1) * uvPixelStride] - 128;
+            px[0] = clampToByte((y + YUV2BGR_CUB * u + round) >> YUV2BGR_SHIFT);
+            px[1] = clampToByte((y + YUV2BGR_CUG * u + YUV2BGR_CVG * v + round) >> YUV2BGR_SHIFT);
+            px[2] = clampToByte((y + YUV2BGR_CVR * v + round) >> YUV2BGR_SHIFT);
+            if (channels == 4) {
+                px[3] = 255;
+            }
+        }
+    }
+}
+
+
+// Welford's single-pass running mean / variance, accumulated in double precision
+struct RunningStat
+{
+    long   n = 0;
+    double mean = 0;
+    double m2 = 0;
+
+    inline void push(double x)
+    {
+        ++n;
+        double delta = x - mean;
+        mean += delta / n;
+        m2 += delta * (x - mean);
+    }
+
+    // sample standard deviation, same (n - 1) convention as the Java standardization
+    inline double stddev() const
+    {
+        return n > 1 ? sqrt(m2 / (n - 1)) : 0;
+    }
+};
+
+static void standardize(float* data, int length, const RunningStat& stat)
+{
+    float mean = (float) stat.mean;
+    float invDev = stat.stddev() > 0 ? (float) (1.0 / stat.stddev()) : 0;
+    for(int i = 0; i < length; ++i)
+    {
+        data[i] = (data[i] - mean) * invDev;
+    }
+}
+
+// Crop rect [x, y, w, h] out of a BGR(A) image, resize it to rows x cols and write it as a
+// standardized RGB HWC float array.
+static bool cropResizeStandardize(const Mat& image, const jint* rect, int rows, int cols, float* out)
+{
+    cv::Rect roi(rect[0], rect[1], rect[2], rect[3]);
+    if ((roi & cv::Rect(0, 0, image.cols, image.rows)) != roi || roi.area() == 0) {
+        return false;
+    }
+    Mat crop = image(roi);
+    if (crop.rows != rows || crop.cols != cols) {
+        Mat resized;
+        resize(crop, resized, Size(cols, rows), 0, 0, CV_INTER_LINEAR);
+        crop = resized;
+    }
+    int cn = crop.channels();
+    RunningStat stat;
+    float* dst = out;
+    for(int r = 0; r < rows; ++r)
+    {
+        const uchar* src = crop.ptr<uchar>(r);
+        for(int c = 0; c < cols; ++c, src += cn, dst += 3)
+        {
+            dst[0] = src[2];    // R
+            dst[1] = src[1];    // G
+            dst[2] = src[0];    // B
+            stat.push(dst[0]);
+            stat.push(dst[1]);
+            stat.push(dst[2]);
+        }
+    }
+    standardize(out, rows * cols * 3, stat);
+    return true;
+}
+
+// Same grid as ImageProcessHandler.faceRectToGridArray() followed by standardizeGridArray();
+// the face rect is given in 640x480 image coordinates.
+static void faceGridStandardized(const jint* face, int gridRows, int gridCols, float* out)
+{
+    int faceX = face[0] * gridCols / 640;
+    int faceY = face[1] * gridRows / 480;
+    int faceW = face[2] * gridCols / 640;
+    int faceH = face[3] * gridRows / 480;
+    RunningStat stat;
+    for(int r = 0; r < gridRows; ++r)
+    {
+        for(int c = 0; c < gridCols; ++c)
+        {
+            float v = (r >= faceY && r < faceY + faceH && c >= faceX && c < faceX + faceW) ? 1 : 0;
+            out[r * gridCols + c] = v;
+            stat.push(v);
+        }
+    }
+    standardize(out, gridRows * gridCols, stat);
+}
+
+
 
 
 extern "C" {
@@ -360,4 +573,192 @@ Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_encodeIntoJpegArray(JNIEnv *
 }
 
 
+JNIEXPORT void JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_packYuvPlanes(JNIEnv *env, jobject instance,
+                                                                  jobject yPlane_,
+                                                                  jobject uPlane_,
+                                                                  jobject vPlane_,
+                                                                  jint yRowStride,
+                                                                  jint uvRowStride,
+                                                                  jint uvPixelStride,
+                                                                  jint width, jint height,
+                                                                  jobject i420Buffer_) {
+    uchar *yPlane = (uchar*) env->GetDirectBufferAddress(yPlane_);
+    uchar *uPlane = (uchar*) env->GetDirectBufferAddress(uPlane_);
+    uchar *vPlane = (uchar*) env->GetDirectBufferAddress(vPlane_);
+    uchar *dst = (uchar*) env->GetDirectBufferAddress(i420Buffer_);
+    if (yPlane == NULL || uPlane == NULL || vPlane == NULL || dst == NULL
+        || env->GetDirectBufferCapacity(i420Buffer_) < width * height * 3 / 2) {
+        LOGD("packYuvPlanes: invalid buffer");
+        return;
+    }
+    packI420(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride, width, height, dst);
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_getRGBMatImageDirect(JNIEnv *env,
+                                                                         jobject instance,
+                                                                         jobject i420Buffer_,
+                                                                         jint origWidth,
+                                                                         jint origHeight,
+                                                                         jlong addrMat) {
+    uchar *yuvBytes = (uchar*) env->GetDirectBufferAddress(i420Buffer_);
+    if (yuvBytes == NULL) {
+        LOGD("getRGBMatImageDirect: not a direct buffer");
+        return;
+    }
+    Mat& theMat = *(Mat*) addrMat;
+    Mat yuvMat(origHeight + origHeight/2, origWidth, CV_8UC1, yuvBytes);
+    cvtColor(yuvMat, theMat, CV_YUV2BGR_I420, 4);
+}
+
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_encodeIntoJpegArrayDirect(JNIEnv *env,
+                                                                              jobject instance,
+                                                                              jobject i420Buffer_,
+                                                                              jint origWidth,
+                                                                              jint origHeight) {
+    uchar *yuvBytes = (uchar*) env->GetDirectBufferAddress(i420Buffer_);
+    if (yuvBytes == NULL) {
+        LOGD("encodeIntoJpegArrayDirect: not a direct buffer");
+        return NULL;
+    }
+    Mat theMat;
+    vector<uchar> encoded;
+    Mat yuvMat(origHeight + origHeight/2, origWidth, CV_8UC1, yuvBytes);
+    cvtColor(yuvMat, theMat, CV_YUV2BGR_I420, 3);
+    vector<int> compression_params;
+    compression_params.push_back(CV_IMWRITE_JPEG_QUALITY);
+    compression_params.push_back(95);
+    imencode(".jpg", theMat, encoded, compression_params);
+    jbyteArray res = env->NewByteArray(encoded.size());
+    env->SetByteArrayRegion(res, 0, encoded.size(), (jbyte*) &encoded[0]);
+    return res;
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_yuvPlanesToBGRMat(JNIEnv *env, jobject instance,
+                                                                      jobject yPlane_,
+                                                                      jobject uPlane_,
+                                                                      jobject vPlane_,
+                                                                      jint yRowStride,
+                                                                      jint uvRowStride,
+                                                                      jint uvPixelStride,
+                                                                      jint width, jint height,
+                                                                      jint rotateCode,
+                                                                      jlong bgrMatAddr) {
+    uchar *yPlane = (uchar*) env->GetDirectBufferAddress(yPlane_);
+    uchar *uPlane = (uchar*) env->GetDirectBufferAddress(uPlane_);
+    uchar *vPlane = (uchar*) env->GetDirectBufferAddress(vPlane_);
+    if (yPlane == NULL || uPlane == NULL || vPlane == NULL) {
+        LOGD("yuvPlanesToBGRMat: not a direct buffer");
+        return;
+    }
+    Mat& bgrMat = *(Mat*) bgrMatAddr;
+    yuvPlanesToBGR(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+                   width, height, rotateCode, bgrMat);
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_yuvRegionToBGRMat(JNIEnv *env, jobject instance,
+                                                                      jobject yPlane_,
+                                                                      jobject uPlane_,
+                                                                      jobject vPlane_,
+                                                                      jint yRowStride,
+                                                                      jint uvRowStride,
+                                                                      jint uvPixelStride,
+                                                                      jint width, jint height,
+                                                                      jintArray rect_,
+                                                                      jlong bgrMatAddr) {
+    uchar *yPlane = (uchar*) env->GetDirectBufferAddress(yPlane_);
+    uchar *uPlane = (uchar*) env->GetDirectBufferAddress(uPlane_);
+    uchar *vPlane = (uchar*) env->GetDirectBufferAddress(vPlane_);
+    Mat& bgrMat = *(Mat*) bgrMatAddr;
+    if (yPlane == NULL || uPlane == NULL || vPlane == NULL
+        || bgrMat.depth() != CV_8U || bgrMat.channels() < 3) {
+        LOGD("yuvRegionToBGRMat: invalid buffer or Mat");
+        return;
+    }
+    jint *rect = env->GetIntArrayElements(rect_, NULL);
+    yuvRegionToBGR(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+                   width, height, rect[0], rect[1], rect[2], rect[3], bgrMat);
+    env->ReleaseIntArrayElements(rect_, rect, JNI_ABORT);
+}
+
+
+JNIEXPORT jboolean JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_wrapPlaneAsMat(JNIEnv *env, jobject instance,
+                                                                   jobject plane_,
+                                                                   jint width, jint height,
+                                                                   jint rowStride,
+                                                                   jlong matAddr,
+                                                                   jlong copyMatAddr) {
+    uchar *plane = (uchar*) env->GetDirectBufferAddress(plane_);
+    if (plane == NULL || env->GetDirectBufferCapacity(plane_) < (jlong) rowStride * (height - 1) + width) {
+        LOGD("wrapPlaneAsMat: invalid buffer");
+        return JNI_FALSE;
+    }
+    // a header over the plane, nothing is copied or owned
+    Mat wrapped(height, width, CV_8UC1, plane, rowStride);
+    if (wrapped.isContinuous()) {
+        *(Mat*) matAddr = wrapped;
+    } else {
+        // the detector reads the rows back to back; copyMat keeps its memory between frames
+        Mat& copyMat = *(Mat*) copyMatAddr;
+        wrapped.copyTo(copyMat);
+        *(Mat*) matAddr = copyMat;
+    }
+    return JNI_TRUE;
+}
+
+
+JNIEXPORT jboolean JNICALL
+Java_com_iai_mdf_JNInterface_MobileGazeJniInterface_prepareModelInputs(JNIEnv *env, jobject instance,
+                                                                       jlong matAddr,
+                                                                       jintArray rects_,
+                                                                       jintArray sizes_,
+                                                                       jintArray face_,
+                                                                       jintArray gridSize_,
+                                                                       jobject tfInputs_) {
+    float *tfInputs = (float*) env->GetDirectBufferAddress(tfInputs_);
+    if (tfInputs == NULL) {
+        LOGD("prepareModelInputs: not a direct buffer");
+        return JNI_FALSE;
+    }
+    jlong capacity = env->GetDirectBufferCapacity(tfInputs_);
+    int regionNum = env->GetArrayLength(rects_) / 4;
+    vector<jint> rects(4 * regionNum);
+    vector<jint> sizes(2 * regionNum);
+    env->GetIntArrayRegion(rects_, 0, 4 * regionNum, &rects[0]);
+    env->GetIntArrayRegion(sizes_, 0, 2 * regionNum, &sizes[0]);
+    Mat &imageMat = *(Mat *) matAddr;
+    jlong offset = 0;
+    for(int i = 0; i < regionNum; ++i)
+    {
+        int rows = sizes[2 * i];
+        int cols = sizes[2 * i + 1];
+        if (offset + rows * cols * 3 > capacity
+            || !cropResizeStandardize(imageMat, &rects[4 * i], rows, cols, tfInputs + offset)) {
+            return JNI_FALSE;
+        }
+        offset += rows * cols * 3;
+    }
+    if (face_ != NULL && gridSize_ != NULL) {
+        jint face[4];
+        jint gridSize[2];
+        env->GetIntArrayRegion(face_, 0, 4, face);
+        env->GetIntArrayRegion(gridSize_, 0, 2, gridSize);
+        if (offset + gridSize[0] * gridSize[1] > capacity) {
+            return JNI_FALSE;
+        }
+        faceGridStandardized(face, gridSize[0], gridSize[1], tfInputs + offset);
+    }
+    return JNI_TRUE;
+}
+
+
 }
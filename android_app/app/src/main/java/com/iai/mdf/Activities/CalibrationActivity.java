@@ -26,22 +26,23 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import com.iai.mdf.DependenceClasses.CalibrationModel;
+import com.iai.mdf.DependenceClasses.CalibrationSelector;
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
-import com.iai.mdf.DependenceClasses.Matrix;
+import com.iai.mdf.DependenceClasses.GazeResponse;
+import com.iai.mdf.DependenceClasses.OnlineCalibrator;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.FaceRoiEncoder;
 import com.iai.mdf.Handlers.SocketHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
-import com.iai.mdf.Handlers.TextFileHanlder;
 import com.iai.mdf.R;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 //import com.moutaigua.isl_android_gaze.FaceDetectionAPI;
 
@@ -83,8 +84,12 @@ public class CalibrationActivity extends AppCompatActivity {
     private DeviceConfiguration confHandler = DeviceConfiguration.getInstance(this);
     /** calibration **/
     private int                     AmountPicForEachPoint = 2;
-    private ArrayList<float[]>      GroundTruthPoints = new ArrayList<>();
-    private ArrayList<float[]>      EstimatePoints = new ArrayList<>();
+    private final int               TRUTH_SLOT_NUM = 256;       // replies echo at least the low 8 bits of the sequence number
+    private float[][]               truthBySequence = new float[TRUTH_SLOT_NUM][];  // the dot shown when each frame was sent
+    private float[]                 currentTruth = null;
+    private OnlineCalibrator        calibrator = new OnlineCalibrator();
+    // the samples calibrator keeps, the saved model is picked among several fits of them
+    private CalibrationSelector     selector = new CalibrationSelector();
     private int  temp_counter = 0;
     private long    timestamp = 0;
 
@@ -141,8 +146,10 @@ public class CalibrationActivity extends AppCompatActivity {
                 }
                 isRealTimeDetection = !isRealTimeDetection;
                 if(isRealTimeDetection){
-                    EstimatePoints.clear();
-                    GroundTruthPoints.clear();
+                    Arrays.fill(truthBySequence, null);
+                    currentTruth = null;
+                    calibrator.reset();
+                    selector.reset();
                     view_dot_container.setBackgroundColor(0xFFFFFFFF);   // cover texture with white
                     dotGeneratorHandler.postDelayed(dotGeneratorRunnable, 800);
 //                    autoDetectionHandler.postDelayed(takePicRunnable, 500+confHandler.getCalibrationSpeed()/AmountPicForEachPoint/2);
@@ -152,24 +159,20 @@ public class CalibrationActivity extends AppCompatActivity {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     dotGeneratorHandler.removeCallbacks(dotGeneratorRunnable);
                     autoDetectionHandler.removeCallbacks(takePicRunnable);
-                    // trunk to the same size
-                    while (GroundTruthPoints.size() != EstimatePoints.size()){
-                        GroundTruthPoints.remove(GroundTruthPoints.size()-1);
-                    }
-                    // delete invalid frames first in the list
-                    for (int i=0; i < EstimatePoints.size(); i++) {
-                        if (Math.abs(EstimatePoints.get(i)[0] + 1) < 0.0000001 && Math.abs(EstimatePoints.get(i)[1] + 1) < 0.0000001) {
-                            GroundTruthPoints.remove(i);
-                            EstimatePoints.remove(i);
-                            i--;
-                        }
-                    }
-                    Toast.makeText(CalibrationActivity.this, "Sample Collected: " + String.valueOf(GroundTruthPoints.size()), Toast.LENGTH_LONG).show();
-                    if (GroundTruthPoints.size()<2){
+                    // samples were fitted as they came in, invalid frames and blinks are already left out
+                    Toast.makeText(CalibrationActivity.this, "Sample Collected: " + String.valueOf(calibrator.getAcceptedSampleCount())
+                            + ", Rejected: " + String.valueOf(calibrator.getRejectedSampleCount()), Toast.LENGTH_LONG).show();
+                    CalibrationModel model = calibrator.getAcceptedSampleCount()<2 ? null : selector.select();
+                    if (model==null){
                         result_board.setText("Too few samples are collected\nPress Anywhere to Restart");
+                    } else if (model.getType() != CalibrationModel.TYPE_AFFINE) {
+                        confHandler.setCalibrationModel(model);
+                        confHandler.saveConfiguration();
+                        result_board.setText("Calibration is done: \n" + model.getName() + " from "
+                                + String.valueOf(selector.getCount()) + " samples");
                     } else {
-                        float[] mat = computeTransportationMaxtrix(EstimatePoints, GroundTruthPoints);
-                        confHandler.setCalibrationMatrix(mat);
+                        float[] mat = model.getParameters();
+                        confHandler.setCalibrationModel(model);
                         confHandler.saveConfiguration();
                         Log.d(LOG_TAG, String.valueOf(mat[0]));
                         Log.d(LOG_TAG, String.valueOf(mat[1]));
@@ -198,9 +201,7 @@ public class CalibrationActivity extends AppCompatActivity {
                 autoDetectionHandler.removeCallbacks(takePicRunnable);
                 temp_counter = 0;
                 Point curPoint = drawHandler.getCurrDot();
-                for(int i=0; i<AmountPicForEachPoint; i++) {
-                    GroundTruthPoints.add(new float[]{(float) curPoint.x / (float) SCREEN_SIZE[0], (float) curPoint.y / (float) SCREEN_SIZE[1]});
-                }
+                currentTruth = new float[]{(float) curPoint.x / (float) SCREEN_SIZE[0], (float) curPoint.y / (float) SCREEN_SIZE[1]};
 //                delayCapture(confHandler.getCollectionCaptureDelayTime());
                 autoDetectionHandler.postDelayed(takePicRunnable, (long)(confHandler.getCalibrationSpeed()/(AmountPicForEachPoint+1)*1.5));
                 dotGeneratorHandler.postDelayed(this,confHandler.getCalibrationSpeed());
@@ -236,11 +237,14 @@ public class CalibrationActivity extends AppCompatActivity {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     Log.d(LOG_TAG, "Take a picture");
                     Log.d("aaaa", String.valueOf(System.currentTimeMillis() - timestamp));
+                    int seq;
                     if( Build.MODEL.equalsIgnoreCase("BLU Studio Touch")) {
-                        socketHandler.uploadImageOnBLU(image);
+                        seq = socketHandler.uploadImageOnBLU(image);
                     } else {
-                        socketHandler.uploadImage(image, confHandler);
+                        seq = socketHandler.uploadImage(image, confHandler);
                     }
+                    // frames can be dropped on the way, so the reply is paired with its dot by sequence number
+                    truthBySequence[seq & (TRUTH_SLOT_NUM - 1)] = currentTruth;
                 }
                 image.close();
             }
@@ -292,31 +296,13 @@ public class CalibrationActivity extends AppCompatActivity {
 
     private void initSocketConnection(){
         socketHandler = new SocketHandler(socketIp, socketPort);
+        if( confHandler.isRoiUpload() ){
+            socketHandler.setRoiUpload(FaceRoiEncoder.loadDefaultDetector());
+        }
         socketHandler.setUiThreadHandler(new SocketHandler.StringCallback() {
             @Override
             public void onResponse(String str) {
-                try {
-                    if (str.equalsIgnoreCase(SocketHandler.SUCCESS_CONNECT_MSG)){
-                        return;
-                    }
-                    JSONObject object = new JSONObject(str);
-                    if (object != null) {
-                        if( object.getBoolean(SocketHandler.JSON_KEY_VALID) && isRealTimeDetection ) {
-                            double landscapeHori = object.getDouble(SocketHandler.JSON_KEY_PREDICT_X);
-                            double landscapeVert = object.getDouble(SocketHandler.JSON_KEY_PREDICT_Y);
-                            float[] loc = new float[2];
-                            loc[0] = (float) (landscapeHori + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePWidth();
-                            loc[1] = 1 - (float) (landscapeVert + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePHeight();
-                            EstimatePoints.add(new float[]{ loc[0], loc[1] } );
-                            Log.d(LOG_TAG, object.toString());
-                        } else {
-                            EstimatePoints.add(new float[]{ -1, -1 } );
-                            Log.d(LOG_TAG, "invalid");
-                        }
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+                Log.d(LOG_TAG, str);
             }
 
             @Override
@@ -333,6 +319,34 @@ public class CalibrationActivity extends AppCompatActivity {
                 }
             }
         });
+        socketHandler.setGazeCallback(new SocketHandler.GazeCallback() {
+            @Override
+            public void onGaze(GazeResponse response) {
+                int slot = response.getSequenceNumber() & (TRUTH_SLOT_NUM - 1);
+                float[] truth = truthBySequence[slot];
+                truthBySequence[slot] = null;
+                if( truth==null ){
+                    Log.d(LOG_TAG, "no dot for this estimate");
+                    return;
+                }
+                if( response.isValid() && isRealTimeDetection ) {
+                    double landscapeHori = response.getPredictX();
+                    double landscapeVert = response.getPredictY();
+                    float[] loc = new float[2];
+                    loc[0] = (float) (landscapeHori + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePWidth();
+                    loc[1] = 1 - (float) (landscapeVert + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePHeight();
+                    int status = calibrator.update(loc[0], loc[1], truth[0], truth[1]);
+                    if( status != OnlineCalibrator.SAMPLE_REJECTED ){
+                        selector.add(loc[0], loc[1], truth[0], truth[1]);
+                    }
+                    Log.d(LOG_TAG, String.valueOf(response.getSequenceNumber()) + ", sample status " + String.valueOf(status));
+                } else {
+                    // invalid frame, e.g. a blink
+                    calibrator.update(Double.NaN, Double.NaN, truth[0], truth[1]);
+                    Log.d(LOG_TAG, "invalid");
+                }
+            }
+        });
         socketHandler.socketCreate();
     }
 
@@ -369,46 +383,4 @@ public class CalibrationActivity extends AppCompatActivity {
     }
 
 
-    private float[] computeTransportationMaxtrix(ArrayList<float[]> leftMat, ArrayList<float[]> rightMat){
-        // leftMat * A = rightMat
-        // Estimated * A = Ground Truth
-        // form the matrices
-        double[][] estArr = new double[leftMat.size()][3];
-        double[][] truArr = new double[rightMat.size()][2];
-        TextFileHanlder.WriteLogIntoFile(leftMat);
-        TextFileHanlder.WriteLogIntoFile(rightMat);
-//        TextFileHanlder.WriteLogIntoFile(leftMatValid);
-//        TextFileHanlder.WriteLogIntoFile(rightMatValid);
-        for ( int i=0; i < leftMat.size(); i++){
-            estArr[i][0] = leftMat.get(i)[0];
-            estArr[i][1] = leftMat.get(i)[1];
-            estArr[i][2] = 1;
-            truArr[i][0] = rightMat.get(i)[0];
-            truArr[i][1] = rightMat.get(i)[1];
-        }
-        Log.d(LOG_TAG, "leftMat");
-        for ( int i=0; i < leftMat.size(); i++){
-            Log.d(LOG_TAG, "("+String.valueOf(leftMat.get(i)[0])+", "+String.valueOf(leftMat.get(i)[1])+")");
-        }
-        Log.d(LOG_TAG, "rightMat");
-        for ( int i=0; i < rightMat.size(); i++){
-            Log.d(LOG_TAG, "("+String.valueOf(rightMat.get(i)[0])+", "+String.valueOf(rightMat.get(i)[1])+")");
-        }
-        Matrix estMat = new Matrix(estArr);
-        Matrix truMat = new Matrix(truArr);
-        Matrix estMatT = estMat.transpose();
-        Matrix temp1 = estMatT.times(estMat);   // x^T * x
-        Matrix temp1_inv = temp1.inverse3x3();
-        Matrix temp2 = estMatT.times(truMat);   // X^T * y
-        Matrix res = temp1_inv.times(temp2);    // (x^T * x)^-1 * x^T * y
-        return new float[]{
-                (float) res.get(0,0),
-                (float) res.get(0,1),
-                (float) res.get(1,0),
-                (float) res.get(1,1),
-                (float) res.get(2,0),
-                (float) res.get(2,1)};
-    }
-
-
 }
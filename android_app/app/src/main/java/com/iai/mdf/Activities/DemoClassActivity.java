@@ -22,13 +22,17 @@ import android.widget.RelativeLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.iai.mdf.DependenceClasses.GazeFrame;
 import com.iai.mdf.FaceDetectionAPI;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.GazePipeline;
 import com.iai.mdf.Handlers.ImageProcessHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
 import com.iai.mdf.Handlers.TimerHandler;
 import com.iai.mdf.Handlers.VolleyHandler;
+import com.iai.mdf.Processing.TensorOps;
+import com.iai.mdf.Processing.TensorShape;
 import com.iai.mdf.R;
 
 import org.json.JSONException;
@@ -62,6 +66,9 @@ import java.util.ArrayList;
 public class DemoClassActivity extends AppCompatActivity {
 
     private final String LOG_TAG = "DemoClassActivity";
+    // eye images of the Python dumps, and as the model takes them
+    private static final TensorShape PYTHON_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NCWH);
+    private static final TensorShape ANDROID_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NHWC);
     private CameraHandler cameraHandler;
     private DrawHandler drawHandler;
     private TextureView textureView;
@@ -80,6 +87,7 @@ public class DemoClassActivity extends AppCompatActivity {
     private int     captureInterval = 700;
     private double[]    theFaces = new double[4];
     private TensorFlowHandler tensorFlowHandler;
+    private GazePipeline gazePipeline;
     private int         mFrameIndex = 0;
     private int         currentClassNum = 4;
 
@@ -203,6 +211,19 @@ public class DemoClassActivity extends AppCompatActivity {
         )) {
             Log.d(LOG_TAG, "Error reading model files.");
         }
+        // the eye crops are taken from the BGRA image
+        gazePipeline = new GazePipeline(detectionAPI, true, new GazePipeline.Estimator() {
+            @Override
+            public float[] estimate(GazeFrame frame) {
+                return getGazeEstimation(frame);
+            }
+        }, new GazePipeline.Renderer() {
+            @Override
+            public void render(GazeFrame frame) {
+                renderFrame(frame);
+            }
+        });
+        gazePipeline.setYPlaneDirect(true);
 
 
     }
@@ -212,6 +233,7 @@ public class DemoClassActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         cameraHandler = new CameraHandler(this, true);
+        gazePipeline.start();
         cameraHandler.setOnImageAvailableListenerForPrev(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
@@ -219,14 +241,12 @@ public class DemoClassActivity extends AppCompatActivity {
                 if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE ) {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     Log.d(LOG_TAG, "Take a picture");
-                    drawHandler.clear(frame_bounding_box);
-                    drawHandler.clear(frame_gaze_result);
-                    float[] res = getGazeEstimation(image);
-                    drawResult(res);
+                    gazePipeline.submit(image);
+                } else {
+                    image.close();
                 }
-                image.close();
             }
-        });
+        }, gazePipeline.getCaptureHandler());
         cameraHandler.startPreview(textureView);
     }
 
@@ -234,11 +254,18 @@ public class DemoClassActivity extends AppCompatActivity {
     public void onPause(){
         super.onPause();
         cameraHandler.stopPreview();
+        gazePipeline.stop();
         autoDetectionHandler.removeCallbacks(autoDetectionRunnable);
         initFaceArray(theFaces);    // clear saved faces
         isRealTimeDetection = false;
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -412,37 +439,13 @@ public class DemoClassActivity extends AppCompatActivity {
         }
     }
 
-    private float[] getGazeEstimation(Image image){
-        TimerHandler.getInstance().tic();
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC4);
-        ImageProcessHandler.getRGBMat(image, colorImg.getNativeObjAddr());
-        Log.d(LOG_TAG, "Format Conversion: " + String.valueOf(TimerHandler.getInstance().toc()));
-        TimerHandler.getInstance().tic();
-        Mat grayImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC1);
-        Imgproc.cvtColor(colorImg, grayImg, Imgproc.COLOR_BGR2GRAY);
-        Log.d(LOG_TAG, "Color -> Gray: " + String.valueOf(TimerHandler.getInstance().toc()));
-        TimerHandler.getInstance().tic();
-        int[] face = detectionAPI.detectFace(grayImg.getNativeObjAddr(), 30, 300, true);
-        Log.d(LOG_TAG, "Face Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
-        if( face!=null ){
-            double[] faceRatio = new double[]{
-                    (double)face[0]/grayImg.cols(),
-                    (double)face[1]/grayImg.rows(),
-                    (double)face[2]/grayImg.cols(),
-                    (double)face[3]/grayImg.rows()
-            };
-            drawHandler.showBoundingBoxInLandscape(faceRatio, TEXTURE_SIZE, frame_bounding_box, true);
-        }
+    // runs on the pipeline's inference thread, face and landmarks are already detected
+    private float[] getGazeEstimation(GazeFrame frame){
+        Mat colorImg = frame.getColorImg();
+        Mat grayImg = frame.getGrayImg();
+        int[] face = frame.getFace();
         if( face!=null ){
-            TimerHandler.getInstance().tic();
-            double[] landmarks = detectionAPI.detectLandmarks(grayImg.getNativeObjAddr(), face);
-            Log.d(LOG_TAG, "Landmark Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
+            double[] landmarks = frame.getLandmarks();
             if( landmarks!=null ){
                 int eyeImageArrayLength = DataCollectionActivity.Image_Size.getWidth() * DataCollectionActivity.Image_Size.getHeight();
                 Mat cropMat = new Mat(36, 60, CvType.CV_8UC4);
@@ -453,6 +456,7 @@ public class DemoClassActivity extends AppCompatActivity {
                 TimerHandler.getInstance().tic();
                 int[] eyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), true);
                 if (eyeRect!=null) {
+                    GazePipeline.fillColorRegion(frame, eyeRect);
                     ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), eyeRect, new int[]{-1,-1}, tfEyeInputArray, cropMat.getNativeObjAddr());
                     tfInputNodes.add("eye_left_1");
                     tfInputs.add(tfEyeInputArray);
@@ -462,6 +466,7 @@ public class DemoClassActivity extends AppCompatActivity {
                     tfInputSizes.add(new int[]{4, 1});
                     eyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), false);
                     if (eyeRect!=null) {
+                        GazePipeline.fillColorRegion(frame, eyeRect);
                         ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), eyeRect, new int[]{-1,-1}, tfEyeInputArray, cropMat.getNativeObjAddr());
                         tfInputNodes.add("eye_right_1");
                         tfInputs.add(tfEyeInputArray);
@@ -481,6 +486,26 @@ public class DemoClassActivity extends AppCompatActivity {
         return null;
     }
 
+    // runs on the UI thread
+    private void renderFrame(GazeFrame frame){
+        if( !isRealTimeDetection ){
+            return;
+        }
+        drawHandler.clear(frame_bounding_box);
+        drawHandler.clear(frame_gaze_result);
+        int[] face = frame.getFace();
+        if( face!=null ){
+            double[] faceRatio = new double[]{
+                    (double)face[0]/frame.getWidth(),
+                    (double)face[1]/frame.getHeight(),
+                    (double)face[2]/frame.getWidth(),
+                    (double)face[3]/frame.getHeight()
+            };
+            drawHandler.showBoundingBoxInLandscape(faceRatio, TEXTURE_SIZE, frame_bounding_box, true);
+        }
+        drawResult(frame.getResult());
+    }
+
     private void drawResult(float[] estimateClass){
         if( estimateClass!=null ){
             int label = 0;
@@ -693,15 +718,9 @@ public class DemoClassActivity extends AppCompatActivity {
         return array;
     }
 
-    private float[] convertPythonArrayToAndroidArray(float[] arr){
-        float[] newArray = new float[36*60*3];
-        for(int i=0; i<newArray.length; i++){
-            int rgb = i / 36 / 60;
-            int cr = i - rgb * 36 * 60;
-            int c = cr / 36;
-            int r = cr - c * 36;
-            newArray[r * 60 * 3 + c * 3 + rgb] = arr[i];
-        }
+    // newArray is filled and returned, so a caller can reuse it across images
+    private float[] convertPythonArrayToAndroidArray(float[] arr, float[] newArray){
+        TensorOps.convertLayout(arr, PYTHON_EYE_SHAPE, newArray, ANDROID_EYE_SHAPE);
         return newArray;
     }
 
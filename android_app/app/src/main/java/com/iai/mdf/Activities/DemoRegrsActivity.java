@@ -25,13 +25,17 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 //import com.moutaigua.isl_android_gaze.FaceDetectionAPI;
+import com.iai.mdf.DependenceClasses.GazeFrame;
 import com.iai.mdf.FaceDetectionAPI;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.GazePipeline;
 import com.iai.mdf.Handlers.TimerHandler;
 import com.iai.mdf.Handlers.VolleyHandler;
 import com.iai.mdf.Handlers.ImageProcessHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
+import com.iai.mdf.Processing.TensorOps;
+import com.iai.mdf.Processing.TensorShape;
 import com.iai.mdf.R;
 
 import org.json.JSONException;
@@ -39,9 +43,7 @@ import org.json.JSONObject;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -54,6 +56,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 
 /**
@@ -63,6 +66,9 @@ import java.util.ArrayList;
 public class DemoRegrsActivity extends AppCompatActivity {
 
     private final String LOG_TAG = "DemoRegrsActivity";
+    // eye images of the Python dumps, and as the model takes them
+    private static final TensorShape PYTHON_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NCWH);
+    private static final TensorShape ANDROID_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NHWC);
     private CameraHandler cameraHandler;
     private DrawHandler drawHandler;
     private TextureView textureView;
@@ -84,6 +90,13 @@ public class DemoRegrsActivity extends AppCompatActivity {
     private TensorFlowHandler tensorFlowHandler;
     private int         mFrameIndex = 0;
     private int         currentClassNum = 4;
+    private static final String[]   TF_INPUT_NODES = {"leftEye", "rightEye", "grid"};
+    private static final int[][]    TF_INPUT_SIZES = {{36, 60, 3}, {36, 60, 3}, {24, 32}};
+    private static final int[]      TF_EYE_SIZES = {36, 60, 36, 60};
+    private static final int[]      TF_GRID_SIZE = {24, 32};
+    private int[]       tfEyeRects = new int[8];
+    private FloatBuffer tfInputBuffer;
+    private GazePipeline gazePipeline;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -198,6 +211,7 @@ public class DemoRegrsActivity extends AppCompatActivity {
         initFaceArray(theFaces);
         tensorFlowHandler = new TensorFlowHandler(this);
         tensorFlowHandler.pickModel(TensorFlowHandler.MODEL_ISL_FILE_NAME);
+        tfInputBuffer = ImageProcessHandler.allocateModelInputBuffer(36*60*3*2 + 24*32);
 
 
 
@@ -211,6 +225,21 @@ public class DemoRegrsActivity extends AppCompatActivity {
         )) {
             Log.d(LOG_TAG, "Error reading model files.");
         }
+        gazePipeline = new GazePipeline(detectionAPI, new GazePipeline.Estimator() {
+            @Override
+            public float[] estimate(GazeFrame frame) {
+                TimerHandler.getInstance().tic();
+                float[] res = getGazeEstimation(frame);
+                Log.d("esti", "Estimation Time: " + String.valueOf(TimerHandler.getInstance().toc()));
+                return res;
+            }
+        }, new GazePipeline.Renderer() {
+            @Override
+            public void render(GazeFrame frame) {
+                renderFrame(frame);
+            }
+        });
+        gazePipeline.setYPlaneDirect(true);
         // for saving temporary images and data
 //        File file0 = new File("/sdcard/Download/gazeTest/");
 //        if( !file0.exists() ){
@@ -248,6 +277,7 @@ public class DemoRegrsActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         cameraHandler = new CameraHandler(this, true);
+        gazePipeline.start();
         cameraHandler.setOnImageAvailableListenerForPrev(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
@@ -255,16 +285,12 @@ public class DemoRegrsActivity extends AppCompatActivity {
                 if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE ) {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     Log.d(LOG_TAG, "Take a picture");
-                    drawHandler.clear(frame_bounding_box);
-                    drawHandler.clear(frame_gaze_result);
-                    TimerHandler.getInstance().tic();
-                    float[] res = getGazeEstimation(image);
-                    Log.d("esti", "Estimation Time: " + String.valueOf(TimerHandler.getInstance().toc()));
-                    drawResult(res);
+                    gazePipeline.submit(image);
+                } else {
+                    image.close();
                 }
-                image.close();
             }
-        });
+        }, gazePipeline.getCaptureHandler());
         cameraHandler.startPreview(textureView);
     }
 
@@ -272,11 +298,18 @@ public class DemoRegrsActivity extends AppCompatActivity {
     public void onPause(){
         super.onPause();
         cameraHandler.stopPreview();
+        gazePipeline.stop();
         autoDetectionHandler.removeCallbacks(autoDetectionRunnable);
         initFaceArray(theFaces);    // clear saved faces
         isRealTimeDetection = false;
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -377,71 +410,46 @@ public class DemoRegrsActivity extends AppCompatActivity {
         return isEyeDetected;
     }
 
-    private float[] getGazeEstimation(Image image){
-//        TimerHandler.getInstance().tic();
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC4);
-        ImageProcessHandler.getRGBMat(image, colorImg.getNativeObjAddr());
-        Imgproc.cvtColor(colorImg, colorImg, Imgproc.COLOR_BGRA2BGR);
-//        Log.d(LOG_TAG, "Format Conversion: " + String.valueOf(TimerHandler.getInstance().toc()));
-//        TimerHandler.getInstance().tic();
-        Mat grayImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC1);
-        Imgproc.cvtColor(colorImg, grayImg, Imgproc.COLOR_BGR2GRAY);
-//        Log.d(LOG_TAG, "Color -> Gray: " + String.valueOf(TimerHandler.getInstance().toc()));
-//        TimerHandler.getInstance().tic();
-        int[] face = detectionAPI.detectFace(grayImg.getNativeObjAddr(), 30, 300, true);
-//        Log.d(LOG_TAG, "Face Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
+    // runs on the pipeline's inference thread, face and landmarks are already detected
+    private float[] getGazeEstimation(GazeFrame frame){
+        double[] landmarks = frame.getLandmarks();
+        if( landmarks==null ){
+            return null;
+        }
+        int[] lEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, frame.getWidth(), frame.getHeight(), true);
+        int[] rEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, frame.getWidth(), frame.getHeight(), false);
+        if (lEyeRect!=null && rEyeRect!=null) {
+            System.arraycopy(lEyeRect, 0, tfEyeRects, 0, 4);
+            System.arraycopy(rEyeRect, 0, tfEyeRects, 4, 4);
+            GazePipeline.fillColorRegion(frame, lEyeRect);
+            GazePipeline.fillColorRegion(frame, rEyeRect);
+            boolean isInputReady = ImageProcessHandler.prepareModelInputs(
+                    frame.getColorImg(), tfEyeRects, TF_EYE_SIZES, frame.getFace(), TF_GRID_SIZE, tfInputBuffer);
+            if (isInputReady) {
+                return tensorFlowHandler.getEstimatedLocation(TF_INPUT_NODES, tfInputBuffer, TF_INPUT_SIZES);
+            }
+        }
+        return null;
+    }
+
+    // runs on the UI thread
+    private void renderFrame(GazeFrame frame){
+        if( !isRealTimeDetection ){
+            return;
+        }
+        drawHandler.clear(frame_bounding_box);
+        drawHandler.clear(frame_gaze_result);
+        int[] face = frame.getFace();
         if( face!=null ){
             double[] faceRatio = new double[]{
-                    (double)face[0]/grayImg.cols(),
-                    (double)face[1]/grayImg.rows(),
-                    (double)face[2]/grayImg.cols(),
-                    (double)face[3]/grayImg.rows()
+                    (double)face[0]/frame.getWidth(),
+                    (double)face[1]/frame.getHeight(),
+                    (double)face[2]/frame.getWidth(),
+                    (double)face[3]/frame.getHeight()
             };
             drawHandler.showBoundingBoxInLandscape(faceRatio, TEXTURE_SIZE, frame_bounding_box, true);
         }
-        if( face!=null ){
-//            TimerHandler.getInstance().tic();
-            double[] landmarks = detectionAPI.detectLandmarks(grayImg.getNativeObjAddr(), face);
-//            Log.d(LOG_TAG, "Landmark Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
-            if( landmarks!=null ){
-                Mat cropMat = new Mat(36, 60, CvType.CV_8UC4);
-                ArrayList<String> tfInputNodes = new ArrayList<>();
-                ArrayList<float[]> tfInputs = new ArrayList<>();
-                ArrayList<int[]> tfInputSizes = new ArrayList<>();
-                float[] tfLEyeInputArray = new float[36*60*3];
-                float[] tfREyeInputArray = new float[36*60*3];
-//                TimerHandler.getInstance().tic();
-                int[] lEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), true);
-                int[] rEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), false);
-                if (lEyeRect!=null && rEyeRect!=null) {
-                    ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), lEyeRect, new int[]{36,60,3}, tfLEyeInputArray, cropMat.getNativeObjAddr());
-                    tfInputNodes.add("leftEye");
-                    tfInputs.add(tfLEyeInputArray);
-                    tfInputSizes.add(new int[]{36, 60, 3});
-                    ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), rEyeRect, new int[]{36,60,3}, tfREyeInputArray, cropMat.getNativeObjAddr());
-                    tfInputNodes.add("rightEye");
-                    tfInputs.add(tfREyeInputArray);
-                    tfInputSizes.add(new int[]{36, 60, 3});
-                    float[] faceGrid = ImageProcessHandler.faceRectToGridArray(face, new int[]{24, 32});
-                    faceGrid = ImageProcessHandler.standardizeGridArray(faceGrid, new int[]{24, 32});
-                    tfInputNodes.add("grid");
-                    tfInputs.add(faceGrid);
-                    tfInputSizes.add(new int[]{24, 32});
-//                    Log.d(LOG_TAG, "Eye -> TensorFlowInput: " + String.valueOf(TimerHandler.getInstance().toc()));
-//                    TimerHandler.getInstance().tic();
-                    float[] loc = tensorFlowHandler.getEstimatedLocation(tfInputNodes, tfInputs, tfInputSizes);
-//                    Log.d(LOG_TAG, "TensorFlow Inference: " + String.valueOf(TimerHandler.getInstance().toc()));
-                    return loc;
-                }
-            }
-        }
-        return null;
+        drawResult(frame.getResult());
     }
 
 
@@ -570,15 +578,9 @@ public class DemoRegrsActivity extends AppCompatActivity {
         return array;
     }
 
-    private float[] convertPythonArrayToAndroidArray(float[] arr){
-        float[] newArray = new float[36*60*3];
-        for(int i=0; i<newArray.length; i++){
-            int rgb = i / 36 / 60;
-            int cr = i - rgb * 36 * 60;
-            int c = cr / 36;
-            int r = cr - c * 36;
-            newArray[r * 60 * 3 + c * 3 + rgb] = arr[i];
-        }
+    // newArray is filled and returned, so a caller can reuse it across images
+    private float[] convertPythonArrayToAndroidArray(float[] arr, float[] newArray){
+        TensorOps.convertLayout(arr, PYTHON_EYE_SHAPE, newArray, ANDROID_EYE_SHAPE);
         return newArray;
     }
 
@@ -275,6 +275,12 @@ public class DemoServerActivity1 extends AppCompatActivity {
         socketHandler.socketDestroy();
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -373,10 +379,8 @@ public class DemoServerActivity1 extends AppCompatActivity {
             float[] loc = new float[2];
             loc[0] = (float) (landscapeHori + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePWidth();
             loc[1] = 1 - (float) (landscapeVert + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePHeight();
-            // linear calibration
-            float[] mat = confHandler.getCalibrationMatrix();
-            loc[0] = loc[0] * mat[0]  + loc[1] * mat[2] + mat[4];
-            loc[1] = loc[0] * mat[1]  + loc[1] * mat[3] + mat[5];
+            // calibration
+            confHandler.getCalibrationModel().apply(loc, loc);
             drawClassifiedResult(loc, toggleButton.isChecked());
         } catch (JSONException e) {
             e.printStackTrace();
@@ -21,20 +21,20 @@ import android.widget.Toast;
 import android.widget.ToggleButton;
 
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
+import com.iai.mdf.DependenceClasses.GazeResponse;
+import com.iai.mdf.DependenceClasses.GazeSmoother;
+import com.iai.mdf.DependenceClasses.KalmanGazeFilter;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.FaceRoiEncoder;
 import com.iai.mdf.Handlers.SocketHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
 import com.iai.mdf.R;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.Point;
 
-import java.util.ArrayList;
 
 //import com.moutaigua.isl_android_gaze.FaceDetectionAPI;
 
@@ -73,7 +73,7 @@ public class DemoServerActivity2 extends AppCompatActivity {
     private int         prevReceivedGazeIndex = 0;
     private String      socketIp = null;
     private int         socketPort;
-    private ArrayList<Point> estimationList = new ArrayList<>();
+    private GazeSmoother gazeSmoother = new GazeSmoother(new KalmanGazeFilter());
     private DeviceConfiguration confHandler = DeviceConfiguration.getInstance(this);
 
 
@@ -176,7 +176,7 @@ public class DemoServerActivity2 extends AppCompatActivity {
                 drawHandler.drawRandomBlockInCandidates(80,80, view_dot_container, true);
                 autoDetectionHandler.postDelayed(this, 2000);
                 if( toggleButton.isChecked() ) {
-                    estimationList.clear();
+                    gazeSmoother.reset();
                 }
             }
         };
@@ -224,6 +224,12 @@ public class DemoServerActivity2 extends AppCompatActivity {
         socketHandler.socketDestroy();
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -256,25 +262,13 @@ public class DemoServerActivity2 extends AppCompatActivity {
 
     private void initSocketConnection(){
         socketHandler = new SocketHandler(socketIp, socketPort);
+        if( confHandler.isRoiUpload() ){
+            socketHandler.setRoiUpload(FaceRoiEncoder.loadDefaultDetector());
+        }
         socketHandler.setUiThreadHandler(new SocketHandler.StringCallback() {
             @Override
             public void onResponse(String str) {
-                try {
-                    if (str.equalsIgnoreCase(SocketHandler.SUCCESS_CONNECT_MSG)){
-                        return;
-                    }
-                    JSONObject object = new JSONObject(str);
-                    if (object != null) {
-                        if( object.getBoolean(SocketHandler.JSON_KEY_VALID) && isRealTimeDetection ) {
-                            drawGaze(object);
-                            Log.d(LOG_TAG, object.toString());
-                        } else {
-                            Log.d(LOG_TAG, "inValid");
-                        }
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+                Log.d(LOG_TAG, str);
             }
 
             @Override
@@ -291,6 +285,16 @@ public class DemoServerActivity2 extends AppCompatActivity {
                 }
             }
         });
+        socketHandler.setGazeCallback(new SocketHandler.GazeCallback() {
+            @Override
+            public void onGaze(GazeResponse response) {
+                if( response.isValid() && isRealTimeDetection ) {
+                    drawGaze(response);
+                } else {
+                    Log.d(LOG_TAG, "inValid");
+                }
+            }
+        });
         socketHandler.socketCreate();
     }
 
@@ -306,29 +310,23 @@ public class DemoServerActivity2 extends AppCompatActivity {
         return new int[]{displayMetrics.widthPixels, displayMetrics.heightPixels};
     }
 
-    private void drawGaze(JSONObject object){
-        try {
-//            int receivedIdx = object.getInt(SocketHandler.JSON_KEY_SEQ_NUMBER);
-//            if( receivedIdx > prevReceivedGazeIndex ){
-//            prevReceivedGazeIndex = receivedIdx;
-            double landscapeHori = object.getDouble(SocketHandler.JSON_KEY_PREDICT_X);
-            double landscapeVert = object.getDouble(SocketHandler.JSON_KEY_PREDICT_Y);
-            float[] loc = new float[2];
-            loc[0] = (float) (landscapeHori + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePWidth();
-            loc[1] = 1 - (float) (landscapeVert + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePHeight();
-            // linear calibration
-            float[] mat = confHandler.getCalibrationMatrix();
-            loc[0] = loc[0] * mat[0]  + loc[1] * mat[2] + mat[4];
-            loc[1] = loc[0] * mat[1]  + loc[1] * mat[3] + mat[5];
-            if (toggleButton.isChecked()){
-                loc = adjustEstimation(loc);
-            }
-            drawExactResult(loc);
-//                drawClassifiedResult(loc, toggleButton.isChecked());
-//            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    private void drawGaze(GazeResponse response){
+//        int receivedIdx = response.getSequenceNumber();
+//        if( receivedIdx > prevReceivedGazeIndex ){
+//        prevReceivedGazeIndex = receivedIdx;
+        double landscapeHori = response.getPredictX();
+        double landscapeVert = response.getPredictY();
+        float[] loc = new float[2];
+        loc[0] = (float) (landscapeHori + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePWidth();
+        loc[1] = 1 - (float) (landscapeVert + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePHeight();
+        // calibration
+        confHandler.getCalibrationModel().apply(loc, loc);
+        if (toggleButton.isChecked()){
+            loc = adjustEstimation(loc);
         }
+        drawExactResult(loc);
+//            drawClassifiedResult(loc, toggleButton.isChecked());
+//        }
     }
 
     private void drawClassifiedResult(float[] estimateGaze, boolean isShowDot){
@@ -350,16 +348,12 @@ public class DemoServerActivity2 extends AppCompatActivity {
         drawHandler.fillRect(landscapeHori, landscapeVert, 80,80, frame_gaze_result, R.color.estimated_square_color, false);
     }
 
+    // smooths in place; an outlier leaves the previous smoothed point
     private float[] adjustEstimation(float[] newPoint){
-        float[] average = new float[2];
-        estimationList.add(new Point(newPoint[0], newPoint[1]));
-        for (Point each : estimationList){
-            average[0] += each.x;
-            average[1] += each.y;
-        }
-        average[0] = average[0] / estimationList.size();
-        average[1] = average[1] / estimationList.size();
-        return average;
+        gazeSmoother.update(newPoint[0], newPoint[1], System.currentTimeMillis());
+        newPoint[0] = (float) gazeSmoother.getX();
+        newPoint[1] = (float) gazeSmoother.getY();
+        return newPoint;
     }
 
 
@@ -19,9 +19,11 @@ import android.widget.RelativeLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.iai.mdf.DependenceClasses.GazeFrame;
 import com.iai.mdf.FaceDetectionAPI;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.GazePipeline;
 import com.iai.mdf.Handlers.ImageProcessHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
 import com.iai.mdf.Handlers.TimerHandler;
@@ -33,7 +35,6 @@ import org.opencv.android.OpenCVLoader;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 
@@ -64,6 +65,7 @@ public class DemoiTrackerActivity extends AppCompatActivity {
     private int     captureInterval = 333;
     private double[]    theFaces = new double[4];
     private TensorFlowHandler tensorFlowHandler;
+    private GazePipeline gazePipeline;
     private int         mFrameIndex = 0;
     private int         currentClassNum = 4;
 
@@ -182,6 +184,23 @@ public class DemoiTrackerActivity extends AppCompatActivity {
         )) {
             Log.d(LOG_TAG, "Error reading model files.");
         }
+        // the iTracker crops are taken from the BGRA image
+        gazePipeline = new GazePipeline(detectionAPI, true, new GazePipeline.Estimator() {
+            @Override
+            public float[] estimate(GazeFrame frame) {
+                float[] res = getGazeEstimation(frame);
+                if (res!=null) {
+                    Log.d(LOG_TAG, "Landscape Location:   ( " + String.valueOf(res[1]) + ", " + String.valueOf(res[0]) + " )");
+                }
+                return res;
+            }
+        }, new GazePipeline.Renderer() {
+            @Override
+            public void render(GazeFrame frame) {
+                renderFrame(frame);
+            }
+        });
+        gazePipeline.setYPlaneDirect(true);
     }
 
 
@@ -189,6 +208,7 @@ public class DemoiTrackerActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         cameraHandler = new CameraHandler(this, true);
+        gazePipeline.start();
         cameraHandler.setOnImageAvailableListenerForPrev(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
@@ -196,18 +216,13 @@ public class DemoiTrackerActivity extends AppCompatActivity {
                 if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE ) {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     Log.d(LOG_TAG, "Take a picture");
-                    drawHandler.clear(frame_bounding_box);
-                    drawHandler.clear(frame_gaze_result);
 //                    detectionDemo(image);
-                    float[] res = getGazeEstimation(image);
-                    if (res!=null) {
-                        Log.d(LOG_TAG, "Landscape Location:   ( " + String.valueOf(res[1]) + ", " + String.valueOf(res[0]) + " )");
-                    }
-                    drawResult(res);
+                    gazePipeline.submit(image);
+                } else {
+                    image.close();
                 }
-                image.close();
             }
-        });
+        }, gazePipeline.getCaptureHandler());
         cameraHandler.startPreview(textureView);
     }
 
@@ -215,11 +230,18 @@ public class DemoiTrackerActivity extends AppCompatActivity {
     public void onPause(){
         super.onPause();
         cameraHandler.stopPreview();
+        gazePipeline.stop();
         autoDetectionHandler.removeCallbacks(autoDetectionRunnable);
         initFaceArray(theFaces);    // clear saved faces
         isRealTimeDetection = false;
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -260,38 +282,14 @@ public class DemoiTrackerActivity extends AppCompatActivity {
     private final int InputEyeSize = 224;
     private final int InputFaceSize = 224;
     private final int InputGridSize = 25;
-    private float[] getGazeEstimation(Image image){
-        TimerHandler.getInstance().tic();
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC4);
-        ImageProcessHandler.getRGBMat(image, colorImg.getNativeObjAddr());
-        Log.d(LOG_TAG, "Format Conversion: " + String.valueOf(TimerHandler.getInstance().toc()));
-        TimerHandler.getInstance().tic();
-        Mat grayImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC1);
-        Imgproc.cvtColor(colorImg, grayImg, Imgproc.COLOR_BGR2GRAY);
-        Log.d(LOG_TAG, "Color -> Gray: " + String.valueOf(TimerHandler.getInstance().toc()));
-        TimerHandler.getInstance().tic();
+    // runs on the pipeline's inference thread, face and landmarks are already detected
+    private float[] getGazeEstimation(GazeFrame frame){
+        Mat colorImg = frame.getColorImg();
+        Mat grayImg = frame.getGrayImg();
         // face[0] is col, face[1] is row
-        int[] face = detectionAPI.detectFace(grayImg.getNativeObjAddr(), 30, 300, true);
-        Log.d(LOG_TAG, "Face Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
+        int[] face = frame.getFace();
         if( face!=null ){
-            double[] faceRatio = new double[]{
-                    (double)face[0]/grayImg.cols(),
-                    (double)face[1]/grayImg.rows(),
-                    (double)face[2]/grayImg.cols(),
-                    (double)face[3]/grayImg.rows()
-            };
-            drawHandler.showBoundingBoxInLandscape(faceRatio, TEXTURE_SIZE, frame_bounding_box, true);
-        }
-        if( face!=null ){
-            TimerHandler.getInstance().tic();
-            double[] landmarks = detectionAPI.detectLandmarks(grayImg.getNativeObjAddr(), face);
-            Log.d(LOG_TAG, "Landmark Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
+            double[] landmarks = frame.getLandmarks();
             if( landmarks!=null ){
                 TimerHandler.getInstance().tic();
                 Mat eyeCropMat = new Mat(InputEyeSize, InputEyeSize, CvType.CV_8UC4);
@@ -306,16 +304,19 @@ public class DemoiTrackerActivity extends AppCompatActivity {
                 int[] rEyeRect = ImageProcessHandler.getEyeRegionCropRectForiTracker(landmarks, grayImg.width(), grayImg.height(), false);
                 int[] faceRect = new int[]{face[0], face[1], face[3], face[2]};
                 if ( lEyeRect!=null && rEyeRect!=null ) {
+                    GazePipeline.fillColorRegion(frame, lEyeRect);
                     ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), lEyeRect, new int[]{InputEyeSize,InputEyeSize}, tfEyeInputArray, eyeCropMat.getNativeObjAddr()); // resize[0] is width; resize[1] is height
                     tfInputNodes.add("leftEye");
                     tfInputs.add(tfEyeInputArray);
                     tfInputSizes.add(new int[]{InputEyeSize, InputEyeSize, 3});
                     Imgcodecs.imwrite("/sdcard/Download/ilEye.jpg", eyeCropMat);
+                    GazePipeline.fillColorRegion(frame, rEyeRect);
                     ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), rEyeRect, new int[]{InputEyeSize,InputEyeSize}, tfEyeInputArray, eyeCropMat.getNativeObjAddr()); // resize[0] is width; resize[1] is height
                     tfInputNodes.add("rightEye");
                     tfInputs.add(tfEyeInputArray);
                     Imgcodecs.imwrite("/sdcard/Download/irEye.jpg", eyeCropMat);
                     tfInputSizes.add(new int[]{InputEyeSize, InputEyeSize, 3});
+                    GazePipeline.fillColorRegion(frame, faceRect);
                     ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), faceRect, new int[]{InputFaceSize,InputFaceSize}, tfFaceInputArray, faceCropMat.getNativeObjAddr()); // resize[0] is width; resize[1] is height
                     tfInputNodes.add("face");
                     tfInputs.add(tfFaceInputArray);
@@ -340,6 +341,23 @@ public class DemoiTrackerActivity extends AppCompatActivity {
     }
 
 
+    // runs on the UI thread
+    private void renderFrame(GazeFrame frame){
+        drawHandler.clear(frame_bounding_box);
+        drawHandler.clear(frame_gaze_result);
+        int[] face = frame.getFace();
+        if( face!=null ){
+            double[] faceRatio = new double[]{
+                    (double)face[0]/frame.getWidth(),
+                    (double)face[1]/frame.getHeight(),
+                    (double)face[2]/frame.getWidth(),
+                    (double)face[3]/frame.getHeight()
+            };
+            drawHandler.showBoundingBoxInLandscape(faceRatio, TEXTURE_SIZE, frame_bounding_box, true);
+        }
+        drawResult(frame.getResult());
+    }
+
     private void drawResult(float[] estimateGaze){
         if( estimateGaze!=null ){
             switch (currentClassNum){
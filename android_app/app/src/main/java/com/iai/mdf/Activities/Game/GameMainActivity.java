@@ -18,7 +18,6 @@ import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.util.Pair;
 import android.view.Gravity;
 import android.view.TextureView;
 import android.view.View;
@@ -35,27 +34,25 @@ import android.widget.Toast;
 import com.akexorcist.roundcornerprogressbar.RoundCornerProgressBar;
 import com.iai.mdf.Activities.MainActivity;
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
+import com.iai.mdf.DependenceClasses.DwellDetector;
 import com.iai.mdf.DependenceClasses.GameGrid;
+import com.iai.mdf.DependenceClasses.GazeResponse;
+import com.iai.mdf.DependenceClasses.GazeSmoother;
+import com.iai.mdf.DependenceClasses.OneEuroGazeFilter;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.FaceRoiEncoder;
 import com.iai.mdf.Handlers.SocketHandler;
 import com.iai.mdf.R;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
 
 /**
@@ -186,7 +183,7 @@ public class GameMainActivity extends Activity {
             @Override
             public void onClick(View v) {
                 if( isGameStarted && !GAME_GAZE_AUTO_TRIGGER ){
-                    ImageButton lastHole = gameHandler.getHole(GAZE_POS_QUEUE.get(GAZE_POS_QUEUE.size()-1));
+                    ImageButton lastHole = gameHandler.getHole(dwellDetector.getLastCell());
                     if (lastHole!=null){
                         lastHole.performClick();
                     }
@@ -281,6 +278,8 @@ public class GameMainActivity extends Activity {
         int rowNum = GRID_SIZE / 10;
         int colNum = GRID_SIZE % 10;
         gameHandler = new GameGrid(this, rowNum, colNum, GAME_SPEED);
+        // the threshold used to be the number of equal samples in a row, keep it as the window
+        dwellDetector = gameHandler.createDwellDetector(Math.max(2, GAME_AUTO_TRIGGER_THRESHOLD), GAZE_DWELL_TIME);
         View.OnClickListener clickListener = new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -421,32 +420,18 @@ public class GameMainActivity extends Activity {
         String lastIp = settings.getString(GameSettingActivity.BUNDLE_KEY_IP, null);
         String lastPort = settings.getString(GameSettingActivity.BUNDLE_KEY_PORT, "0");
         serverConnector = new SocketHandler(lastIp, Integer.parseInt(lastPort));
+        if( confHandler.isRoiUpload() ){
+            serverConnector.setRoiUpload(FaceRoiEncoder.loadDefaultDetector());
+        }
         serverConnector.setUiThreadHandler(new SocketHandler.StringCallback() {
             @Override
             public void onResponse(String str) {
                 imgServerConnect.setImageResource(R.drawable.game_main_server_valid);
-                try {
-                    if (str.equalsIgnoreCase(SocketHandler.SUCCESS_CONNECT_MSG)){
-                        if (isGameStarted) {
-                            // if the connection comes back during the game
-                            takeImageHandler.post(takeImageRunnable);
-                        }
-                        return;
-                    }
-                    if( str!=null ) {
-                        JSONObject object = new JSONObject(str);
-                        if (object != null ){
-                            if (object.getBoolean("Valid")) {
-                                optimalGazePosition = analyzeGaze(object);
-                                clickTriggle(optimalGazePosition);
-                                Log.d(LOG_TAG, object.toString());
-                            } else {
-                                Log.d(LOG_TAG, "inValid");
-                            }
-                        }
+                if (str.equalsIgnoreCase(SocketHandler.SUCCESS_CONNECT_MSG)){
+                    if (isGameStarted) {
+                        // if the connection comes back during the game
+                        takeImageHandler.post(takeImageRunnable);
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
                 }
             }
 
@@ -465,6 +450,18 @@ public class GameMainActivity extends Activity {
                 }
             }
         });
+        serverConnector.setGazeCallback(new SocketHandler.GazeCallback() {
+            @Override
+            public void onGaze(GazeResponse response) {
+                imgServerConnect.setImageResource(R.drawable.game_main_server_valid);
+                if (response.isValid()) {
+                    optimalGazePosition = analyzeGaze(response);
+                    clickTriggle(optimalGazePosition);
+                } else {
+                    Log.d(LOG_TAG, "inValid");
+                }
+            }
+        });
         serverConnector.socketCreate();
     }
 
@@ -489,7 +486,6 @@ public class GameMainActivity extends Activity {
     private Runnable        takeImageRunnable;
     private Handler         uiThreadHandler = null;
     private int             prevReceivedGazeIndex = 0;
-    private ArrayList<Point> estimationList = new ArrayList<>();
 
 
     private void cameraInit(){
@@ -543,58 +539,39 @@ public class GameMainActivity extends Activity {
 
 
     /***** Gaze Control *****/
-//    private ArrayList<Pair<Float,Float>> pointHistory = new ArrayList<>();
-    private LinkedList<Pair<Float,Float>> pointHistory = new LinkedList<>();
-    private ArrayList<Integer> GAZE_POS_QUEUE = new ArrayList<>();
+    private GazeSmoother gazeSmoother = new GazeSmoother(new OneEuroGazeFilter());
+    private DwellDetector   dwellDetector;
+    private final long      GAZE_DWELL_TIME = 300;   // in ms
     private final double     CLICK_THRESHOLD = 0.1;
-    private final int       NUM_OF_PRE_POINTS = 1;
-
-    private int analyzeGaze(JSONObject object){
-        try {
-            double portraitHori = object.getDouble(SocketHandler.JSON_KEY_PREDICT_Y);
-            double portraitVert = object.getDouble(SocketHandler.JSON_KEY_PREDICT_X);
-            float[] loc = new float[2];
-            loc[1] = 1 - (float)((portraitHori + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePWidth());
-            loc[0] = (float)((portraitVert + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePHeight());
-            // linear calibration
-            float[] mat = confHandler.getCalibrationMatrix();
-            loc[0] = loc[0] * mat[0]  + loc[1] * mat[2] + mat[4];
-            loc[1] = loc[0] * mat[1]  + loc[1] * mat[3] + mat[5];
-            pointHistory.add(new Pair(loc[0], loc[1]));
-            if (pointHistory.size()>NUM_OF_PRE_POINTS) {
-                pointHistory.remove(0);
-            }
-            // analyze last three points distribution
-            double avePX = 0;
-            double avePY = 0;
-            drawHandler.clear(frame_gaze_result);
-            for(Pair<Float, Float> eachPoint: pointHistory){
-                avePX += eachPoint.first;
-                avePY += eachPoint.second;
-//                drawExactResult( new float[]{eachPoint.first, eachPoint.second}, true, R.color.estimated_square_color);
-            }
-            avePX /= pointHistory.size();
-            avePY /= pointHistory.size();
-            int gridPos = -1;
-            if( isPreviewMode ) {
-                drawExactResult(new float[]{(float) avePX, (float) avePY}, true, R.color.desired_square_color);
-            } else if( GAME_ADDITIONAL_VISUAL ){
-                gridPos = drawClassifiedResult(new float[]{(float) avePX, (float) avePY});
-            }
-            Log.d(LOG_TAG, String.valueOf(gridPos));
-            return gridPos;
-//            double diff = 0;
-//            for(Pair<Float, Float> eachPoint : pointHistory){
-//                diff += Math.sqrt((eachPoint.first - avePX)*(eachPoint.first - avePX)
-//                        + (eachPoint.second - avePY)*(eachPoint.second - avePY));
-//            }
-//            diff /= pointHistory.size();
-//            Log.d(LOG_TAG, String.valueOf(diff));
-//            return new double[]{diff, avePX, avePY};
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return -1;
+
+    private int analyzeGaze(GazeResponse response){
+        double portraitHori = response.getPredictY();
+        double portraitVert = response.getPredictX();
+        float[] loc = new float[2];
+        loc[1] = 1 - (float)((portraitHori + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePWidth());
+        loc[0] = (float)((portraitVert + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePHeight());
+        // calibration
+        confHandler.getCalibrationModel().apply(loc, loc);
+        gazeSmoother.update(loc[0], loc[1], System.currentTimeMillis());
+        double avePX = gazeSmoother.getX();
+        double avePY = gazeSmoother.getY();
+        drawHandler.clear(frame_gaze_result);
+        int gridPos = -1;
+        if( isPreviewMode ) {
+            drawExactResult(new float[]{(float) avePX, (float) avePY}, true, R.color.desired_square_color);
+        } else if( GAME_ADDITIONAL_VISUAL ){
+            gridPos = drawClassifiedResult(new float[]{(float) avePX, (float) avePY});
         }
+        Log.d(LOG_TAG, String.valueOf(gridPos));
+        return gridPos;
+//        double diff = 0;
+//        for(Pair<Float, Float> eachPoint : pointHistory){
+//            diff += Math.sqrt((eachPoint.first - avePX)*(eachPoint.first - avePX)
+//                    + (eachPoint.second - avePY)*(eachPoint.second - avePY));
+//        }
+//        diff /= pointHistory.size();
+//        Log.d(LOG_TAG, String.valueOf(diff));
+//        return new double[]{diff, avePX, avePY};
     }
 
     private void clickTriggle(double[] analRes){
@@ -622,44 +599,14 @@ public class GameMainActivity extends Activity {
     }
 
     private void clickTriggle(int gazePosition){
-        GAZE_POS_QUEUE.add(gazePosition);
-        if (GAZE_POS_QUEUE.size() > GAME_AUTO_TRIGGER_THRESHOLD){
-            GAZE_POS_QUEUE.remove(0);
-        }
-//        // percentage
-//        Collections.sort(GAZE_POS_QUEUE);
-//        int maxNum = -1, maxCount = 0, tempNum = -1, tempCount = 0;
-//        for (int i =0; i < GAZE_POS_QUEUE.size(); ++i) {
-//            if (GAZE_POS_QUEUE.get(i) == tempNum){
-//                tempCount++;
-//            } else {
-//                if (tempCount > maxCount){
-//                    maxCount = tempCount;
-//                    maxNum = tempNum;
-//                }
-//                tempCount = 1;
-//                tempNum = GAZE_POS_QUEUE.get(i);
-//            }
-//        }
-//        if (maxCount > 3){
-//
-//        }
+        int dwellCell = dwellDetector.update(gazePosition, System.currentTimeMillis());
         if (!GAME_GAZE_AUTO_TRIGGER){
             return;
         }
-        boolean theSame = true;
-        for (int i=0; i < GAZE_POS_QUEUE.size()-1; ++i){
-            if( GAZE_POS_QUEUE.get(i) != GAZE_POS_QUEUE.get(i+1)){
-                theSame = false;
-                break;
-            }
-        }
-        if( theSame && GAZE_POS_QUEUE.size() >= 2){
-            ImageButton gazedHole = gameHandler.getHole(0);
+        if( dwellCell != DwellDetector.NO_CELL ){
+            ImageButton gazedHole = gameHandler.getHole(dwellCell);
             if (gazedHole!=null){
                 gazedHole.performClick();
-                GAZE_POS_QUEUE.remove(0);
-                GAZE_POS_QUEUE.remove(0);
             }
         } else {
             Log.d(LOG_TAG, "Moving");
@@ -667,53 +614,18 @@ public class GameMainActivity extends Activity {
     }
 
 
-    private int[] getMostFrequent(int arr[]) {
-        // Insert all elements in hash
-        Map<Integer, Integer> hp = new HashMap();
-        for(int i = 0; i < arr.length; i++)
-        {
-            int key = arr[i];
-            if(hp.containsKey(key))
-            {
-                int freq = hp.get(key);
-                freq++;
-                hp.put(key, freq);
-            }
-            else
-            {
-                hp.put(key, 1);
-            }
-        }
-        // find max frequency.
-        int max_count = 0, res = -1;
-        for(Map.Entry<Integer, Integer> val : hp.entrySet())
-        {
-            if (max_count < val.getValue())
-            {
-                res = val.getKey();
-                max_count = val.getValue();
-            }
-        }
-        return new int[]{res, max_count};
-    }
-
-
     /***** Drawing *****/
     private FrameLayout frame_gaze_result;
     private FrameLayout classifiedCircleHolder;
     private DrawHandler drawHandler;
 //    private int[]       SCREEN_SIZE = new int[]{1440, 2392};
-    private void drawGaze(JSONObject object, boolean isHoldOn, int color){
-        try {
-            double portraitHori = object.getDouble(SocketHandler.JSON_KEY_PREDICT_Y);
-            double portraitVert = object.getDouble(SocketHandler.JSON_KEY_PREDICT_X);
-            float[] loc = new float[2];
-            loc[0] = (float)((portraitHori + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePWidth());
-            loc[1] = (float)((portraitVert + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePHeight());
-            drawExactResult(loc, isHoldOn, color);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+    private void drawGaze(GazeResponse response, boolean isHoldOn, int color){
+        double portraitHori = response.getPredictY();
+        double portraitVert = response.getPredictX();
+        float[] loc = new float[2];
+        loc[0] = (float)((portraitHori + confHandler.getCameraOffsetPWidth())/confHandler.getScreenSizePWidth());
+        loc[1] = (float)((portraitVert + confHandler.getCameraOffsetPHeight())/confHandler.getScreenSizePHeight());
+        drawExactResult(loc, isHoldOn, color);
     }
 
     private void drawExactResult(float[] estimateGaze, boolean isHoldOn, int color){
@@ -6,25 +6,14 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
-import com.iai.mdf.Activities.DataCollectionActivity;
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
+import com.iai.mdf.DependenceClasses.GazeResponse;
+import com.iai.mdf.Handlers.AdaptiveJpegEncoder;
+import com.iai.mdf.Handlers.GazeStreamClient;
 import com.iai.mdf.Handlers.ImageProcessHandler;
-import com.iai.mdf.Handlers.TimerHandler;
 
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
-
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+
 
 /**
  * Created by Mou on 2/23/2018.
@@ -34,23 +23,22 @@ public class GameServerConnector {
 
     public static final String SUCCESS_CONNECTED = "connected";
     public static final String SUCCESS_DETECTED = "detected";
-    public static final String ERROR_DISCONNECTED = "disconnected";
-    public static final String ERROR_SETTING = "setting";
-    public static final String ERROR_TIMEOUT = "timeout";
+    public static final String ERROR_DISCONNECTED = GazeStreamClient.ERROR_DISCONNECTED;
+    public static final String ERROR_SETTING = GazeStreamClient.ERROR_SETTING;
+    public static final String ERROR_TIMEOUT = GazeStreamClient.ERROR_TIMEOUT;
     public static final String ERROR_NO_DETECTION = "no_detection";
     private static final String LOG_TAG = "GameServerConnector";
     private static final int MSG_ON_SUCCESS = 1;
     private static final int MSG_ON_ERROR = 2;
+    private static final int TIMEOUT_LENGTH = 1500;
+    private static final int MAX_SUCCESSIVE_TIMEOUT = 40;
 
 
 
 
-    private Socket mSocket = null;
-    private OutputStream socketOutputStream;
-    private DataOutputStream dos;
-    private boolean isConnected = false;
+    private GazeStreamClient streamClient;
+    private AdaptiveJpegEncoder jpegEncoder = new AdaptiveJpegEncoder();
     private Handler uiThreadHandler = null;
-    private int    missingResponse;
     private StringCallback connectCallback;
     private String  serverAddr;
     private int     serverPort;
@@ -69,6 +57,34 @@ public class GameServerConnector {
     public GameServerConnector(String addr, int port){
         this.serverAddr = addr;
         this.serverPort = port;
+        this.streamClient = new GazeStreamClient(serverAddr, serverPort, TIMEOUT_LENGTH, MAX_SUCCESSIVE_TIMEOUT);
+        this.streamClient.setListener(new GazeStreamClient.Listener() {
+            @Override
+            public void onConnected() {
+                if (connectCallback!=null){
+                    connectCallback.onResponse(SUCCESS_CONNECTED);
+                }
+            }
+
+            @Override
+            public void onResponse(String line, GazeResponse response) {
+                jpegEncoder.onThroughput(streamClient.getSendThroughput());
+                Message completeMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, line);
+                completeMessage.sendToTarget();
+            }
+
+            @Override
+            public void onError(String error) {
+                if( error.equals(ERROR_SETTING) ){
+                    if (connectCallback!=null){
+                        connectCallback.onError(ERROR_SETTING);
+                    }
+                } else {
+                    Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, error);
+                    errorMessage.sendToTarget();
+                }
+            }
+        });
     }
 
     public void setConnectCallback(StringCallback callback){
@@ -76,98 +92,25 @@ public class GameServerConnector {
     }
 
     public void socketCreate(){
-        missingResponse = 0;
         if( serverAddr==null || serverPort==0 ){
             if (connectCallback!=null){
                 connectCallback.onError(ERROR_SETTING);
             }
             return;
         }
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    mSocket = new Socket(serverAddr, serverPort);
-                    mSocket.setSoTimeout(1500);
-                    socketOutputStream = mSocket.getOutputStream();
-                    dos = new DataOutputStream(socketOutputStream);
-                    isConnected = true;
-                    connectCallback.onResponse(SUCCESS_CONNECTED);
-                } catch (SocketTimeoutException e){
-                    Log.d(LOG_TAG, "Create Socket Timeout");
-                    isConnected = false;
-                    if (connectCallback!=null){
-                        connectCallback.onError(ERROR_TIMEOUT);
-                    } else {
-                        e.printStackTrace();
-                    }
-                } catch (IOException e) {
-                    connectCallback.onError(ERROR_SETTING);
-                    e.printStackTrace();
-                }
-            }
-        }.start();
+        streamClient.start();
     }
 
     public void socketDestroy(){
-        try {
-            isConnected = false;
-            if(dos != null) {
-                dos.close();
-            }
-            if(socketOutputStream!=null) {
-                socketOutputStream.close();
-            }
-            if(mSocket!=null) {
-                mSocket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        streamClient.stop();
     }
 
 
 
 
 
-    public void send(final byte[] imageBytes){
-        if( mSocket!=null && mSocket.isConnected() ) {
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        if( missingResponse < 40) {
-                            missingResponse++;
-                            dos.write(imageBytes);
-                            Log.d(LOG_TAG, "Data Sent");
-                            BufferedReader input = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-                            String res = input.readLine();
-                            Message completeMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, res);
-                            completeMessage.sendToTarget();
-                            missingResponse--;
-                            Log.d(LOG_TAG, "Missing Responses: " + String.valueOf(missingResponse));
-                        } else {
-                            Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_DISCONNECTED);
-                            errorMessage.sendToTarget();
-                            isConnected = false;
-                            socketDestroy();
-                        }
-                    } catch (SocketTimeoutException e) {
-                        Log.d(LOG_TAG,  "Timeout Happened");
-                        Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_TIMEOUT);
-                        errorMessage.sendToTarget();
-                    } catch (SocketException e){
-                        Log.d(LOG_TAG,  "Broken Pipe");
-                        Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_DISCONNECTED);
-                        errorMessage.sendToTarget();
-                        isConnected = false;
-                        socketDestroy();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }.start();
-        }
+    private void send(byte[] jpegBytes, int length, int seq, long captureTime){
+        streamClient.submit(jpegBytes, 0, length, seq, captureTime);
     }
 
 
@@ -191,7 +134,7 @@ public class GameServerConnector {
 
 
     public boolean isConnected() {
-        return isConnected;
+        return streamClient.isConnected();
     }
 
 
@@ -200,15 +143,11 @@ public class GameServerConnector {
 
     /******  Higher Level of API ******/
     private int             mFrameIndex = 0;
+    private Mat             colorImg = new Mat();
 
     public void uploadImage(Image image, DeviceConfiguration confHandler){
         Log.d(LOG_TAG, "Come on");
-        Mat yuvMat = ImageProcessHandler.getBGRMatFromImage(image);
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC3);
-        Imgproc.cvtColor(yuvMat, colorImg, Imgproc.COLOR_YUV2BGR_I420);
+        ImageProcessHandler.getRotatedBGRMat(image, 0, colorImg);
 //        switch (confHandler.getImageRotation()){
 //            case 0:
 //                break;
@@ -224,17 +163,9 @@ public class GameServerConnector {
 //            default:
 //                break;
 //        }
-        TimerHandler.getInstance().tic();
-        byte[] jpegBytes = ImageProcessHandler.fromMatToJpegByte(colorImg);
-        Log.d(LOG_TAG, "Image Format Conversion: " + String.valueOf(TimerHandler.getInstance().toc()));
-        byte[] sizeBytes = ByteBuffer.allocate(4).putInt(jpegBytes.length).order(ByteOrder.nativeOrder()).array();
-        byte[] seqBytes = new byte[2];
-        seqBytes[0] = (byte)(mFrameIndex & 0xFF);
-        byte[] data = new byte[jpegBytes.length + 5];
-        System.arraycopy(sizeBytes, 0, data, 0, 4);
-        System.arraycopy(jpegBytes, 0, data, 4, jpegBytes.length);
-        System.arraycopy(seqBytes, 0, data, 4 + jpegBytes.length, 1);
-        send(data);
+        int length = jpegEncoder.encode(colorImg);
+        Log.d(LOG_TAG, "Jpeg Encoding: " + String.valueOf(jpegEncoder.getLastEncodeTime()));
+        send(jpegEncoder.getBuffer(), length, mFrameIndex, System.currentTimeMillis());
         mFrameIndex++;
     }
 
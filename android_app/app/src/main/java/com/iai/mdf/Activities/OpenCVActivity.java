@@ -145,17 +145,17 @@ public class OpenCVActivity extends Activity implements CameraBridgeViewBase.CvC
         long matAddrRgba = mRgba.getNativeObjAddr();
 
 
-        // Face detection
+        // Face detection, tracked from the previous frame's landmarks
         int[] face = null;
         if (true) {
-            face = mAPI.detectFace(matAddrGray, 30, 180, false);
+            face = mAPI.trackFace(mGray, 30, 180, false);
 //            detectionResult.setFace(face);
         }
 
         // Landmark extraction
         double[] landmarks = null;
         if (true && face != null) {
-            landmarks = mAPI.detectLandmarks(matAddrGray, face);
+            landmarks = mAPI.getTrackedLandmarks();
 //            detectionResult.setLandmarks(landmarks);
         }
 
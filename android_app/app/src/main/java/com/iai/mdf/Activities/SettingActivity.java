@@ -18,6 +18,7 @@ import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Switch;
 import android.widget.Toast;
 
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
@@ -39,6 +40,7 @@ public class SettingActivity extends AppCompatActivity {
     private EditText editCameraPosY;
     private EditText editDisplaySizeX;
     private EditText editDisplaySizeY;
+    private EditText editCalibrationUser;
     private EditText editCalibrationMatrix;
     private Button   btnManuCalibration;
     private Button   btnAutoCalibration;
@@ -50,6 +52,7 @@ public class SettingActivity extends AppCompatActivity {
     private EditText editPictureRotation;
     private EditText editDotCandidateRow;
     private EditText editDotCandidateCol;
+    private Switch   switchRoiUpload;
 
     private boolean editMode = false;
 
@@ -74,15 +77,10 @@ public class SettingActivity extends AppCompatActivity {
 
         editCalibrationSpeed = findViewById(R.id.setting_activity_editxt_calibration_speed);
         editCalibrationSpeed.setText(String.valueOf(confHandler.getCalibrationSpeed()));
+        editCalibrationUser = findViewById(R.id.setting_activity_editxt_calibration_user);
+        editCalibrationUser.setText(confHandler.getCalibrationUser());
         editCalibrationMatrix = findViewById(R.id.setting_activity_editxt_calibration_manual);
-        float[] matNum = confHandler.getCalibrationMatrix();
-        String matStr = "";
-        for(int i=0; i < 6; i++){
-            String numStr = String.format("%.04f", matNum[i]);
-            matStr += numStr + ",";
-        }
-        matStr = matStr.substring(0, matStr.length()-1);
-        editCalibrationMatrix.setText(String.valueOf(matStr));
+        showCalibrationMatrix();
         btnManuCalibration = findViewById(R.id.setting_activity_btn_item_manu_calibration);
         btnManuCalibration.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -181,6 +179,9 @@ public class SettingActivity extends AppCompatActivity {
         editDotCandidateCol = findViewById(R.id.setting_activity_editxt_dot_candidate_col);
         editDotCandidateCol.setText(String.valueOf(confHandler.getDotCandidateCol()));
 
+        switchRoiUpload = findViewById(R.id.setting_activity_switch_roi_upload);
+        switchRoiUpload.setChecked(confHandler.isRoiUpload());
+
         View view = this.getCurrentFocus();
         if (view != null) {
             InputMethodManager imm = (InputMethodManager)getSystemService(Context.INPUT_METHOD_SERVICE);
@@ -263,6 +264,10 @@ public class SettingActivity extends AppCompatActivity {
             Toast.makeText(this, "All fields are required", Toast.LENGTH_SHORT).show();
             return false;
         }
+        if( editCalibrationUser.getText().toString().trim().isEmpty() ){
+            Toast.makeText(this, "All fields are required", Toast.LENGTH_SHORT).show();
+            return false;
+        }
         if( editCalibrationSpeed.getText().toString().isEmpty() ){
             Toast.makeText(this, "All fields are required", Toast.LENGTH_SHORT).show();
             return false;
@@ -324,6 +329,7 @@ public class SettingActivity extends AppCompatActivity {
             editCameraPosY.setEnabled(enabled);
             editDisplaySizeX.setEnabled(enabled);
             editDisplaySizeY.setEnabled(enabled);
+            editCalibrationUser.setEnabled(enabled);
             editCalibrationSpeed.setEnabled(enabled);
             editCaptureSpeedCollection.setEnabled(enabled);
             editCaptureSpeedRealtime.setEnabled(enabled);
@@ -331,10 +337,12 @@ public class SettingActivity extends AppCompatActivity {
             editPictureRotation.setEnabled(enabled);
             editDotCandidateRow.setEnabled(enabled);
             editDotCandidateCol.setEnabled(enabled);
+            switchRoiUpload.setEnabled(enabled);
             editCameraPosX.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editCameraPosY.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editDisplaySizeX.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editDisplaySizeY.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
+            editCalibrationUser.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editCalibrationSpeed.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editCaptureSpeedCollection.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
             editCaptureSpeedRealtime.setTextColor(ContextCompat.getColor(this, android.R.color.darker_gray));
@@ -346,6 +354,7 @@ public class SettingActivity extends AppCompatActivity {
             editCameraPosY.setFocusableInTouchMode(enabled);
             editDisplaySizeX.setFocusableInTouchMode(enabled);
             editDisplaySizeY.setFocusableInTouchMode(enabled);
+            editCalibrationUser.setFocusableInTouchMode(enabled);
             editCalibrationSpeed.setFocusableInTouchMode(enabled);
             editCaptureSpeedCollection.setFocusableInTouchMode(enabled);
             editCaptureSpeedRealtime.setFocusableInTouchMode(enabled);
@@ -358,6 +367,7 @@ public class SettingActivity extends AppCompatActivity {
             editCameraPosY.setEnabled(enabled);
             editDisplaySizeX.setEnabled(enabled);
             editDisplaySizeY.setEnabled(enabled);
+            editCalibrationUser.setEnabled(enabled);
             editCalibrationSpeed.setEnabled(enabled);
             editCaptureSpeedCollection.setEnabled(enabled);
             editCaptureSpeedRealtime.setEnabled(enabled);
@@ -365,10 +375,12 @@ public class SettingActivity extends AppCompatActivity {
             editPictureRotation.setEnabled(enabled);
             editDotCandidateRow.setEnabled(enabled);
             editDotCandidateCol.setEnabled(enabled);
+            switchRoiUpload.setEnabled(enabled);
             editCameraPosX.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editCameraPosY.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editDisplaySizeX.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editDisplaySizeY.setTextColor(ContextCompat.getColor(this, android.R.color.black));
+            editCalibrationUser.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editCalibrationSpeed.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editCaptureSpeedCollection.setTextColor(ContextCompat.getColor(this, android.R.color.black));
             editCaptureSpeedRealtime.setTextColor(ContextCompat.getColor(this, android.R.color.black));
@@ -380,6 +392,7 @@ public class SettingActivity extends AppCompatActivity {
             editCameraPosY.setFocusableInTouchMode(enabled);
             editDisplaySizeX.setFocusableInTouchMode(enabled);
             editDisplaySizeY.setFocusableInTouchMode(enabled);
+            editCalibrationUser.setFocusableInTouchMode(enabled);
             editCalibrationSpeed.setFocusableInTouchMode(enabled);
             editCaptureSpeedCollection.setFocusableInTouchMode(enabled);
             editCaptureSpeedRealtime.setFocusableInTouchMode(enabled);
@@ -391,6 +404,24 @@ public class SettingActivity extends AppCompatActivity {
     }
 
 
+    private void showCalibrationMatrix(){
+        float[] matNum = confHandler.getCalibrationMatrix();
+        if( matNum!=null ) {
+            String matStr = "";
+            for (int i = 0; i < 6; i++) {
+                String numStr = String.format("%.04f", matNum[i]);
+                matStr += numStr + ",";
+            }
+            matStr = matStr.substring(0, matStr.length() - 1);
+            editCalibrationMatrix.setText(String.valueOf(matStr));
+        } else {
+            // not a 3x2 matrix, typing one in replaces it
+            editCalibrationMatrix.setText("");
+            editCalibrationMatrix.setHint(confHandler.getCalibrationModel().getName() + " calibration");
+        }
+    }
+
+
     private void updateSetting(){
         confHandler.setCameraOffsetPWidth( Float.parseFloat(editCameraPosX.getText().toString()) ) ;
         confHandler.setCameraOffsetPHeight( Float.parseFloat(editCameraPosY.getText().toString()) ) ;
@@ -403,6 +434,13 @@ public class SettingActivity extends AppCompatActivity {
         confHandler.setImageRotation( Integer.parseInt(editPictureRotation.getText().toString()) );
         confHandler.setDotCandidateRow( Integer.parseInt(editDotCandidateRow.getText().toString()) );
         confHandler.setDotCandidateCol( Integer.parseInt(editDotCandidateCol.getText().toString()) );
+        confHandler.setRoiUpload( switchRoiUpload.isChecked() );
+        String user = editCalibrationUser.getText().toString().trim();
+        if( !user.equals(confHandler.getCalibrationUser()) ){
+            // switches to that user's saved calibration
+            confHandler.setCalibrationUser(user);
+            showCalibrationMatrix();
+        }
         DeviceConfiguration.getInstance(this).saveConfiguration();
     }
 
@@ -21,13 +21,17 @@ import android.widget.FrameLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import com.iai.mdf.DependenceClasses.GazeFrame;
 import com.iai.mdf.FaceDetectionAPI;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
+import com.iai.mdf.Handlers.GazePipeline;
 import com.iai.mdf.Handlers.ImageProcessHandler;
 import com.iai.mdf.Handlers.TensorFlowHandler;
 import com.iai.mdf.Handlers.TimerHandler;
 import com.iai.mdf.Handlers.VolleyHandler;
+import com.iai.mdf.Processing.TensorOps;
+import com.iai.mdf.Processing.TensorShape;
 import com.iai.mdf.R;
 
 import org.json.JSONException;
@@ -50,6 +54,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 
 
@@ -60,6 +65,9 @@ import java.util.ArrayList;
 public class TestPBActivity extends AppCompatActivity {
 
     private final String LOG_TAG = "TestPBActivity";
+    // eye images of the Python dumps, and as the model takes them
+    private static final TensorShape PYTHON_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NCWH);
+    private static final TensorShape ANDROID_EYE_SHAPE = new TensorShape(1, 36, 60, 3, TensorShape.LAYOUT_NHWC);
     private CameraHandler cameraHandler;
     private DrawHandler drawHandler;
     private TextureView textureView;
@@ -78,8 +86,15 @@ public class TestPBActivity extends AppCompatActivity {
     private int     captureInterval = 450;
     private double[]    theFaces = new double[4];
     private TensorFlowHandler tensorFlowHandler;
+    private GazePipeline gazePipeline;
     private int         mFrameIndex = 0;
     private int         currentClassNum = 4;
+    private static final String[]   TF_INPUT_NODES = {"leftEye", "rightEye", "grid"};
+    private static final int[][]    TF_INPUT_SIZES = {{36, 60, 3}, {36, 60, 3}, {24, 32}};
+    private static final int[]      TF_EYE_SIZES = {36, 60, 36, 60};
+    private static final int[]      TF_GRID_SIZE = {24, 32};
+    private int[]       tfEyeRects = new int[8];
+    private FloatBuffer tfInputBuffer;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -153,6 +168,7 @@ public class TestPBActivity extends AppCompatActivity {
         initFaceArray(theFaces);
         tensorFlowHandler = new TensorFlowHandler(this);
         tensorFlowHandler.pickModel(TensorFlowHandler.MODEL_KANG_FILE_NAME);
+        tfInputBuffer = ImageProcessHandler.allocateModelInputBuffer(36*60*3*2 + 24*32);
 
 
 
@@ -166,6 +182,27 @@ public class TestPBActivity extends AppCompatActivity {
         )) {
             Log.d(LOG_TAG, "Error reading model files.");
         }
+        // the synthetic input needs no face, so detection is skipped
+        gazePipeline = new GazePipeline(null, new GazePipeline.Estimator() {
+            @Override
+            public float[] estimate(GazeFrame frame) {
+                TimerHandler.getInstance().tic();
+                float[] res = syntheticEstimation();
+                Log.d("esti", "Estimation Time: " + String.valueOf(TimerHandler.getInstance().toc()));
+                return res;
+            }
+        }, new GazePipeline.Renderer() {
+            @Override
+            public void render(GazeFrame frame) {
+                if( !isRealTimeDetection ){
+                    return;
+                }
+                drawHandler.clear(frame_bounding_box);
+                drawHandler.clear(frame_gaze_result);
+                drawResult(frame.getResult());
+            }
+        });
+        gazePipeline.setYPlaneDirect(true);
 
     }
 
@@ -174,6 +211,7 @@ public class TestPBActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         cameraHandler = new CameraHandler(this, true);
+        gazePipeline.start();
         cameraHandler.setOnImageAvailableListenerForPrev(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
@@ -181,16 +219,12 @@ public class TestPBActivity extends AppCompatActivity {
                 if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE ) {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
                     Log.d(LOG_TAG, "Take a picture");
-                    drawHandler.clear(frame_bounding_box);
-                    drawHandler.clear(frame_gaze_result);
-                    TimerHandler.getInstance().tic();
-                    float[] res = syntheticEstimation();
-                    Log.d("esti", "Estimation Time: " + String.valueOf(TimerHandler.getInstance().toc()));
-                    drawResult(res);
+                    gazePipeline.submit(image);
+                } else {
+                    image.close();
                 }
-                image.close();
             }
-        });
+        }, gazePipeline.getCaptureHandler());
         cameraHandler.startPreview(textureView);
     }
 
@@ -198,11 +232,18 @@ public class TestPBActivity extends AppCompatActivity {
     public void onPause(){
         super.onPause();
         cameraHandler.stopPreview();
+        gazePipeline.stop();
         autoDetectionHandler.removeCallbacks(autoDetectionRunnable);
         initFaceArray(theFaces);    // clear saved faces
         isRealTimeDetection = false;
     }
 
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        tensorFlowHandler.release();
+    }
+
 
 
     private void initOpenCV(){
@@ -336,34 +377,21 @@ public class TestPBActivity extends AppCompatActivity {
             double[] landmarks = detectionAPI.detectLandmarks(grayImg.getNativeObjAddr(), face);
 //            Log.d(LOG_TAG, "Landmark Detection: " + String.valueOf(TimerHandler.getInstance().toc()));
             if( landmarks!=null ){
-                Mat cropMat = new Mat(36, 60, CvType.CV_8UC4);
-                ArrayList<String> tfInputNodes = new ArrayList<>();
-                ArrayList<float[]> tfInputs = new ArrayList<>();
-                ArrayList<int[]> tfInputSizes = new ArrayList<>();
-                float[] tfLEyeInputArray = new float[36*60*3];
-                float[] tfREyeInputArray = new float[36*60*3];
 //                TimerHandler.getInstance().tic();
                 int[] lEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), true);
                 int[] rEyeRect = ImageProcessHandler.getEyeRegionCropRect(landmarks, grayImg.width(), grayImg.height(), false);
                 if (lEyeRect!=null && rEyeRect!=null) {
-                    ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), lEyeRect, new int[]{36,60,3}, tfLEyeInputArray, cropMat.getNativeObjAddr());
-                    tfInputNodes.add("leftEye");
-                    tfInputs.add(tfLEyeInputArray);
-                    tfInputSizes.add(new int[]{36, 60, 3});
-                    ImageProcessHandler.cropSingleRegion(colorImg.getNativeObjAddr(), rEyeRect, new int[]{36,60,3}, tfREyeInputArray, cropMat.getNativeObjAddr());
-                    tfInputNodes.add("rightEye");
-                    tfInputs.add(tfREyeInputArray);
-                    tfInputSizes.add(new int[]{36, 60, 3});
-                    float[] faceGrid = ImageProcessHandler.faceRectToGridArray(face, new int[]{24, 32});
-                    faceGrid = ImageProcessHandler.standardizeGridArray(faceGrid, new int[]{24, 32});
-                    tfInputNodes.add("grid");
-                    tfInputs.add(faceGrid);
-                    tfInputSizes.add(new int[]{24, 32});
+                    System.arraycopy(lEyeRect, 0, tfEyeRects, 0, 4);
+                    System.arraycopy(rEyeRect, 0, tfEyeRects, 4, 4);
+                    boolean isInputReady = ImageProcessHandler.prepareModelInputs(
+                            colorImg, tfEyeRects, TF_EYE_SIZES, face, TF_GRID_SIZE, tfInputBuffer);
 //                    Log.d(LOG_TAG, "Eye -> TensorFlowInput: " + String.valueOf(TimerHandler.getInstance().toc()));
-//                    TimerHandler.getInstance().tic();
-                    float[] loc = tensorFlowHandler.getEstimatedLocation(tfInputNodes, tfInputs, tfInputSizes);
-//                    Log.d(LOG_TAG, "TensorFlow Inference: " + String.valueOf(TimerHandler.getInstance().toc()));
-                    return loc;
+                    if (isInputReady) {
+//                        TimerHandler.getInstance().tic();
+                        float[] loc = tensorFlowHandler.getEstimatedLocation(TF_INPUT_NODES, tfInputBuffer, TF_INPUT_SIZES);
+//                        Log.d(LOG_TAG, "TensorFlow Inference: " + String.valueOf(TimerHandler.getInstance().toc()));
+                        return loc;
+                    }
                 }
             }
         }
@@ -511,15 +539,9 @@ public class TestPBActivity extends AppCompatActivity {
         return array;
     }
 
-    private float[] convertPythonArrayToAndroidArray(float[] arr){
-        float[] newArray = new float[36*60*3];
-        for(int i=0; i<newArray.length; i++){
-            int rgb = i / 36 / 60;
-            int cr = i - rgb * 36 * 60;
-            int c = cr / 36;
-            int r = cr - c * 36;
-            newArray[r * 60 * 3 + c * 3 + rgb] = arr[i];
-        }
+    // newArray is filled and returned, so a caller can reuse it across images
+    private float[] convertPythonArrayToAndroidArray(float[] arr, float[] newArray){
+        TensorOps.convertLayout(arr, PYTHON_EYE_SHAPE, newArray, ANDROID_EYE_SHAPE);
         return newArray;
     }
 
@@ -0,0 +1,86 @@
+package com.iai.mdf.DependenceClasses;
+
+public class AffineCalibration extends CalibrationModel {
+
+    /**
+     * out = (x*m[0] + y*m[2] + m[4], x*m[1] + y*m[3] + m[5]), the 3x2 matrix the calibration
+     * has always stored.
+     */
+
+    public static final int PARAM_NUM = 6;
+
+    private final float[] m;
+
+
+    public AffineCalibration(float[] params){
+        m = checkParameters(params, PARAM_NUM);
+    }
+
+
+    // least squares fit of count pairs, null if the points do not span the plane
+    public static AffineCalibration fit(float[] est, float[] truth, int count){
+        float[] params = new float[PARAM_NUM];
+        if( !fitInto(est, truth, null, count, params, 0) ){
+            return null;
+        }
+        return new AffineCalibration(params);
+    }
+
+    // fits the pairs whose index is set in mask (all if null) into out[offset..offset+5]
+    static boolean fitInto(float[] est, float[] truth, boolean[] mask, int count, float[] out, int offset){
+        int rows = 0;
+        for (int i = 0; i < count; ++i) {
+            if( mask==null || mask[i] ){
+                rows++;
+            }
+        }
+        if( rows < 3 ){
+            return false;
+        }
+        double[] a = new double[rows * 3];
+        double[] b = new double[rows * 2];
+        int r = 0;
+        for (int i = 0; i < count; ++i) {
+            if( mask!=null && !mask[i] ){
+                continue;
+            }
+            a[r * 3] = est[i * 2];
+            a[r * 3 + 1] = est[i * 2 + 1];
+            a[r * 3 + 2] = 1;
+            b[r * 2] = truth[i * 2];
+            b[r * 2 + 1] = truth[i * 2 + 1];
+            r++;
+        }
+        // the 3x2 solution is already in the affine layout
+        double[] x = new double[PARAM_NUM];
+        if( !LinearAlgebra.leastSquaresQRInPlace(a, rows, 3, b, 2, new double[3], x) ){
+            return false;
+        }
+        for (int i = 0; i < PARAM_NUM; ++i) {
+            out[offset + i] = (float) x[i];
+        }
+        return true;
+    }
+
+    @Override
+    public void apply(float[] in, float[] out) {
+        int n = in.length & ~1;
+        for (int i = 0; i < n; i += 2) {
+            float x = in[i];
+            float y = in[i + 1];
+            out[i] = x * m[0] + y * m[2] + m[4];
+            out[i + 1] = x * m[1] + y * m[3] + m[5];
+        }
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_AFFINE;
+    }
+
+    @Override
+    public float[] getParameters() {
+        return m.clone();
+    }
+
+}
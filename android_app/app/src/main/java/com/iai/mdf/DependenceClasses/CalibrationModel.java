@@ -0,0 +1,63 @@
+package com.iai.mdf.DependenceClasses;
+
+public abstract class CalibrationModel {
+
+    /**
+     * Maps estimated gaze points to calibrated ones, both in screen ratios. Points are passed
+     * interleaved, {x0, y0, x1, y1, ...}, so one call maps a whole batch; in and out may be
+     * the same array. A model is fully described by its type and its float parameters, which
+     * is what CalibrationProfileStore persists.
+     */
+
+    public static final int TYPE_AFFINE = 1;
+    public static final int TYPE_POLYNOMIAL = 2;
+    public static final int TYPE_HOMOGRAPHY = 3;
+    public static final int TYPE_PIECEWISE = 4;
+
+
+    public static CalibrationModel create(int type, float[] params){
+        switch (type){
+            case TYPE_AFFINE:
+                return new AffineCalibration(params);
+            case TYPE_POLYNOMIAL:
+                return new PolynomialCalibration(params);
+            case TYPE_HOMOGRAPHY:
+                return new HomographyCalibration(params);
+            case TYPE_PIECEWISE:
+                return new PiecewiseCalibration(params);
+            default:
+                throw new IllegalArgumentException("Unknown calibration model: " + type);
+        }
+    }
+
+    public static CalibrationModel identity(){
+        return new AffineCalibration(new float[]{1, 0, 0, 1, 0, 0});
+    }
+
+
+    // maps in.length / 2 points
+    public abstract void apply(float[] in, float[] out);
+
+    public abstract int getType();
+
+    // a copy, in the layout create() takes
+    public abstract float[] getParameters();
+
+    public String getName(){
+        switch (getType()){
+            case TYPE_AFFINE:       return "affine";
+            case TYPE_POLYNOMIAL:   return "polynomial";
+            case TYPE_HOMOGRAPHY:   return "homography";
+            case TYPE_PIECEWISE:    return "piecewise";
+            default:                return "unknown";
+        }
+    }
+
+    static float[] checkParameters(float[] params, int length){
+        if( params==null || params.length!=length ){
+            throw new IllegalArgumentException("The model needs " + length + " parameters");
+        }
+        return params.clone();
+    }
+
+}
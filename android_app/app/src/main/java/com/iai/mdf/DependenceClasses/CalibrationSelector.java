@@ -0,0 +1,165 @@
+package com.iai.mdf.DependenceClasses;
+
+public class CalibrationSelector {
+
+    /**
+     * Keeps the estimate / ground truth pairs of a calibration run and picks the model that
+     * predicts them best. Every HOLDOUT_STRIDE-th pair is held out; each candidate (affine,
+     * quadratic, homography, piecewise) that has enough pairs is fitted on the rest and scored
+     * by its mean distance on the held-out pairs. The winner is fitted again on every pair.
+     * When more than capacity pairs come in, the oldest ones are overwritten.
+     */
+
+    public static final int DEFAULT_CAPACITY = 512;
+    public static final int PIECEWISE_ROWS = 2;
+    public static final int PIECEWISE_COLS = 2;
+    private static final int HOLDOUT_STRIDE = 4;
+    private static final int[] CANDIDATES = {
+            CalibrationModel.TYPE_AFFINE,
+            CalibrationModel.TYPE_POLYNOMIAL,
+            CalibrationModel.TYPE_HOMOGRAPHY,
+            CalibrationModel.TYPE_PIECEWISE
+    };
+
+    private final float[] est;
+    private final float[] truth;
+    private int           head;
+    private int           count;
+    private double        selectedError = Double.NaN;
+
+
+    public CalibrationSelector(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CalibrationSelector(int capacity){
+        est = new float[capacity * 2];
+        truth = new float[capacity * 2];
+    }
+
+
+    public void reset(){
+        head = 0;
+        count = 0;
+        selectedError = Double.NaN;
+    }
+
+    public void add(double estX, double estY, double truX, double truY){
+        int capacity = est.length / 2;
+        int slot = (head + count) % capacity;
+        if( count == capacity ){
+            head = (head + 1) % capacity;
+        } else {
+            count++;
+        }
+        est[slot * 2] = (float) estX;
+        est[slot * 2 + 1] = (float) estY;
+        truth[slot * 2] = (float) truX;
+        truth[slot * 2 + 1] = (float) truY;
+    }
+
+    // the best candidate fitted on every pair, null if not even the affine map can be fitted
+    public CalibrationModel select(){
+        int heldOut = count / HOLDOUT_STRIDE;
+        int trained = count - heldOut;
+        float[] trainEst = new float[trained * 2];
+        float[] trainTruth = new float[trained * 2];
+        float[] testEst = new float[heldOut * 2];
+        float[] testTruth = new float[heldOut * 2];
+        int t = 0, h = 0;
+        for (int i = 0; i < count; ++i) {
+            int slot = (head + i) % (est.length / 2);
+            if( i % HOLDOUT_STRIDE == HOLDOUT_STRIDE - 1 ){
+                copyPair(slot, testEst, testTruth, h++);
+            } else {
+                copyPair(slot, trainEst, trainTruth, t++);
+            }
+        }
+        int bestType = -1;
+        double bestError = Double.MAX_VALUE;
+        if( heldOut > 0 ){
+            for (int type : CANDIDATES) {
+                CalibrationModel model = fit(type, trainEst, trainTruth, trained);
+                if( model == null ){
+                    continue;
+                }
+                double error = meanDistance(model, testEst, testTruth, heldOut);
+                if( error < bestError ){
+                    bestError = error;
+                    bestType = type;
+                }
+            }
+        }
+        float[] allEst = new float[count * 2];
+        float[] allTruth = new float[count * 2];
+        for (int i = 0; i < count; ++i) {
+            copyPair((head + i) % (est.length / 2), allEst, allTruth, i);
+        }
+        CalibrationModel model = bestType < 0 ? null : fit(bestType, allEst, allTruth, count);
+        if( model == null ){
+            // too few pairs to compare the candidates
+            model = fit(CalibrationModel.TYPE_AFFINE, allEst, allTruth, count);
+            bestError = Double.NaN;
+        }
+        selectedError = model == null ? Double.NaN : bestError;
+        return model;
+    }
+
+    // null if the type needs more pairs or the fit is degenerate
+    static CalibrationModel fit(int type, float[] est, float[] truth, int count){
+        switch (type){
+            case CalibrationModel.TYPE_AFFINE:
+                return AffineCalibration.fit(est, truth, count);
+            case CalibrationModel.TYPE_POLYNOMIAL:
+                if( count < 2 * OnlineCalibrator.MODEL_QUADRATIC ){
+                    return null;
+                }
+                OnlineCalibrator calibrator = new OnlineCalibrator(OnlineCalibrator.MODEL_QUADRATIC,
+                        OnlineCalibrator.DEFAULT_FORGETTING, OnlineCalibrator.DEFAULT_HUBER_DELTA,
+                        OnlineCalibrator.DEFAULT_REJECT_DISTANCE);
+                for (int i = 0; i < count; ++i) {
+                    calibrator.update(est[i * 2], est[i * 2 + 1], truth[i * 2], truth[i * 2 + 1]);
+                }
+                return calibrator.toModel();
+            case CalibrationModel.TYPE_HOMOGRAPHY:
+                return HomographyCalibration.fit(est, truth, count);
+            case CalibrationModel.TYPE_PIECEWISE:
+                // about as many pairs per region as the quadratic model needs overall
+                if( count < PIECEWISE_ROWS * PIECEWISE_COLS * 2 * AffineCalibration.PARAM_NUM ){
+                    return null;
+                }
+                return PiecewiseCalibration.fit(est, truth, count, PIECEWISE_ROWS, PIECEWISE_COLS);
+            default:
+                throw new IllegalArgumentException("Unknown calibration model: " + type);
+        }
+    }
+
+    private static double meanDistance(CalibrationModel model, float[] est, float[] truth, int count){
+        float[] out = new float[count * 2];
+        model.apply(est, out);
+        double sum = 0;
+        for (int i = 0; i < count; ++i) {
+            double dx = out[i * 2] - truth[i * 2];
+            double dy = out[i * 2 + 1] - truth[i * 2 + 1];
+            sum += Math.sqrt(dx * dx + dy * dy);
+        }
+        return sum / count;
+    }
+
+    private void copyPair(int slot, float[] toEst, float[] toTruth, int index){
+        toEst[index * 2] = est[slot * 2];
+        toEst[index * 2 + 1] = est[slot * 2 + 1];
+        toTruth[index * 2] = truth[slot * 2];
+        toTruth[index * 2 + 1] = truth[slot * 2 + 1];
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // held-out mean distance of the last select(), NaN if the candidates were not compared
+    public double getSelectedError() {
+        return selectedError;
+    }
+
+}
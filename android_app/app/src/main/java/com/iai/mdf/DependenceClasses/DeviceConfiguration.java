@@ -4,9 +4,12 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.iai.mdf.Handlers.CalibrationProfileStore;
+
 import java.util.StringTokenizer;
 
 
@@ -28,13 +31,16 @@ public class DeviceConfiguration {
     private static final String KEY_DISPLAY_SHORT_RESO = "display_reso_short";
     private static final String KEY_DISPLAY_LONG_RESO = "display_reso_long";
     private static final String KEY_CALIBRAIION_SPEED = "calibration_speed";
-    private static final String KEY_CALIBRAIION_RESULT = "calibration_result";
+    private static final String KEY_CALIBRAIION_RESULT = "calibration_result";     // before profiles, migrated once
+    private static final String KEY_CALIBRAIION_USER = "calibration_user";
+    public static final String  DEFAULT_CALIBRATION_USER = "default";
     private static final String KEY_CAPTURE_SPEED_COLLECTION = "capture_speed_collection";
     private static final String KEY_CAPTURE_SPEED_REALTIME = "capture_speed_realtime";
     private static final String KEY_VIDEO_COLLECTION_FPS = "video_collection_fps";
     private static final String KEY_CAPTURE_ROTATION = "picture_rotation";
     private static final String KEY_DOT_CANDIDATE_ROW = "dot_candidate_row";
     private static final String KEY_DOT_CANDIDATE_COL = "dot_candidate_col";
+    private static final String KEY_ROI_UPLOAD = "roi_upload";
 
 
 
@@ -53,19 +59,22 @@ public class DeviceConfiguration {
     private int     screenResoPWidth;
     private int     screenResoPHeight;
     private int     calibrationSpeed;
-    private float[] calibrationMatrix;
+    private CalibrationModel calibrationModel = CalibrationModel.identity();
+    private String  calibrationUser = DEFAULT_CALIBRATION_USER;
+    private boolean isCalibrationChanged = false;
+    private CalibrationProfileStore profileStore;
     private int     collectionCaptureDelayTime;
     private int     demoCaptureDelayTime;
     private int     videoCollectionFPS;
     private int     imageRotation;
     private int     dotCandidateRow;
     private int     dotCandidateCol;
+    private boolean isRoiUpload;
 
 
 
     private DeviceConfiguration(Context context) {
         ctxt = context;
-        calibrationMatrix = new float[6];
     }
 
     public static synchronized DeviceConfiguration getInstance(Context context){
@@ -94,18 +103,28 @@ public class DeviceConfiguration {
             screenResoPHeight = displayMetrics.widthPixels;
         }
         calibrationSpeed = settings.getInt(this.KEY_CALIBRAIION_SPEED, 500);
-        // 3x2 matrix
-        StringTokenizer st = new StringTokenizer(settings.getString(this.KEY_CALIBRAIION_RESULT, "1,0,0,1,0,0"), ",");
-        for (int i = 0; i < 6; i++) {
-            calibrationMatrix[i] = Float.parseFloat(st.nextToken());
-            Log.d(LOG_TAG, String.valueOf(calibrationMatrix[i]));
+        calibrationUser = settings.getString(this.KEY_CALIBRAIION_USER, DEFAULT_CALIBRATION_USER);
+        CalibrationModel profile = getProfileStore().load(calibrationUser, Build.MODEL);
+        if( profile!=null ){
+            calibrationModel = profile;
+        } else {
+            // older versions kept a single 3x2 matrix in the preferences
+            StringTokenizer st = new StringTokenizer(settings.getString(this.KEY_CALIBRAIION_RESULT, "1,0,0,1,0,0"), ",");
+            float[] mat = new float[AffineCalibration.PARAM_NUM];
+            for (int i = 0; i < mat.length; i++) {
+                mat[i] = Float.parseFloat(st.nextToken());
+            }
+            calibrationModel = new AffineCalibration(mat);
+            isCalibrationChanged = true;
         }
+        Log.d(LOG_TAG, "Calibration of " + calibrationUser + ": " + calibrationModel.getName());
         collectionCaptureDelayTime = settings.getInt(this.KEY_CAPTURE_SPEED_COLLECTION, 700);
         demoCaptureDelayTime = settings.getInt(this.KEY_CAPTURE_SPEED_REALTIME, 300);
         videoCollectionFPS = settings.getInt(this.KEY_VIDEO_COLLECTION_FPS, 30);
         imageRotation = settings.getInt(this.KEY_CAPTURE_ROTATION, 0);
         dotCandidateRow = settings.getInt(this.KEY_DOT_CANDIDATE_ROW, 5);
         dotCandidateCol = settings.getInt(this.KEY_DOT_CANDIDATE_COL, 6);
+        isRoiUpload = settings.getBoolean(this.KEY_ROI_UPLOAD, false);
     }
 
     public void saveConfiguration(){
@@ -116,20 +135,31 @@ public class DeviceConfiguration {
         editor.putFloat(this.KEY_DISPLAY_SHORT_CM, screenSizePWidth);
         editor.putFloat(this.KEY_DISPLAY_LONG_CM, screenSizePHeight);
         editor.putInt(this.KEY_CALIBRAIION_SPEED, calibrationSpeed);
-        StringBuilder caliMatStr = new StringBuilder();
-        caliMatStr.append(calibrationMatrix[0]).append(",").append(calibrationMatrix[1]).append(",")
-                .append(calibrationMatrix[2]).append(",").append(calibrationMatrix[3]).append(",")
-                .append(calibrationMatrix[4]).append(",").append(calibrationMatrix[5]);
-        editor.putString(this.KEY_CALIBRAIION_RESULT, caliMatStr.toString());
+        editor.putString(this.KEY_CALIBRAIION_USER, calibrationUser);
+        if( isCalibrationChanged ){
+            isCalibrationChanged = !getProfileStore().save(calibrationUser, Build.MODEL, calibrationModel);
+        }
+        if( !isCalibrationChanged ){
+            // the profile store holds it now
+            editor.remove(this.KEY_CALIBRAIION_RESULT);
+        }
         editor.putInt(this.KEY_CAPTURE_SPEED_COLLECTION, collectionCaptureDelayTime);
         editor.putInt(this.KEY_CAPTURE_SPEED_REALTIME, demoCaptureDelayTime);
         editor.putInt(this.KEY_VIDEO_COLLECTION_FPS, videoCollectionFPS);
         editor.putInt(this.KEY_CAPTURE_ROTATION, imageRotation);
         editor.putInt(this.KEY_DOT_CANDIDATE_ROW, dotCandidateRow);
         editor.putInt(this.KEY_DOT_CANDIDATE_COL, dotCandidateCol);
+        editor.putBoolean(this.KEY_ROI_UPLOAD, isRoiUpload);
         editor.commit();
     }
 
+    private CalibrationProfileStore getProfileStore(){
+        if( profileStore==null ){
+            profileStore = new CalibrationProfileStore(ctxt.getApplicationContext().getFilesDir());
+        }
+        return profileStore;
+    }
+
 
 
 
@@ -190,12 +220,38 @@ public class DeviceConfiguration {
         this.calibrationSpeed = calibrationSpeed;
     }
 
+    // the 3x2 matrix of an affine calibration, null for the other models
     public float[] getCalibrationMatrix() {
-        return calibrationMatrix;
+        if( calibrationModel.getType()!=CalibrationModel.TYPE_AFFINE ){
+            return null;
+        }
+        return calibrationModel.getParameters();
     }
 
     public void setCalibrationMatrix(float[] calibrationMatrix) {
-        this.calibrationMatrix = calibrationMatrix;
+        this.calibrationModel = new AffineCalibration(calibrationMatrix);
+        isCalibrationChanged = true;
+    }
+
+    public CalibrationModel getCalibrationModel() {
+        return calibrationModel;
+    }
+
+    public void setCalibrationModel(CalibrationModel calibrationModel) {
+        this.calibrationModel = calibrationModel;
+        isCalibrationChanged = true;
+    }
+
+    public String getCalibrationUser() {
+        return calibrationUser;
+    }
+
+    // switches to the user's saved calibration on this device, identity if there is none
+    public void setCalibrationUser(String calibrationUser) {
+        this.calibrationUser = calibrationUser;
+        CalibrationModel profile = getProfileStore().load(calibrationUser, Build.MODEL);
+        calibrationModel = profile!=null ? profile : CalibrationModel.identity();
+        isCalibrationChanged = false;
     }
 
     public int getCollectionCaptureDelayTime() {
@@ -245,4 +301,14 @@ public class DeviceConfiguration {
     public void setDotCandidateCol(int dotCandidateCol) {
         this.dotCandidateCol = dotCandidateCol;
     }
+
+    // upload only the face and eye crops to the gaze server, see SocketHandler.setRoiUpload()
+    public boolean isRoiUpload() {
+        return isRoiUpload;
+    }
+
+    public void setRoiUpload(boolean roiUpload) {
+        isRoiUpload = roiUpload;
+    }
+
 }
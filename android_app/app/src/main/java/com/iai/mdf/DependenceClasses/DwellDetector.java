@@ -0,0 +1,149 @@
+package com.iai.mdf.DependenceClasses;
+
+public class DwellDetector {
+
+    /**
+     * Turns a stream of gazed cells (grid positions, -1 for none) into dwell clicks.
+     * The last windowSize samples are kept in a ring, and a histogram over the cells counts
+     * them, so adding a sample and dropping the oldest one are two counter updates.
+     * A cell is selected once it holds enterRatio of the window, and stays selected until it
+     * falls under exitRatio (hysteresis, so a few stray samples do not reset the dwell).
+     * A click fires when the selection has been held for dwellTimeMs, and again every
+     * dwellTimeMs for as long as the gaze stays on it.
+     * With enterRatio above 0.5 only one cell can be selected at a time.
+     */
+
+    public static final int     NO_CELL = -1;
+    public static final int     DEFAULT_WINDOW_SIZE = 8;
+    public static final long    DEFAULT_DWELL_TIME = 500;    // in ms
+    public static final double  DEFAULT_ENTER_RATIO = 0.75;
+    public static final double  DEFAULT_EXIT_RATIO = 0.5;
+
+    private final int       cellCount;
+    private final int[]     counts;         // per cell, the last slot counts NO_CELL samples
+    private final int[]     window;         // ring of histogram slots
+    private final int       enterCount;
+    private final int       exitCount;
+    private long            dwellTime;
+    private int             windowHead = 0;  // next slot to write
+    private int             windowCount = 0;
+    private int             selectedCell = NO_CELL;
+    private long            selectedTime = -1;   // when the dwell on selectedCell started
+    private int             lastCell = NO_CELL;
+    private int             triggerCount = 0;
+
+
+    public DwellDetector(int cellCount){
+        this(cellCount, DEFAULT_WINDOW_SIZE, DEFAULT_DWELL_TIME, DEFAULT_ENTER_RATIO, DEFAULT_EXIT_RATIO);
+    }
+
+    public DwellDetector(int cellCount, int windowSize, long dwellTimeMs, double enterRatio, double exitRatio){
+        if( cellCount < 1 || windowSize < 1 ){
+            throw new IllegalArgumentException("Needs at least one cell and one sample in the window");
+        }
+        if( exitRatio > enterRatio ){
+            throw new IllegalArgumentException("The exit ratio must not be above the enter ratio");
+        }
+        this.cellCount = cellCount;
+        this.counts = new int[cellCount + 1];
+        this.window = new int[windowSize];
+        // at least one sample either way, or an empty window would select a cell
+        this.enterCount = Math.max(1, (int) Math.ceil(enterRatio * windowSize));
+        this.exitCount = Math.max(1, (int) Math.ceil(exitRatio * windowSize));
+        this.dwellTime = dwellTimeMs;
+    }
+
+
+    // returns the cell to click, NO_CELL if no dwell completed with this sample
+    public int update(int cell, long timeMs){
+        if( cell < 0 || cell >= cellCount ){
+            cell = NO_CELL;
+        }
+        lastCell = cell;
+        int slot = cell==NO_CELL ? cellCount : cell;
+        if( windowCount == window.length ){
+            int oldSlot = window[windowHead];
+            counts[oldSlot]--;
+            if( oldSlot == selectedCell && counts[oldSlot] < exitCount ){
+                deselect();
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowHead] = slot;
+        windowHead = (windowHead + 1) % window.length;
+        counts[slot]++;
+        if( selectedCell == NO_CELL ){
+            // only the cell that just grew can have crossed the enter count
+            if( cell != NO_CELL && counts[slot] >= enterCount ){
+                selectedCell = cell;
+                selectedTime = timeMs;
+            } else {
+                return NO_CELL;
+            }
+        }
+        if( timeMs - selectedTime >= dwellTime ){
+            selectedTime = timeMs;
+            triggerCount++;
+            return selectedCell;
+        }
+        return NO_CELL;
+    }
+
+    public void reset(){
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = 0;
+        }
+        windowHead = 0;
+        windowCount = 0;
+        lastCell = NO_CELL;
+        deselect();
+    }
+
+    private void deselect(){
+        selectedCell = NO_CELL;
+        selectedTime = -1;
+    }
+
+    // share of the window spent on the cell, in [0, 1]
+    public double getConfidence(int cell){
+        if( cell < 0 || cell >= cellCount || windowCount == 0 ){
+            return 0;
+        }
+        return (double) counts[cell] / window.length;
+    }
+
+    // how far the dwell on the selected cell is, in [0, 1], e.g. for a progress ring
+    public double getDwellProgress(long timeMs){
+        if( selectedCell == NO_CELL || dwellTime <= 0 ){
+            return 0;
+        }
+        return Math.min(1.0, (double) (timeMs - selectedTime) / dwellTime);
+    }
+
+    public void setDwellTime(long dwellTimeMs) {
+        this.dwellTime = dwellTimeMs;
+    }
+
+    public long getDwellTime() {
+        return dwellTime;
+    }
+
+    public int getSelectedCell() {
+        return selectedCell;
+    }
+
+    // the cell of the last sample, NO_CELL if it was outside the grid
+    public int getLastCell() {
+        return lastCell;
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    public int getTriggerCount() {
+        return triggerCount;
+    }
+
+}
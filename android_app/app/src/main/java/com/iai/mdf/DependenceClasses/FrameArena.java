@@ -0,0 +1,61 @@
+package com.iai.mdf.DependenceClasses;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class FrameArena {
+
+    /**
+     * A small ring of reusable frame buffers, so the preview path does not allocate a whole
+     * frame per captured image. Every use site owns its arena, so its buffers keep their size,
+     * and every thread has its own ring in it: a buffer handed out by acquire*() stays valid
+     * for the next (SLOT_NUM - 1) acquisitions from the same arena on the same thread.
+     */
+
+    public static final int SLOT_NUM = 3;
+    private final ThreadLocal<Ring> rings = new ThreadLocal<Ring>(){
+        @Override
+        protected Ring initialValue() {
+            return new Ring();
+        }
+    };
+
+
+    private static class Ring {
+        final ByteBuffer[]  directSlots = new ByteBuffer[SLOT_NUM];
+        final byte[][]      arraySlots = new byte[SLOT_NUM][];
+        int                 directCursor = 0;
+        int                 arrayCursor = 0;
+    }
+
+
+    // the returned buffer has position 0 and limit == capacity
+    public ByteBuffer acquireDirect(int capacity){
+        Ring ring = rings.get();
+        ByteBuffer slot = ring.directSlots[ring.directCursor];
+        if( slot==null || slot.capacity()!=capacity ){
+            slot = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            ring.directSlots[ring.directCursor] = slot;
+        }
+        ring.directCursor = (ring.directCursor + 1) % SLOT_NUM;
+        slot.clear();
+        return slot;
+    }
+
+    public byte[] acquireArray(int length){
+        Ring ring = rings.get();
+        byte[] slot = ring.arraySlots[ring.arrayCursor];
+        if( slot==null || slot.length!=length ){
+            slot = new byte[length];
+            ring.arraySlots[ring.arrayCursor] = slot;
+        }
+        ring.arrayCursor = (ring.arrayCursor + 1) % SLOT_NUM;
+        return slot;
+    }
+
+    // drops the calling thread's buffers
+    public void release(){
+        rings.remove();
+    }
+
+}
@@ -89,6 +89,16 @@ public class GameGrid {
         return holes;
     }
 
+    public int getCellCount(){
+        return GRID_SIZE_ROW * GRID_SIZE_COL;
+    }
+
+    // dwell detector over this grid's cells, for gaze clicks
+    public DwellDetector createDwellDetector(int windowSize, long dwellTimeMs){
+        return new DwellDetector(getCellCount(), windowSize, dwellTimeMs,
+                DwellDetector.DEFAULT_ENTER_RATIO, DwellDetector.DEFAULT_EXIT_RATIO);
+    }
+
     public void startGame(){
         moles.clear();
         gameProcHandler.post(gameGenerateRunnable);
@@ -0,0 +1,20 @@
+package com.iai.mdf.DependenceClasses;
+
+public interface GazeFilter {
+
+    /**
+     * Smooths a stream of gaze points, one sample at a time, in constant time and without
+     * allocating. Coordinates are in whatever unit the caller uses (screen ratios in the
+     * activities), time is in ms.
+     */
+
+    // starts over at the given point, as if no sample had been seen before
+    void reset(double x, double y, long timeMs);
+
+    void update(double x, double y, long timeMs);
+
+    double getX();
+
+    double getY();
+
+}
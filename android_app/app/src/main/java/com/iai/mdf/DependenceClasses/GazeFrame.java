@@ -0,0 +1,133 @@
+package com.iai.mdf.DependenceClasses;
+
+import android.media.Image;
+
+import org.opencv.core.Mat;
+
+public class GazeFrame {
+
+    /**
+     * One camera frame on its way through the gaze pipeline. Each stage fills in its part:
+     * capture the color image, preprocess the gray image, detection the face and landmarks,
+     * inference the result. Frames are pooled, so the Mats keep their memory between uses.
+     * When the gray image is read straight from the camera image's Y plane, the frame keeps
+     * the camera image open until closeImage().
+     */
+
+    private final Mat   colorImg = new Mat();
+    private final Mat   grayImg = new Mat();
+    private final Mat   grayCopy = new Mat();   // for Y planes with padded rows
+    private Image       image;          // camera image the gray image points into, null if copied
+    private int         width;
+    private int         height;
+    private int[]       face;           // x, y, width, height in image pixels
+    private double[]    landmarks;
+    private float[]     result;         // own copy, the model's output array is reused
+    private boolean     hasResult;
+    private long        captureTime;    // in ms
+
+
+    public GazeFrame(){
+        reset();
+    }
+
+    public void reset(){
+        face = null;
+        landmarks = null;
+        hasResult = false;
+        captureTime = -1;
+    }
+
+    public Mat getColorImg() {
+        return colorImg;
+    }
+
+    public Mat getGrayImg() {
+        return grayImg;
+    }
+
+    // the gray image is copied here when the Y plane cannot be used in place
+    public Mat getGrayCopy() {
+        return grayCopy;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public Image getImage() {
+        return image;
+    }
+
+    public void setImage(Image image) {
+        this.image = image;
+    }
+
+    // closes the camera image, the gray image no longer points into it afterwards
+    public void closeImage(){
+        if( image!=null ){
+            grayImg.release();
+            image.close();
+            image = null;
+        }
+    }
+
+    public int[] getFace() {
+        return face;
+    }
+
+    public void setFace(int[] face) {
+        this.face = face;
+    }
+
+    public double[] getLandmarks() {
+        return landmarks;
+    }
+
+    public void setLandmarks(double[] landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    // null if there is no result for this frame
+    public float[] getResult() {
+        return hasResult ? result : null;
+    }
+
+    // copies the values, null clears the result
+    public void setResult(float[] values) {
+        if( values==null ){
+            hasResult = false;
+            return;
+        }
+        if( result==null || result.length!=values.length ){
+            result = new float[values.length];
+        }
+        System.arraycopy(values, 0, result, 0, values.length);
+        hasResult = true;
+    }
+
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    public void setCaptureTime(long captureTime) {
+        this.captureTime = captureTime;
+    }
+
+    public void release(){
+        closeImage();
+        colorImg.release();
+        grayImg.release();
+        grayCopy.release();
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.iai.mdf.DependenceClasses;
+
+public class GazeResponse {
+
+    /**
+     * One prediction sent back by the gaze server, e.g.
+     * {"SequenceNumber": 12, "Valid": true, "PredictX": 1.5, "PredictY": -3.2}
+     * or, when negotiated, as a fixed-size little-endian record:
+     * [uint32 seq][uint8 flags][3 pad][float32 x][float32 y][uint32 server time in ms]
+     * The same object is refilled for every reply, so nothing is allocated per frame.
+     */
+
+    public static final String JSON_KEY_VALID = "Valid";
+    public static final String JSON_KEY_PREDICT_X = "PredictX";
+    public static final String JSON_KEY_PREDICT_Y = "PredictY";
+    public static final String JSON_KEY_SEQ_NUMBER = "SequenceNumber";
+    public static final int BINARY_RECORD_LENGTH = 20;
+    public static final int FLAG_VALID = 0x01;
+
+    private int     sequenceNumber;
+    private boolean valid;
+    private double  predictX;
+    private double  predictY;
+    private long    roundTripTime;      // in ms, -1 if the request was not found
+    private long    serverTimestamp;    // in ms, -1 for JSON replies
+    private long    captureTime;        // capture time of the matched frame in ms, -1 if unknown
+
+
+    public GazeResponse(){
+        reset();
+    }
+
+    public void reset(){
+        sequenceNumber = -1;
+        valid = false;
+        predictX = -1;
+        predictY = -1;
+        roundTripTime = -1;
+        serverTimestamp = -1;
+        captureTime = -1;
+    }
+
+    public void copyFrom(GazeResponse other){
+        sequenceNumber = other.sequenceNumber;
+        valid = other.valid;
+        predictX = other.predictX;
+        predictY = other.predictY;
+        roundTripTime = other.roundTripTime;
+        serverTimestamp = other.serverTimestamp;
+        captureTime = other.captureTime;
+    }
+
+    // parses one flat JSON object line; returns false if it has no sequence number
+    public boolean parseJson(String line){
+        reset();
+        boolean hasSequenceNumber = false;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            int keyStart = line.indexOf('"', i);
+            if (keyStart < 0) {
+                break;
+            }
+            int keyEnd = line.indexOf('"', keyStart + 1);
+            int colon = keyEnd < 0 ? -1 : line.indexOf(':', keyEnd);
+            if (colon < 0) {
+                break;
+            }
+            int valueStart = colon + 1;
+            while (valueStart < length && line.charAt(valueStart) == ' ') {
+                valueStart++;
+            }
+            int valueEnd = valueStart;
+            while (valueEnd < length && line.charAt(valueEnd) != ',' && line.charAt(valueEnd) != '}') {
+                valueEnd++;
+            }
+            if (isKey(line, keyStart, keyEnd, JSON_KEY_SEQ_NUMBER)) {
+                sequenceNumber = (int) parseLong(line, valueStart, valueEnd);
+                hasSequenceNumber = true;
+            } else if (isKey(line, keyStart, keyEnd, JSON_KEY_VALID)) {
+                valid = line.startsWith("true", valueStart);
+            } else if (isKey(line, keyStart, keyEnd, JSON_KEY_PREDICT_X)) {
+                predictX = Double.parseDouble(line.substring(valueStart, valueEnd).trim());
+            } else if (isKey(line, keyStart, keyEnd, JSON_KEY_PREDICT_Y)) {
+                predictY = Double.parseDouble(line.substring(valueStart, valueEnd).trim());
+            }
+            i = valueEnd + 1;
+        }
+        return hasSequenceNumber;
+    }
+
+    public void parseBinary(byte[] record, int offset){
+        reset();
+        sequenceNumber = readIntLE(record, offset);
+        valid = (record[offset + 4] & FLAG_VALID) != 0;
+        predictX = Float.intBitsToFloat(readIntLE(record, offset + 8));
+        predictY = Float.intBitsToFloat(readIntLE(record, offset + 12));
+        serverTimestamp = readIntLE(record, offset + 16) & 0xFFFFFFFFL;
+    }
+
+    private static int readIntLE(byte[] bytes, int offset){
+        return (bytes[offset] & 0xFF)
+                | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static boolean isKey(String line, int quoteStart, int quoteEnd, String key){
+        return quoteEnd - quoteStart - 1 == key.length()
+                && line.regionMatches(quoteStart + 1, key, 0, key.length());
+    }
+
+    // digits of the range, with a '-' before the first digit making it negative
+    private static long parseLong(String line, int start, int end){
+        long value = 0;
+        boolean hasDigit = false;
+        boolean isNegative = false;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                hasDigit = true;
+            } else if (c == '-' && !hasDigit) {
+                isNegative = true;
+            }
+        }
+        return isNegative ? -value : value;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public double getPredictX() {
+        return predictX;
+    }
+
+    public void setPredictX(double predictX) {
+        this.predictX = predictX;
+    }
+
+    public double getPredictY() {
+        return predictY;
+    }
+
+    public void setPredictY(double predictY) {
+        this.predictY = predictY;
+    }
+
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    public void setRoundTripTime(long roundTripTime) {
+        this.roundTripTime = roundTripTime;
+    }
+
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    public void setCaptureTime(long captureTime) {
+        this.captureTime = captureTime;
+    }
+
+    public long getServerTimestamp() {
+        return serverTimestamp;
+    }
+
+    public void setServerTimestamp(long serverTimestamp) {
+        this.serverTimestamp = serverTimestamp;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.iai.mdf.DependenceClasses;
+
+public class GazeSmoother {
+
+    /**
+     * Runs gaze samples through a GazeFilter, with outlier rejection and a fixation / saccade
+     * classification on top:
+     * - a sample farther than outlierDistance from the smoothed point is dropped, unless
+     *   maxOutliers samples in a row were dropped, then the gaze really moved and the filter
+     *   restarts at the new point;
+     * - a jump faster than saccadeVelocity (units/s) between two samples is a saccade, the
+     *   filter restarts there instead of lagging behind;
+     * - when the last windowSize samples stay within fixationDispersion (x range + y range)
+     *   the gaze is a fixation, otherwise it is a pursuit.
+     * Recent samples are kept in a fixed ring of primitive arrays, so an update costs the same
+     * no matter how long the stream is, and allocates nothing.
+     */
+
+    public static final int     STATE_NONE = 0;
+    public static final int     STATE_FIXATION = 1;
+    public static final int     STATE_PURSUIT = 2;
+    public static final int     STATE_SACCADE = 3;
+
+    public static final int     DEFAULT_WINDOW_SIZE = 5;
+    public static final double  DEFAULT_OUTLIER_DISTANCE = 0.4;
+    public static final int     DEFAULT_MAX_OUTLIERS = 2;
+    public static final double  DEFAULT_SACCADE_VELOCITY = 2.0;
+    public static final double  DEFAULT_FIXATION_DISPERSION = 0.1;
+
+    private final GazeFilter filter;
+    private final double    outlierDistance;
+    private final int       maxOutliers;
+    private final double    saccadeVelocity;
+    private final double    fixationDispersion;
+    // ring of the last accepted raw samples
+    private final double[]  ringX;
+    private final double[]  ringY;
+    private final long[]    ringTime;
+    private int             ringHead = 0;      // next slot to write
+    private int             ringCount = 0;
+    private int             outlierCount = 0;
+    private int             state = STATE_NONE;
+    private int             rejectedSamples = 0;
+
+
+    public GazeSmoother(GazeFilter filter){
+        this(filter, DEFAULT_WINDOW_SIZE, DEFAULT_OUTLIER_DISTANCE, DEFAULT_MAX_OUTLIERS,
+                DEFAULT_SACCADE_VELOCITY, DEFAULT_FIXATION_DISPERSION);
+    }
+
+    public GazeSmoother(GazeFilter filter, int windowSize, double outlierDistance, int maxOutliers,
+                        double saccadeVelocity, double fixationDispersion){
+        if( windowSize < 2 ){
+            throw new IllegalArgumentException("The window needs at least 2 samples");
+        }
+        this.filter = filter;
+        this.outlierDistance = outlierDistance;
+        this.maxOutliers = maxOutliers;
+        this.saccadeVelocity = saccadeVelocity;
+        this.fixationDispersion = fixationDispersion;
+        this.ringX = new double[windowSize];
+        this.ringY = new double[windowSize];
+        this.ringTime = new long[windowSize];
+    }
+
+
+    // returns false if the sample was rejected as an outlier, the smoothed point is unchanged then
+    public boolean update(double x, double y, long timeMs){
+        if( ringCount == 0 ){
+            filter.reset(x, y, timeMs);
+            push(x, y, timeMs);
+            state = STATE_NONE;
+            return true;
+        }
+        if( distance(x, y, filter.getX(), filter.getY()) > outlierDistance ){
+            outlierCount++;
+            if( outlierCount <= maxOutliers ){
+                rejectedSamples++;
+                return false;
+            }
+            // consistently far away: the gaze moved
+            restartAt(x, y, timeMs);
+            return true;
+        }
+        outlierCount = 0;
+        int last = (ringHead + ringX.length - 1) % ringX.length;
+        double dt = (timeMs - ringTime[last]) / 1000.0;
+        if( dt > 0 && distance(x, y, ringX[last], ringY[last]) / dt > saccadeVelocity ){
+            restartAt(x, y, timeMs);
+            return true;
+        }
+        filter.update(x, y, timeMs);
+        push(x, y, timeMs);
+        state = isWithinDispersion() ? STATE_FIXATION : STATE_PURSUIT;
+        return true;
+    }
+
+    public void reset(){
+        ringCount = 0;
+        ringHead = 0;
+        outlierCount = 0;
+        state = STATE_NONE;
+    }
+
+    private void restartAt(double x, double y, long timeMs){
+        filter.reset(x, y, timeMs);
+        ringCount = 0;
+        outlierCount = 0;
+        push(x, y, timeMs);
+        state = STATE_SACCADE;
+    }
+
+    private void push(double x, double y, long timeMs){
+        ringX[ringHead] = x;
+        ringY[ringHead] = y;
+        ringTime[ringHead] = timeMs;
+        ringHead = (ringHead + 1) % ringX.length;
+        if( ringCount < ringX.length ){
+            ringCount++;
+        }
+    }
+
+    // the window is fixed, so this is bounded by windowSize
+    private boolean isWithinDispersion(){
+        if( ringCount < ringX.length ){
+            return false;
+        }
+        double minX = ringX[0], maxX = ringX[0], minY = ringY[0], maxY = ringY[0];
+        for (int i = 1; i < ringCount; ++i) {
+            minX = Math.min(minX, ringX[i]);
+            maxX = Math.max(maxX, ringX[i]);
+            minY = Math.min(minY, ringY[i]);
+            maxY = Math.max(maxY, ringY[i]);
+        }
+        return (maxX - minX) + (maxY - minY) <= fixationDispersion;
+    }
+
+    private static double distance(double x0, double y0, double x1, double y1){
+        double dx = x0 - x1;
+        double dy = y0 - y1;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public double getX() {
+        return filter.getX();
+    }
+
+    public double getY() {
+        return filter.getY();
+    }
+
+    // one of STATE_*, for the last accepted sample
+    public int getState() {
+        return state;
+    }
+
+    public boolean isFixation() {
+        return state == STATE_FIXATION;
+    }
+
+    public int getRejectedSampleCount() {
+        return rejectedSamples;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.iai.mdf.DependenceClasses;
+
+public class HomographyCalibration extends CalibrationModel {
+
+    /**
+     * Plane to plane projective map, h is the 3x3 row-major homography:
+     * out = ((h0 x + h1 y + h2) / w, (h3 x + h4 y + h5) / w), w = h6 x + h7 y + h8.
+     * Fits a screen seen at an angle better than an affine map.
+     */
+
+    public static final int PARAM_NUM = 9;
+    // |w| is kept at least this, points on the map's horizon would go to infinity
+    private static final float MIN_W = 1e-6f;
+
+    private final float[] h;
+
+
+    public HomographyCalibration(float[] params){
+        h = checkParameters(params, PARAM_NUM);
+    }
+
+
+    // least squares fit with h8 = 1, needs at least 4 pairs; null if degenerate
+    public static HomographyCalibration fit(float[] est, float[] truth, int count){
+        if( count < 4 ){
+            return null;
+        }
+        int rows = count * 2;
+        double[] a = new double[rows * 8];
+        double[] b = new double[rows];
+        for (int i = 0; i < count; ++i) {
+            double x = est[i * 2], y = est[i * 2 + 1];
+            double u = truth[i * 2], v = truth[i * 2 + 1];
+            int r0 = i * 2 * 8;
+            int r1 = r0 + 8;
+            a[r0] = x;
+            a[r0 + 1] = y;
+            a[r0 + 2] = 1;
+            a[r0 + 6] = -x * u;
+            a[r0 + 7] = -y * u;
+            a[r1 + 3] = x;
+            a[r1 + 4] = y;
+            a[r1 + 5] = 1;
+            a[r1 + 6] = -x * v;
+            a[r1 + 7] = -y * v;
+            b[i * 2] = u;
+            b[i * 2 + 1] = v;
+        }
+        double[] x = new double[8];
+        if( !LinearAlgebra.leastSquaresQRInPlace(a, rows, 8, b, 1, new double[8], x) ){
+            return null;
+        }
+        float[] params = new float[PARAM_NUM];
+        for (int i = 0; i < 8; ++i) {
+            params[i] = (float) x[i];
+        }
+        params[8] = 1;
+        return new HomographyCalibration(params);
+    }
+
+    @Override
+    public void apply(float[] in, float[] out) {
+        int n = in.length & ~1;
+        for (int i = 0; i < n; i += 2) {
+            float x = in[i];
+            float y = in[i + 1];
+            float w = h[6] * x + h[7] * y + h[8];
+            if( Math.abs(w) < MIN_W ){
+                w = w < 0 ? -MIN_W : MIN_W;
+            }
+            out[i] = (h[0] * x + h[1] * y + h[2]) / w;
+            out[i + 1] = (h[3] * x + h[4] * y + h[5]) / w;
+        }
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_HOMOGRAPHY;
+    }
+
+    @Override
+    public float[] getParameters() {
+        return h.clone();
+    }
+
+}
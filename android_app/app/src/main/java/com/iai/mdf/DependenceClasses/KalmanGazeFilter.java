@@ -0,0 +1,107 @@
+package com.iai.mdf.DependenceClasses;
+
+public class KalmanGazeFilter implements GazeFilter {
+
+    /**
+     * Constant-velocity Kalman filter, one independent [position, velocity] state per axis.
+     * The process noise is a white-noise acceleration of processNoise (units/s^2)^2, the
+     * measurement noise is measurementNoise units^2. The 2x2 covariance is kept in scalars,
+     * so an update is a handful of multiplications.
+     */
+
+    public static final double DEFAULT_PROCESS_NOISE = 1.0;
+    public static final double DEFAULT_MEASUREMENT_NOISE = 0.01;
+    // the first sample's velocity is unknown
+    private static final double INITIAL_VELOCITY_VARIANCE = 1.0;
+
+    private final double processNoise;
+    private final double measurementNoise;
+    private final Axis   xAxis = new Axis();
+    private final Axis   yAxis = new Axis();
+    private long         lastTime = -1;
+
+
+    public KalmanGazeFilter(){
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    public KalmanGazeFilter(double processNoise, double measurementNoise){
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+
+    @Override
+    public void reset(double x, double y, long timeMs) {
+        xAxis.reset(x, measurementNoise);
+        yAxis.reset(y, measurementNoise);
+        lastTime = timeMs;
+    }
+
+    @Override
+    public void update(double x, double y, long timeMs) {
+        if( lastTime < 0 ){
+            reset(x, y, timeMs);
+            return;
+        }
+        double dt = Math.max(0, timeMs - lastTime) / 1000.0;
+        lastTime = timeMs;
+        xAxis.update(x, dt, processNoise, measurementNoise);
+        yAxis.update(y, dt, processNoise, measurementNoise);
+    }
+
+    @Override
+    public double getX() {
+        return xAxis.position;
+    }
+
+    @Override
+    public double getY() {
+        return yAxis.position;
+    }
+
+    public double getVelocityX() {
+        return xAxis.velocity;
+    }
+
+    public double getVelocityY() {
+        return yAxis.velocity;
+    }
+
+
+    private static class Axis {
+
+        double position;
+        double velocity;
+        // covariance [[pp, pv], [pv, vv]]
+        double pp, pv, vv;
+
+        void reset(double position, double measurementNoise){
+            this.position = position;
+            velocity = 0;
+            pp = measurementNoise;
+            pv = 0;
+            vv = INITIAL_VELOCITY_VARIANCE;
+        }
+
+        void update(double measured, double dt, double q, double r){
+            // predict
+            position += velocity * dt;
+            double dt2 = dt * dt;
+            double ppPred = pp + 2 * dt * pv + dt2 * vv + q * dt2 * dt2 / 4;
+            double pvPred = pv + dt * vv + q * dt2 * dt / 2;
+            double vvPred = vv + q * dt2;
+            // correct
+            double s = ppPred + r;
+            double kp = ppPred / s;
+            double kv = pvPred / s;
+            double innovation = measured - position;
+            position += kp * innovation;
+            velocity += kv * innovation;
+            pp = (1 - kp) * ppPred;
+            pv = (1 - kp) * pvPred;
+            vv = vvPred - kv * pvPred;
+        }
+    }
+
+}
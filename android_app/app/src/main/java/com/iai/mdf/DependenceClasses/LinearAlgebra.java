@@ -0,0 +1,354 @@
+package com.iai.mdf.DependenceClasses;
+
+public final class LinearAlgebra {
+
+    /**
+     * Dense linear algebra on flat row-major double[] arrays: element (i, j) of an M-by-N
+     * matrix is at [i * N + j]. Every method writes into an array the caller passes in, so
+     * code that keeps its buffers (calibration, head pose, homographies) runs without garbage.
+     * Outputs must not alias inputs unless the method says it works in place.
+     * The 2x2 / 3x3 helpers are written out in full for the small matrices of screen mapping.
+     */
+
+    // cache-sized tile of the blocked multiply, 32 x 32 doubles = 8 KB
+    private static final int    BLOCK = 32;
+    // relative to the Hadamard bound, below that a small matrix is treated as singular
+    private static final double SINGULAR_TOLERANCE = 1e-12;
+
+
+    private LinearAlgebra(){
+    }
+
+
+    /***** Element-wise *****/
+
+    // out = a + b, out may be a or b
+    public static void add(double[] a, double[] b, double[] out, int length){
+        checkLength(a, length);
+        checkLength(b, length);
+        checkLength(out, length);
+        for (int i = 0; i < length; ++i) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    // out = a - b, out may be a or b
+    public static void subtract(double[] a, double[] b, double[] out, int length){
+        checkLength(a, length);
+        checkLength(b, length);
+        checkLength(out, length);
+        for (int i = 0; i < length; ++i) {
+            out[i] = a[i] - b[i];
+        }
+    }
+
+    // out = a * s, out may be a
+    public static void scale(double[] a, double s, double[] out, int length){
+        checkLength(a, length);
+        checkLength(out, length);
+        for (int i = 0; i < length; ++i) {
+            out[i] = a[i] * s;
+        }
+    }
+
+    public static void setIdentity(double[] out, int n){
+        checkLength(out, n * n);
+        for (int i = 0; i < n * n; ++i) {
+            out[i] = 0;
+        }
+        for (int i = 0; i < n; ++i) {
+            out[i * n + i] = 1;
+        }
+    }
+
+
+    /***** Products *****/
+
+    // out (cols x rows) = a' for a (rows x cols)
+    public static void transposeInto(double[] a, int rows, int cols, double[] out){
+        checkLength(a, rows * cols);
+        checkLength(out, rows * cols);
+        for (int i = 0; i < rows; ++i) {
+            for (int j = 0; j < cols; ++j) {
+                out[j * rows + i] = a[i * cols + j];
+            }
+        }
+    }
+
+    // out (aRows x bCols) = a (aRows x aCols) * b (aCols x bCols), blocked over the inner
+    // dimension and b's columns so a tile of b stays in cache while the rows of a stream by
+    public static void multiplyInto(double[] a, int aRows, int aCols, double[] b, int bCols, double[] out){
+        checkLength(a, aRows * aCols);
+        checkLength(b, aCols * bCols);
+        checkLength(out, aRows * bCols);
+        for (int i = 0; i < aRows * bCols; ++i) {
+            out[i] = 0;
+        }
+        for (int kk = 0; kk < aCols; kk += BLOCK) {
+            int kEnd = Math.min(kk + BLOCK, aCols);
+            for (int jj = 0; jj < bCols; jj += BLOCK) {
+                int jEnd = Math.min(jj + BLOCK, bCols);
+                for (int i = 0; i < aRows; ++i) {
+                    int outRow = i * bCols;
+                    for (int k = kk; k < kEnd; ++k) {
+                        double aik = a[i * aCols + k];
+                        if( aik == 0 ){
+                            continue;
+                        }
+                        int bRow = k * bCols;
+                        for (int j = jj; j < jEnd; ++j) {
+                            out[outRow + j] += aik * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // out (cols x bCols) = a' * b, for a (rows x cols) and b (rows x bCols), without forming a'
+    public static void multiplyTransposedInto(double[] a, int rows, int cols, double[] b, int bCols, double[] out){
+        checkLength(a, rows * cols);
+        checkLength(b, rows * bCols);
+        checkLength(out, cols * bCols);
+        for (int i = 0; i < cols * bCols; ++i) {
+            out[i] = 0;
+        }
+        for (int r = 0; r < rows; ++r) {
+            int aRow = r * cols;
+            int bRow = r * bCols;
+            for (int i = 0; i < cols; ++i) {
+                double ari = a[aRow + i];
+                if( ari == 0 ){
+                    continue;
+                }
+                int outRow = i * bCols;
+                for (int j = 0; j < bCols; ++j) {
+                    out[outRow + j] += ari * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // out (rows) = a (rows x cols) * x (cols)
+    public static void multiplyVectorInto(double[] a, int rows, int cols, double[] x, double[] out){
+        checkLength(a, rows * cols);
+        checkLength(x, cols);
+        checkLength(out, rows);
+        for (int i = 0; i < rows; ++i) {
+            double sum = 0;
+            int aRow = i * cols;
+            for (int j = 0; j < cols; ++j) {
+                sum += a[aRow + j] * x[j];
+            }
+            out[i] = sum;
+        }
+    }
+
+
+    /***** Decompositions *****/
+
+    // a (n x n, symmetric) = L * L', L is written to the lower triangle of a and the upper
+    // triangle is zeroed; returns false if a is not positive definite
+    public static boolean choleskyInPlace(double[] a, int n){
+        checkLength(a, n * n);
+        for (int j = 0; j < n; ++j) {
+            double diag = a[j * n + j];
+            for (int k = 0; k < j; ++k) {
+                diag -= a[j * n + k] * a[j * n + k];
+            }
+            if( diag <= 0 ){
+                return false;
+            }
+            diag = Math.sqrt(diag);
+            a[j * n + j] = diag;
+            for (int i = j + 1; i < n; ++i) {
+                double sum = a[i * n + j];
+                for (int k = 0; k < j; ++k) {
+                    sum -= a[i * n + k] * a[j * n + k];
+                }
+                a[i * n + j] = sum / diag;
+                a[j * n + i] = 0;
+            }
+        }
+        return true;
+    }
+
+    // solves L * L' * x = b for the factor from choleskyInPlace, b (n x bCols) is overwritten by x
+    public static void choleskySolveInPlace(double[] l, int n, double[] b, int bCols){
+        checkLength(l, n * n);
+        checkLength(b, n * bCols);
+        for (int c = 0; c < bCols; ++c) {
+            // forward, L * y = b
+            for (int i = 0; i < n; ++i) {
+                double sum = b[i * bCols + c];
+                for (int k = 0; k < i; ++k) {
+                    sum -= l[i * n + k] * b[k * bCols + c];
+                }
+                b[i * bCols + c] = sum / l[i * n + i];
+            }
+            // backward, L' * x = y
+            for (int i = n - 1; i >= 0; --i) {
+                double sum = b[i * bCols + c];
+                for (int k = i + 1; k < n; ++k) {
+                    sum -= l[k * n + i] * b[k * bCols + c];
+                }
+                b[i * bCols + c] = sum / l[i * n + i];
+            }
+        }
+    }
+
+    // least squares min |a * x - b| by Householder QR, for a (rows x cols) with rows >= cols,
+    // b (rows x bCols) and x (cols x bCols); a and b are destroyed, diag needs cols entries.
+    // Better conditioned than the normal equations; returns false if a is rank deficient
+    public static boolean leastSquaresQRInPlace(double[] a, int rows, int cols, double[] b, int bCols,
+                                                double[] diag, double[] x){
+        if( rows < cols ){
+            throw new IllegalArgumentException("Illegal matrix dimensions.");
+        }
+        checkLength(a, rows * cols);
+        checkLength(b, rows * bCols);
+        checkLength(diag, cols);
+        checkLength(x, cols * bCols);
+        for (int k = 0; k < cols; ++k) {
+            // Householder vector of column k, below the diagonal
+            double norm = 0;
+            for (int i = k; i < rows; ++i) {
+                norm = hypot(norm, a[i * cols + k]);
+            }
+            if( norm == 0 ){
+                return false;
+            }
+            if( a[k * cols + k] < 0 ){
+                norm = -norm;
+            }
+            for (int i = k; i < rows; ++i) {
+                a[i * cols + k] /= norm;
+            }
+            a[k * cols + k] += 1;
+            // apply it to the remaining columns of a, then to b
+            for (int j = k + 1; j < cols; ++j) {
+                double s = 0;
+                for (int i = k; i < rows; ++i) {
+                    s += a[i * cols + k] * a[i * cols + j];
+                }
+                s = -s / a[k * cols + k];
+                for (int i = k; i < rows; ++i) {
+                    a[i * cols + j] += s * a[i * cols + k];
+                }
+            }
+            for (int j = 0; j < bCols; ++j) {
+                double s = 0;
+                for (int i = k; i < rows; ++i) {
+                    s += a[i * cols + k] * b[i * bCols + j];
+                }
+                s = -s / a[k * cols + k];
+                for (int i = k; i < rows; ++i) {
+                    b[i * bCols + j] += s * a[i * cols + k];
+                }
+            }
+            diag[k] = -norm;
+        }
+        // back substitution with R
+        double maxDiag = 0;
+        for (int k = 0; k < cols; ++k) {
+            maxDiag = Math.max(maxDiag, Math.abs(diag[k]));
+        }
+        for (int k = 0; k < cols; ++k) {
+            if( Math.abs(diag[k]) <= SINGULAR_TOLERANCE * maxDiag ){
+                return false;
+            }
+        }
+        for (int j = 0; j < bCols; ++j) {
+            for (int k = cols - 1; k >= 0; --k) {
+                double sum = b[k * bCols + j];
+                for (int i = k + 1; i < cols; ++i) {
+                    sum -= a[k * cols + i] * x[i * bCols + j];
+                }
+                x[k * bCols + j] = sum / diag[k];
+            }
+        }
+        return true;
+    }
+
+
+    /***** Fixed size *****/
+
+    public static double det2x2(double[] a){
+        return a[0] * a[3] - a[1] * a[2];
+    }
+
+    // returns false, leaving out untouched, if a is singular
+    public static boolean invert2x2Into(double[] a, double[] out){
+        double det = det2x2(a);
+        double bound = hypot(a[0], a[1]) * hypot(a[2], a[3]);
+        if( !(Math.abs(det) > SINGULAR_TOLERANCE * bound) ){
+            return false;
+        }
+        double a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3];
+        out[0] = a3 / det;
+        out[1] = -a1 / det;
+        out[2] = -a2 / det;
+        out[3] = a0 / det;
+        return true;
+    }
+
+    public static double det3x3(double[] a){
+        return a[0] * (a[4] * a[8] - a[5] * a[7])
+                - a[1] * (a[3] * a[8] - a[5] * a[6])
+                + a[2] * (a[3] * a[7] - a[4] * a[6]);
+    }
+
+    // returns false, leaving out untouched, if a is singular; out may be a
+    public static boolean invert3x3Into(double[] a, double[] out){
+        double c00 = a[4] * a[8] - a[5] * a[7];
+        double c01 = a[5] * a[6] - a[3] * a[8];
+        double c02 = a[3] * a[7] - a[4] * a[6];
+        double det = a[0] * c00 + a[1] * c01 + a[2] * c02;
+        // |det| is at most the product of the row norms, compare against that
+        double bound = Math.sqrt((a[0] * a[0] + a[1] * a[1] + a[2] * a[2])
+                * (a[3] * a[3] + a[4] * a[4] + a[5] * a[5])
+                * (a[6] * a[6] + a[7] * a[7] + a[8] * a[8]));
+        if( !(Math.abs(det) > SINGULAR_TOLERANCE * bound) ){
+            return false;
+        }
+        double c10 = a[2] * a[7] - a[1] * a[8];
+        double c11 = a[0] * a[8] - a[2] * a[6];
+        double c12 = a[1] * a[6] - a[0] * a[7];
+        double c20 = a[1] * a[5] - a[2] * a[4];
+        double c21 = a[2] * a[3] - a[0] * a[5];
+        double c22 = a[0] * a[4] - a[1] * a[3];
+        out[0] = c00 / det;
+        out[1] = c10 / det;
+        out[2] = c20 / det;
+        out[3] = c01 / det;
+        out[4] = c11 / det;
+        out[5] = c21 / det;
+        out[6] = c02 / det;
+        out[7] = c12 / det;
+        out[8] = c22 / det;
+        return true;
+    }
+
+    // out (3 x cols) = a (3x3) * b (3 x cols), out may be b but not a
+    public static void multiply3x3Into(double[] a, double[] b, int cols, double[] out){
+        for (int j = 0; j < cols; ++j) {
+            double b0 = b[j], b1 = b[cols + j], b2 = b[2 * cols + j];
+            out[j] = a[0] * b0 + a[1] * b1 + a[2] * b2;
+            out[cols + j] = a[3] * b0 + a[4] * b1 + a[5] * b2;
+            out[2 * cols + j] = a[6] * b0 + a[7] * b1 + a[8] * b2;
+        }
+    }
+
+
+    private static double hypot(double x, double y){
+        // Math.hypot guards against overflow but is several times slower
+        return Math.sqrt(x * x + y * y);
+    }
+
+    private static void checkLength(double[] a, int length){
+        if( a.length < length ){
+            throw new IllegalArgumentException("Illegal matrix dimensions.");
+        }
+    }
+
+}
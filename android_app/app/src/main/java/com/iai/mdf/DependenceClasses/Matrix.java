@@ -16,7 +16,11 @@ import android.util.Log;
  ******************************************************************************/
 
 
-
+/**
+ * @deprecated allocates on every operation, use LinearAlgebra on flat arrays instead.
+ * Kept as the reference in LinearAlgebraTest.
+ */
+@Deprecated
 public class Matrix {
     private final int M;             // number of rows
     private final int N;             // number of columns
@@ -0,0 +1,80 @@
+package com.iai.mdf.DependenceClasses;
+
+public class OneEuroGazeFilter implements GazeFilter {
+
+    /**
+     * The 1-euro filter (Casiez et al., CHI 2012): a low-pass filter whose cutoff grows with
+     * the speed of the signal, so a still gaze is smoothed hard while a moving one lags little.
+     * cutoff = minCutoff + beta * |speed|, in Hz, with the speed itself low-passed at
+     * derivativeCutoff Hz.
+     */
+
+    public static final double DEFAULT_MIN_CUTOFF = 1.0;
+    public static final double DEFAULT_BETA = 0.5;
+    public static final double DEFAULT_DERIVATIVE_CUTOFF = 1.0;
+
+    private final double minCutoff;
+    private final double beta;
+    private final double derivativeCutoff;
+    private double       x, y;
+    private double       speedX, speedY;
+    private long         lastTime = -1;
+
+
+    public OneEuroGazeFilter(){
+        this(DEFAULT_MIN_CUTOFF, DEFAULT_BETA, DEFAULT_DERIVATIVE_CUTOFF);
+    }
+
+    public OneEuroGazeFilter(double minCutoff, double beta, double derivativeCutoff){
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+        this.derivativeCutoff = derivativeCutoff;
+    }
+
+
+    @Override
+    public void reset(double x, double y, long timeMs) {
+        this.x = x;
+        this.y = y;
+        speedX = 0;
+        speedY = 0;
+        lastTime = timeMs;
+    }
+
+    @Override
+    public void update(double x, double y, long timeMs) {
+        if( lastTime < 0 ){
+            reset(x, y, timeMs);
+            return;
+        }
+        double dt = (timeMs - lastTime) / 1000.0;
+        if( dt <= 0 ){
+            // same timestamp, nothing to derive a speed from
+            return;
+        }
+        lastTime = timeMs;
+        double derivativeAlpha = alpha(derivativeCutoff, dt);
+        speedX += derivativeAlpha * ((x - this.x) / dt - speedX);
+        speedY += derivativeAlpha * ((y - this.y) / dt - speedY);
+        double speed = Math.sqrt(speedX * speedX + speedY * speedY);
+        double alpha = alpha(minCutoff + beta * speed, dt);
+        this.x += alpha * (x - this.x);
+        this.y += alpha * (y - this.y);
+    }
+
+    @Override
+    public double getX() {
+        return x;
+    }
+
+    @Override
+    public double getY() {
+        return y;
+    }
+
+    private static double alpha(double cutoff, double dt){
+        double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dt);
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.iai.mdf.DependenceClasses;
+
+public class OnlineCalibrator {
+
+    /**
+     * Streaming calibration from estimated gaze points to ground truth points, by recursive
+     * least squares. The map is ground truth = features(estimate) * theta, with the features
+     * [x, y, 1] for an affine map, plus [x^2, x*y, y^2] for the quadratic one. Both outputs
+     * share the regressors, so one d x d inverse covariance P serves them both and an update
+     * is O(d^2), constant for a given model, with no allocation.
+     * Robustness:
+     * - non finite samples (blinks, invalid frames) are rejected;
+     * - once warmed up (2 * d samples), a sample farther than rejectDistance from the
+     *   prediction is rejected, it is a blink or a look away rather than noise, and a residual
+     *   above huberDelta is down-weighted by huberDelta / residual (Huber weights).
+     * With forgetting below 1 old samples fade out, so the calibration can keep running in the
+     * background and follow a drifting head pose.
+     * For the affine model theta is laid out as the float[6] of DeviceConfiguration:
+     * {xx, xy, yx, yy, x0, y0}, i.e. out = (x*m[0] + y*m[2] + m[4], x*m[1] + y*m[3] + m[5]).
+     */
+
+    public static final int     MODEL_AFFINE = 3;
+    public static final int     MODEL_QUADRATIC = 6;
+    public static final int     SAMPLE_ACCEPTED = 0;
+    public static final int     SAMPLE_DOWNWEIGHTED = 1;
+    public static final int     SAMPLE_REJECTED = 2;
+
+    public static final double  DEFAULT_FORGETTING = 1.0;
+    public static final double  DEFAULT_HUBER_DELTA = 0.05;
+    public static final double  DEFAULT_REJECT_DISTANCE = 0.3;
+    public static final double  DEFAULT_INITIAL_VARIANCE = 100.0;
+
+    private final int       terms;
+    private final double    forgetting;
+    private final double    huberDelta;
+    private final double    rejectDistance;
+    private final double    initialVariance;
+    private final int       warmUpSamples;
+    private final double[]  theta;      // terms x 2, row-major
+    private final double[]  cov;        // terms x terms, row-major
+    // scratch, reused on every update
+    private final double[]  phi;
+    private final double[]  covPhi;
+    private int             acceptedCount;
+    private int             rejectedCount;
+
+
+    public OnlineCalibrator(){
+        this(MODEL_AFFINE, DEFAULT_FORGETTING, DEFAULT_HUBER_DELTA, DEFAULT_REJECT_DISTANCE);
+    }
+
+    public OnlineCalibrator(int model, double forgetting, double huberDelta, double rejectDistance){
+        this(model, forgetting, huberDelta, rejectDistance, DEFAULT_INITIAL_VARIANCE);
+    }
+
+    public OnlineCalibrator(int model, double forgetting, double huberDelta, double rejectDistance,
+                            double initialVariance){
+        if( model!=MODEL_AFFINE && model!=MODEL_QUADRATIC ){
+            throw new IllegalArgumentException("Unknown calibration model: " + model);
+        }
+        if( forgetting <= 0 || forgetting > 1 ){
+            throw new IllegalArgumentException("The forgetting factor must be in (0, 1]");
+        }
+        this.terms = model;
+        this.forgetting = forgetting;
+        this.huberDelta = huberDelta;
+        this.rejectDistance = rejectDistance;
+        this.initialVariance = initialVariance;
+        this.warmUpSamples = 2 * model;
+        this.theta = new double[model * 2];
+        this.cov = new double[model * model];
+        this.phi = new double[model];
+        this.covPhi = new double[model];
+        reset();
+    }
+
+
+    // starts over from the identity map
+    public void reset(){
+        for (int i = 0; i < theta.length; ++i) {
+            theta[i] = 0;
+        }
+        theta[0] = 1;       // x -> x
+        theta[3] = 1;       // y -> y
+        for (int i = 0; i < cov.length; ++i) {
+            cov[i] = 0;
+        }
+        for (int i = 0; i < terms; ++i) {
+            cov[i * terms + i] = initialVariance;
+        }
+        acceptedCount = 0;
+        rejectedCount = 0;
+    }
+
+    // adds one estimate / ground truth pair, returns one of SAMPLE_*
+    public int update(double estX, double estY, double truX, double truY){
+        if( !isFinite(estX) || !isFinite(estY) || !isFinite(truX) || !isFinite(truY) ){
+            rejectedCount++;
+            return SAMPLE_REJECTED;
+        }
+        fillFeatures(estX, estY);
+        double errX = truX - predict(0);
+        double errY = truY - predict(1);
+        double residual = Math.sqrt(errX * errX + errY * errY);
+        double weight = 1;
+        // until warmed up the residuals measure the prior rather than the sample
+        if( acceptedCount >= warmUpSamples ){
+            if( residual > rejectDistance ){
+                rejectedCount++;
+                return SAMPLE_REJECTED;
+            }
+            if( huberDelta > 0 && residual > huberDelta ){
+                weight = huberDelta / residual;
+            }
+        }
+        // gain = P * phi / (lambda / w + phi' * P * phi)
+        double denom = forgetting / weight;
+        for (int i = 0; i < terms; ++i) {
+            double sum = 0;
+            for (int j = 0; j < terms; ++j) {
+                sum += cov[i * terms + j] * phi[j];
+            }
+            covPhi[i] = sum;
+            denom += phi[i] * sum;
+        }
+        for (int i = 0; i < terms; ++i) {
+            double gain = covPhi[i] / denom;
+            theta[i * 2] += gain * errX;
+            theta[i * 2 + 1] += gain * errY;
+        }
+        // P = (P - gain * phi' * P) / lambda, P stays symmetric
+        for (int i = 0; i < terms; ++i) {
+            for (int j = i; j < terms; ++j) {
+                double value = (cov[i * terms + j] - covPhi[i] * covPhi[j] / denom) / forgetting;
+                cov[i * terms + j] = value;
+                cov[j * terms + i] = value;
+            }
+        }
+        acceptedCount++;
+        return weight < 1 ? SAMPLE_DOWNWEIGHTED : SAMPLE_ACCEPTED;
+    }
+
+    // maps an estimate with the current calibration, into out[0..1]
+    public void apply(double estX, double estY, float[] out){
+        fillFeatures(estX, estY);
+        out[0] = (float) predict(0);
+        out[1] = (float) predict(1);
+    }
+
+    // the affine part, in the DeviceConfiguration layout
+    public float[] getAffine(){
+        float[] mat = new float[6];
+        for (int i = 0; i < 6; ++i) {
+            mat[i] = (float) theta[i];
+        }
+        return mat;
+    }
+
+    // the fitted map as a model to persist and apply
+    public CalibrationModel toModel(){
+        if( terms==MODEL_QUADRATIC ){
+            float[] params = new float[PolynomialCalibration.PARAM_NUM];
+            for (int i = 0; i < params.length; ++i) {
+                params[i] = (float) theta[i];
+            }
+            return new PolynomialCalibration(params);
+        }
+        return new AffineCalibration(getAffine());
+    }
+
+    private void fillFeatures(double x, double y){
+        phi[0] = x;
+        phi[1] = y;
+        phi[2] = 1;
+        if( terms==MODEL_QUADRATIC ){
+            phi[3] = x * x;
+            phi[4] = x * y;
+            phi[5] = y * y;
+        }
+    }
+
+    private double predict(int output){
+        double sum = 0;
+        for (int i = 0; i < terms; ++i) {
+            sum += theta[i * 2 + output] * phi[i];
+        }
+        return sum;
+    }
+
+    private static boolean isFinite(double v){
+        return !Double.isNaN(v) && !Double.isInfinite(v);
+    }
+
+    public int getModel() {
+        return terms;
+    }
+
+    public int getAcceptedSampleCount() {
+        return acceptedCount;
+    }
+
+    public int getRejectedSampleCount() {
+        return rejectedCount;
+    }
+
+}
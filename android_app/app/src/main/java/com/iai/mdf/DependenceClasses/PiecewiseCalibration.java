@@ -0,0 +1,82 @@
+package com.iai.mdf.DependenceClasses;
+
+public class PiecewiseCalibration extends CalibrationModel {
+
+    /**
+     * One affine map per region of a rows x cols grid over the estimate space [0, 1]^2, for
+     * models whose error differs across the screen. Estimates outside the grid use the
+     * nearest region. Parameters: {rows, cols, then rows * cols affine maps, row by row}.
+     */
+
+    private final int     rows;
+    private final int     cols;
+    private final float[] params;
+
+
+    public PiecewiseCalibration(float[] params){
+        if( params==null || params.length < 2 ){
+            throw new IllegalArgumentException("The model needs the grid size");
+        }
+        this.rows = (int) params[0];
+        this.cols = (int) params[1];
+        if( rows < 1 || cols < 1 ){
+            throw new IllegalArgumentException("Illegal grid size " + rows + "x" + cols);
+        }
+        this.params = checkParameters(params, 2 + rows * cols * AffineCalibration.PARAM_NUM);
+    }
+
+
+    // fits each region with its own pairs; a region with too few of them takes the global fit.
+    // null if even the global fit fails
+    public static PiecewiseCalibration fit(float[] est, float[] truth, int count, int rows, int cols){
+        float[] params = new float[2 + rows * cols * AffineCalibration.PARAM_NUM];
+        params[0] = rows;
+        params[1] = cols;
+        float[] global = new float[AffineCalibration.PARAM_NUM];
+        if( !AffineCalibration.fitInto(est, truth, null, count, global, 0) ){
+            return null;
+        }
+        boolean[] mask = new boolean[count];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                for (int i = 0; i < count; ++i) {
+                    mask[i] = regionIndex(est[i * 2], est[i * 2 + 1], rows, cols) == r * cols + c;
+                }
+                int offset = 2 + (r * cols + c) * AffineCalibration.PARAM_NUM;
+                if( !AffineCalibration.fitInto(est, truth, mask, count, params, offset) ){
+                    System.arraycopy(global, 0, params, offset, AffineCalibration.PARAM_NUM);
+                }
+            }
+        }
+        return new PiecewiseCalibration(params);
+    }
+
+    private static int regionIndex(float x, float y, int rows, int cols){
+        int c = Math.min(cols - 1, Math.max(0, (int) (x * cols)));
+        int r = Math.min(rows - 1, Math.max(0, (int) (y * rows)));
+        return r * cols + c;
+    }
+
+    @Override
+    public void apply(float[] in, float[] out) {
+        int n = in.length & ~1;
+        for (int i = 0; i < n; i += 2) {
+            float x = in[i];
+            float y = in[i + 1];
+            int m = 2 + regionIndex(x, y, rows, cols) * AffineCalibration.PARAM_NUM;
+            out[i] = x * params[m] + y * params[m + 2] + params[m + 4];
+            out[i + 1] = x * params[m + 1] + y * params[m + 3] + params[m + 5];
+        }
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_PIECEWISE;
+    }
+
+    @Override
+    public float[] getParameters() {
+        return params.clone();
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.iai.mdf.DependenceClasses;
+
+public class PolynomialCalibration extends CalibrationModel {
+
+    /**
+     * Second order polynomial, out = [x, y, 1, x^2, x*y, y^2] * P with P a 6x2 row-major
+     * matrix, so the first six parameters are the affine layout and the rest bend it.
+     * OnlineCalibrator.MODEL_QUADRATIC fits this layout.
+     */
+
+    public static final int PARAM_NUM = 12;
+
+    private final float[] p;
+
+
+    public PolynomialCalibration(float[] params){
+        p = checkParameters(params, PARAM_NUM);
+    }
+
+
+    @Override
+    public void apply(float[] in, float[] out) {
+        int n = in.length & ~1;
+        for (int i = 0; i < n; i += 2) {
+            float x = in[i];
+            float y = in[i + 1];
+            float xx = x * x, xy = x * y, yy = y * y;
+            out[i] = x * p[0] + y * p[2] + p[4] + xx * p[6] + xy * p[8] + yy * p[10];
+            out[i + 1] = x * p[1] + y * p[3] + p[5] + xx * p[7] + xy * p[9] + yy * p[11];
+        }
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_POLYNOMIAL;
+    }
+
+    @Override
+    public float[] getParameters() {
+        return p.clone();
+    }
+
+}
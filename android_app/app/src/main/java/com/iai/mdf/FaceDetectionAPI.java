@@ -1,5 +1,8 @@
 package com.iai.mdf;
 
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
 /**
  * Created by pgao on 10/6/2017.
  */
@@ -12,16 +15,27 @@ public class FaceDetectionAPI {
         System.loadLibrary("native-lib");
     }
 
+    private boolean isReleased = false;
+
     public FaceDetectionAPI() {
         initNative();
     }
 
     @Override
     protected void finalize() throws Throwable {
-        deallocNative();
+        release();
         super.finalize();
     }
 
+    // frees the native detector and its models now rather than at garbage collection;
+    // the instance cannot be used afterwards
+    public synchronized void release() {
+        if (!isReleased) {
+            isReleased = true;
+            deallocNative();
+        }
+    }
+
     /**
      * A native method that is implemented by the 'native-lib' native library,
      * which is packaged with this application.
@@ -43,6 +57,216 @@ public class FaceDetectionAPI {
     private native  int      initNative();
     private native  void     deallocNative();
 
+
+    /*
+     * Tracking mode for consecutive frames of a video. After a full detection, the face box
+     * of the next frame is predicted from the current landmarks, and only landmarks are
+     * detected inside it. Full detection runs again every redetectInterval frames, or when the
+     * new landmarks no longer fit the predicted box (fast motion, face turned away or lost).
+     */
+    public static final int     DEFAULT_REDETECT_INTERVAL = 15;
+    // overlap between the predicted box and the box of the new landmarks to keep tracking
+    private static final double MIN_TRACKING_OVERLAP = 0.6;
+
+    private int         redetectInterval = DEFAULT_REDETECT_INTERVAL;
+    private int         framesSinceDetection = 0;
+    private double[]    trackedLandmarks = null;
+    // detector box relative to the landmark bounds: x and y offsets, width and height, in landmark widths/heights
+    private double[]    boxToLandmarks = new double[4];
+    private int[]       lastFace = null;
+    private int         detectionCount = 0;
+    private int         trackedFrameCount = 0;
+
+    /**
+     * Same as detectFace() followed by detectLandmarks(), but tracks the face across calls.
+     * Returns the face box the landmarks were found in; the landmarks are returned by
+     * getTrackedLandmarks() until the next call. Frames must all have the same size.
+     */
+    public synchronized int[] trackFace(Mat gray, int minFaceSize, int maxFaceSize, boolean fastAlgorithm) {
+        long matAddrGr = gray.getNativeObjAddr();
+        int imageWidth = gray.cols();
+        int imageHeight = gray.rows();
+        if (trackedLandmarks != null && framesSinceDetection < redetectInterval) {
+            int[] predicted = predictFaceBox(trackedLandmarks, imageWidth, imageHeight);
+            if (predicted != null) {
+                double[] landmarks = detectLandmarks(matAddrGr, predicted);
+                if (landmarks != null && isTrackingKept(predicted, landmarks, imageWidth, imageHeight)) {
+                    framesSinceDetection++;
+                    trackedFrameCount++;
+                    trackedLandmarks = landmarks;
+                    lastFace = predicted;
+                    return predicted;
+                }
+            }
+        }
+        detectionCount++;
+        framesSinceDetection = 0;
+        trackedLandmarks = null;
+        int[] face = lastFace != null
+                ? redetectFace(gray, lastFace, minFaceSize, maxFaceSize, fastAlgorithm)
+                : detectFace(matAddrGr, minFaceSize, maxFaceSize, fastAlgorithm);
+        lastFace = face;
+        if (face == null) {
+            return null;
+        }
+        double[] landmarks = detectLandmarks(matAddrGr, face);
+        if (landmarks != null) {
+            double[] bounds = landmarkBounds(landmarks);
+            double width = bounds[2] - bounds[0];
+            double height = bounds[3] - bounds[1];
+            if (width > 0 && height > 0) {
+                boxToLandmarks[0] = (face[0] - bounds[0]) / width;
+                boxToLandmarks[1] = (face[1] - bounds[1]) / height;
+                boxToLandmarks[2] = face[2] / width;
+                boxToLandmarks[3] = face[3] / height;
+                trackedLandmarks = landmarks;
+            }
+        }
+        return face;
+    }
+
+    // landmarks of the last trackFace() call, null if none were found
+    public synchronized double[] getTrackedLandmarks() {
+        return trackedLandmarks;
+    }
+
+    // the next trackFace() call runs a full detection
+    public synchronized void resetTracking() {
+        trackedLandmarks = null;
+        lastFace = null;
+        framesSinceDetection = 0;
+    }
+
+    // 1 runs a full detection on every frame
+    public synchronized void setRedetectInterval(int redetectInterval) {
+        this.redetectInterval = Math.max(1, redetectInterval);
+    }
+
+    public synchronized int getDetectionCount() {
+        return detectionCount;
+    }
+
+    public synchronized int getTrackedFrameCount() {
+        return trackedFrameCount;
+    }
+
+
+    /*
+     * Search window. Between two frames the face moves a few pixels and keeps its size, so a
+     * new detection near a known face only scans a window around it, for face sizes close to
+     * the known one. The cost then scales with the window instead of the whole frame.
+     */
+    // window side in face sizes, tried in order before falling back to the whole frame
+    private static final double[] SEARCH_WINDOW_SCALES = {2.0, 3.5};
+    private static final double MIN_FACE_SIZE_RATIO = 0.7;
+    private static final double MAX_FACE_SIZE_RATIO = 1.5;
+
+    private final Mat   searchImg = new Mat();
+    private int         windowHitCount = 0;
+    private int         fullFrameSearchCount = 0;
+
+    /**
+     * detectFace() restricted to searchRect (x, y, width, height, clipped to the image).
+     * The returned box is in image coordinates.
+     */
+    public synchronized int[] detectFaceInRegion(Mat gray, int[] searchRect,
+                                                 int minFaceSize, int maxFaceSize, boolean fastAlgorithm) {
+        int x0 = Math.max(0, searchRect[0]);
+        int y0 = Math.max(0, searchRect[1]);
+        int x1 = Math.min(gray.cols(), searchRect[0] + searchRect[2]);
+        int y1 = Math.min(gray.rows(), searchRect[1] + searchRect[3]);
+        if (x1 - x0 < minFaceSize || y1 - y0 < minFaceSize) {
+            return null;
+        }
+        // the detector gets a continuous image, not a view into the frame
+        Mat window = gray.submat(new Rect(x0, y0, x1 - x0, y1 - y0));
+        window.copyTo(searchImg);
+        window.release();
+        int[] face = detectFace(searchImg.getNativeObjAddr(), minFaceSize, maxFaceSize, fastAlgorithm);
+        if (face != null) {
+            face[0] += x0;
+            face[1] += y0;
+        }
+        return face;
+    }
+
+    /**
+     * Looks for the face near lastFace, with face sizes narrowed around its size, widening the
+     * window on a miss. Scans the whole frame with the given sizes if every window misses.
+     */
+    public synchronized int[] redetectFace(Mat gray, int[] lastFace,
+                                           int minFaceSize, int maxFaceSize, boolean fastAlgorithm) {
+        int size = Math.max(lastFace[2], lastFace[3]);
+        int narrowMin = Math.max(minFaceSize, (int) (size * MIN_FACE_SIZE_RATIO));
+        int narrowMax = Math.min(maxFaceSize, (int) Math.ceil(size * MAX_FACE_SIZE_RATIO));
+        if (narrowMin <= narrowMax) {
+            int centerX = lastFace[0] + lastFace[2] / 2;
+            int centerY = lastFace[1] + lastFace[3] / 2;
+            for (double scale : SEARCH_WINDOW_SCALES) {
+                int half = (int) (size * scale / 2);
+                int[] face = detectFaceInRegion(gray, new int[]{centerX - half, centerY - half, 2 * half, 2 * half},
+                        narrowMin, narrowMax, fastAlgorithm);
+                if (face != null) {
+                    windowHitCount++;
+                    return face;
+                }
+            }
+        }
+        fullFrameSearchCount++;
+        return detectFace(gray.getNativeObjAddr(), minFaceSize, maxFaceSize, fastAlgorithm);
+    }
+
+    public synchronized int getWindowHitCount() {
+        return windowHitCount;
+    }
+
+    public synchronized int getFullFrameSearchCount() {
+        return fullFrameSearchCount;
+    }
+
+    // face box of the detector for these landmarks, null if it is mostly outside the image
+    private int[] predictFaceBox(double[] landmarks, int imageWidth, int imageHeight) {
+        double[] bounds = landmarkBounds(landmarks);
+        double width = bounds[2] - bounds[0];
+        double height = bounds[3] - bounds[1];
+        int x = (int) Math.round(bounds[0] + boxToLandmarks[0] * width);
+        int y = (int) Math.round(bounds[1] + boxToLandmarks[1] * height);
+        int w = (int) Math.round(boxToLandmarks[2] * width);
+        int h = (int) Math.round(boxToLandmarks[3] * height);
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = Math.min(imageWidth, x + w);
+        int y1 = Math.min(imageHeight, y + h);
+        if (x1 - x0 < w / 2 || y1 - y0 < h / 2) {
+            return null;
+        }
+        return new int[]{x0, y0, x1 - x0, y1 - y0};
+    }
+
+    private boolean isTrackingKept(int[] predicted, double[] landmarks, int imageWidth, int imageHeight) {
+        int[] next = predictFaceBox(landmarks, imageWidth, imageHeight);
+        if (next == null) {
+            return false;
+        }
+        int ix = Math.max(0, Math.min(predicted[0] + predicted[2], next[0] + next[2]) - Math.max(predicted[0], next[0]));
+        int iy = Math.max(0, Math.min(predicted[1] + predicted[3], next[1] + next[3]) - Math.max(predicted[1], next[1]));
+        double intersection = (double) ix * iy;
+        double union = (double) predicted[2] * predicted[3] + (double) next[2] * next[3] - intersection;
+        return union > 0 && intersection / union >= MIN_TRACKING_OVERLAP;
+    }
+
+    // min x, min y, max x, max y of the landmarks, stored as x0, y0, x1, y1, ...
+    private static double[] landmarkBounds(double[] landmarks) {
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i + 1 < landmarks.length; i += 2) {
+            bounds[0] = Math.min(bounds[0], landmarks[i]);
+            bounds[1] = Math.min(bounds[1], landmarks[i + 1]);
+            bounds[2] = Math.max(bounds[2], landmarks[i]);
+            bounds[3] = Math.max(bounds[3], landmarks[i + 1]);
+        }
+        return bounds;
+    }
+
     /*
      * We use a class initializer to allow the native code to cache some fields.
      */
@@ -98,6 +98,12 @@ public class FragmentDataCollectionByPicture extends Fragment {
             public void onSaved() {
                 isPicSaved = true;
             }
+
+            @Override
+            public void onDropped() {
+                // same dot again, the next one is shown only after a saved picture
+                delayCapture(0);
+            }
         });
         cameraHandler.openFrontCameraForDataCollection();
         SCREEN_SIZE = fetchScreenSize();
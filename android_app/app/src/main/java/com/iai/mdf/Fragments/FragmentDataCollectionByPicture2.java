@@ -1,5 +1,6 @@
 package com.iai.mdf.Fragments;
 
+import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.media.Image;
 import android.media.ImageReader;
@@ -25,14 +26,10 @@ import com.iai.mdf.DependenceClasses.DeviceConfiguration;
 import com.iai.mdf.Handlers.CameraHandler;
 import com.iai.mdf.Handlers.DrawHandler;
 import com.iai.mdf.Handlers.ImageProcessHandler;
+import com.iai.mdf.Handlers.WriteBehindImageSaver;
 import com.iai.mdf.R;
 
 import org.opencv.android.BaseLoaderCallback;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
@@ -63,6 +60,7 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
     private DeviceConfiguration confHandler = DeviceConfiguration.getInstance(getActivity());
     private String      FOLDER_NAME = null;
     private String      CUR_IMAGE_NAME = null;
+    private WriteBehindImageSaver imageSaver;
 
 
 
@@ -111,6 +109,7 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
                     if( isPicSaved ) {
                         deleteCurImage();
                     }
+                    finishSession();
                 }
             }
         });
@@ -140,21 +139,17 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
         super.onResume();
         drawHandler = new DrawHandler(getActivity(), SCREEN_SIZE);
         drawHandler.setDotHolderLayout((dotHolderLayout));
+        imageSaver = new WriteBehindImageSaver(ImageProcessHandler.createJpegEncoder());
+        imageSaver.start();
         cameraHandler = new CameraHandler(getActivity(), true);
         cameraHandler.setOnImageAvailableListenerForPrev(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
                 Image image = reader.acquireNextImage();
-                if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE ) {
+                // the state stays STILL_CAPTURE if the writer is behind, so the next frame is taken instead
+                if( cameraHandler.getCameraState()==CameraHandler.CAMERA_STATE_STILL_CAPTURE && saveImage(image) ) {
                     cameraHandler.setCameraState(CameraHandler.CAMERA_STATE_PREVIEW);
-                    Log.d(LOG_TAG, "Take a picture");
-                    dotCounter++;
-                    setCurrentImageName();
-                    saveImage(image);
                     isPicSaved = true;
-                    if( dotCounter < 4 ){
-                        deleteCurImage();
-                    }
                 }
                 image.close();
             }
@@ -169,6 +164,8 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
         cameraHandler.stopPreview();
         dotGeneratorHandler.removeCallbacks(dotGeneratorRunnable);
         isStarted = false;
+        finishSession();
+        imageSaver.stop();
     }
 
 
@@ -180,11 +177,9 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
             String subFolderName = timeDate;
             File picFolder = new File(Environment.getExternalStoragePublicDirectory(
                     Environment.DIRECTORY_PICTURES), "Android_Gaze_Data" + File.separator + subFolderName);
-            if (!picFolder.exists()) {
-                if (!picFolder.mkdirs()) {
-                    Log.d("App", "failed to socketCreate directory");
-                }
-                MediaScannerConnection.scanFile(getActivity(), new String[]{picFolder.getAbsolutePath()}, null, null);
+            // the folder is scanned with the session's pictures, see finishSession()
+            if (!picFolder.exists() && !picFolder.mkdirs()) {
+                Log.d("App", "failed to socketCreate directory");
             }
             FOLDER_NAME = picFolder.getAbsolutePath();
         }
@@ -195,41 +190,56 @@ public class FragmentDataCollectionByPicture2 extends Fragment {
         CUR_IMAGE_NAME = FOLDER_NAME + File.separator + picName;
     }
 
-    private void saveImage(Image image){
-        Mat yuvMat = ImageProcessHandler.getBGRMatFromImage(image);
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC3);
-        Imgproc.cvtColor(yuvMat, colorImg, Imgproc.COLOR_YUV2BGR_I420);
-        switch (confHandler.getImageRotation()){
-            case 0:
-                break;
-            case 90:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_90_CLOCKWISE);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_90_CLOCKWISE);
-                break;
-            case 180:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_180);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_180);
-                break;
-            case 270:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_90_COUNTERCLOCKWISE);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_90_COUNTERCLOCKWISE);
-                break;
-            default:
-                break;
+    // only copies the frame, imageSaver encodes and writes it; false if no buffer is free yet
+    private boolean saveImage(Image image){
+        WriteBehindImageSaver.Job job;
+        try {
+            job = imageSaver.obtainJob(image.getWidth() * image.getHeight() * 3 / 2, 0);
+        } catch (InterruptedException e) {
+            return false;
         }
-        Imgcodecs.imwrite(CUR_IMAGE_NAME, colorImg);
+        if( job==null ){
+            Log.d(LOG_TAG, "Image saver is behind, retry with the next frame");
+            return false;
+        }
+        Log.d(LOG_TAG, "Take a picture");
+        dotCounter++;
+        setCurrentImageName();
+        // the first 3 dots don't count, they are not saved at all
+        if( dotCounter < 4 ){
+            imageSaver.recycle(job);
+            return true;
+        }
+        ImageProcessHandler.packIntoI420Buffer(image, job.buffer);
+        job.width = image.getWidth();
+        job.height = image.getHeight();
+        job.rotation = confHandler.getImageRotation();
+        imageSaver.submit(job, new File(CUR_IMAGE_NAME));
+        return true;
     }
 
     private void deleteCurImage(){
-        File picFile = new File(CUR_IMAGE_NAME);
-        if( picFile.exists() && picFile.delete() ){
-            Log.d(LOG_TAG, CUR_IMAGE_NAME + " is deleted");
+        if( CUR_IMAGE_NAME!=null ){
+            imageSaver.delete(new File(CUR_IMAGE_NAME));
         }
     }
 
+    // one media scan for the whole session, once its pictures are on disk
+    private void finishSession(){
+        final Context appContext = getActivity().getApplicationContext();
+        imageSaver.finishSession(new WriteBehindImageSaver.SessionListener() {
+            @Override
+            public void onSessionFinished(String[] savedPaths, int failedCount) {
+                if( failedCount > 0 ){
+                    Log.e(LOG_TAG, failedCount + " pictures failed to save");
+                }
+                if( savedPaths.length > 0 ){
+                    MediaScannerConnection.scanFile(appContext, savedPaths, null, null);
+                }
+            }
+        });
+    }
+
     private void delayCapture(int delayLength){
         Handler handler = new Handler();
         handler.postDelayed(new Runnable() {
@@ -0,0 +1,145 @@
+package com.iai.mdf.Handlers;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+public class AdaptiveJpegEncoder {
+
+    /**
+     * JPEG encoder for the server stream that keeps its own buffers between frames and tunes
+     * itself from what it measures: encode time, payload size and the throughput the link
+     * takes frames at (GazeStreamClient.getSendThroughput()). Every few frames the quality is
+     * stepped down when the payload at the target frame rate exceeds the bandwidth budget or
+     * the measured throughput, or encoding cannot keep the frame rate, and stepped up when there
+     * is headroom. Round-trip time is left out: it includes the server's work, and pacing on it
+     * is done by the client's in-flight window.
+     */
+
+    public static final int DEFAULT_TARGET_FPS = 15;
+    public static final int DEFAULT_BANDWIDTH_BUDGET = 768 * 1024;     // bytes per second
+    public static final int MAX_QUALITY = 95;
+    public static final int MIN_QUALITY = 40;
+    private static final String LOG_TAG = "AdaptiveJpegEncoder";
+    private static final int QUALITY_STEP = 5;
+    private static final int ADAPT_INTERVAL = 5;            // frames between two adjustments
+    private static final double SMOOTHING = 0.2;
+    private static final double ENCODE_TIME_SHARE = 0.5;    // of the frame interval
+    private static final double HEADROOM = 0.7;
+
+
+    private final int       targetFps;
+    private final int       bandwidthBudget;
+    private int             quality = 90;
+    // reused between frames
+    private final MatOfByte output = new MatOfByte();
+    private MatOfInt        params;
+    private byte[]          buffer = new byte[0];
+    // measurements, smoothed
+    private double          avgEncodeTime = -1;      // ms
+    private double          avgPayload = -1;         // bytes
+    private double          throughput = -1;         // bytes per second, -1 until measured
+    private long            lastEncodeTime;
+    private int             framesSinceAdapt = 0;
+
+
+    public AdaptiveJpegEncoder(){
+        this(DEFAULT_TARGET_FPS, DEFAULT_BANDWIDTH_BUDGET);
+    }
+
+    public AdaptiveJpegEncoder(int targetFps, int bandwidthBudget){
+        this.targetFps = targetFps;
+        this.bandwidthBudget = bandwidthBudget;
+        this.params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+    }
+
+
+    /**
+     * Encodes the image into the internal buffer and returns the number of bytes written.
+     * The buffer returned by getBuffer() is overwritten by the next call.
+     */
+    public synchronized int encode(Mat bgr){
+        long start = System.nanoTime();
+        Imgcodecs.imencode(".jpg", bgr, output, params);
+        int length = (int) output.total();
+        if( buffer.length < length ){
+            // some slack, so small size changes do not reallocate
+            buffer = new byte[length + length / 4];
+        }
+        output.get(0, 0, buffer);
+        lastEncodeTime = (System.nanoTime() - start) / 1000000;
+        avgEncodeTime = smooth(avgEncodeTime, lastEncodeTime);
+        avgPayload = smooth(avgPayload, length);
+        if( ++framesSinceAdapt >= ADAPT_INTERVAL ){
+            framesSinceAdapt = 0;
+            adapt();
+        }
+        return length;
+    }
+
+    public synchronized byte[] getBuffer() {
+        return buffer;
+    }
+
+    // fed with the stream's send throughput, e.g. on every reply; negative while unknown
+    public synchronized void onThroughput(double bytesPerSecond){
+        if( bytesPerSecond > 0 ){
+            throughput = bytesPerSecond;
+        }
+    }
+
+    private void adapt(){
+        double frameInterval = 1000.0 / targetFps;
+        double rate = throughput > 0 ? Math.min(bandwidthBudget, throughput) : bandwidthBudget;
+        double payloadBudget = rate / targetFps;
+        boolean isOver = avgPayload > payloadBudget
+                || avgEncodeTime > frameInterval * ENCODE_TIME_SHARE;
+        boolean isUnder = avgPayload < payloadBudget * HEADROOM
+                && avgEncodeTime < frameInterval * ENCODE_TIME_SHARE * HEADROOM;
+        int prevQuality = quality;
+        if( isOver ){
+            quality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+        } else if( isUnder ){
+            quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+        }
+        if( quality != prevQuality ){
+            params.fromArray(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+            Log.d(LOG_TAG, "quality " + quality + " (encode " + (int) avgEncodeTime + " ms, "
+                    + (int) avgPayload + " bytes, " + (int) (rate / 1024) + " KB/s)");
+        }
+    }
+
+    private static double smooth(double average, double sample){
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    public synchronized long getLastEncodeTime() {
+        return lastEncodeTime;
+    }
+
+    public synchronized double getAverageEncodeTime() {
+        return avgEncodeTime;
+    }
+
+    public synchronized double getAveragePayload() {
+        return avgPayload;
+    }
+
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized void release(){
+        output.release();
+        params.release();
+        buffer = new byte[0];
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.iai.mdf.Handlers;
+
+import android.util.Log;
+
+import com.iai.mdf.DependenceClasses.CalibrationModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class CalibrationProfileStore {
+
+    /**
+     * Calibration profiles, one per user and device, in a small binary file:
+     * int magic, int version, int count, then per profile
+     * utf user, utf device, long saved time (ms), int model type, int parameter count, floats.
+     * The file is read once and kept in memory; a save rewrites it through a temporary file,
+     * so a crash leaves either the old or the new file.
+     */
+
+    private static final String LOG_TAG = "CalibrationProfileStore";
+    public static final String  FILE_NAME = "calibration_profiles.bin";
+    private static final int    MAGIC = 0x47434150;     // "GCAP"
+    private static final int    VERSION = 1;
+    private static final int    MAX_PARAM_NUM = 4096;
+
+    private final File          file;
+    private ArrayList<Profile>  profiles;
+
+
+    public CalibrationProfileStore(File folder){
+        this.file = new File(folder, FILE_NAME);
+    }
+
+
+    // null if the user has not calibrated on this device
+    public synchronized CalibrationModel load(String user, String device){
+        Profile profile = find(user, device);
+        return profile==null ? null : profile.model;
+    }
+
+    public synchronized long getSavedTime(String user, String device){
+        Profile profile = find(user, device);
+        return profile==null ? -1 : profile.savedTime;
+    }
+
+    public synchronized boolean save(String user, String device, CalibrationModel model){
+        Profile profile = find(user, device);
+        if( profile==null ){
+            profile = new Profile(user, device);
+            profiles.add(profile);
+        }
+        profile.model = model;
+        profile.savedTime = System.currentTimeMillis();
+        return writeAll();
+    }
+
+    public synchronized boolean remove(String user, String device){
+        Profile profile = find(user, device);
+        if( profile==null ){
+            return false;
+        }
+        profiles.remove(profile);
+        return writeAll();
+    }
+
+    private Profile find(String user, String device){
+        if( profiles==null ){
+            profiles = readAll();
+        }
+        for (Profile profile : profiles) {
+            if( profile.user.equals(user) && profile.device.equals(device) ){
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private ArrayList<Profile> readAll(){
+        ArrayList<Profile> list = new ArrayList<>();
+        if( !file.exists() ){
+            return list;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if( in.readInt()!=MAGIC || in.readInt()!=VERSION ){
+                Log.e(LOG_TAG, "Unknown profile file format, ignored");
+                return list;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Profile profile = new Profile(in.readUTF(), in.readUTF());
+                profile.savedTime = in.readLong();
+                int type = in.readInt();
+                int paramNum = in.readInt();
+                if( paramNum < 0 || paramNum > MAX_PARAM_NUM ){
+                    throw new IOException("Corrupted profile, " + paramNum + " parameters");
+                }
+                float[] params = new float[paramNum];
+                for (int j = 0; j < paramNum; ++j) {
+                    params[j] = in.readFloat();
+                }
+                try {
+                    profile.model = CalibrationModel.create(type, params);
+                    list.add(profile);
+                } catch (IllegalArgumentException e) {
+                    Log.e(LOG_TAG, "Skipped a profile: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Profile read failed: " + e.toString());
+        } finally {
+            closeQuietly(in);
+        }
+        return list;
+    }
+
+    private boolean writeAll(){
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(profiles.size());
+            for (Profile profile : profiles) {
+                out.writeUTF(profile.user);
+                out.writeUTF(profile.device);
+                out.writeLong(profile.savedTime);
+                out.writeInt(profile.model.getType());
+                float[] params = profile.model.getParameters();
+                out.writeInt(params.length);
+                for (float param : params) {
+                    out.writeFloat(param);
+                }
+            }
+            out.close();
+            out = null;
+            if( !tempFile.renameTo(file) ){
+                throw new IOException("Cannot replace " + file.getPath());
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Profile write failed: " + e.toString());
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream){
+        if( stream!=null ){
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+
+    private static class Profile {
+
+        final String        user;
+        final String        device;
+        long                savedTime;
+        CalibrationModel    model;
+
+        Profile(String user, String device){
+            this.user = user;
+            this.device = device;
+        }
+    }
+
+}
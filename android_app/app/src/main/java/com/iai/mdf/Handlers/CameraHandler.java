@@ -70,7 +70,7 @@ public class CameraHandler {
     private Context         ctxt;
     private CameraManager   cameraManager;
     private CameraDevice    frontCamera;
-    private int             cameraState;
+    private volatile int    cameraState;
     Range<Integer> controlAECompensationRange;
     private Semaphore cameraOpenCloseLock = new Semaphore(1);
 
@@ -226,6 +226,9 @@ public class CameraHandler {
             frontCamera = null;
             savedImageSize = null;
         }
+        if( null!=imageFileHandler ){
+            imageFileHandler.finishSession();
+        }
     }
 
     public void setImageSize(Size _size){
@@ -355,7 +358,12 @@ public class CameraHandler {
     }
 
     public void setOnImageAvailableListenerForPrev(ImageReader.OnImageAvailableListener listener){
-        imageReaderForPrev.setOnImageAvailableListener(listener, null);
+        setOnImageAvailableListenerForPrev(listener, null);
+    }
+
+    // the listener is called on the handler's thread, or on the main thread if handler is null
+    public void setOnImageAvailableListenerForPrev(ImageReader.OnImageAvailableListener listener, Handler handler){
+        imageReaderForPrev.setOnImageAvailableListener(listener, handler);
         isImageAvailableListenerForPrevSet = true;
     }
 
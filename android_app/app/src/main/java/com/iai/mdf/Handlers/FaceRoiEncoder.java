@@ -0,0 +1,189 @@
+package com.iai.mdf.Handlers;
+
+
+import android.os.Environment;
+import android.util.Log;
+
+import com.iai.mdf.FaceDetectionAPI;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class FaceRoiEncoder {
+
+    /**
+     * Builds the payload of a region-of-interest frame: instead of the whole image, only the
+     * two eye crops and the face crop are sent, so the server can skip face detection.
+     * Crops use the same boxes as the server's EyeCropper. The eyes are sent in grayscale,
+     * since the model converts them to grayscale anyway.
+     *
+     * payload, big-endian:
+     * [uint16 image width][uint16 image height]
+     * [uint16 face x][uint16 face y][uint16 face width][uint16 face height]
+     * [uint32 left eye size][uint32 right eye size][uint32 face size]
+     * [left eye jpeg][right eye jpeg][face jpeg]
+     * The face box is in image coordinates, the server turns it into the face grid.
+     * All three sizes are 0 when no face was found in the image.
+     */
+
+    public static final int ROI_HEADER_LENGTH = 24;
+    public static final int DEFAULT_EYE_CROP_SIZE = 112;
+    public static final int DEFAULT_FACE_CROP_SIZE = 128;
+    private static final String LOG_TAG = "FaceRoiEncoder";
+    private static final int JPEG_QUALITY = 90;
+    private static final int MIN_FACE_SIZE = 30;
+    private static final int MAX_FACE_SIZE = 300;
+
+
+    private final FaceDetectionAPI detectionAPI;
+    private final Size      eyeCropSize;
+    private final Size      faceCropSize;
+    // reused between frames
+    private final Mat       grayImg = new Mat();
+    private final Mat       resized = new Mat();
+    private final Mat       eyeGray = new Mat();
+    private final MatOfByte output = new MatOfByte();
+    private final MatOfInt  params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+    private byte[]          buffer = new byte[ROI_HEADER_LENGTH];
+    private ByteBuffer      payload = ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN);
+    private byte[]          chunk = new byte[0];
+    private int             faceFrames;
+    private int             noFaceFrames;
+
+
+    // detectionAPI must have its models loaded
+    public FaceRoiEncoder(FaceDetectionAPI detectionAPI){
+        this(detectionAPI, DEFAULT_EYE_CROP_SIZE, DEFAULT_FACE_CROP_SIZE);
+    }
+
+    public FaceRoiEncoder(FaceDetectionAPI detectionAPI, int eyeCropSize, int faceCropSize){
+        this.detectionAPI = detectionAPI;
+        this.eyeCropSize = new Size(eyeCropSize, eyeCropSize);
+        this.faceCropSize = new Size(faceCropSize, faceCropSize);
+    }
+
+    // the face and landmark models from the Download folder, null if they cannot be loaded
+    public static FaceDetectionAPI loadDefaultDetector(){
+        FaceDetectionAPI detectionAPI = new FaceDetectionAPI();
+        String base = Environment.getExternalStorageDirectory().getAbsolutePath();
+        if( !detectionAPI.loadModel(
+                "/"+ base + "/Download/face_det_model_vtti.model",
+                "/"+ base + "/Download/model_landmark_49_vtti.model") ){
+            Log.d(LOG_TAG, "Error reading model files, full frames are uploaded.");
+            return null;
+        }
+        return detectionAPI;
+    }
+
+
+    /**
+     * Finds the face in the BGR image and writes the payload into the internal buffer.
+     * Returns the number of bytes written; the buffer returned by getBuffer() is
+     * overwritten by the next call.
+     */
+    public synchronized int encode(Mat bgr){
+        int width = bgr.cols();
+        int height = bgr.rows();
+        Imgproc.cvtColor(bgr, grayImg, Imgproc.COLOR_BGR2GRAY);
+        double[] landmarks = null;
+        if( detectionAPI.trackFace(grayImg, MIN_FACE_SIZE, MAX_FACE_SIZE, true)!=null ){
+            landmarks = detectionAPI.getTrackedLandmarks();
+        }
+        int[] lEyeRect = null;
+        int[] rEyeRect = null;
+        int[] faceRect = null;
+        if( landmarks!=null ){
+            lEyeRect = ImageProcessHandler.getEyeRegionCropRectForServer(landmarks, width, height, true);
+            rEyeRect = ImageProcessHandler.getEyeRegionCropRectForServer(landmarks, width, height, false);
+            faceRect = ImageProcessHandler.getFaceCropRectForServer(landmarks, width, height);
+        }
+        payload.clear();
+        payload.putShort((short) width).putShort((short) height);
+        if( lEyeRect==null || rEyeRect==null || faceRect==null ){
+            // no usable face, the server answers with an invalid prediction right away
+            noFaceFrames++;
+            payload.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                    .putInt(0).putInt(0).putInt(0);
+            return payload.position();
+        }
+        faceFrames++;
+        payload.putShort((short) faceRect[0]).putShort((short) faceRect[1])
+                .putShort((short) faceRect[2]).putShort((short) faceRect[3]);
+        int sizesPosition = payload.position();
+        payload.position(ROI_HEADER_LENGTH);
+        int lEyeLength = appendCrop(bgr, lEyeRect, eyeCropSize, true);
+        int rEyeLength = appendCrop(bgr, rEyeRect, eyeCropSize, true);
+        int faceLength = appendCrop(bgr, faceRect, faceCropSize, false);
+        payload.putInt(sizesPosition, lEyeLength)
+                .putInt(sizesPosition + 4, rEyeLength)
+                .putInt(sizesPosition + 8, faceLength);
+        return payload.position();
+    }
+
+    public synchronized byte[] getBuffer() {
+        return buffer;
+    }
+
+    // crops, resizes and encodes one region at the payload position, returns the encoded size
+    private int appendCrop(Mat bgr, int[] rect, Size size, boolean isGray){
+        Mat roi = bgr.submat(new Rect(rect[0], rect[1], rect[2], rect[3]));
+        Imgproc.resize(roi, resized, size, 0, 0, Imgproc.INTER_AREA);
+        roi.release();
+        if( isGray ){
+            Imgproc.cvtColor(resized, eyeGray, Imgproc.COLOR_BGR2GRAY);
+            Imgcodecs.imencode(".jpg", eyeGray, output, params);
+        } else {
+            Imgcodecs.imencode(".jpg", resized, output, params);
+        }
+        int length = (int) output.total();
+        if( chunk.length < length ){
+            chunk = new byte[length + length / 4];
+        }
+        output.get(0, 0, chunk);
+        ensureCapacity(payload.position() + length);
+        payload.put(chunk, 0, length);
+        return length;
+    }
+
+    private void ensureCapacity(int capacity){
+        if( buffer.length >= capacity ){
+            return;
+        }
+        byte[] larger = new byte[capacity + capacity / 4];
+        System.arraycopy(buffer, 0, larger, 0, payload.position());
+        int position = payload.position();
+        buffer = larger;
+        payload = ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN);
+        payload.position(position);
+    }
+
+    // makes the next frame start with a full face detection
+    public synchronized void reset(){
+        detectionAPI.resetTracking();
+    }
+
+    public synchronized int getFaceFrameCount() {
+        return faceFrames;
+    }
+
+    public synchronized int getNoFaceFrameCount() {
+        return noFaceFrames;
+    }
+
+    public synchronized void release(){
+        grayImg.release();
+        resized.release();
+        eyeGray.release();
+        output.release();
+        params.release();
+    }
+
+}
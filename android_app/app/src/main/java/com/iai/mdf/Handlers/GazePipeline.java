@@ -0,0 +1,241 @@
+package com.iai.mdf.Handlers;
+
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.iai.mdf.DependenceClasses.GazeFrame;
+import com.iai.mdf.FaceDetectionAPI;
+
+import org.opencv.core.CvType;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GazePipeline {
+
+    /**
+     * Runs gaze estimation for the live demos off the main thread:
+     * capture (ImageReader thread) -> preprocess -> detect -> infer -> render (UI thread).
+     * The capture stage only converts the image and closes it, so the camera never waits
+     * for the model. Between stages only the newest frame is kept, see StagedPipeline.
+     * When every pooled frame is in use, new camera frames are dropped.
+     *
+     * In Y-plane mode detection reads the gray image straight from the camera image's Y plane,
+     * and only the regions the estimator asks for through fillColorRegion() are converted to
+     * color. The camera image then stays open until the estimator is done with it; with at
+     * most POOL_SIZE images held, the ImageReader needs room for POOL_SIZE + 1 images.
+     */
+
+    public static final String STAGE_PREPROCESS = "preprocess";
+    public static final String STAGE_DETECT = "detect";
+    public static final String STAGE_INFER = "infer";
+    public static final String STAGE_RENDER = "render";
+    private static final String LOG_TAG = "GazePipeline";
+    // a frame in each stage's slot and one being processed by each stage, plus the one being captured
+    private static final int POOL_SIZE = 2 * 4 + 1;
+    private static final int MIN_FACE_SIZE = 30;
+    private static final int MAX_FACE_SIZE = 300;
+
+
+    // runs on the inference thread; the returned array is copied into the frame
+    public interface Estimator {
+        float[] estimate(GazeFrame frame);
+    }
+
+    // runs on the UI thread
+    public interface Renderer {
+        void render(GazeFrame frame);
+    }
+
+
+    private final FaceDetectionAPI detectionAPI;
+    private final boolean   isAlphaKept;
+    private boolean         isYPlaneDirect = false;
+    private final ArrayBlockingQueue<GazeFrame> framePool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final StagedPipeline<GazeFrame> pipeline;
+    private HandlerThread   captureThread;
+    private Handler         captureHandler;
+    private final AtomicInteger droppedCaptures = new AtomicInteger();
+
+
+    // detectionAPI may be null for models that need no face, frames then reach the estimator without one
+    public GazePipeline(FaceDetectionAPI detectionAPI, Estimator estimator, Renderer renderer){
+        this(detectionAPI, false, estimator, renderer);
+    }
+
+    // isAlphaKept keeps the color image in BGRA, as returned by ImageProcessHandler.getRGBMat()
+    public GazePipeline(FaceDetectionAPI detectionAPI, boolean isAlphaKept,
+                        final Estimator estimator, final Renderer renderer){
+        this.detectionAPI = detectionAPI;
+        this.isAlphaKept = isAlphaKept;
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            framePool.offer(new GazeFrame());
+        }
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+        pipeline = new StagedPipeline<>(new StagedPipeline.Recycler<GazeFrame>() {
+            @Override
+            public void recycle(GazeFrame frame) {
+                recycleFrame(frame);
+            }
+        });
+        pipeline.addStage(STAGE_PREPROCESS, new StagedPipeline.Stage<GazeFrame>() {
+            @Override
+            public boolean process(GazeFrame frame) {
+                if( frame.getImage()==null ){
+                    Imgproc.cvtColor(frame.getColorImg(), frame.getGrayImg(),
+                            GazePipeline.this.isAlphaKept ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+                }
+                return true;
+            }
+        }).addStage(STAGE_DETECT, new StagedPipeline.Stage<GazeFrame>() {
+            @Override
+            public boolean process(GazeFrame frame) {
+                detect(frame);
+                return true;
+            }
+        }).addStage(STAGE_INFER, new StagedPipeline.Stage<GazeFrame>() {
+            @Override
+            public boolean process(GazeFrame frame) {
+                frame.setResult(estimator.estimate(frame));
+                frame.closeImage();
+                return true;
+            }
+        }).addStage(STAGE_RENDER, new StagedPipeline.Stage<GazeFrame>() {
+            @Override
+            public boolean process(GazeFrame frame) {
+                renderer.render(frame);
+                return true;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                uiHandler.post(command);
+            }
+        });
+    }
+
+
+    // detection reads the Y plane and color is only converted where the estimator needs it; set before start()
+    public synchronized GazePipeline setYPlaneDirect(boolean isYPlaneDirect){
+        if( pipeline.isRunning() ){
+            throw new IllegalStateException("The mode must be set before start()");
+        }
+        this.isYPlaneDirect = isYPlaneDirect;
+        return this;
+    }
+
+    public synchronized void start(){
+        if( pipeline.isRunning() ){
+            return;
+        }
+        captureThread = new HandlerThread("GazePipeline_Capture");
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+        if( detectionAPI!=null ){
+            detectionAPI.resetTracking();
+        }
+        pipeline.start();
+    }
+
+    public synchronized void stop(){
+        if( !pipeline.isRunning() ){
+            return;
+        }
+        pipeline.stop();
+        captureThread.quitSafely();
+        captureThread = null;
+        captureHandler = null;
+        // frames still in a stage are released when they come back
+        for (GazeFrame frame : framePool) {
+            frame.release();
+        }
+        Log.d(LOG_TAG, "Dropped frames: " + String.valueOf(getDroppedFrameCount()));
+    }
+
+    // pass to CameraHandler.setOnImageAvailableListenerForPrev() so images are handled off the main thread
+    public synchronized Handler getCaptureHandler() {
+        return captureHandler;
+    }
+
+    /**
+     * Capture stage: converts the image into a pooled frame and hands it on.
+     * Takes over the image, which is closed once it is no longer needed.
+     * Returns false if the frame was dropped. Holds the lock, so stop() waits for a capture
+     * in progress before it releases the pooled frames.
+     */
+    public synchronized boolean submit(Image image){
+        if( !pipeline.isRunning() ){
+            image.close();
+            return false;
+        }
+        GazeFrame frame = framePool.poll();
+        if( frame==null ){
+            droppedCaptures.incrementAndGet();
+            image.close();
+            return false;
+        }
+        frame.reset();
+        frame.setCaptureTime(System.currentTimeMillis());
+        frame.setSize(image.getWidth(), image.getHeight());
+        if( isYPlaneDirect ){
+            // color is filled in per region by fillColorRegion()
+            if( !ImageProcessHandler.wrapYPlane(image, frame.getGrayImg(), frame.getGrayCopy()) ){
+                droppedCaptures.incrementAndGet();
+                image.close();
+                framePool.offer(frame);
+                return false;
+            }
+            frame.getColorImg().create(image.getHeight(), image.getWidth(), isAlphaKept ? CvType.CV_8UC4 : CvType.CV_8UC3);
+            frame.setImage(image);
+        } else {
+            ImageProcessHandler.getRGBMat(image, frame.getColorImg().getNativeObjAddr());
+            image.close();
+            if( !isAlphaKept ){
+                Imgproc.cvtColor(frame.getColorImg(), frame.getColorImg(), Imgproc.COLOR_BGRA2BGR);
+            }
+        }
+        return pipeline.submit(frame);
+    }
+
+    /**
+     * Makes rect (x, y, width, height) of the frame's color image valid. Only converts in
+     * Y-plane mode, otherwise the whole color image already is; call from the estimator.
+     */
+    public static void fillColorRegion(GazeFrame frame, int[] rect){
+        if( frame.getImage()!=null ){
+            ImageProcessHandler.getBGRRegion(frame.getImage(), rect, frame.getColorImg());
+        }
+    }
+
+    private void detect(GazeFrame frame){
+        if( detectionAPI==null ){
+            return;
+        }
+        // consecutive frames, so the face is tracked from the previous landmarks
+        int[] face = detectionAPI.trackFace(frame.getGrayImg(), MIN_FACE_SIZE, MAX_FACE_SIZE, true);
+        frame.setFace(face);
+        frame.setLandmarks(face!=null ? detectionAPI.getTrackedLandmarks() : null);
+    }
+
+    private void recycleFrame(GazeFrame frame){
+        frame.closeImage();
+        if( !pipeline.isRunning() ){
+            frame.release();
+        }
+        framePool.offer(frame);
+    }
+
+    public int getDroppedFrameCount(){
+        return droppedCaptures.get()
+                + pipeline.getDroppedFrameCount(STAGE_PREPROCESS)
+                + pipeline.getDroppedFrameCount(STAGE_DETECT)
+                + pipeline.getDroppedFrameCount(STAGE_INFER)
+                + pipeline.getDroppedFrameCount(STAGE_RENDER);
+    }
+
+}
@@ -0,0 +1,596 @@
+package com.iai.mdf.Handlers;
+
+import android.util.Log;
+
+import com.iai.mdf.DependenceClasses.GazeResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+public class GazeStreamClient {
+
+    /**
+     * One connection to the gaze server with a single writer and a single reader thread.
+     * Frames wait in a small bounded queue; when it is full the oldest frame is dropped,
+     * so the camera never waits on the network. Up to maxInFlight frames may be sent before
+     * their replies come back, and replies are matched to requests by sequence number.
+     *
+     * Two wire protocols are spoken:
+     * legacy:     [uint32 jpeg size][jpeg][uint8 seq]                       -> JSON lines
+     * version 2:  [uint8 version][uint8 flags][uint16 header length]
+     *             [uint32 seq][uint32 jpeg size][uint64 capture time][jpeg]  -> binary records
+     * Header fields are big-endian. Version 2 is asked for with a handshake right after
+     * connecting; a server that does not echo it back gets the legacy protocol.
+     * With FRAME_FLAG_ROI set, a version 2 frame carries cropped regions (see FaceRoiEncoder)
+     * instead of a jpeg. Such frames are dropped on a legacy connection.
+     */
+
+    public static final String ERROR_DISCONNECTED = "disconnected";
+    public static final String ERROR_SETTING = "setting";
+    public static final String ERROR_TIMEOUT = "timeout";
+    public static final int DEFAULT_QUEUE_CAPACITY = 2;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 3;
+    public static final int PROTOCOL_LEGACY = 0;
+    public static final int PROTOCOL_V2 = 2;
+    public static final int FRAME_FLAG_ROI = 0x01;
+    private static final String LOG_TAG = "GazeStreamClient";
+    private static final byte[] HANDSHAKE = {'M', 'G', 'Z', '2'};
+    private static final int FRAME_HEADER_LENGTH = 20;
+    private static final int LEGACY_HEADER_LENGTH = 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final double THROUGHPUT_DECAY = 0.8;     // weight of the older writes
+    private static final Charset LINE_CHARSET = Charset.forName("UTF-8");
+    // requests that can be told apart by sequence number, must be a power of 2 and at least maxInFlight
+    private static final int SEQ_SLOT_NUM = 16;
+
+
+    public interface Listener {
+        void onConnected();
+        // called on the reader thread for fresh predictions only; response is refilled for the
+        // next reply, line is null for binary replies
+        void onResponse(String line, GazeResponse response);
+        void onError(String error);
+    }
+
+
+    private final String    serverAddr;
+    private final int       serverPort;
+    private final int       timeoutLength;
+    private final int       maxSuccessiveTimeout;
+    private final int       maxInFlight;
+    private Listener        listener;
+    private volatile int    protocolVersion = PROTOCOL_LEGACY;
+    // pending frame queue and in-flight window, guarded by queueLock
+    private final Object    queueLock = new Object();
+    private final byte[][]  pendingFrames;
+    private final int[]     pendingLengths;
+    private final int[]     pendingSeqs;
+    private final long[]    pendingCaptureTimes;
+    private final int[]     pendingFlags;
+    private int             pendingHead;
+    private int             pendingCount;
+    private byte[]          writingFrame = new byte[0];
+    private final int[]     sentSeqs = new int[SEQ_SLOT_NUM];
+    private final long[]    sentTimes = new long[SEQ_SLOT_NUM];        // 0 means the slot is free
+    private final long[]    sentCaptureTimes = new long[SEQ_SLOT_NUM];
+    private int             inFlight;
+    private int             droppedFrames;
+    private int             staleResponses;
+    private int             negotiatedVersion;                          // -1 until known
+    private boolean         hasDelivered;
+    private int             lastDeliveredSeq;
+    // writer thread only
+    private final byte[]    headerBytes = new byte[FRAME_HEADER_LENGTH];
+    private final ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.BIG_ENDIAN);
+    private double          writtenBytes;
+    private double          writeNanos;
+    private volatile double sendThroughput = -1;                        // bytes per second
+    // reader thread only
+    private final byte[]    record = new byte[GazeResponse.BINARY_RECORD_LENGTH];
+    private int             recordFilled;
+    private byte[]          lineBytes = new byte[256];
+    private int             lineFilled;
+    private final GazeResponse response = new GazeResponse();
+    // connection state
+    private volatile boolean isRunning = false;
+    private volatile boolean isConnected = false;
+    private Socket          mSocket;
+    private Thread          writerThread;
+    private Thread          readerThread;
+
+
+    public GazeStreamClient(String addr, int port, int timeoutLength, int maxSuccessiveTimeout){
+        this(addr, port, timeoutLength, maxSuccessiveTimeout, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public GazeStreamClient(String addr, int port, int timeoutLength, int maxSuccessiveTimeout,
+                            int queueCapacity, int maxInFlight){
+        if( maxInFlight > SEQ_SLOT_NUM ){
+            throw new IllegalArgumentException("At most " + SEQ_SLOT_NUM + " frames can be in flight");
+        }
+        this.serverAddr = addr;
+        this.serverPort = port;
+        this.timeoutLength = timeoutLength;
+        this.maxSuccessiveTimeout = maxSuccessiveTimeout;
+        this.maxInFlight = maxInFlight;
+        this.pendingFrames = new byte[queueCapacity][];
+        this.pendingLengths = new int[queueCapacity];
+        this.pendingSeqs = new int[queueCapacity];
+        this.pendingCaptureTimes = new long[queueCapacity];
+        this.pendingFlags = new int[queueCapacity];
+        for (int i = 0; i < queueCapacity; i++) {
+            pendingFrames[i] = new byte[0];
+        }
+    }
+
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    // the protocol to ask for, takes effect on the next start()
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public synchronized void start(){
+        if( isRunning ){
+            return;
+        }
+        isRunning = true;
+        synchronized (queueLock) {
+            pendingHead = 0;
+            pendingCount = 0;
+            droppedFrames = 0;
+            staleResponses = 0;
+            negotiatedVersion = protocolVersion == PROTOCOL_V2 ? -1 : PROTOCOL_LEGACY;
+            hasDelivered = false;
+            clearInFlight();
+        }
+        writtenBytes = 0;
+        writeNanos = 0;
+        sendThroughput = -1;
+        writerThread = new Thread("GazeStream_Writer") {
+            @Override
+            public void run() {
+                if( connect() ) {
+                    readerThread = new Thread("GazeStream_Reader") {
+                        @Override
+                        public void run() {
+                            readLoop();
+                        }
+                    };
+                    readerThread.start();
+                    writeLoop();
+                }
+            }
+        };
+        writerThread.start();
+    }
+
+    public synchronized void stop(){
+        isRunning = false;
+        closeSocket();
+        synchronized (queueLock) {
+            queueLock.notifyAll();
+        }
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    // the protocol in use on the current connection, -1 while it is being negotiated
+    public int getNegotiatedVersion(){
+        synchronized (queueLock) {
+            return negotiatedVersion;
+        }
+    }
+
+    public int getDroppedFrameCount(){
+        synchronized (queueLock) {
+            return droppedFrames;
+        }
+    }
+
+    public int getStaleResponseCount(){
+        synchronized (queueLock) {
+            return staleResponses;
+        }
+    }
+
+    public int getInFlightCount(){
+        synchronized (queueLock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Bytes per second the socket takes frames at, -1 before the first frame is written.
+     * The send buffer is kept small, so a write blocks once the link falls behind and this
+     * follows the link; it does not include the time the server spends on a frame.
+     */
+    public double getSendThroughput(){
+        return sendThroughput;
+    }
+
+    // copies the jpeg into the queue, so the caller can reuse its buffer right away;
+    // seq should increase by one per frame, captureTime is wall-clock ms (System.currentTimeMillis()),
+    // not the camera's monotonic Image.getTimestamp()
+    public boolean submit(byte[] jpeg, int offset, int length, int seq, long captureTime){
+        return submit(jpeg, offset, length, seq, captureTime, 0);
+    }
+
+    // flags go into the version 2 frame header and say what the frame data is
+    public boolean submit(byte[] data, int offset, int length, int seq, long captureTime, int flags){
+        if( !isConnected ){
+            return false;
+        }
+        synchronized (queueLock) {
+            int capacity = pendingFrames.length;
+            if( pendingCount == capacity ){
+                // back-pressure: drop the oldest frame, the newest one is more useful
+                pendingHead = (pendingHead + 1) % capacity;
+                pendingCount--;
+                droppedFrames++;
+            }
+            int slot = (pendingHead + pendingCount) % capacity;
+            if( pendingFrames[slot].length < length ){
+                pendingFrames[slot] = new byte[length];
+            }
+            System.arraycopy(data, offset, pendingFrames[slot], 0, length);
+            pendingLengths[slot] = length;
+            pendingSeqs[slot] = seq;
+            pendingCaptureTimes[slot] = captureTime;
+            pendingFlags[slot] = flags;
+            pendingCount++;
+            queueLock.notifyAll();
+        }
+        return true;
+    }
+
+
+    private boolean connect(){
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(serverAddr, serverPort), timeoutLength);
+            socket.setSoTimeout(timeoutLength);
+            socket.setTcpNoDelay(true);
+            // a large kernel buffer would hide a slow link from getSendThroughput()
+            socket.setSendBufferSize(WRITE_BUFFER_SIZE);
+            mSocket = socket;
+            isConnected = true;
+            if( listener!=null ){
+                listener.onConnected();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "can't connect to the server");
+            isRunning = false;
+            isConnected = false;
+            if( listener!=null ){
+                listener.onError(ERROR_SETTING);
+            }
+            return false;
+        }
+    }
+
+    private void writeLoop(){
+        try {
+            OutputStream output = new BufferedOutputStream(mSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+            int version = negotiate(output);
+            while( isRunning ){
+                byte[] frame;
+                int length;
+                int seq;
+                long captureTime;
+                int flags;
+                synchronized (queueLock) {
+                    while( isRunning && (pendingCount == 0 || inFlight >= maxInFlight) ){
+                        queueLock.wait(timeoutLength);
+                    }
+                    if( !isRunning ){
+                        break;
+                    }
+                    // swap buffers with the queue slot, so submit() never touches the frame being written
+                    int slot = pendingHead;
+                    frame = pendingFrames[slot];
+                    pendingFrames[slot] = writingFrame;
+                    writingFrame = frame;
+                    length = pendingLengths[slot];
+                    seq = version == PROTOCOL_V2 ? pendingSeqs[slot] : pendingSeqs[slot] & 0xFF;
+                    captureTime = pendingCaptureTimes[slot];
+                    flags = pendingFlags[slot];
+                    pendingHead = (pendingHead + 1) % pendingFrames.length;
+                    pendingCount--;
+                    if( flags != 0 && version != PROTOCOL_V2 ){
+                        // the legacy protocol has no way to tell the server what the frame holds
+                        droppedFrames++;
+                        continue;
+                    }
+                    int sentSlot = seq & (SEQ_SLOT_NUM - 1);
+                    if( sentTimes[sentSlot] == 0 ){
+                        inFlight++;
+                    }
+                    sentSeqs[sentSlot] = seq;
+                    sentTimes[sentSlot] = System.currentTimeMillis();
+                    sentCaptureTimes[sentSlot] = captureTime;
+                }
+                long writeStart = System.nanoTime();
+                header.clear();
+                if( version == PROTOCOL_V2 ){
+                    header.put((byte) PROTOCOL_V2)
+                            .put((byte) flags)
+                            .putShort((short) FRAME_HEADER_LENGTH)
+                            .putInt(seq)
+                            .putInt(length)
+                            .putLong(captureTime);
+                    output.write(headerBytes, 0, FRAME_HEADER_LENGTH);
+                    output.write(frame, 0, length);
+                } else {
+                    header.putInt(length);
+                    output.write(headerBytes, 0, LEGACY_HEADER_LENGTH);
+                    output.write(frame, 0, length);
+                    output.write(seq);
+                }
+                output.flush();
+                onWritten(length, System.nanoTime() - writeStart);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Broken Pipe");
+            onDisconnected();
+        }
+    }
+
+    // writer thread only, older writes fade out so the estimate follows the link
+    private void onWritten(int length, long nanos){
+        writtenBytes = writtenBytes * THROUGHPUT_DECAY + length;
+        writeNanos = writeNanos * THROUGHPUT_DECAY + nanos;
+        if( writeNanos > 0 ){
+            sendThroughput = writtenBytes * 1e9 / writeNanos;
+        }
+    }
+
+    // sends the handshake if needed and waits for the reader to see the answer
+    private int negotiate(OutputStream output) throws IOException, InterruptedException {
+        if( protocolVersion != PROTOCOL_V2 ){
+            return PROTOCOL_LEGACY;
+        }
+        output.write(HANDSHAKE);
+        output.flush();
+        long deadline = System.currentTimeMillis() + timeoutLength;
+        synchronized (queueLock) {
+            while( isRunning && negotiatedVersion < 0 ){
+                long remaining = deadline - System.currentTimeMillis();
+                if( remaining <= 0 ){
+                    // a legacy server only answers once it gets a frame
+                    negotiatedVersion = PROTOCOL_LEGACY;
+                    break;
+                }
+                queueLock.wait(remaining);
+            }
+            return negotiatedVersion;
+        }
+    }
+
+    private void readLoop(){
+        int missingResponse = 0;
+        InputStream input;
+        boolean isNegotiated = protocolVersion != PROTOCOL_V2;
+        boolean isBinary = false;
+        recordFilled = 0;
+        lineFilled = 0;
+        try {
+            input = new BufferedInputStream(mSocket.getInputStream());
+        } catch (IOException e) {
+            onDisconnected();
+            return;
+        }
+        while( isRunning ){
+            try {
+                String line = null;
+                if( !isNegotiated ){
+                    // a legacy server skips the handshake and answers in JSON
+                    input.mark(1);
+                    int first = input.read();
+                    if( first < 0 ){
+                        onDisconnected();
+                        return;
+                    }
+                    input.reset();
+                    isBinary = first == HANDSHAKE[0];
+                    if( isBinary && !fillRecord(input, HANDSHAKE.length) ){
+                        onDisconnected();
+                        return;
+                    }
+                    if( !acceptNegotiation(isBinary ? PROTOCOL_V2 : PROTOCOL_LEGACY) ){
+                        Log.d(LOG_TAG, "Handshake answered too late");
+                        onDisconnected();
+                        return;
+                    }
+                    isNegotiated = true;
+                    continue;
+                }
+                boolean isFresh;
+                if( isBinary ){
+                    if( !fillRecord(input, GazeResponse.BINARY_RECORD_LENGTH) ){
+                        onDisconnected();
+                        return;
+                    }
+                    response.parseBinary(record, 0);
+                    isFresh = matchRequest(response, PROTOCOL_V2);
+                } else {
+                    line = readLine(input);
+                    if( line == null ){
+                        onDisconnected();
+                        return;
+                    }
+                    isFresh = !response.parseJson(line) || matchRequest(response, PROTOCOL_LEGACY);
+                }
+                missingResponse = 0;
+                if( isFresh && listener!=null ){
+                    listener.onResponse(line, response);
+                }
+            } catch (SocketTimeoutException e) {
+                boolean isWaiting;
+                synchronized (queueLock) {
+                    // outstanding requests are considered lost, let the writer go on
+                    isWaiting = inFlight > 0;
+                    clearInFlight();
+                    queueLock.notifyAll();
+                }
+                if( !isWaiting ){
+                    continue;
+                }
+                missingResponse++;
+                Log.d(LOG_TAG, "Read Timeout, missing responses: " + String.valueOf(missingResponse));
+                if( missingResponse >= maxSuccessiveTimeout ){
+                    onDisconnected();
+                    return;
+                }
+                if( listener!=null ){
+                    listener.onError(ERROR_TIMEOUT);
+                }
+            } catch (IOException e) {
+                if( isRunning ){
+                    Log.d(LOG_TAG, "Broken Pipe");
+                    onDisconnected();
+                }
+                return;
+            }
+        }
+    }
+
+    // false if the writer already gave up waiting and chose another protocol
+    private boolean acceptNegotiation(int version){
+        synchronized (queueLock) {
+            if( negotiatedVersion < 0 ){
+                negotiatedVersion = version;
+                queueLock.notifyAll();
+            }
+            return negotiatedVersion == version;
+        }
+    }
+
+    // reads until record holds length bytes; a partial record survives a read timeout
+    private boolean fillRecord(InputStream input, int length) throws IOException {
+        while( recordFilled < length ){
+            int n = input.read(record, recordFilled, length - recordFilled);
+            if( n < 0 ){
+                return false;
+            }
+            recordFilled += n;
+        }
+        recordFilled = 0;
+        return true;
+    }
+
+    // reads up to the next line break, like fillRecord() a partial line survives a read timeout;
+    // null at the end of the stream
+    private String readLine(InputStream input) throws IOException {
+        while( true ){
+            int b = input.read();
+            if( b < 0 ){
+                return null;
+            }
+            if( b == '\n' ){
+                int length = lineFilled;
+                if( length > 0 && lineBytes[length - 1] == '\r' ){
+                    length--;
+                }
+                lineFilled = 0;
+                return new String(lineBytes, 0, length, LINE_CHARSET);
+            }
+            if( lineFilled == lineBytes.length ){
+                byte[] grown = new byte[lineBytes.length * 2];
+                System.arraycopy(lineBytes, 0, grown, 0, lineFilled);
+                lineBytes = grown;
+            }
+            lineBytes[lineFilled++] = (byte) b;
+        }
+    }
+
+    /**
+     * Reorder window: a reply older than the last delivered one is stale and discarded.
+     * Requests older than a matched reply can only produce stale replies, or none if the
+     * server dropped them, so they leave the in-flight window right away.
+     * Returns whether the reply should be delivered.
+     */
+    private boolean matchRequest(GazeResponse res, int version){
+        int seq = res.getSequenceNumber();
+        synchronized (queueLock) {
+            if( hasDelivered && seqDistance(seq, lastDeliveredSeq, version) <= 0 ){
+                staleResponses++;
+                return false;
+            }
+            int slot = seq & (SEQ_SLOT_NUM - 1);
+            if( sentTimes[slot] != 0 && sentSeqs[slot] == seq ){
+                res.setRoundTripTime(System.currentTimeMillis() - sentTimes[slot]);
+                res.setCaptureTime(sentCaptureTimes[slot]);
+            }
+            for (int i = 0; i < SEQ_SLOT_NUM; i++) {
+                if( sentTimes[i] != 0 && seqDistance(sentSeqs[i], seq, version) <= 0 ){
+                    sentTimes[i] = 0;
+                    inFlight--;
+                }
+            }
+            hasDelivered = true;
+            lastDeliveredSeq = seq;
+            queueLock.notifyAll();
+            return true;
+        }
+    }
+
+    // signed distance a - b in the sequence number space of the protocol, which wraps around
+    private static int seqDistance(int a, int b, int version){
+        if( version == PROTOCOL_V2 ){
+            return a - b;
+        }
+        return (byte) (a - b);
+    }
+
+    private void clearInFlight(){
+        inFlight = 0;
+        for (int i = 0; i < SEQ_SLOT_NUM; i++) {
+            sentTimes[i] = 0;
+        }
+    }
+
+    private void onDisconnected(){
+        boolean wasConnected;
+        synchronized (this) {
+            wasConnected = isConnected;
+            isConnected = false;
+            isRunning = false;
+            closeSocket();
+        }
+        synchronized (queueLock) {
+            queueLock.notifyAll();
+        }
+        if( wasConnected && listener!=null ){
+            listener.onError(ERROR_DISCONNECTED);
+        }
+    }
+
+    private void closeSocket(){
+        isConnected = false;
+        try {
+            if( mSocket!=null ) {
+                mSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
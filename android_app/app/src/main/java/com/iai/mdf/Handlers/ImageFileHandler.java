@@ -10,9 +10,6 @@ import android.util.Log;
 import android.util.Size;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -32,12 +29,18 @@ public class ImageFileHandler {
     private int imageFormat;
     private int maxImages;
     private String imageFolderPath;
+    private String imageFolderDate;
+    private int droppedCount;
     private String imageName;
     private SavingCallback savingCallback;
+    private WriteBehindImageSaver imageSaver;
+    // one writer thread for every handler, pictures are taken by one camera at a time
+    private static WriteBehindImageSaver sharedSaver = null;
 
-    // interface for operations after pictures are saved
+    // interface for operations after pictures are saved, or dropped because the writer is behind
     public interface SavingCallback{
         void onSaved();
+        void onDropped();
     }
 
 
@@ -51,6 +54,8 @@ public class ImageFileHandler {
         maxImages = 1;
         imageName = "";
         savingCallback = null;
+        imageSaver = getSharedSaver();
+        imageSaver.start();
     }
 
     public ImageFileHandler(int width, int height, int format, int _maxImages) {
@@ -61,6 +66,15 @@ public class ImageFileHandler {
         imageName = "";
         savingCallback = null;
         imageReader = ImageReader.newInstance(imageWidth, imageHeight, imageFormat, maxImages);
+        imageSaver = getSharedSaver();
+        imageSaver.start();
+    }
+
+    private static synchronized WriteBehindImageSaver getSharedSaver(){
+        if( sharedSaver==null ){
+            sharedSaver = new WriteBehindImageSaver(null);
+        }
+        return sharedSaver;
     }
 
     // default imageReader is for saving
@@ -72,14 +86,15 @@ public class ImageFileHandler {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
                     Image image = reader.acquireLatestImage();
-                    ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                    byte[] imageBytes = new byte[buffer.capacity()];
-                    buffer.get(imageBytes);
-                    saveImageByteIntoFile(imageBytes, imageName);
-                    Log.d(LOG_TAG, "taken");
+                    boolean isQueued = saveImageBufferIntoFile(image.getPlanes()[0].getBuffer(), imageName);
+                    Log.d(LOG_TAG, isQueued ? "taken" : "dropped");
                     image.close();
                     if (null != savingCallback) {
-                        savingCallback.onSaved();
+                        if( isQueued ){
+                            savingCallback.onSaved();
+                        } else {
+                            savingCallback.onDropped();
+                        }
                     }
                 }
             };
@@ -98,23 +113,56 @@ public class ImageFileHandler {
         this.savingCallback = _savingCallback;
     }
 
-    public void saveImageByteIntoFile(byte[] imageData, String file_name){
+    public boolean saveImageByteIntoFile(byte[] imageData, String file_name){
+        return saveImageBufferIntoFile(ByteBuffer.wrap(imageData), file_name);
+    }
+
+    // copies the encoded picture and returns, imageSaver writes it in the background.
+    // Runs on the capture callback, so a picture is dropped rather than waiting for a free buffer.
+    // Returns false when the picture was not queued
+    private boolean saveImageBufferIntoFile(ByteBuffer imageData, String file_name){
         if(file_name==null || file_name.isEmpty()){
             Log.d(LOG_TAG, "Invalid filename. Image is not saved");
-            return;
+            return false;
         }
+        WriteBehindImageSaver.Job job = null;
+        try {
+            job = imageSaver.obtainJob(imageData.remaining(), 0);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if( job==null ){
+            droppedCount++;
+            Log.e(LOG_TAG, "Image saver is behind, " + file_name + " is dropped ("
+                    + String.valueOf(droppedCount) + " so far)");
+            return false;
+        }
+        job.buffer.put(imageData);
+        job.isEncoded = true;
+        imageSaver.submit(job, getImageFile(file_name));
+        // again after a finishSession()
+        imageSaver.start();
+        return true;
+    }
+
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    // the date folder is made once per day, the media scan runs in finishSession()
+    private File getImageFile(String file_name){
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy_MM_dd");
         String timeDate = sdf.format(new Date());
-        String subFolderName = timeDate;
-        File picFolder = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), FOLDER_NAME + File.separator + subFolderName);
-        if (!picFolder.exists()){
-            if (!picFolder.mkdirs()){
+        if( imageFolderPath==null || !timeDate.equals(imageFolderDate) ){
+            String subFolderName = timeDate;
+            File picFolder = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_PICTURES), FOLDER_NAME + File.separator + subFolderName);
+            if (!picFolder.exists() && !picFolder.mkdirs()){
                 Log.d("App", "failed to socketCreate directory");
             }
-            MediaScannerConnection.scanFile(ctxt, new String[] {picFolder.getAbsolutePath()}, null, null);
+            imageFolderPath = picFolder.getPath();
+            imageFolderDate = timeDate;
         }
-        imageFolderPath = picFolder.getPath();
         String file_name_sufix;
         switch (this.imageFormat){
             case ImageFormat.JPEG:
@@ -124,14 +172,7 @@ public class ImageFileHandler {
                 file_name_sufix = ".jpg";
                 break;
         }
-        File picFile = new File(picFolder.getPath() + File.separator + file_name + file_name_sufix);
-        try {
-            OutputStream output = new FileOutputStream(picFile);
-            output.write(imageData);
-            output.close();
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Exception occurred while saving picture to external storage ", e);
-        }
+        return new File(imageFolderPath + File.separator + file_name + file_name_sufix);
     }
 
     public void setImageSize(Size size){
@@ -148,21 +189,28 @@ public class ImageFileHandler {
     }
 
     public void deleteLastImage(){
-        String file_name_suffix;
-        switch (this.imageFormat){
-            case ImageFormat.JPEG:
-                file_name_suffix = ".jpg";
-                break;
-            default:
-                file_name_suffix = ".jpg";
-                break;
+        if( imageName.isEmpty() ){
+            return;
         }
-        File picFile = new File(imageFolderPath + File.separator + imageName + file_name_suffix);
-        if( picFile.exists() ){
-            if( picFile.delete() ){
-                Log.d(LOG_TAG, "Image " + imageName + " is deleted");
+        // also covers a picture still waiting in imageSaver
+        imageSaver.delete(getImageFile(imageName));
+        imageSaver.start();
+    }
+
+    // scans the pictures saved since the last call once they are on disk, then lets the writer exit
+    public void finishSession(){
+        imageSaver.finishSession(new WriteBehindImageSaver.SessionListener() {
+            @Override
+            public void onSessionFinished(String[] savedPaths, int failedCount) {
+                if( failedCount > 0 ){
+                    Log.e(LOG_TAG, failedCount + " pictures failed to save");
+                }
+                if( null!=ctxt && savedPaths.length > 0 ){
+                    MediaScannerConnection.scanFile(ctxt, savedPaths, null, null);
+                }
             }
-        }
+        });
+        imageSaver.stop();
     }
 
 
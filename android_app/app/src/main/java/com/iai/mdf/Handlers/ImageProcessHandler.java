@@ -3,7 +3,6 @@ package com.iai.mdf.Handlers;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
 import android.graphics.Point;
 import android.media.Image;
 import android.os.Environment;
@@ -14,7 +13,11 @@ import android.renderscript.ScriptIntrinsicYuvToRGB;
 import android.renderscript.Type;
 
 import com.iai.mdf.Activities.MainActivity;
+import com.iai.mdf.DependenceClasses.FrameArena;
 import com.iai.mdf.JNInterface.MobileGazeJniInterface;
+import com.iai.mdf.Processing.EyeRegion;
+import com.iai.mdf.Processing.TensorOps;
+import com.iai.mdf.Processing.TensorShape;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -27,6 +30,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 /**
  * Created by Mou on 10/1/2017.
@@ -40,6 +45,10 @@ public class ImageProcessHandler {
     public static int EYE_MODEL_INPUTSIZE_COLORS    = 3;
 
     private static MobileGazeJniInterface jniHandler = new MobileGazeJniInterface();
+    // one arena per use site, so each keeps buffers of its own size
+    private static final FrameArena i420Arena = new FrameArena();
+    private static final FrameArena planesArena = new FrameArena();
+    private static final FrameArena nv21Arena = new FrameArena();
 
 
     public static float[][][][] getStandardizedNormalDistribution(int[][][][] rawImages){
@@ -47,39 +56,27 @@ public class ImageProcessHandler {
         int dim1 = rawImages[0].length;
         int dim2 = rawImages[0][0].length;
         int dim3 = rawImages[0][0][0].length;
-        float[][][][] postImage = new float[dim0][dim1][dim2][dim3];
-        float[] postArray = new float[dim0*dim1*dim2*dim3];
-        int[] eachPreArray = new int[dim1*dim2*dim3];
-        for(int d0 = 0; d0 < dim0; ++d0) {
-            // 3D array --> row array
+        TensorShape shape = new TensorShape(dim0, dim1, dim2, dim3, TensorShape.LAYOUT_NHWC);
+        float[] flat = new float[shape.getLength()];
+        int i = 0;
+        for (int d0 = 0; d0 < dim0; ++d0) {
             for (int d1 = 0; d1 < dim1; ++d1) {
                 for (int d2 = 0; d2 < dim2; ++d2) {
+                    int[] src = rawImages[d0][d1][d2];
                     for (int d3 = 0; d3 < dim3; ++d3) {
-                        eachPreArray[d1 * dim2 * dim3 + d2 * dim3 + d3] = rawImages[d0][d1][d2][d3];
+                        flat[i++] = src[d3];
                     }
                 }
             }
-            // calculate
-            double mean = 0;
-            for(int i = 0; i < eachPreArray.length; i++) {
-                mean += eachPreArray[i];
-            }
-            mean /= eachPreArray.length;
-            double stdev = 0;
-            for(int i = 0; i < eachPreArray.length; i++) {
-                stdev += (eachPreArray[i] - mean) * (eachPreArray[i] - mean);
-            }
-            stdev = Math.sqrt( stdev/(eachPreArray.length-1) );
-            // preArray --> postArray
-            for(int i = 0; i < eachPreArray.length; i++) {
-                postArray[d0 * dim1 * dim2 * dim3 + i] = (float)((eachPreArray[i] - mean)/stdev);
-            }
-            // postArray --> postImage
+        }
+        TensorOps.standardizePerSample(flat, shape);
+        float[][][][] postImage = new float[dim0][dim1][dim2][dim3];
+        i = 0;
+        for (int d0 = 0; d0 < dim0; ++d0) {
             for (int d1 = 0; d1 < dim1; ++d1) {
                 for (int d2 = 0; d2 < dim2; ++d2) {
-                    for (int d3 = 0; d3 < dim3; ++d3) {
-                        postImage[d0][d1][d2][d3] = postArray[d0 * dim1 * dim2 * dim3 + d1 * dim2 * dim3 + d2 * dim3 + d3];
-                    }
+                    System.arraycopy(flat, i, postImage[d0][d1][d2], 0, dim3);
+                    i += dim3;
                 }
             }
         }
@@ -168,66 +165,158 @@ public class ImageProcessHandler {
         return input_array;
     }
 
-    public static Mat getBGRMatFromImage(Image image) {
-        ByteBuffer buffer;
-        int rowStride;
-        int pixelStride;
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int offset = 0;
-
+    // rotation is in degrees (0, 90, 180 or 270), as stored in DeviceConfiguration
+    public static void getRotatedBGRMat(Image image, int rotation, Mat bgrMat){
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[image.getWidth() * image.getHeight() * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-
-        for (int i = 0; i < planes.length; i++) {
-            buffer = planes[i].getBuffer();
-            rowStride = planes[i].getRowStride();
-            pixelStride = planes[i].getPixelStride();
-            int w = (i == 0) ? width : width / 2;
-            int h = (i == 0) ? height : height / 2;
-            for (int row = 0; row < h; row++) {
-                int bytesPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8;
-                if (pixelStride == bytesPerPixel) {
-                    int length = w * bytesPerPixel;
-                    buffer.get(data, offset, length);
-
-                    if (h - row != 1) {
-                        buffer.position(buffer.position() + rowStride - length);
-                    }
-                    offset += length;
-                } else {
-                    if (h - row == 1) {
-                        buffer.get(rowData, 0, width - pixelStride + 1);
-                    } else {
-                        buffer.get(rowData, 0, rowStride);
-                    }
-                    for (int col = 0; col < w; col++) {
-                        data[offset++] = rowData[col * pixelStride];
-                    }
+        jniHandler.yuvPlanesToBGRMat(
+                planes[0].getBuffer(),
+                planes[1].getBuffer(),
+                planes[2].getBuffer(),
+                planes[0].getRowStride(),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                image.getWidth(),
+                image.getHeight(),
+                toRotateCode(rotation),
+                bgrMat.getNativeObjAddr());
+    }
+
+    // same as above for a frame packed by packIntoI420Buffer(), from 0 to width * height * 3 / 2
+    public static void getRotatedBGRMat(ByteBuffer i420Buffer, int width, int height, int rotation, Mat bgrMat){
+        int ySize = width * height;
+        jniHandler.yuvPlanesToBGRMat(
+                slice(i420Buffer, 0, ySize),
+                slice(i420Buffer, ySize, ySize / 4),
+                slice(i420Buffer, ySize + ySize / 4, ySize / 4),
+                width,
+                width / 2,
+                1,
+                width,
+                height,
+                toRotateCode(rotation),
+                bgrMat.getNativeObjAddr());
+    }
+
+    private static int toRotateCode(int rotation){
+        switch (rotation){
+            case 90:
+                return Core.ROTATE_90_CLOCKWISE;
+            case 180:
+                return Core.ROTATE_180;
+            case 270:
+                return Core.ROTATE_90_COUNTERCLOCKWISE;
+            default:
+                return -1;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length){
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    // encodes the raw frames of a WriteBehindImageSaver (packed I420, see packIntoI420Buffer) into rotated JPEGs
+    public static WriteBehindImageSaver.Encoder createJpegEncoder(){
+        return new WriteBehindImageSaver.Encoder() {
+            private final Mat       bgrMat = new Mat();
+            private final MatOfByte jpegMat = new MatOfByte();
+            private ByteBuffer      jpegBuffer = ByteBuffer.allocate(0);
+
+            @Override
+            public ByteBuffer encode(WriteBehindImageSaver.Job job) throws IOException {
+                getRotatedBGRMat(job.buffer, job.width, job.height, job.rotation, bgrMat);
+                if( !Imgcodecs.imencode(".jpg", bgrMat, jpegMat) ){
+                    throw new IOException("Failed to encode a " + job.width + "x" + job.height + " frame");
+                }
+                int length = (int) jpegMat.total();
+                if( jpegBuffer.capacity() < length ){
+                    jpegBuffer = ByteBuffer.allocate(length + length / 4);
                 }
+                jpegMat.get(0, 0, jpegBuffer.array());
+                jpegBuffer.clear();
+                jpegBuffer.limit(length);
+                return jpegBuffer;
             }
-        }
+        };
+    }
 
-        Mat mat = new Mat(height + height / 2, width, CvType.CV_8UC1);
-        mat.put(0, 0, data);
+    /**
+     * Points grayMat at the Y plane, which already is the gray image; valid until the image is closed.
+     * A plane with padded rows is copied into copyMat first, so grayMat is always continuous.
+     * Returns false if the plane cannot be read, the frame should be skipped then
+     */
+    public static boolean wrapYPlane(Image image, Mat grayMat, Mat copyMat){
+        Image.Plane yPlane = image.getPlanes()[0];
+        return jniHandler.wrapPlaneAsMat(
+                yPlane.getBuffer(),
+                image.getWidth(),
+                image.getHeight(),
+                yPlane.getRowStride(),
+                grayMat.getNativeObjAddr(),
+                copyMat.getNativeObjAddr());
+    }
 
-        return mat;
+    // converts only rect (x, y, width, height) into the same rect of bgrMat, an image sized BGR or BGRA Mat
+    public static void getBGRRegion(Image image, int[] rect, Mat bgrMat){
+        Image.Plane[] planes = image.getPlanes();
+        jniHandler.yuvRegionToBGRMat(
+                planes[0].getBuffer(),
+                planes[1].getBuffer(),
+                planes[2].getBuffer(),
+                planes[0].getRowStride(),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                image.getWidth(),
+                image.getHeight(),
+                rect,
+                bgrMat.getNativeObjAddr());
     }
 
-    public static void getRGBMat(Image image, long addrMat){
+    // YUV_420_888 planes --> I420 in a pooled direct buffer; the planes are read in place by native code
+    public static ByteBuffer packIntoI420Buffer(Image image){
+        ByteBuffer i420Buffer = i420Arena.acquireDirect(image.getWidth() * image.getHeight() * 3 / 2);
+        packIntoI420Buffer(image, i420Buffer);
+        i420Buffer.rewind();
+        return i420Buffer;
+    }
+
+    // same as above into a given direct buffer of at least width * height * 3 / 2 bytes; its position is left after the frame
+    public static void packIntoI420Buffer(Image image, ByteBuffer i420Buffer){
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        jniHandler.packYuvPlanes(
+                planes[0].getBuffer(),
+                planes[1].getBuffer(),
+                planes[2].getBuffer(),
+                planes[0].getRowStride(),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                width,
+                height,
+                i420Buffer);
+        i420Buffer.position(width * height * 3 / 2);
+    }
+
+    // copies the raw plane buffers back to back into a pooled array (layout expected by the detection natives)
+    private static byte[] copyPlanesIntoArray(Image image){
         ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
         ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
         ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
         int yLength = yBuffer.capacity();
         int uvLength = uBuffer.capacity();
-        byte[] yuvBytes = new byte[yLength+2*uvLength];
+        byte[] yuvBytes = planesArena.acquireArray(yLength+2*uvLength);
         yBuffer.get(yuvBytes, 0, yLength);
         uBuffer.get(yuvBytes, yLength, uvLength);
         vBuffer.get(yuvBytes, yLength + uvLength, uvLength);
-        int width = image.getWidth();
-        int height = image.getHeight();
-        jniHandler.getRGBMatImage(yuvBytes, width, height, addrMat);
+        return yuvBytes;
+    }
+
+    public static void getRGBMat(Image image, long addrMat){
+        ByteBuffer i420Buffer = packIntoI420Buffer(image);
+        jniHandler.getRGBMatImageDirect(i420Buffer, image.getWidth(), image.getHeight(), addrMat);
     }
 
     public static float[] getEyePostion(double[] landmarks, boolean isLeft, float[] scales){
@@ -263,47 +352,8 @@ public class ImageProcessHandler {
     }
 
     public static int[] getEyeRegionCropRect(double[] landmarks, int imageWidth, int imageHeight, boolean isLeft){
-        int[] cropRect = null;
-        int leftEyeLeftCornerIndex = 28;
-        int leftEyeRightCornerIndex = 25;
-        int rightEyeLeftCornerIndex = 22;
-        int rightEyeRightCornerIndex = 19;
-        Point leftCorner;
-        Point rightCorner;
-        if( isLeft ) {
-            leftCorner = new Point(
-                    (int) landmarks[leftEyeLeftCornerIndex * 2],
-                    (int) landmarks[leftEyeLeftCornerIndex * 2 + 1]);
-            rightCorner = new Point(
-                    (int) landmarks[leftEyeRightCornerIndex * 2],
-                    (int) landmarks[leftEyeRightCornerIndex * 2 + 1]);
-        } else {
-            leftCorner = new Point(
-                    (int) landmarks[rightEyeLeftCornerIndex * 2],
-                    (int) landmarks[rightEyeLeftCornerIndex * 2 + 1]);
-            rightCorner = new Point(
-                    (int) landmarks[rightEyeRightCornerIndex * 2],
-                    (int) landmarks[rightEyeRightCornerIndex * 2 + 1]);
-        }
-
-        Point center = new Point(
-                (leftCorner.x+rightCorner.x)/2,
-                (leftCorner.y+rightCorner.y)/2);
-        int width = Math.abs(leftCorner.x - rightCorner.x);
-        double padRatio = 0.25;
-        int newWidth = (int) (width * (1 + padRatio * 2));
-        int newHeight = newWidth * ImageProcessHandler.EYE_MODEL_INPUTSIZE_ROWS / ImageProcessHandler.EYE_MODEL_INPUTSIZE_COLUMNS;
-        int newX = center.x - newWidth / 2;
-        int newY = center.y - newHeight / 2;
-        if( newX >= 0 && newX + newWidth < imageWidth
-                && newY >= 0 && newY + newHeight < imageHeight){
-            cropRect = new int[4];
-            cropRect[0] = newX;
-            cropRect[1] = newY;
-            cropRect[2] = newWidth;
-            cropRect[3] = newHeight;
-        }
-        return cropRect;
+        // shared with the offline pipeline
+        return EyeRegion.getCropRect(landmarks, imageWidth, imageHeight, isLeft);
     }
 
     public static int[] getEyeRegionCropRectForiTracker(double[] landmarks, int imageWidth, int imageHeight, boolean isLeft){
@@ -350,11 +400,69 @@ public class ImageProcessHandler {
         return cropRect;
     }
 
+    // the same eye box as the server's EyeCropper, so uploaded crops match what the model was trained on
+    public static int[] getEyeRegionCropRectForServer(double[] landmarks, int imageWidth, int imageHeight, boolean isLeft){
+        int leftCornerIndex = isLeft ? 28 : 22;
+        int rightCornerIndex = isLeft ? 25 : 19;
+        int leftX = (int) landmarks[leftCornerIndex * 2];
+        int rightX = (int) landmarks[rightCornerIndex * 2];
+        int rightY = (int) landmarks[rightCornerIndex * 2 + 1];
+        int width = leftX - rightX;
+        int height = width;
+        // widen by 1.5 times the size, half on each side
+        int padX = (int) (width * 0.75);
+        int padY = (int) (height * 0.75);
+        return clipCropRect(rightX - padX, rightY - height / 2 - padY,
+                width + padX * 2, height + padY * 2, imageWidth, imageHeight);
+    }
+
+    // the same face box as the server's EyeCropper, from the jaw, brow and chin landmarks
+    public static int[] getFaceCropRectForServer(double[] landmarks, int imageWidth, int imageHeight){
+        int lowX = (int) landmarks[0];
+        int highX = (int) landmarks[9 * 2];
+        int lowY = (int) Math.min(landmarks[2 * 2 + 1], landmarks[7 * 2 + 1]);
+        int highY = (int) landmarks[40 * 2 + 1];
+        lowX = Math.max(0, lowX);
+        lowY = Math.max(0, lowY);
+        int width = highX - lowX;
+        int height = highY - lowY;
+        if( width < 1 || height < 1 ){
+            return null;
+        }
+        // widen by half the size, half on each side
+        int padX = (int) (width * 0.25);
+        int padY = (int) (height * 0.25);
+        return clipCropRect(lowX - padX, lowY - padY,
+                width + padX * 2, height + padY * 2, imageWidth, imageHeight);
+    }
+
+    private static int[] clipCropRect(int x, int y, int width, int height, int imageWidth, int imageHeight){
+        // like the server, the corner is moved inside the image and the far edge is cut off
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(imageWidth, left + width);
+        int bottom = Math.min(imageHeight, top + height);
+        if( width <= 0 || height <= 0 || right <= left || bottom <= top ){
+            return null;
+        }
+        return new int[]{left, top, right - left, bottom - top};
+    }
+
     // resize[0] is width; resize[1] is height
     public static void cropSingleRegion(long addrMat, int[] rect, int[] resize, float[] tensorflowInput, long cropMatAddr){
         jniHandler.cropImage(addrMat, rect, resize, tensorflowInput, cropMatAddr);
     }
 
+    public static FloatBuffer allocateModelInputBuffer(int length){
+        return ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    // one native call per frame: every crop in rects (resized to sizes[2i] x sizes[2i+1]) and then the
+    // face grid (skipped when face is null) are standardized and written back to back into tfInputs
+    public static boolean prepareModelInputs(Mat image, int[] rects, int[] sizes, int[] face, int[] gridSize, FloatBuffer tfInputs){
+        return jniHandler.prepareModelInputs(image.getNativeObjAddr(), rects, sizes, face, gridSize, tfInputs);
+    }
+
     public static void cropSingleRegionAndSaveTFInput(long addrMat, int[] rect, int[] size, float[] tensorflowInput, long cropMatAddr, String path){
         jniHandler.cropImageAndSaveInput(addrMat, rect, size, tensorflowInput, cropMatAddr, path);
     }
@@ -454,15 +562,7 @@ public class ImageProcessHandler {
     }
 
     public static void doFaceEyeDetection(Image image, double[] faces, double[] eyes, float[] eyeRegion){
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-        int yLength = yBuffer.capacity();
-        int uvLength = uBuffer.capacity();
-        byte[] yuvBytes = new byte[yLength+2*uvLength];
-        yBuffer.get(yuvBytes, 0, yLength);
-        uBuffer.get(yuvBytes, yLength, uvLength);
-        vBuffer.get(yuvBytes, yLength + uvLength, uvLength);
+        byte[] yuvBytes = copyPlanesIntoArray(image);
         int width = image.getWidth();
         int height = image.getHeight();
         jniHandler.faceEyeDetection(yuvBytes, width, height, faces, eyes, eyeRegion);
@@ -470,15 +570,7 @@ public class ImageProcessHandler {
     }
 
     public static void doFaceTracking(Image image, double[] faces, double[] eyes, float[] eyeRegion){
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-        int yLength = yBuffer.capacity();
-        int uvLength = uBuffer.capacity();
-        byte[] yuvBytes = new byte[yLength+2*uvLength];
-        yBuffer.get(yuvBytes, 0, yLength);
-        uBuffer.get(yuvBytes, yLength, uvLength);
-        vBuffer.get(yuvBytes, yLength + uvLength, uvLength);
+        byte[] yuvBytes = copyPlanesIntoArray(image);
         int width = image.getWidth();
         int height = image.getHeight();
         jniHandler.faceTracking(yuvBytes, width, height, faces, eyes, eyeRegion);
@@ -490,18 +582,8 @@ public class ImageProcessHandler {
     }
 
     public static byte[] encodeIntoJpegBytes(Image image){
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-        int yLength = yBuffer.capacity();
-        int uvLength = uBuffer.capacity();
-        byte[] yuvBytes = new byte[yLength+2*uvLength];
-        yBuffer.get(yuvBytes, 0, yLength);
-        uBuffer.get(yuvBytes, yLength, uvLength);
-        vBuffer.get(yuvBytes, yLength + uvLength, uvLength);
-        int width = image.getWidth();
-        int height = image.getHeight();
-        byte[] encoded = jniHandler.encodeIntoJpegArray(yuvBytes, width, height, new byte[100]);
+        ByteBuffer i420Buffer = packIntoI420Buffer(image);
+        byte[] encoded = jniHandler.encodeIntoJpegArrayDirect(i420Buffer, image.getWidth(), image.getHeight());
         return encoded;
     }
 
@@ -566,16 +648,15 @@ public class ImageProcessHandler {
         int ySize = yBuffer. remaining();
         int uSize = uBuffer. remaining();
         int vSize = vBuffer. remaining();
-        byte[] nv21 = new byte[ySize + uSize + vSize];
-        byte[] uBytes = new byte[uSize];
-        byte[] vBytes = new byte[vSize];
+        // pooled: only valid for the next SLOT_NUM - 1 calls on this thread
+        byte[] nv21 = nv21Arena.acquireArray(ySize + uSize + vSize);
+        int uPos = uBuffer.position();
+        int vPos = vBuffer.position();
         //U and V are swapped
         yBuffer.get(nv21, 0, ySize);
-        uBuffer.get(uBytes, 0, uSize);
-        vBuffer.get(vBytes, 0, vSize);
         for(int i=0; i<uSize; i++){
-            nv21[ySize + 2*i] = vBytes[i];
-            nv21[ySize + 2*i + 1] = uBytes[i];
+            nv21[ySize + 2*i] = vBuffer.get(vPos + i);
+            nv21[ySize + 2*i + 1] = uBuffer.get(uPos + i);
         }
 //        yBuffer.get(nv21, 0, ySize);
 //        for(int i=0; i<vSize; i++){
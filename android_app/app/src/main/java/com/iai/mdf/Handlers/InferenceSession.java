@@ -0,0 +1,179 @@
+package com.iai.mdf.Handlers;
+
+import android.os.Trace;
+
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public class InferenceSession {
+
+    /**
+     * One set of input and output bindings on a loaded model. Node names, tensor dims and
+     * the output buffer are resolved when the session is opened, so a run only feeds, runs
+     * and fetches. The array returned by run() is reused by the next run.
+     * Sessions on the same model share its graph and take turns on it.
+     *
+     * A batch run feeds up to maxBatchSize samples per input node in one tensor and returns
+     * the outputs as one [samples x output length] array. This needs a graph whose inputs
+     * leave the batch dimension free.
+     */
+
+    private final String    modelName;
+    private final TensorFlowInferenceInterface tf;
+    private final String[]  inputNodes;
+    private final int[][]   inputSizes;
+    private final long[][]  inputDims;          // with the batch dimension first
+    private final int[]     inputLengths;
+    private final int       totalInputLength;
+    private final String[]  outputNodes;
+    private final int       outputLength;
+    private final int       maxBatchSize;
+    private final float[]   output;
+
+
+    InferenceSession(String modelName, TensorFlowInferenceInterface tf,
+                     String[] inputNodes, int[][] inputSizes, String outputNode, int outputLength){
+        this(modelName, tf, inputNodes, inputSizes, outputNode, outputLength, 1);
+    }
+
+    InferenceSession(String modelName, TensorFlowInferenceInterface tf,
+                     String[] inputNodes, int[][] inputSizes, String outputNode, int outputLength,
+                     int maxBatchSize){
+        if( inputNodes.length != inputSizes.length ){
+            throw new IllegalArgumentException("Every input node needs a size");
+        }
+        if( maxBatchSize < 1 ){
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+        this.modelName = modelName;
+        this.tf = tf;
+        this.inputNodes = inputNodes.clone();
+        this.inputSizes = new int[inputSizes.length][];
+        this.inputDims = new long[inputSizes.length][];
+        this.inputLengths = new int[inputSizes.length];
+        int total = 0;
+        for (int i = 0; i < inputSizes.length; ++i) {
+            this.inputSizes[i] = inputSizes[i].clone();
+            inputDims[i] = new long[inputSizes[i].length + 1];
+            inputDims[i][0] = 1;
+            int length = 1;
+            for (int d = 0; d < inputSizes[i].length; ++d) {
+                inputDims[i][d + 1] = inputSizes[i][d];
+                length *= inputSizes[i][d];
+            }
+            inputLengths[i] = length;
+            total += length;
+        }
+        this.totalInputLength = total;
+        this.outputNodes = new String[]{outputNode};
+        this.outputLength = outputLength;
+        this.maxBatchSize = maxBatchSize;
+        this.output = new float[outputLength * maxBatchSize];
+    }
+
+
+    // inputs holds every input back to back, in the order of the input nodes
+    public float[] run(FloatBuffer inputs){
+        return runBatch(inputs, 1);
+    }
+
+    /**
+     * inputs holds, for each input node in order, the samples of that node back to back:
+     * [node 0: sample 0 .. sample n-1][node 1: sample 0 .. sample n-1]...
+     * Sample i's output starts at i * getOutputLength() in the returned array.
+     */
+    public float[] runBatch(FloatBuffer inputs, int batchSize){
+        checkBatchSize(batchSize);
+        synchronized (tf) {
+            Trace.beginSection("feed");
+            int offset = 0;
+            for (int i = 0; i < inputNodes.length; ++i) {
+                int length = inputLengths[i] * batchSize;
+                inputDims[i][0] = batchSize;
+                inputs.limit(offset + length);
+                inputs.position(offset);
+                tf.feed(inputNodes[i], inputs, inputDims[i]);
+                offset += length;
+            }
+            inputs.clear();
+            Trace.endSection();
+            return runAndFetch();
+        }
+    }
+
+    // one array per input node, in the same order
+    public float[] run(float[][] inputs){
+        return runBatch(inputs, 1);
+    }
+
+    // one array per input node, each holding batchSize samples back to back
+    public float[] runBatch(float[][] inputs, int batchSize){
+        checkBatchSize(batchSize);
+        synchronized (tf) {
+            Trace.beginSection("feed");
+            for (int i = 0; i < inputNodes.length; ++i) {
+                inputDims[i][0] = batchSize;
+                tf.feed(inputNodes[i], inputs[i], inputDims[i]);
+            }
+            Trace.endSection();
+            return runAndFetch();
+        }
+    }
+
+    private void checkBatchSize(int batchSize){
+        if( batchSize < 1 || batchSize > maxBatchSize ){
+            throw new IllegalArgumentException("Batch size " + batchSize + " is not in [1, " + maxBatchSize + "]");
+        }
+    }
+
+    private float[] runAndFetch(){
+        Trace.beginSection("run");
+        tf.run(outputNodes, false);
+        Trace.endSection();
+        Trace.beginSection("fetch");
+        tf.fetch(outputNodes[0], output);
+        Trace.endSection();
+        return output;
+    }
+
+    boolean isBoundTo(String modelName, String[] inputNodes, int[][] inputSizes, String outputNode){
+        return this.modelName.equals(modelName)
+                && outputNodes[0].equals(outputNode)
+                && Arrays.equals(this.inputNodes, inputNodes)
+                && Arrays.deepEquals(this.inputSizes, inputSizes);
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    // floats needed to hold every input of one sample back to back
+    public int getInputLength() {
+        return totalInputLength;
+    }
+
+    // floats of one input node for one sample
+    public int getInputLength(int node) {
+        return inputLengths[node];
+    }
+
+    public int getInputNodeCount() {
+        return inputNodes.length;
+    }
+
+    // floats of output per sample
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public float[] getOutput() {
+        return output;
+    }
+
+}
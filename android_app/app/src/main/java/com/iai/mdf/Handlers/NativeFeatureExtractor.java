@@ -0,0 +1,99 @@
+package com.iai.mdf.Handlers;
+
+import com.iai.mdf.FaceDetectionAPI;
+import com.iai.mdf.Processing.EyeRegion;
+import com.iai.mdf.Processing.FeatureExtractor;
+import com.iai.mdf.Processing.GazeDataset;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+
+public class NativeFeatureExtractor implements FeatureExtractor {
+
+    /**
+     * The phone's FeatureExtractor: OpenCV decoding and cropping, and the native face and
+     * landmark detector. Each instance has its own FaceDetectionAPI with the models loaded.
+     */
+
+    private final FaceDetectionAPI detector;
+
+
+    public NativeFeatureExtractor(String faceModelFile, String landmarkModelFile) throws IOException {
+        detector = new FaceDetectionAPI();
+        if( !detector.loadModel(faceModelFile, landmarkModelFile) ){
+            throw new IOException("Error reading model files");
+        }
+    }
+
+
+    @Override
+    public void close() {
+        detector.release();
+    }
+
+    @Override
+    public boolean detect(File image, GazeDataset.Record record) throws IOException {
+        Mat colorImg = Imgcodecs.imread(image.getAbsolutePath());
+        Mat grayImg = new Mat();
+        try {
+            if( colorImg.empty() ){
+                return false;
+            }
+            Imgproc.cvtColor(colorImg, grayImg, Imgproc.COLOR_BGR2GRAY);
+            record.flags &= ~GazeDataset.FLAG_DETECTED;
+            int[] face = detector.detectFace(grayImg.getNativeObjAddr(), 30, 300, true);
+            if (face != null) {
+                double[] landmarks = detector.detectLandmarks(grayImg.getNativeObjAddr(), face);
+                if (landmarks != null && landmarks.length == GazeDataset.LANDMARK_NUM * 2) {
+                    record.flags |= GazeDataset.FLAG_DETECTED;
+                    System.arraycopy(face, 0, record.face, 0, 4);
+                    record.setLandmarks(landmarks);
+                }
+            }
+            return true;
+        } finally {
+            // native memory, not worth waiting for the GC with several workers
+            colorImg.release();
+            grayImg.release();
+        }
+    }
+
+    @Override
+    public byte[] crop(File image, int[] rect, int rows, int cols, byte[] rgb) throws IOException {
+        Mat colorImg = Imgcodecs.imread(image.getAbsolutePath());
+        Mat cropMat = new Mat();
+        MatOfByte encoded = new MatOfByte();
+        try {
+            if( colorImg.empty() || !EyeRegion.isInside(rect, colorImg.width(), colorImg.height()) ){
+                return null;
+            }
+            Mat region = colorImg.submat(rect[1], rect[1] + rect[3], rect[0], rect[0] + rect[2]);
+            Imgproc.resize(region, cropMat, new Size(cols, rows), 0, 0, Imgproc.INTER_LINEAR);
+            region.release();
+            cropMat.get(0, 0, rgb);
+            // BGR --> RGB
+            for (int i = 0; i < rows * cols * 3; i += 3) {
+                byte b = rgb[i];
+                rgb[i] = rgb[i + 2];
+                rgb[i + 2] = b;
+            }
+            String name = image.getName();
+            int dot = name.lastIndexOf('.');
+            if( dot < 0 || !Imgcodecs.imencode(name.substring(dot), cropMat, encoded) ){
+                throw new IOException("Cannot encode the crop of " + name);
+            }
+            return encoded.toArray();
+        } finally {
+            colorImg.release();
+            cropMat.release();
+            encoded.release();
+        }
+    }
+
+}
@@ -8,25 +8,16 @@ import android.util.Log;
 
 import com.iai.mdf.Activities.DataCollectionActivity;
 import com.iai.mdf.DependenceClasses.DeviceConfiguration;
+import com.iai.mdf.DependenceClasses.GazeResponse;
+import com.iai.mdf.FaceDetectionAPI;
 
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+
 
 /**
  * Created by Mou on 2/23/2018.
@@ -35,29 +26,31 @@ import java.util.concurrent.TimeUnit;
 public class SocketHandler {
 
     public static final String SUCCESS_CONNECT_MSG = "connected";
-    public static final String ERROR_DISCONNECTED = "disconnected";
-    public static final String ERROR_SETTING = "setting";
-    public static final String ERROR_TIMEOUT = "timeout";
-    public static final String JSON_KEY_VALID = "Valid";
-    public static final String JSON_KEY_PREDICT_X = "PredictX";
-    public static final String JSON_KEY_PREDICT_Y = "PredictY";
-    public static final String JSON_KEY_SEQ_NUMBER = "SequenceNumber";
+    public static final String ERROR_DISCONNECTED = GazeStreamClient.ERROR_DISCONNECTED;
+    public static final String ERROR_SETTING = GazeStreamClient.ERROR_SETTING;
+    public static final String ERROR_TIMEOUT = GazeStreamClient.ERROR_TIMEOUT;
+    public static final String JSON_KEY_VALID = GazeResponse.JSON_KEY_VALID;
+    public static final String JSON_KEY_PREDICT_X = GazeResponse.JSON_KEY_PREDICT_X;
+    public static final String JSON_KEY_PREDICT_Y = GazeResponse.JSON_KEY_PREDICT_Y;
+    public static final String JSON_KEY_SEQ_NUMBER = GazeResponse.JSON_KEY_SEQ_NUMBER;
     private static final String LOG_TAG = "SocketHandler";
     private static final int MSG_ON_SUCCESS = 1;
     private static final int MSG_ON_ERROR = 2;
+    private static final int MSG_ON_GAZE = 3;
+    private static final int GAZE_SLOT_NUM = 4;
     private static final int TIMEOUT_LENGTH = 1500;
     private static final int MAX_SUCCESSIVE_TIMEOUT = 80;
 
 
-    private Socket mSocket = null;
-    private OutputStream socketOutputStream;
-    private DataOutputStream dos;
-    private boolean isConnected = false;
+    private GazeStreamClient streamClient;
+    private AdaptiveJpegEncoder jpegEncoder = new AdaptiveJpegEncoder();
+    private FaceRoiEncoder roiEncoder = null;
     private Handler uiThreadHandler = null;
-    private int    missingResponse;
     private String  serverAddr;
     private int     serverPort;
-    private Semaphore writeLock;
+    private GazeCallback gazeCallback = null;
+    // replies handed to the UI thread; a slot comes back only after the callback has returned
+    private final ArrayBlockingQueue<GazeResponse> freeGazeSlots = new ArrayBlockingQueue<>(GAZE_SLOT_NUM);
 
 
 
@@ -70,112 +63,94 @@ public class SocketHandler {
         void onError(String str);
     }
 
+    public interface GazeCallback{
+        // the response is only valid until the callback returns
+        void onGaze(GazeResponse response);
+    }
+
 
 
     public SocketHandler(final String addr, final int port){
         this.serverAddr = addr;
         this.serverPort = port;
-        writeLock = new Semaphore(1);
-    }
-
+        for (int i = 0; i < GAZE_SLOT_NUM; i++) {
+            freeGazeSlots.add(new GazeResponse());
+        }
+        streamClient = new GazeStreamClient(serverAddr, serverPort, TIMEOUT_LENGTH, MAX_SUCCESSIVE_TIMEOUT);
+        streamClient.setListener(new GazeStreamClient.Listener() {
+            @Override
+            public void onConnected() {
+                Message successMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, SUCCESS_CONNECT_MSG);
+                successMessage.sendToTarget();
+            }
 
-    public void socketCreate(){
-        missingResponse = 0;
-        new Thread(){
             @Override
-            public void run() {
-                try {
-                    mSocket = new Socket(serverAddr, serverPort);
-                    mSocket.setSoTimeout(TIMEOUT_LENGTH);
-                    socketOutputStream = mSocket.getOutputStream();
-                    dos = new DataOutputStream(socketOutputStream);
-                    isConnected = true;
-                    Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, SUCCESS_CONNECT_MSG);
-                    errorMessage.sendToTarget();
-                } catch (SocketTimeoutException e){
-                    Log.d(LOG_TAG, "Create Socket Timeout");
-                    isConnected = false;
-                    Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_SETTING);
-                    errorMessage.sendToTarget();
-                } catch (IOException e) {
-                    Log.d(LOG_TAG, "can't connect to the server");
-                    isConnected = false;
-                    Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_SETTING);
-                    errorMessage.sendToTarget();
+            public void onResponse(String line, GazeResponse response) {
+                jpegEncoder.onThroughput(streamClient.getSendThroughput());
+                if( gazeCallback!=null ){
+                    GazeResponse slot = freeGazeSlots.poll();
+                    if( slot==null ){
+                        // the UI thread is behind; the extra slot is dropped when it comes back
+                        slot = new GazeResponse();
+                    }
+                    slot.copyFrom(response);
+                    Message gazeMessage = uiThreadHandler.obtainMessage(MSG_ON_GAZE, slot);
+                    gazeMessage.sendToTarget();
+                } else {
+                    Message completeMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, line);
+                    completeMessage.sendToTarget();
                 }
             }
-        }.start();
+
+            @Override
+            public void onError(String error) {
+                Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, error);
+                errorMessage.sendToTarget();
+            }
+        });
+    }
+
+
+    public void socketCreate(){
+        streamClient.start();
     }
 
     public void socketDestroy(){
-        try {
-            isConnected = false;
-            if(dos != null) {
-                dos.close();
-            }
-            if(socketOutputStream!=null) {
-                socketOutputStream.close();
-            }
-            if(mSocket!=null) {
-                mSocket.close();
-                mSocket = null;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        streamClient.stop();
     }
 
-    public void send(final byte[] imageBytes){
-        if( mSocket!=null && mSocket.isConnected() ) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if( missingResponse < MAX_SUCCESSIVE_TIMEOUT) {
-//                            semaphore.tryAcquire(2000, TimeUnit.MICROSECONDS);
-                            missingResponse++;
-                            writeLock.tryAcquire(TIMEOUT_LENGTH, TimeUnit.MICROSECONDS);
-                            dos.write(imageBytes);
-                            dos.flush();
-                            writeLock.release();
-                            Log.d(LOG_TAG, "Data Sent");
-                            BufferedReader input = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-                            String res = input.readLine();
-                            missingResponse = 0;
-                            Log.d(LOG_TAG, "Missing Response: " + String.valueOf(missingResponse));
-                            Message completeMessage = uiThreadHandler.obtainMessage(MSG_ON_SUCCESS, res);
-                            completeMessage.sendToTarget();
-                        } else {
-                            Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_DISCONNECTED);
-                            errorMessage.sendToTarget();
-                            isConnected = false;
-                            socketDestroy();
-                        }
-                    } catch (SocketTimeoutException e) {
-                        Log.d(LOG_TAG,  "Timeout Happened");
-                        Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_TIMEOUT);
-                        errorMessage.sendToTarget();
-                    } catch (SocketException e){
-                        Log.d(LOG_TAG,  "Broken Pipe");
-                        Message errorMessage = uiThreadHandler.obtainMessage(MSG_ON_ERROR, ERROR_DISCONNECTED);
-                        errorMessage.sendToTarget();
-                        isConnected = false;
-                        socketDestroy();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }).start();
-        }
+    // frames are queued and written by the stream client, the oldest one is dropped if the link falls behind
+    private void send(byte[] jpegBytes, int length, int seq, long captureTime){
+        streamClient.submit(jpegBytes, 0, length, seq, captureTime);
+    }
+
+
+    // predictions are delivered decoded through the callback instead of as JSON strings,
+    // and protocol version 2 (binary replies, 32-bit sequence numbers) is asked for on the next socketCreate()
+    public void setGazeCallback(GazeCallback callback){
+        gazeCallback = callback;
+        streamClient.setProtocolVersion(callback!=null ?
+                GazeStreamClient.PROTOCOL_V2 : GazeStreamClient.PROTOCOL_LEGACY);
     }
 
+    // with a detector, frames are searched for the face on the phone and only the eye and face crops
+    // are uploaded; this needs protocol version 2, full frames are sent until it is negotiated
+    public void setRoiUpload(FaceDetectionAPI detectionAPI){
+        roiEncoder = detectionAPI!=null ? new FaceRoiEncoder(detectionAPI) : null;
+    }
 
     public void setUiThreadHandler(final StringCallback callback){
         uiThreadHandler = new Handler(Looper.getMainLooper()){
             @Override
             public void handleMessage(Message msg) {
+                if( msg.what == MSG_ON_GAZE ){
+                    GazeResponse slot = (GazeResponse) msg.obj;
+                    if( gazeCallback!=null ){
+                        gazeCallback.onGaze(slot);
+                    }
+                    freeGazeSlots.offer(slot);
+                    return;
+                }
                 String response = (String)msg.obj;
                 Log.d(LOG_TAG, msg.toString());
                 switch (msg.what){
@@ -193,70 +168,44 @@ public class SocketHandler {
 
 
     public boolean isConnected() {
-        return isConnected;
+        return streamClient.isConnected();
     }
 
     /******  Higher Level of API ******/
     private int             mFrameIndex = 0;
+    private Mat             colorImg = new Mat();
 
-    public void uploadImage(Image image, DeviceConfiguration confHandler){
-        Mat yuvMat = ImageProcessHandler.getBGRMatFromImage(image);
-        Mat colorImg = new Mat(
-                DataCollectionActivity.Image_Size.getWidth(),
-                DataCollectionActivity.Image_Size.getHeight(),
-                CvType.CV_8UC3);
-        Imgproc.cvtColor(yuvMat, colorImg, Imgproc.COLOR_YUV2BGR_I420);
-        switch (confHandler.getImageRotation()){
-            case 0:
-                break;
-            case 90:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_90_CLOCKWISE);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_90_CLOCKWISE);
-                break;
-            case 180:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_180);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_180);
-                break;
-            case 270:
-//                Core.rotate(colorImg, colorImg, Core.ROTATE_90_COUNTERCLOCKWISE);
-                ImageProcessHandler.rotateImage(colorImg, Core.ROTATE_90_COUNTERCLOCKWISE);
-                break;
-            default:
-                break;
-        }
-        TimerHandler.getInstance().tic();
-        byte[] jpegBytes = ImageProcessHandler.fromMatToJpegByte(colorImg);
-        Log.d(LOG_TAG, "Image Format Conversion: " + String.valueOf(TimerHandler.getInstance().toc()));
-        byte[] sizeBytes = ByteBuffer.allocate(4).putInt(jpegBytes.length).order(ByteOrder.nativeOrder()).array();
-        byte[] seqBytes = new byte[2];
-        seqBytes[0] = (byte)(mFrameIndex & 0xFF);
-        byte[] data = new byte[jpegBytes.length + 5];
-        System.arraycopy(sizeBytes, 0, data, 0, 4);
-        System.arraycopy(jpegBytes, 0, data, 4, jpegBytes.length);
-        System.arraycopy(seqBytes, 0, data, 4 + jpegBytes.length, 1);
-        send(data);
-        mFrameIndex++;
+    // returns the sequence number the frame is sent with, the reply carries it back
+    public int uploadImage(Image image, DeviceConfiguration confHandler){
+        ImageProcessHandler.getRotatedBGRMat(image, confHandler.getImageRotation(), colorImg);
+        encodeAndSend(System.currentTimeMillis());
+        return mFrameIndex++;
     }
 
-    public void uploadImageOnBLU(Image image){
-        TimerHandler.getInstance().tic();
-        Mat colorImg = new Mat(
+    public int uploadImageOnBLU(Image image){
+        colorImg.create(
                 DataCollectionActivity.Image_Size.getWidth(),
                 DataCollectionActivity.Image_Size.getHeight(),
                 CvType.CV_8UC4);
         ImageProcessHandler.getRGBMat(image, colorImg.getNativeObjAddr());
         Imgproc.cvtColor(colorImg, colorImg, Imgproc.COLOR_BGRA2BGR);
 //
-        byte[] jpegBytes = ImageProcessHandler.fromMatToJpegByte(colorImg);
-        byte[] sizeBytes = ByteBuffer.allocate(4).putInt(jpegBytes.length).order(ByteOrder.nativeOrder()).array();
-        byte[] seqBytes = new byte[2];
-        seqBytes[0] = (byte)(mFrameIndex & 0xFF);
-        byte[] data = new byte[jpegBytes.length + 5];
-        System.arraycopy(sizeBytes, 0, data, 0, 4);
-        System.arraycopy(jpegBytes, 0, data, 4, jpegBytes.length);
-        System.arraycopy(seqBytes, 0, data, 4 + jpegBytes.length, 1);
-        send(data);
-        mFrameIndex++;
+        encodeAndSend(System.currentTimeMillis());
+        return mFrameIndex++;
+    }
+
+    private void encodeAndSend(long captureTime){
+        FaceRoiEncoder roi = roiEncoder;
+        if( roi!=null && streamClient.getNegotiatedVersion()==GazeStreamClient.PROTOCOL_V2 ){
+            TimerHandler.getInstance().tic();
+            int length = roi.encode(colorImg);
+            Log.d(LOG_TAG, "ROI Encoding: " + String.valueOf(TimerHandler.getInstance().toc()));
+            streamClient.submit(roi.getBuffer(), 0, length, mFrameIndex, captureTime, GazeStreamClient.FRAME_FLAG_ROI);
+        } else {
+            int length = jpegEncoder.encode(colorImg);
+            Log.d(LOG_TAG, "Jpeg Encoding: " + String.valueOf(jpegEncoder.getLastEncodeTime()));
+            send(jpegEncoder.getBuffer(), length, mFrameIndex, captureTime);
+        }
     }
 
 
@@ -0,0 +1,195 @@
+package com.iai.mdf.Handlers;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StagedPipeline<T> {
+
+    /**
+     * Runs frames through a chain of stages, each on its own executor. Stages are connected
+     * by single-slot queues that only keep the latest frame: a frame that arrives while the
+     * previous one is still waiting replaces it, and the replaced frame is handed back to the
+     * recycler. The producer never blocks, and a frame waits for at most one other frame
+     * per stage, so latency is bounded by the slowest stage.
+     * Every frame ends at the recycler, whether it went through all stages, was dropped by a
+     * stage, or was replaced while waiting.
+     */
+
+    private static final String LOG_TAG = "StagedPipeline";
+
+
+    public interface Stage<T> {
+        // returns false to stop the frame here
+        boolean process(T frame);
+    }
+
+    public interface Recycler<T> {
+        void recycle(T frame);
+    }
+
+
+    private final ArrayList<StageRunner> stages = new ArrayList<>();
+    private final Recycler<T> recycler;
+    private volatile boolean isRunning = false;
+
+
+    public StagedPipeline(Recycler<T> recycler){
+        this.recycler = recycler;
+    }
+
+    // the stage gets its own thread
+    public StagedPipeline<T> addStage(String name, Stage<T> stage){
+        return addStage(name, stage, null);
+    }
+
+    // the stage runs on the given executor, e.g. one that posts to the UI thread
+    public StagedPipeline<T> addStage(String name, Stage<T> stage, Executor executor){
+        if( isRunning ){
+            throw new IllegalStateException("Stages must be added before start()");
+        }
+        stages.add(new StageRunner(name, stage, executor));
+        return this;
+    }
+
+    public synchronized void start(){
+        if( isRunning ){
+            return;
+        }
+        for (StageRunner runner : stages) {
+            runner.start();
+        }
+        isRunning = true;
+    }
+
+    // frames still waiting are recycled, frames being processed are recycled when their stage returns
+    public synchronized void stop(){
+        if( !isRunning ){
+            return;
+        }
+        isRunning = false;
+        for (StageRunner runner : stages) {
+            runner.stop();
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    // hands the frame to the first stage; returns false (and recycles it) if the pipeline is stopped
+    public boolean submit(T frame){
+        if( !isRunning || stages.isEmpty() ){
+            recycler.recycle(frame);
+            return false;
+        }
+        stages.get(0).offer(frame);
+        return true;
+    }
+
+    // frames replaced in a stage's slot before that stage could take them
+    public int getDroppedFrameCount(String name){
+        for (StageRunner runner : stages) {
+            if( runner.name.equals(name) ){
+                return runner.droppedFrames;
+            }
+        }
+        return 0;
+    }
+
+
+    private class StageRunner implements Runnable {
+
+        private final String    name;
+        private final Stage<T>  stage;
+        private final Executor  givenExecutor;
+        private Executor        executor;
+        private ExecutorService ownExecutor;
+        private final AtomicReference<T> slot = new AtomicReference<>();
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private volatile int    droppedFrames;
+        private StageRunner     next;
+
+        StageRunner(String name, Stage<T> stage, Executor executor){
+            this.name = name;
+            this.stage = stage;
+            this.givenExecutor = executor;
+        }
+
+        void start(){
+            int index = stages.indexOf(this);
+            next = index + 1 < stages.size() ? stages.get(index + 1) : null;
+            if( givenExecutor != null ){
+                executor = givenExecutor;
+            } else {
+                ownExecutor = Executors.newSingleThreadExecutor();
+                executor = ownExecutor;
+            }
+        }
+
+        void stop(){
+            if( ownExecutor != null ){
+                ownExecutor.shutdown();
+                ownExecutor = null;
+            }
+            T waiting = slot.getAndSet(null);
+            if( waiting != null ){
+                recycler.recycle(waiting);
+            }
+        }
+
+        void offer(T frame){
+            T replaced = slot.getAndSet(frame);
+            if( replaced != null ){
+                droppedFrames++;
+                recycler.recycle(replaced);
+            }
+            if( isScheduled.compareAndSet(false, true) ){
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    // the executor was shut down by stop()
+                    isScheduled.set(false);
+                    T waiting = slot.getAndSet(null);
+                    if( waiting != null ){
+                        recycler.recycle(waiting);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while( true ){
+                T frame = slot.getAndSet(null);
+                if( frame == null ){
+                    isScheduled.set(false);
+                    // a frame may have arrived after the slot was found empty
+                    if( slot.get() != null && isScheduled.compareAndSet(false, true) ){
+                        continue;
+                    }
+                    return;
+                }
+                boolean isPassed = false;
+                if( isRunning ){
+                    try {
+                        isPassed = stage.process(frame);
+                    } catch (RuntimeException e) {
+                        Log.d(LOG_TAG, "Stage " + name + " failed: " + e.getMessage());
+                    }
+                }
+                if( isPassed && next != null && isRunning ){
+                    next.offer(frame);
+                } else {
+                    recycler.recycle(frame);
+                }
+            }
+        }
+    }
+
+}
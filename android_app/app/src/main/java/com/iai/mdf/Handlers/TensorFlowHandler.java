@@ -2,13 +2,16 @@ package com.iai.mdf.Handlers;
 
 import android.content.Context;
 import android.content.res.AssetManager;
-import android.os.Trace;
 import android.util.Log;
 
 import org.tensorflow.Operation;
+import org.tensorflow.Shape;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Created by Mou on 9/28/2017.
@@ -35,12 +38,24 @@ public class TensorFlowHandler {
 
     private static TensorFlowHandler myInstance;
     private TensorFlowInferenceInterface tf;
+    private String modelName;
     private static final String MODEL_FILE = "file:///android_asset/model_classification4.pb";
     private static final String INPUT_NODE =  "eye_1";
     private static final String[] OUTPUT_NODES = {"head_pose_aug0"};
+    // regression results have always been read from a 3 float buffer
+    private static final int REGRESSION_OUTPUT_LENGTH = 3;
     private static AssetManager assetManager;
+    // loaded graphs by model file name, shared by every handler; guarded by the class lock
+    private static final HashMap<String, TensorFlowInferenceInterface> graphCache = new HashMap<>();
+    // how many handlers use each cached graph, it is closed when the last one is released
+    private static final HashMap<String, Integer> graphUsers = new HashMap<>();
+    // the models this handler has picked, each counted once in graphUsers
+    private final HashSet<String> usedModels = new HashSet<>();
+    // sessions behind the list and buffer based methods, rebound when the model or the inputs change
+    private InferenceSession classificationSession;
+    private InferenceSession regressionSession;
 
-    public static TensorFlowHandler getInstance(final Context context) {
+    public static synchronized TensorFlowHandler getInstance(final Context context) {
         if (myInstance == null)
         {
             myInstance = new TensorFlowHandler(context);
@@ -50,82 +65,120 @@ public class TensorFlowHandler {
 
     public TensorFlowHandler(final Context context) {
         this.assetManager = context.getAssets();
-        tf = new TensorFlowInferenceInterface(assetManager, MODEL_CLASS_C4_FILE_NAME);
+        pickModel(MODEL_CLASS_C4_FILE_NAME);
     }
 
+    // switching back to a model that was loaded before reuses its graph
     public void pickModel(String modelName){
-        tf = new TensorFlowInferenceInterface(assetManager, modelName);
+        tf = loadGraph(modelName, usedModels.add(modelName));
+        this.modelName = modelName;
     }
 
+    /**
+     * Gives up this handler's share of the cached graphs; a graph no other handler uses is
+     * closed. Call it when the owner is destroyed, once nothing runs inference on this handler.
+     */
+    public void release(){
+        releaseGraphs(usedModels);
+        usedModels.clear();
+        tf = null;
+        modelName = null;
+        classificationSession = null;
+        regressionSession = null;
+    }
 
-    public float[] getClassificationResult( ArrayList<String> inputNodes, ArrayList<float[]> inputs, ArrayList<int[]> inputSizes){
-        // Copy the input data into TensorFlow.
-        Trace.beginSection("feed");
-        for (int i=0; i < inputNodes.size(); ++i) {
-            int[] inputSize = inputSizes.get(i);
-            switch (inputSize.length ){
-                case 2:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1]);
-                    break;
-                case 3:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1], inputSize[2]);
-                    break;
-                case 4:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1], inputSize[2], inputSize[3]);
-                    break;
-                default:
-                    return null;
+    private static synchronized TensorFlowInferenceInterface loadGraph(String modelName, boolean isNewUser){
+        TensorFlowInferenceInterface graph = graphCache.get(modelName);
+        if (graph == null) {
+            graph = new TensorFlowInferenceInterface(assetManager, modelName);
+            graphCache.put(modelName, graph);
+        }
+        if (isNewUser) {
+            Integer users = graphUsers.get(modelName);
+            graphUsers.put(modelName, users == null ? 1 : users + 1);
+        }
+        return graph;
+    }
+
+    private static synchronized void releaseGraphs(HashSet<String> modelNames){
+        for (String name : modelNames) {
+            Integer users = graphUsers.get(name);
+            if (users == null) {
+                continue;
+            }
+            if (users > 1) {
+                graphUsers.put(name, users - 1);
+            } else {
+                graphUsers.remove(name);
+                TensorFlowInferenceInterface graph = graphCache.remove(name);
+                if (graph != null) {
+                    graph.close();
+                }
             }
         }
-        Trace.endSection();
-        // Run the inference call.
-        Trace.beginSection("run");
-        tf.run(OUTPUT_NODES , false);
-        Trace.endSection();
-        // Copy the output Tensor back into the output array.
-        final Operation operation = tf.graphOperation(OUTPUT_NODES[0]);
-        final int classNum = (int) operation.output(0).shape().size(1);
-        float[] output = new float[classNum];
-        Trace.beginSection("fetch");
-        tf.fetch(OUTPUT_NODES[0], output);
-        Trace.endSection();
-        return output;
     }
 
+    // a session on the current model; the output size is read from the graph once
+    public InferenceSession openSession(String[] inputNodes, int[][] inputSizes, String outputNode){
+        return openSession(inputNodes, inputSizes, outputNode, 1);
+    }
 
-    public float[] getEstimatedLocation(ArrayList<String> inputNodes, ArrayList<float[]> inputs, ArrayList<int[]> inputSizes){
-        // Copy the input data into TensorFlow.
-        Trace.beginSection("feed");
-        for (int i=0; i < inputNodes.size(); ++i) {
-            int[] inputSize = inputSizes.get(i);
-            switch (inputSize.length ){
-                case 1:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0]);
-                    break;
-                case 2:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1]);
-                    break;
-                case 3:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1], inputSize[2]);
-                    break;
-                case 4:
-                    tf.feed(inputNodes.get(i), inputs.get(i), 1, inputSize[0], inputSize[1], inputSize[2], inputSize[3]);
-                    break;
-                default:
-                    return null;
+    // a session that runs up to maxBatchSize samples at once, see InferenceSession.runBatch()
+    public InferenceSession openSession(String[] inputNodes, int[][] inputSizes, String outputNode, int maxBatchSize){
+        return new InferenceSession(modelName, tf, inputNodes, inputSizes, outputNode,
+                getOutputLength(tf, outputNode, 0), maxBatchSize);
+    }
+
+    private InferenceSession bindSession(InferenceSession session, String[] inputNodes, int[][] inputSizes,
+                                         int minOutputLength){
+        if (session != null && session.isBoundTo(modelName, inputNodes, inputSizes, OUTPUT_NODES[0])) {
+            return session;
+        }
+        return new InferenceSession(modelName, tf, inputNodes, inputSizes, OUTPUT_NODES[0],
+                getOutputLength(tf, OUTPUT_NODES[0], minOutputLength));
+    }
+
+    // elements per sample of the node's output, or minLength if that is larger or the shape is unknown
+    private static int getOutputLength(TensorFlowInferenceInterface graph, String outputNode, int minLength){
+        final Operation operation = graph.graphOperation(outputNode);
+        final Shape shape = operation.output(0).shape();
+        if (shape.numDimensions() < 0) {
+            return minLength;
+        }
+        int length = 1;
+        for (int d = 1; d < shape.numDimensions(); ++d) {
+            if (shape.size(d) < 0) {
+                return minLength;
             }
+            length *= shape.size(d);
         }
-        Trace.endSection();
-        // Run the inference call.
-        Trace.beginSection("run");
-        tf.run(OUTPUT_NODES , false);
-        Trace.endSection();
-        // Copy the output Tensor back into the output array.
-        float[] output = new float[3];
-        Trace.beginSection("fetch");
-        tf.fetch(OUTPUT_NODES[0], output);
-        Trace.endSection();
-        return output;
+        return Math.max(length, minLength);
+    }
+
+
+    // the returned array is reused by the next call on this handler
+    public float[] getClassificationResult( ArrayList<String> inputNodes, ArrayList<float[]> inputs, ArrayList<int[]> inputSizes){
+        String[] nodes = inputNodes.toArray(new String[inputNodes.size()]);
+        int[][] sizes = inputSizes.toArray(new int[inputSizes.size()][]);
+        classificationSession = bindSession(classificationSession, nodes, sizes, 0);
+        return classificationSession.run(inputs.toArray(new float[inputs.size()][]));
+    }
+
+
+    // the returned array is reused by the next call on this handler
+    public float[] getEstimatedLocation(ArrayList<String> inputNodes, ArrayList<float[]> inputs, ArrayList<int[]> inputSizes){
+        String[] nodes = inputNodes.toArray(new String[inputNodes.size()]);
+        int[][] sizes = inputSizes.toArray(new int[inputSizes.size()][]);
+        regressionSession = bindSession(regressionSession, nodes, sizes, REGRESSION_OUTPUT_LENGTH);
+        return regressionSession.run(inputs.toArray(new float[inputs.size()][]));
+    }
+
+
+    // inputs holds every input back to back, in the same order as inputNodes;
+    // the returned array is reused by the next call on this handler
+    public float[] getEstimatedLocation(String[] inputNodes, FloatBuffer inputs, int[][] inputSizes){
+        regressionSession = bindSession(regressionSession, inputNodes, inputSizes, REGRESSION_OUTPUT_LENGTH);
+        return regressionSession.run(inputs);
     }
 
 
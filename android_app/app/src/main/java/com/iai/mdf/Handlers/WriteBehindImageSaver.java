@@ -0,0 +1,336 @@
+package com.iai.mdf.Handlers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindImageSaver {
+
+    /**
+     * Takes file writing off the capture callback. The callback copies a frame, raw or already
+     * encoded, into a pooled Job and submits it; a single writer thread encodes raw frames,
+     * writes the files and fsyncs them batch by batch. There are at most queueSize jobs in
+     * flight: when the writer falls behind obtainJob() returns null (or waits), so memory stays
+     * bounded and no capture is silently lost. Deletes and the end of a session go through the
+     * same queue, hence they apply in submission order, e.g. to a file that is not written yet.
+     */
+
+    public static final int DEFAULT_QUEUE_SIZE = 6;
+    public static final int BATCH_SIZE = 8;            // files fsynced together
+    private static final String LOG_TAG = "WriteBehindImageSaver";
+    private static final int JOB_WRITE = 0;
+    private static final int JOB_DELETE = 1;
+    private static final int JOB_END_SESSION = 2;
+
+
+    public interface Encoder {
+        // called on the writer thread; the returned buffer is written from its position to its limit
+        ByteBuffer encode(Job job) throws IOException;
+    }
+
+    public interface SessionListener {
+        // called on the writer thread once everything submitted before finishSession() is on disk
+        void onSessionFinished(String[] savedPaths, int failedCount);
+    }
+
+    public interface Logger {
+        // called on the writer thread, error may be null
+        void log(String message, Throwable error);
+    }
+
+    // to logcat, errors as errors
+    public static final Logger ANDROID_LOGGER = new Logger() {
+        @Override
+        public void log(String message, Throwable error) {
+            if( error!=null ){
+                Log.e(LOG_TAG, message, error);
+            } else {
+                Log.d(LOG_TAG, message);
+            }
+        }
+    };
+
+    public static class Job {
+        // raw frames are described by width, height and rotation, for the Encoder
+        public ByteBuffer   buffer;
+        public int          width;
+        public int          height;
+        public int          rotation;
+        public boolean      isEncoded;
+        private File        file;
+        private int         type = JOB_WRITE;
+        private SessionListener listener;
+        private final boolean isPooled;
+
+        private Job(boolean isPooled){
+            this.isPooled = isPooled;
+        }
+    }
+
+
+    private final Encoder   encoder;
+    private final Logger    logger;
+    private final ArrayBlockingQueue<Job> freeJobs;
+    private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+    // guarded by savedPaths
+    private final LinkedHashSet<String> savedPaths = new LinkedHashSet<>();
+    private int             failedCount;
+    private int             busyCount;
+    // writer thread only
+    private final ArrayList<Job> batch = new ArrayList<>(BATCH_SIZE);
+    private final ArrayList<FileOutputStream> unsynced = new ArrayList<>(BATCH_SIZE);
+    private volatile boolean isRunning = false;
+    private Thread          writer;
+
+
+    // encoder may be null if only encoded jobs are submitted
+    public WriteBehindImageSaver(Encoder encoder){
+        this(encoder, DEFAULT_QUEUE_SIZE);
+    }
+
+    public WriteBehindImageSaver(Encoder encoder, int queueSize){
+        this(encoder, queueSize, ANDROID_LOGGER);
+    }
+
+    public WriteBehindImageSaver(Encoder encoder, int queueSize, Logger logger){
+        this.encoder = encoder;
+        this.logger = logger;
+        this.freeJobs = new ArrayBlockingQueue<>(queueSize);
+        for (int i = 0; i < queueSize; ++i) {
+            freeJobs.add(new Job(true));
+        }
+    }
+
+
+    // may be called again after stop(), the jobs stay in order
+    public synchronized void start(){
+        isRunning = true;
+        if( writer!=null ){
+            // still draining after a stop()
+            return;
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workLoop();
+            }
+        }, LOG_TAG);
+        writer.start();
+    }
+
+    // the writer finishes what is already submitted, then exits
+    public synchronized void stop(){
+        isRunning = false;
+    }
+
+    /**
+     * A free job whose buffer holds at least capacity bytes, cleared. Waits up to timeout ms
+     * for one to be recycled; null if the writer is still behind, so the caller can retry
+     * @param timeout 0 to never wait, e.g. on a capture callback
+     */
+    public Job obtainJob(int capacity, long timeout) throws InterruptedException {
+        Job job = freeJobs.poll(timeout, TimeUnit.MILLISECONDS);
+        if( job==null ){
+            synchronized (savedPaths) {
+                busyCount++;
+            }
+            return null;
+        }
+        if( job.buffer==null || job.buffer.capacity()<capacity ){
+            job.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        job.buffer.clear();
+        job.width = 0;
+        job.height = 0;
+        job.rotation = 0;
+        job.isEncoded = false;
+        return job;
+    }
+
+    // hands a job from obtainJob() over to the writer; its buffer is written from 0 to its position
+    public void submit(Job job, File file){
+        job.buffer.flip();
+        job.file = file;
+        jobs.add(job);
+    }
+
+    // gives back a job that will not be submitted
+    public void recycle(Job job){
+        if( job.isPooled ){
+            job.file = null;
+            freeJobs.add(job);
+        }
+    }
+
+    // deletes the file after every job submitted so far, whether it is written yet or not
+    public void delete(File file){
+        Job job = new Job(false);
+        job.type = JOB_DELETE;
+        job.file = file;
+        jobs.add(job);
+    }
+
+    // the listener gets the files saved since the last finishSession(), all fsynced
+    public void finishSession(SessionListener listener){
+        Job job = new Job(false);
+        job.type = JOB_END_SESSION;
+        job.listener = listener;
+        jobs.add(job);
+    }
+
+    private void workLoop(){
+        try {
+            while( true ){
+                Job first = jobs.poll(100, TimeUnit.MILLISECONDS);
+                if( first==null ){
+                    if( exitIfStopped() ){
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                jobs.drainTo(batch, BATCH_SIZE - 1);
+                for (Job job : batch) {
+                    try {
+                        runJob(job);
+                    } catch (RuntimeException e) {
+                        // e.g. from a listener, the writer carries on with the next job
+                        logger.log("Failed to run a job", e);
+                    }
+                }
+                batch.clear();
+                syncBatch();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            batch.clear();
+            syncBatch();
+            clearWriter();
+        }
+    }
+
+    private void runJob(Job job){
+        switch (job.type){
+            case JOB_WRITE:
+                write(job);
+                break;
+            case JOB_DELETE:
+                syncBatch();
+                deleteFile(job.file);
+                break;
+            default:
+                syncBatch();
+                endSession(job.listener);
+                break;
+        }
+    }
+
+    private synchronized boolean exitIfStopped(){
+        if( isRunning || !jobs.isEmpty() ){
+            return false;
+        }
+        writer = null;
+        return true;
+    }
+
+    // however the loop ended, start() can run a new writer
+    private synchronized void clearWriter(){
+        if( writer==Thread.currentThread() ){
+            writer = null;
+        }
+    }
+
+    private void write(Job job){
+        File file = job.file;
+        FileOutputStream out = null;
+        try {
+            ByteBuffer data = job.isEncoded ? job.buffer : encoder.encode(job);
+            out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+            while( data.hasRemaining() ){
+                channel.write(data);
+            }
+            unsynced.add(out);
+            synchronized (savedPaths) {
+                savedPaths.add(file.getAbsolutePath());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log("Failed to save " + file, e);
+            closeQuietly(out);
+            if( file.exists() && !file.delete() ){
+                logger.log("Failed to delete partial " + file, null);
+            }
+            synchronized (savedPaths) {
+                failedCount++;
+            }
+        } finally {
+            // the frame is copied out, the capture side can reuse it
+            recycle(job);
+        }
+    }
+
+    // one fsync per written file, but after the whole batch is written
+    private void syncBatch(){
+        for (FileOutputStream out : unsynced) {
+            try {
+                out.getFD().sync();
+            } catch (IOException e) {
+                logger.log("Failed to sync a picture", e);
+            }
+            closeQuietly(out);
+        }
+        unsynced.clear();
+    }
+
+    private void deleteFile(File file){
+        synchronized (savedPaths) {
+            savedPaths.remove(file.getAbsolutePath());
+        }
+        if( file.exists() && file.delete() ){
+            logger.log(file.getName() + " is deleted", null);
+        }
+    }
+
+    private void endSession(SessionListener listener){
+        String[] paths;
+        int failed;
+        synchronized (savedPaths) {
+            paths = savedPaths.toArray(new String[savedPaths.size()]);
+            failed = failedCount;
+            savedPaths.clear();
+            failedCount = 0;
+        }
+        logger.log("Session finished: " + paths.length + " saved, " + failed + " failed", null);
+        if( listener!=null ){
+            listener.onSessionFinished(paths, failed);
+        }
+    }
+
+    private static void closeQuietly(FileOutputStream out){
+        if( out!=null ){
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // times obtainJob() came back empty because the writer was behind
+    public int getBusyCount(){
+        synchronized (savedPaths) {
+            return busyCount;
+        }
+    }
+
+}
@@ -1,5 +1,8 @@
 package com.iai.mdf.JNInterface;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 /**
  * Created by Mou on 11/3/2017.
  */
@@ -25,12 +28,42 @@ public class MobileGazeJniInterface {
 
     public native void getRGBMatImage(byte[] yuvBytes, int width, int height, long matAddrRgba);
 
+    // packs the three YUV_420_888 planes (direct buffers) into a contiguous I420 direct buffer
+    public native void packYuvPlanes(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                                     int yRowStride, int uvRowStride, int uvPixelStride,
+                                     int width, int height, ByteBuffer i420Buffer);
+
+    // same as getRGBMatImage() but reads an I420 direct buffer in place
+    public native void getRGBMatImageDirect(ByteBuffer i420Buffer, int width, int height, long matAddrRgba);
+
+    // same as encodeIntoJpegArray() but reads an I420 direct buffer in place
+    public native byte[] encodeIntoJpegArrayDirect(ByteBuffer i420Buffer, int width, int height);
+
+    // YUV_420_888 planes --> BGR Mat in one pass (NV12, NV21 or planar); rotateCode is Core.ROTATE_* or -1
+    public native void yuvPlanesToBGRMat(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                                         int yRowStride, int uvRowStride, int uvPixelStride,
+                                         int width, int height, int rotateCode, long bgrMatAddr);
+
+    // converts only rect (x, y, width, height) of the planes into the same rect of an image sized BGR or BGRA Mat
+    public native void yuvRegionToBGRMat(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                                         int yRowStride, int uvRowStride, int uvPixelStride,
+                                         int width, int height, int[] rect, long bgrMatAddr);
+
+    // points the Mat at a single 8-bit plane without copying; only valid while the plane's Image is open.
+    // Rows with padding (rowStride > width) are copied into copyMat instead, and the Mat points at that.
+    // false if the buffer is not direct or too small for the plane
+    public native boolean wrapPlaneAsMat(ByteBuffer plane, int width, int height, int rowStride,
+                                         long matAddr, long copyMatAddr);
+
     public native int[] getRotatedRGBImage(byte[] yBytes, byte[] uBytes, byte[] vBytes, int origWidth, int origHeight);
 
     public native void rotateImage(long addr, int rotate);
 
     public native void cropImage(long matAddr, int[] rect, int[] resize, float[] tensorFlowInput, long cropAddr); // resize[0] is width; resize[1] is height
 
+    // rects = N x [x, y, w, h], sizes = N x [rows, cols]; fills tfInputs (direct) with every standardized RGB crop, then the face grid
+    public native boolean prepareModelInputs(long matAddr, int[] rects, int[] sizes, int[] face, int[] gridSize, FloatBuffer tfInputs);
+
     public native void cropImageAndSaveInput(long matAddr, int[] rect, int[] size, float[] tensorFlowInput, long cropAddr, String path);
 
     public native int[] faceDetection(byte[] yBytes, byte[] uBytes, byte[] vBytes, int origWidth, int origHeight);
@@ -0,0 +1,100 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CalibrationModelTest {
+
+    @Test
+    public void affine_usesBothInputsForEachOutput() throws Exception {
+        float[] m = {1.2f, 0.1f, -0.2f, 0.9f, 0.05f, -0.05f};
+        float[] points = {0.3f, 0.7f, 0.9f, 0.1f};
+        CalibrationModel.create(CalibrationModel.TYPE_AFFINE, m).apply(points, points);
+        // y must come from the original x, not the calibrated one
+        assertEquals(0.3f * m[0] + 0.7f * m[2] + m[4], points[0], 1e-6);
+        assertEquals(0.3f * m[1] + 0.7f * m[3] + m[5], points[1], 1e-6);
+        assertEquals(0.9f * m[0] + 0.1f * m[2] + m[4], points[2], 1e-6);
+        assertEquals(0.9f * m[1] + 0.1f * m[3] + m[5], points[3], 1e-6);
+    }
+
+    @Test
+    public void homography_fitRecoversProjectiveMap() throws Exception {
+        float[] h = {1.1f, 0.05f, 0.02f, -0.03f, 0.95f, 0.04f, 0.2f, -0.1f, 1};
+        HomographyCalibration truthModel = new HomographyCalibration(h);
+        Random random = new Random(8);
+        int count = 30;
+        float[] est = new float[count * 2];
+        for (int i = 0; i < est.length; ++i) {
+            est[i] = random.nextFloat();
+        }
+        float[] truth = new float[count * 2];
+        truthModel.apply(est, truth);
+        CalibrationModel fitted = HomographyCalibration.fit(est, truth, count);
+        assertNotNull(fitted);
+        assertArrayEquals(h, fitted.getParameters(), 1e-3f);
+    }
+
+    @Test
+    public void homography_staysFiniteOnTheHorizon() throws Exception {
+        // w = x - y + 0 is 0 wherever x == y
+        float[] h = {1, 0, 0, 0, 1, 0, 1, -1, 0};
+        float[] points = {0.4f, 0.4f};
+        new HomographyCalibration(h).apply(points, points);
+        assertFalse(Float.isNaN(points[0]) || Float.isInfinite(points[0]));
+        assertFalse(Float.isNaN(points[1]) || Float.isInfinite(points[1]));
+    }
+
+    @Test
+    public void piecewise_fitsEachRegion() throws Exception {
+        Random random = new Random(9);
+        int count = 200;
+        float[] est = new float[count * 2];
+        float[] truth = new float[count * 2];
+        for (int i = 0; i < count; ++i) {
+            float x = random.nextFloat(), y = random.nextFloat();
+            est[i * 2] = x;
+            est[i * 2 + 1] = y;
+            // the left half is shifted, the right half scaled
+            truth[i * 2] = x < 0.5f ? x + 0.1f : 1.2f * x;
+            truth[i * 2 + 1] = y;
+        }
+        CalibrationModel model = PiecewiseCalibration.fit(est, truth, count, 1, 2);
+        float[] out = new float[4];
+        model.apply(new float[]{0.2f, 0.5f, 0.8f, 0.5f}, out);
+        assertArrayEquals(new float[]{0.3f, 0.5f, 0.96f, 0.5f}, out, 1e-4f);
+    }
+
+    @Test
+    public void selector_picksTheModelThatPredictsHeldOutPairs() throws Exception {
+        HomographyCalibration truthModel = new HomographyCalibration(
+                new float[]{1.1f, 0.05f, 0.02f, -0.03f, 0.95f, 0.04f, 0.4f, -0.3f, 1});
+        Random random = new Random(10);
+        CalibrationSelector selector = new CalibrationSelector();
+        float[] point = new float[2];
+        for (int i = 0; i < 100; ++i) {
+            float x = random.nextFloat(), y = random.nextFloat();
+            truthModel.apply(new float[]{x, y}, point);
+            selector.add(x, y, point[0], point[1]);
+        }
+        CalibrationModel model = selector.select();
+        assertEquals(CalibrationModel.TYPE_HOMOGRAPHY, model.getType());
+        assertEquals(0, selector.getSelectedError(), 1e-4);
+    }
+
+    @Test
+    public void selector_fallsBackToAffineWithFewPairs() throws Exception {
+        CalibrationSelector selector = new CalibrationSelector();
+        selector.add(0, 0, 0.1, 0.1);
+        selector.add(1, 0, 1.1, 0.1);
+        selector.add(0, 1, 0.1, 1.1);
+        CalibrationModel model = selector.select();
+        assertEquals(CalibrationModel.TYPE_AFFINE, model.getType());
+        assertTrue(Double.isNaN(selector.getSelectedError()));
+        selector.reset();
+        assertNull(selector.select());
+    }
+
+}
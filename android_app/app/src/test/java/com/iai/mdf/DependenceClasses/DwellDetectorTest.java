@@ -0,0 +1,53 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DwellDetectorTest {
+
+    private static final long FRAME_TIME = 100;     // ms
+
+
+    @Test
+    public void dwell_clicksGazedCellAfterDwellTime() throws Exception {
+        DwellDetector detector = new DwellDetector(12, 4, 300, 0.75, 0.5);
+        int clicked = DwellDetector.NO_CELL;
+        int clickFrame = -1;
+        for (int i = 0; i < 10 && clicked == DwellDetector.NO_CELL; ++i) {
+            clicked = detector.update(5, i * FRAME_TIME);
+            clickFrame = i;
+        }
+        assertEquals(5, clicked);
+        // selected at the 3rd sample, then 300 ms of dwell
+        assertEquals(5, clickFrame);
+        assertEquals(1.0, detector.getConfidence(5), 1e-9);
+    }
+
+    @Test
+    public void dwell_hysteresisIgnoresStraySamples() throws Exception {
+        DwellDetector detector = new DwellDetector(12, 4, 1000, 0.75, 0.5);
+        long time = 0;
+        for (int i = 0; i < 4; ++i, time += FRAME_TIME) {
+            detector.update(2, time);
+        }
+        assertEquals(2, detector.getSelectedCell());
+        // one stray sample and one miss leave 2 of 4, still at the exit ratio
+        detector.update(7, time += FRAME_TIME);
+        detector.update(DwellDetector.NO_CELL, time += FRAME_TIME);
+        assertEquals(2, detector.getSelectedCell());
+        detector.update(7, time += FRAME_TIME);
+        assertEquals(DwellDetector.NO_CELL, detector.getSelectedCell());
+    }
+
+    @Test
+    public void dwell_noClickWhileGazeWanders() throws Exception {
+        DwellDetector detector = new DwellDetector(4, 4, 0, 0.75, 0.5);
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(DwellDetector.NO_CELL, detector.update(i % 4, i * FRAME_TIME));
+        }
+        assertEquals(0, detector.getTriggerCount());
+        assertEquals(0.25, detector.getConfidence(1), 1e-9);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameArenaTest {
+
+    @Test
+    public void acquire_reusesSlotsOfEachArena() throws Exception {
+        FrameArena big = new FrameArena();
+        FrameArena small = new FrameArena();
+        byte[][] bigSlots = new byte[FrameArena.SLOT_NUM][];
+        byte[][] smallSlots = new byte[FrameArena.SLOT_NUM][];
+        for (int i = 0; i < FrameArena.SLOT_NUM; ++i) {
+            bigSlots[i] = big.acquireArray(100);
+            smallSlots[i] = small.acquireArray(10);
+        }
+        // alternating sizes across arenas reallocate nothing
+        for (int i = 0; i < 2 * FrameArena.SLOT_NUM; ++i) {
+            assertSame(bigSlots[i % FrameArena.SLOT_NUM], big.acquireArray(100));
+            assertSame(smallSlots[i % FrameArena.SLOT_NUM], small.acquireArray(10));
+        }
+        ByteBuffer direct = big.acquireDirect(64);
+        assertTrue(direct.isDirect());
+        assertEquals(0, direct.position());
+        assertEquals(64, direct.limit());
+    }
+
+    @Test
+    public void acquire_otherThreadsDoNotRecycleTheCallersSlots() throws Exception {
+        final FrameArena arena = new FrameArena();
+        byte[] mine = arena.acquireArray(16);
+        final AtomicReference<byte[]> theirs = new AtomicReference<>();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] last = null;
+                for (int i = 0; i < 10 * FrameArena.SLOT_NUM; ++i) {
+                    last = arena.acquireArray(16);
+                }
+                theirs.set(last);
+            }
+        });
+        other.start();
+        other.join();
+        assertNotSame(mine, theirs.get());
+        // still the caller's next slot is a fresh one, the first comes back after SLOT_NUM
+        for (int i = 1; i < FrameArena.SLOT_NUM; ++i) {
+            assertNotSame(mine, arena.acquireArray(16));
+        }
+        assertSame(mine, arena.acquireArray(16));
+    }
+
+}
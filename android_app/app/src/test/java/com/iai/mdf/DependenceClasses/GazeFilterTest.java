@@ -0,0 +1,109 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GazeFilterTest {
+
+    private static final long FRAME_TIME = 33;      // ms, ~30 fps
+    private static final int  BENCHMARK_SAMPLES = 1000000;
+
+
+    @Test
+    public void kalman_smoothsStillGaze() throws Exception {
+        Random random = new Random(7);
+        KalmanGazeFilter filter = new KalmanGazeFilter();
+        double rawError = 0;
+        double filteredError = 0;
+        for (int i = 0; i < 200; ++i) {
+            double x = 0.5 + 0.05 * random.nextGaussian();
+            double y = 0.3 + 0.05 * random.nextGaussian();
+            filter.update(x, y, i * FRAME_TIME);
+            if( i >= 100 ){
+                rawError += Math.abs(x - 0.5) + Math.abs(y - 0.3);
+                filteredError += Math.abs(filter.getX() - 0.5) + Math.abs(filter.getY() - 0.3);
+            }
+        }
+        assertTrue(filteredError < rawError / 2);
+    }
+
+    @Test
+    public void oneEuro_followsMovingGaze() throws Exception {
+        OneEuroGazeFilter filter = new OneEuroGazeFilter();
+        double x = 0;
+        for (int i = 0; i <= 60; ++i) {
+            x = 0.1 + 0.3 * i * FRAME_TIME / 1000.0;
+            filter.update(x, 0.5, i * FRAME_TIME);
+        }
+        assertEquals(x, filter.getX(), 0.05);
+        assertEquals(0.5, filter.getY(), 1e-9);
+    }
+
+    @Test
+    public void smoother_rejectsSingleOutlier() throws Exception {
+        GazeSmoother smoother = new GazeSmoother(new OneEuroGazeFilter());
+        long time = 0;
+        for (int i = 0; i < 10; ++i, time += FRAME_TIME) {
+            assertTrue(smoother.update(0.5, 0.5, time));
+        }
+        double before = smoother.getX();
+        assertFalse(smoother.update(0.98, 0.02, time));
+        assertEquals(before, smoother.getX(), 0);
+        assertTrue(smoother.update(0.5, 0.5, time + FRAME_TIME));
+        assertEquals(1, smoother.getRejectedSampleCount());
+    }
+
+    @Test
+    public void smoother_restartsAfterRepeatedFarSamples() throws Exception {
+        GazeSmoother smoother = new GazeSmoother(new KalmanGazeFilter());
+        long time = 0;
+        for (int i = 0; i < 10; ++i, time += FRAME_TIME) {
+            smoother.update(0.2, 0.2, time);
+        }
+        for (int i = 0; i < GazeSmoother.DEFAULT_MAX_OUTLIERS; ++i, time += FRAME_TIME) {
+            assertFalse(smoother.update(0.9, 0.9, time));
+        }
+        assertTrue(smoother.update(0.9, 0.9, time));
+        assertEquals(GazeSmoother.STATE_SACCADE, smoother.getState());
+        assertEquals(0.9, smoother.getX(), 1e-9);
+        assertEquals(0.9, smoother.getY(), 1e-9);
+    }
+
+    @Test
+    public void smoother_tellsFixationFromPursuit() throws Exception {
+        GazeSmoother smoother = new GazeSmoother(new OneEuroGazeFilter());
+        long time = 0;
+        for (int i = 0; i < GazeSmoother.DEFAULT_WINDOW_SIZE; ++i, time += FRAME_TIME) {
+            smoother.update(0.5 + 0.01 * (i % 2), 0.5, time);
+        }
+        assertTrue(smoother.isFixation());
+        for (int i = 1; i <= GazeSmoother.DEFAULT_WINDOW_SIZE; ++i, time += FRAME_TIME) {
+            smoother.update(0.5 + 0.04 * i, 0.5, time);
+        }
+        assertEquals(GazeSmoother.STATE_PURSUIT, smoother.getState());
+    }
+
+    // a timing printout, not a check; remove @Ignore to run it by hand
+    @Ignore("benchmark")
+    @Test
+    public void benchmark_updateCost() throws Exception {
+        GazeFilter[] filters = {new KalmanGazeFilter(), new OneEuroGazeFilter()};
+        for (GazeFilter filter : filters) {
+            GazeSmoother smoother = new GazeSmoother(filter);
+            Random random = new Random(1);
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_SAMPLES; ++i) {
+                smoother.update(0.5 + 0.02 * random.nextGaussian(), 0.5 + 0.02 * random.nextGaussian(), i * FRAME_TIME);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(filter.getClass().getSimpleName() + ": "
+                    + String.valueOf(elapsed / BENCHMARK_SAMPLES) + " ns per sample");
+            assertFalse(Double.isNaN(smoother.getX()) || Double.isNaN(smoother.getY()));
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GazeResponseTest {
+
+    @Test
+    public void parseJson_readsEveryField() throws Exception {
+        GazeResponse response = new GazeResponse();
+        assertTrue(response.parseJson("{\"SequenceNumber\": 12, \"Valid\": true, \"PredictX\": 1.5, \"PredictY\": -3.2}"));
+        assertEquals(12, response.getSequenceNumber());
+        assertTrue(response.isValid());
+        assertEquals(1.5, response.getPredictX(), 0);
+        assertEquals(-3.2, response.getPredictY(), 0);
+    }
+
+    @Test
+    public void parseJson_keepsTheSignOfTheSequenceNumber() throws Exception {
+        GazeResponse response = new GazeResponse();
+        assertTrue(response.parseJson("{\"SequenceNumber\": -7, \"Valid\": false}"));
+        assertEquals(-7, response.getSequenceNumber());
+        assertFalse(response.isValid());
+        assertFalse(response.parseJson("{\"Valid\": true}"));
+    }
+
+}
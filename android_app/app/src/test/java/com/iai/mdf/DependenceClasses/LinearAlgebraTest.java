@@ -0,0 +1,150 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// compared against the deprecated Matrix
+@SuppressWarnings("deprecation")
+public class LinearAlgebraTest {
+
+    private static final int BENCHMARK_ROUNDS = 200000;
+
+
+    @Test
+    public void multiply_matchesMatrix() throws Exception {
+        Random random = new Random(2);
+        int m = 37, k = 70, n = 45;     // not multiples of the block size
+        double[] a = randomArray(random, m * k);
+        double[] b = randomArray(random, k * n);
+        double[] out = new double[m * n];
+        LinearAlgebra.multiplyInto(a, m, k, b, n, out);
+        Matrix expected = new Matrix(to2d(a, m, k)).times(new Matrix(to2d(b, k, n)));
+        for (int i = 0; i < m; ++i) {
+            for (int j = 0; j < n; ++j) {
+                assertEquals(expected.get(i, j), out[i * n + j], 1e-9);
+            }
+        }
+        double[] at = new double[m * k];
+        double[] atb = new double[k * 4];
+        double[] atbRef = new double[k * 4];
+        double[] c = randomArray(random, m * 4);
+        LinearAlgebra.transposeInto(a, m, k, at);
+        LinearAlgebra.multiplyInto(at, k, m, c, 4, atbRef);
+        LinearAlgebra.multiplyTransposedInto(a, m, k, c, 4, atb);
+        assertArrayEquals(atbRef, atb, 1e-9);
+    }
+
+    @Test
+    public void leastSquares_choleskyAndQRAgree() throws Exception {
+        Random random = new Random(4);
+        int rows = 50, cols = 3;
+        double[] a = new double[rows * cols];
+        double[] b = new double[rows * 2];
+        for (int i = 0; i < rows; ++i) {
+            double x = random.nextDouble(), y = random.nextDouble();
+            a[i * 3] = x;
+            a[i * 3 + 1] = y;
+            a[i * 3 + 2] = 1;
+            b[i * 2] = 1.1 * x - 0.2 * y + 0.05 + 0.01 * random.nextGaussian();
+            b[i * 2 + 1] = 0.1 * x + 0.9 * y - 0.02 + 0.01 * random.nextGaussian();
+        }
+        // normal equations
+        double[] ata = new double[9];
+        double[] atb = new double[6];
+        LinearAlgebra.multiplyTransposedInto(a, rows, cols, a, cols, ata);
+        LinearAlgebra.multiplyTransposedInto(a, rows, cols, b, 2, atb);
+        double[] inv = new double[9];
+        double[] viaInverse = new double[6];
+        assertTrue(LinearAlgebra.invert3x3Into(ata, inv));
+        LinearAlgebra.multiply3x3Into(inv, atb, 2, viaInverse);
+        assertTrue(LinearAlgebra.choleskyInPlace(ata, cols));
+        LinearAlgebra.choleskySolveInPlace(ata, cols, atb, 2);
+        assertArrayEquals(viaInverse, atb, 1e-9);
+        // QR on the same system
+        double[] x = new double[6];
+        assertTrue(LinearAlgebra.leastSquaresQRInPlace(a.clone(), rows, cols, b.clone(), 2, new double[cols], x));
+        assertArrayEquals(atb, x, 1e-9);
+        assertEquals(1.1, x[0], 0.02);
+        assertEquals(0.9, x[3], 0.02);
+    }
+
+    @Test
+    public void smallInverses_detectSingular() throws Exception {
+        double[] a = {2, 1, 0, 1, 3, 1, 0, 1, 4};
+        double[] inv = new double[9];
+        double[] product = new double[9];
+        double[] identity = new double[9];
+        assertTrue(LinearAlgebra.invert3x3Into(a, inv));
+        LinearAlgebra.multiply3x3Into(a, inv, 3, product);
+        LinearAlgebra.setIdentity(identity, 3);
+        assertArrayEquals(identity, product, 1e-12);
+        // collinear calibration points give a rank 2 normal matrix
+        double[] singular = {1, 2, 3, 2, 4, 6, 1, 1, 1};
+        assertFalse(LinearAlgebra.invert3x3Into(singular, inv));
+        double[] a2 = {4, 7, 2, 6};
+        double[] inv2 = new double[4];
+        assertTrue(LinearAlgebra.invert2x2Into(a2, inv2));
+        assertArrayEquals(new double[]{0.6, -0.7, -0.2, 0.4}, inv2, 1e-12);
+        assertFalse(LinearAlgebra.invert2x2Into(new double[]{1, 2, 2, 4}, inv2));
+    }
+
+    // a timing printout, not a check; remove @Ignore to run it by hand
+    @Ignore("benchmark")
+    @Test
+    public void benchmark_againstMatrix() throws Exception {
+        Random random = new Random(6);
+        int rows = 40;
+        double[] est = randomArray(random, rows * 3);
+        double[] tru = randomArray(random, rows * 2);
+        double[][] est2d = to2d(est, rows, 3);
+        double[][] tru2d = to2d(tru, rows, 2);
+        // the normal equations solve of the old calibration, (x'x)^-1 x'y
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < BENCHMARK_ROUNDS; ++r) {
+            Matrix estMat = new Matrix(est2d);
+            Matrix estMatT = estMat.transpose();
+            Matrix res = estMatT.times(estMat).inverse3x3().times(estMatT.times(new Matrix(tru2d)));
+            sink += res.get(0, 0);
+        }
+        long matrixTime = System.nanoTime() - start;
+        double[] ata = new double[9];
+        double[] atb = new double[6];
+        double[] inv = new double[9];
+        double[] res = new double[6];
+        start = System.nanoTime();
+        for (int r = 0; r < BENCHMARK_ROUNDS; ++r) {
+            LinearAlgebra.multiplyTransposedInto(est, rows, 3, est, 3, ata);
+            LinearAlgebra.multiplyTransposedInto(est, rows, 3, tru, 2, atb);
+            LinearAlgebra.invert3x3Into(ata, inv);
+            LinearAlgebra.multiply3x3Into(inv, atb, 2, res);
+            sink -= res[0];
+        }
+        long flatTime = System.nanoTime() - start;
+        System.out.println("Matrix: " + String.valueOf(matrixTime / BENCHMARK_ROUNDS) + " ns, LinearAlgebra: "
+                + String.valueOf(flatTime / BENCHMARK_ROUNDS) + " ns per solve");
+        assertEquals(0, sink, 1e-6 * BENCHMARK_ROUNDS);
+    }
+
+
+    private static double[] randomArray(Random random, int length){
+        double[] a = new double[length];
+        for (int i = 0; i < length; ++i) {
+            a[i] = random.nextDouble() - 0.5;
+        }
+        return a;
+    }
+
+    private static double[][] to2d(double[] a, int rows, int cols){
+        double[][] out = new double[rows][cols];
+        for (int i = 0; i < rows; ++i) {
+            System.arraycopy(a, i * cols, out[i], 0, cols);
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.iai.mdf.DependenceClasses;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OnlineCalibratorTest {
+
+    // ground truth = (x*m[0] + y*m[2] + m[4], x*m[1] + y*m[3] + m[5])
+    private static final float[] TRUE_AFFINE = {1.2f, 0.05f, -0.1f, 0.9f, 0.08f, -0.03f};
+
+
+    @Test
+    public void affine_recoversMapFromNoisySamples() throws Exception {
+        Random random = new Random(3);
+        OnlineCalibrator calibrator = new OnlineCalibrator();
+        for (int i = 0; i < 60; ++i) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            calibrator.update(x, y, mapX(x, y) + 0.01 * random.nextGaussian(), mapY(x, y) + 0.01 * random.nextGaussian());
+        }
+        float[] mat = calibrator.getAffine();
+        for (int i = 0; i < 6; ++i) {
+            assertEquals(TRUE_AFFINE[i], mat[i], 0.02);
+        }
+    }
+
+    @Test
+    public void affine_rejectsBlinksAndOutliers() throws Exception {
+        Random random = new Random(5);
+        OnlineCalibrator calibrator = new OnlineCalibrator();
+        int outliers = 0;
+        for (int i = 0; i < 100; ++i) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            if( i % 10 == 9 ){
+                // looked away
+                calibrator.update(x, y, mapX(x, y) + 0.6, mapY(x, y) - 0.5);
+                outliers++;
+            } else if( i % 10 == 4 ){
+                calibrator.update(Double.NaN, Double.NaN, mapX(x, y), mapY(x, y));
+                outliers++;
+            } else {
+                calibrator.update(x, y, mapX(x, y), mapY(x, y));
+            }
+        }
+        assertEquals(outliers, calibrator.getRejectedSampleCount());
+        float[] mat = calibrator.getAffine();
+        for (int i = 0; i < 6; ++i) {
+            assertEquals(TRUE_AFFINE[i], mat[i], 1e-3);
+        }
+    }
+
+    @Test
+    public void quadratic_fitsCurvedMap() throws Exception {
+        OnlineCalibrator calibrator = new OnlineCalibrator(OnlineCalibrator.MODEL_QUADRATIC,
+                1.0, OnlineCalibrator.DEFAULT_HUBER_DELTA, OnlineCalibrator.DEFAULT_REJECT_DISTANCE);
+        Random random = new Random(11);
+        for (int i = 0; i < 100; ++i) {
+            double x = random.nextDouble();
+            double y = random.nextDouble();
+            calibrator.update(x, y, x + 0.2 * x * x, y - 0.1 * x * y);
+        }
+        float[] out = new float[2];
+        calibrator.apply(0.8, 0.5, out);
+        assertEquals(0.8 + 0.2 * 0.64, out[0], 1e-3);
+        assertEquals(0.5 - 0.1 * 0.4, out[1], 1e-3);
+    }
+
+
+    private static double mapX(double x, double y){
+        return x * TRUE_AFFINE[0] + y * TRUE_AFFINE[2] + TRUE_AFFINE[4];
+    }
+
+    private static double mapY(double x, double y){
+        return x * TRUE_AFFINE[1] + y * TRUE_AFFINE[3] + TRUE_AFFINE[5];
+    }
+
+}
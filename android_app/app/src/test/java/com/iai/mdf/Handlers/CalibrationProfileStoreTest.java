@@ -0,0 +1,39 @@
+package com.iai.mdf.Handlers;
+
+import com.iai.mdf.DependenceClasses.CalibrationModel;
+import com.iai.mdf.DependenceClasses.PolynomialCalibration;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CalibrationProfileStoreTest {
+
+    @Test
+    public void roundTripsProfiles() throws Exception {
+        File folder = File.createTempFile("profiles", "");
+        assertTrue(folder.delete() && folder.mkdir());
+        float[] poly = new float[PolynomialCalibration.PARAM_NUM];
+        poly[0] = 1;
+        poly[3] = 1;
+        poly[6] = 0.2f;
+        CalibrationProfileStore store = new CalibrationProfileStore(folder);
+        assertNull(store.load("alice", "Pixel"));
+        assertTrue(store.save("alice", "Pixel", new PolynomialCalibration(poly)));
+        assertTrue(store.save("bob", "Pixel", CalibrationModel.identity()));
+        // a fresh store reads the file back
+        CalibrationProfileStore reopened = new CalibrationProfileStore(folder);
+        CalibrationModel model = reopened.load("alice", "Pixel");
+        assertEquals(CalibrationModel.TYPE_POLYNOMIAL, model.getType());
+        assertArrayEquals(poly, model.getParameters(), 0);
+        assertEquals(CalibrationModel.TYPE_AFFINE, reopened.load("bob", "Pixel").getType());
+        assertNull(reopened.load("alice", "Nexus"));
+        assertTrue(reopened.remove("bob", "Pixel"));
+        assertNull(new CalibrationProfileStore(folder).load("bob", "Pixel"));
+        new File(folder, CalibrationProfileStore.FILE_NAME).delete();
+        folder.delete();
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.iai.mdf.Handlers;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindImageSaverTest {
+
+    @Test
+    public void savesEncodedAndRawFramesInOrderAndReportsTheSession() throws Exception {
+        File folder = createFolder();
+        final CountDownLatch release = new CountDownLatch(1);
+        // "encodes" a raw frame by prefixing its size, once the test lets it
+        WriteBehindImageSaver.Encoder encoder = new WriteBehindImageSaver.Encoder() {
+            @Override
+            public ByteBuffer encode(WriteBehindImageSaver.Job job) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                ByteBuffer out = ByteBuffer.allocate(job.buffer.remaining() + 2);
+                out.put((byte) job.width).put((byte) job.height).put(job.buffer);
+                out.flip();
+                return out;
+            }
+        };
+        WriteBehindImageSaver saver = new WriteBehindImageSaver(encoder, 2, new LogRecorder());
+        saver.start();
+
+        WriteBehindImageSaver.Job raw = saver.obtainJob(4, 0);
+        raw.buffer.put(new byte[]{1, 2, 3});
+        raw.width = 7;
+        raw.height = 9;
+        saver.submit(raw, new File(folder, "raw.jpg"));
+        WriteBehindImageSaver.Job encoded = saver.obtainJob(2, 0);
+        encoded.buffer.put(new byte[]{5, 6});
+        encoded.isEncoded = true;
+        saver.submit(encoded, new File(folder, "encoded.jpg"));
+        // the writer is stuck encoding: the pool is empty and the capture side is told so
+        assertNull(saver.obtainJob(1, 0));
+        assertEquals(1, saver.getBusyCount());
+        // deleted before it is even written
+        saver.delete(new File(folder, "encoded.jpg"));
+        SessionRecorder session = new SessionRecorder();
+        saver.finishSession(session);
+        release.countDown();
+
+        assertTrue(session.await());
+        assertArrayEquals(new String[]{new File(folder, "raw.jpg").getAbsolutePath()}, session.paths.get());
+        assertEquals(0, session.failed.get());
+        assertArrayEquals(new byte[]{7, 9, 1, 2, 3}, Files.readAllBytes(new File(folder, "raw.jpg").toPath()));
+        assertFalse(new File(folder, "encoded.jpg").exists());
+        // both jobs are back in the pool
+        assertNotNull(saver.obtainJob(1, 1000));
+        assertNotNull(saver.obtainJob(1, 1000));
+        saver.stop();
+    }
+
+    @Test
+    public void failedWritesAreCountedAndTheNextSessionStartsEmpty() throws Exception {
+        File folder = createFolder();
+        LogRecorder log = new LogRecorder();
+        WriteBehindImageSaver saver = new WriteBehindImageSaver(null, 3, log);
+        saver.start();
+        for (int i = 0; i < 3; ++i) {
+            WriteBehindImageSaver.Job job = saver.obtainJob(1, 1000);
+            job.buffer.put((byte) i);
+            job.isEncoded = true;
+            // the second one goes to a folder that does not exist
+            File target = i == 1 ? new File(new File(folder, "missing"), "1.jpg") : new File(folder, i + ".jpg");
+            saver.submit(job, target);
+        }
+        SessionRecorder first = new SessionRecorder();
+        saver.finishSession(first);
+        assertTrue(first.await());
+        assertEquals(2, first.paths.get().length);
+        assertEquals(1, first.failed.get());
+        assertEquals(1, log.errors.get());
+
+        // restarted after a stop, the writer carries on with the queued jobs
+        saver.stop();
+        saver.start();
+        SessionRecorder second = new SessionRecorder();
+        saver.finishSession(second);
+        assertTrue(second.await());
+        assertEquals(0, second.paths.get().length);
+        assertEquals(0, second.failed.get());
+        saver.stop();
+    }
+
+    @Test
+    public void aThrowingListenerDoesNotStopTheWriter() throws Exception {
+        File folder = createFolder();
+        LogRecorder log = new LogRecorder();
+        WriteBehindImageSaver saver = new WriteBehindImageSaver(null, 1, log);
+        saver.start();
+        saver.finishSession(new WriteBehindImageSaver.SessionListener() {
+            @Override
+            public void onSessionFinished(String[] savedPaths, int failedCount) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        WriteBehindImageSaver.Job job = saver.obtainJob(1, 1000);
+        job.buffer.put((byte) 1);
+        job.isEncoded = true;
+        saver.submit(job, new File(folder, "after.jpg"));
+        SessionRecorder session = new SessionRecorder();
+        saver.finishSession(session);
+        assertTrue(session.await());
+        assertEquals(1, session.paths.get().length);
+        assertEquals(1, log.errors.get());
+        saver.stop();
+    }
+
+    private static File createFolder() throws IOException {
+        File folder = File.createTempFile("pictures", "");
+        folder.delete();
+        folder.mkdir();
+        return folder;
+    }
+
+    // counts errors, unit tests have no logcat
+    private static class LogRecorder implements WriteBehindImageSaver.Logger {
+        final AtomicInteger errors = new AtomicInteger();
+
+        @Override
+        public void log(String message, Throwable error) {
+            if( error!=null ){
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private static class SessionRecorder implements WriteBehindImageSaver.SessionListener {
+        final AtomicReference<String[]> paths = new AtomicReference<>();
+        final AtomicInteger failed = new AtomicInteger(-1);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSessionFinished(String[] savedPaths, int failedCount) {
+            paths.set(savedPaths);
+            failed.set(failedCount);
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.iai.mdf.Processing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchProcessor<I, W, R> {
+
+    /**
+     * Runs a task over a list of items on a fixed pool of worker threads. Each thread owns one
+     * worker object (e.g. a face detector, which is not thread safe), created on first use and
+     * kept for later runs until releaseWorkers(). Threads take the next item as they become
+     * free, so a slow item does not hold up a whole shard. Results are handed to the sink on the
+     * calling thread in item order, whatever order they finish in; at most PENDING_PER_WORKER
+     * results per worker wait for an earlier one, which bounds the memory held by out-of-order
+     * results.
+     */
+
+    private static final int    PENDING_PER_WORKER = 4;
+    private static final long   PROGRESS_INTERVAL_MS = 200;
+
+
+    public interface WorkerFactory<W> {
+        // called on the worker's own thread
+        W create(int workerIdx) throws IOException;
+    }
+
+    public interface Task<I, W, R> {
+        // called on a worker thread; null when the item gives no result
+        R process(W worker, I item) throws IOException;
+    }
+
+    public interface ResultSink<I, R> {
+        // called on the thread of run(), in item order; result may be null
+        void onResult(int index, I item, R result) throws IOException;
+    }
+
+    public interface ProgressListener {
+        void onProgress(int done, int total, float itemsPerSecond);
+    }
+
+
+    private final int               workerCount;
+    private final WorkerFactory<W>  factory;
+    private final Task<I, W, R>     task;
+    private final ArrayList<W>      workers = new ArrayList<>();
+    private volatile boolean        isCancelled = false;
+
+
+    public BatchProcessor(int workerCount, WorkerFactory<W> factory, Task<I, W, R> task){
+        if( workerCount < 1 ){
+            throw new IllegalArgumentException("Needs at least one worker");
+        }
+        this.workerCount = workerCount;
+        this.factory = factory;
+        this.task = task;
+        for (int i = 0; i < workerCount; ++i) {
+            workers.add(null);
+        }
+    }
+
+    // one worker per core
+    public BatchProcessor(WorkerFactory<W> factory, Task<I, W, R> task){
+        this(Runtime.getRuntime().availableProcessors(), factory, task);
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    // stops handing out items; run() returns once the items in progress are done
+    public void cancel(){
+        isCancelled = true;
+    }
+
+    // the workers created so far, for the caller to release; the next run() creates new ones.
+    // Must not overlap a run()
+    public List<W> releaseWorkers(){
+        ArrayList<W> released = new ArrayList<>();
+        synchronized (workers) {
+            for (int i = 0; i < workerCount; ++i) {
+                if( workers.get(i) != null ){
+                    released.add(workers.get(i));
+                    workers.set(i, null);
+                }
+            }
+        }
+        return released;
+    }
+
+
+    /**
+     * Processes all items and blocks until they are done.
+     * @return the number of items handed to the sink, less than items.size() if cancelled
+     * @throws IOException the first failure of the task, the factory or the sink; the
+     * remaining items are not processed
+     */
+    public int run(List<I> items, ResultSink<I, R> sink, ProgressListener listener)
+            throws IOException, InterruptedException {
+        isCancelled = false;
+        final int total = items.size();
+        final AtomicInteger nextItem = new AtomicInteger(0);
+        final Semaphore pendingSlots = new Semaphore(workerCount * PENDING_PER_WORKER);
+        final LinkedBlockingQueue<Completion<R>> completions = new LinkedBlockingQueue<>();
+        int threadCount = Math.max(1, Math.min(workerCount, total));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for (int w = 0; w < threadCount; ++w) {
+            executor.execute(new WorkerLoop(w, items, nextItem, pendingSlots, completions));
+        }
+        executor.shutdown();
+
+        HashMap<Integer, Completion<R>> waiting = new HashMap<>();
+        int emitted = 0;
+        int finishedThreads = 0;
+        long startTime = System.currentTimeMillis();
+        long lastProgressTime = 0;
+        Throwable failure = null;
+        try {
+            while( finishedThreads < threadCount ){
+                Completion<R> completion = completions.take();
+                if( completion.index < 0 ){
+                    finishedThreads++;
+                    continue;
+                }
+                if( completion.error != null ){
+                    if( failure == null ){
+                        failure = completion.error;
+                    }
+                    isCancelled = true;
+                    continue;
+                }
+                waiting.put(completion.index, completion);
+                // hand over everything that is now in order
+                Completion<R> next;
+                while( failure == null && (next = waiting.remove(emitted)) != null ){
+                    try {
+                        sink.onResult(emitted, items.get(emitted), next.result);
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
+                        isCancelled = true;
+                        break;
+                    }
+                    emitted++;
+                    pendingSlots.release();
+                    long now = System.currentTimeMillis();
+                    if( listener != null && (now - lastProgressTime >= PROGRESS_INTERVAL_MS || emitted == total) ){
+                        lastProgressTime = now;
+                        listener.onProgress(emitted, total, getRate(emitted, now - startTime));
+                    }
+                }
+                if( failure != null ){
+                    // unblock workers waiting for a slot, they see the cancel and leave
+                    pendingSlots.release(total);
+                }
+            }
+        } catch (InterruptedException e) {
+            isCancelled = true;
+            pendingSlots.release(total);
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            throw e;
+        }
+        if( failure instanceof IOException ){
+            throw (IOException) failure;
+        } else if( failure instanceof RuntimeException ){
+            throw (RuntimeException) failure;
+        } else if( failure != null ){
+            throw new RuntimeException(failure);
+        }
+        return emitted;
+    }
+
+    private static float getRate(int done, long elapsedMs){
+        return elapsedMs > 0 ? done * 1000f / elapsedMs : 0;
+    }
+
+
+    private static class Completion<R> {
+
+        final int       index;      // -1 marks a worker thread that has finished
+        final R         result;
+        final Throwable error;
+
+        Completion(int index, R result, Throwable error){
+            this.index = index;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+
+    private class WorkerLoop implements Runnable {
+
+        private final int       workerIdx;
+        private final List<I>   items;
+        private final AtomicInteger nextItem;
+        private final Semaphore pendingSlots;
+        private final LinkedBlockingQueue<Completion<R>> completions;
+
+        WorkerLoop(int workerIdx, List<I> items, AtomicInteger nextItem, Semaphore pendingSlots,
+                   LinkedBlockingQueue<Completion<R>> completions){
+            this.workerIdx = workerIdx;
+            this.items = items;
+            this.nextItem = nextItem;
+            this.pendingSlots = pendingSlots;
+            this.completions = completions;
+        }
+
+        @Override
+        public void run() {
+            try {
+                W worker = getWorker(workerIdx);
+                while( !isCancelled ){
+                    pendingSlots.acquire();
+                    int index = nextItem.getAndIncrement();
+                    if( isCancelled || index >= items.size() ){
+                        // pass the slot on, another worker may be waiting for it
+                        pendingSlots.release();
+                        break;
+                    }
+                    R result;
+                    try {
+                        result = task.process(worker, items.get(index));
+                    } catch (IOException | RuntimeException e) {
+                        completions.add(new Completion<R>(index, null, e));
+                        break;
+                    }
+                    completions.add(new Completion<R>(index, result, null));
+                }
+            } catch (IOException | RuntimeException e) {
+                completions.add(new Completion<R>(Integer.MAX_VALUE, null, e));
+            } catch (InterruptedException e) {
+                // run() was interrupted
+            } finally {
+                completions.add(new Completion<R>(-1, null, null));
+            }
+        }
+    }
+
+    private W getWorker(int workerIdx) throws IOException {
+        W worker;
+        synchronized (workers) {
+            worker = workers.get(workerIdx);
+        }
+        if( worker == null ){
+            worker = factory.create(workerIdx);
+            if( worker == null ){
+                throw new IOException("Worker " + workerIdx + " could not be created");
+            }
+            synchronized (workers) {
+                workers.set(workerIdx, worker);
+            }
+        }
+        return worker;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.iai.mdf.Processing;
+
+public class EyeRegion {
+
+    /**
+     * Where the eye model's input is cropped from, given the 49 landmarks: the eye corners'
+     * center, widened by PAD_RATIO on both sides, with the model's aspect ratio.
+     */
+
+    public static final int     ROWS = 36;
+    public static final int     COLUMNS = 60;
+    public static final int     CHANNELS = 3;
+    private static final int    LEFT_EYE_LEFT_CORNER = 28;
+    private static final int    LEFT_EYE_RIGHT_CORNER = 25;
+    private static final int    RIGHT_EYE_LEFT_CORNER = 22;
+    private static final int    RIGHT_EYE_RIGHT_CORNER = 19;
+    private static final double PAD_RATIO = 0.25;
+
+
+    // x, y, width, height; null if the region is not inside the image
+    public static int[] getCropRect(double[] landmarks, int imageWidth, int imageHeight, boolean isLeft){
+        int[] rect = getCropRect(landmarks, isLeft);
+        return isInside(rect, imageWidth, imageHeight) ? rect : null;
+    }
+
+    // x, y, width, height, may reach out of the image
+    public static int[] getCropRect(double[] landmarks, boolean isLeft){
+        int leftIdx = isLeft ? LEFT_EYE_LEFT_CORNER : RIGHT_EYE_LEFT_CORNER;
+        int rightIdx = isLeft ? LEFT_EYE_RIGHT_CORNER : RIGHT_EYE_RIGHT_CORNER;
+        int leftX = (int) landmarks[leftIdx * 2];
+        int leftY = (int) landmarks[leftIdx * 2 + 1];
+        int rightX = (int) landmarks[rightIdx * 2];
+        int rightY = (int) landmarks[rightIdx * 2 + 1];
+        int centerX = (leftX + rightX) / 2;
+        int centerY = (leftY + rightY) / 2;
+        int width = Math.abs(leftX - rightX);
+        int newWidth = (int) (width * (1 + PAD_RATIO * 2));
+        int newHeight = newWidth * ROWS / COLUMNS;
+        int newX = centerX - newWidth / 2;
+        int newY = centerY - newHeight / 2;
+        return new int[]{newX, newY, newWidth, newHeight};
+    }
+
+    public static boolean isInside(int[] rect, int imageWidth, int imageHeight){
+        return rect[2] > 0 && rect[3] > 0
+                && rect[0] >= 0 && rect[0] + rect[2] < imageWidth
+                && rect[1] >= 0 && rect[1] + rect[3] < imageHeight;
+    }
+
+}
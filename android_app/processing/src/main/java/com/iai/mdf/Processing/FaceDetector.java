@@ -0,0 +1,19 @@
+package com.iai.mdf.Processing;
+
+public interface FaceDetector {
+
+    /**
+     * Face and 49-point landmark detection on a gray image, plugged into
+     * ImageIOFeatureExtractor. The desktop runner creates one per worker thread by its
+     * public no-argument constructor.
+     */
+
+    /**
+     * @param gray width * height bytes, row by row
+     * @param face Filled with x, y, width, height
+     * @param landmarks Filled with 49 (x, y) points
+     * @return false if there is no face
+     */
+    boolean detect(byte[] gray, int width, int height, int[] face, double[] landmarks);
+
+}
@@ -0,0 +1,38 @@
+package com.iai.mdf.Processing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+public interface FeatureExtractor extends Closeable {
+
+    /**
+     * The image work of the offline pipeline: decoding, detection and cropping. The phone
+     * implements it with OpenCV and the native detector, the desktop runner with ImageIO and
+     * a pluggable FaceDetector. SessionProcessor creates one per worker thread, so an
+     * implementation need not be thread safe, and closes them in its own close().
+     */
+
+    interface Factory {
+        // called on the worker's own thread
+        FeatureExtractor create(int workerIdx) throws IOException;
+    }
+
+
+    /**
+     * Detect the face and its landmarks
+     * @param record Its face and landmarks are filled, flags gets FLAG_DETECTED if they are found
+     * @return false if the image cannot be read
+     */
+    boolean detect(File image, GazeDataset.Record record) throws IOException;
+
+    /**
+     * Crop a region, resized to rows x cols with bilinear interpolation
+     * @param rect x, y, width, height
+     * @param rgb Filled with rows * cols * 3 bytes, row by row, in R G B order
+     * @return The crop encoded in the format of the image's extension; null if the image
+     * cannot be read or the rect is not inside it (EyeRegion.isInside)
+     */
+    byte[] crop(File image, int[] rect, int rows, int cols, byte[] rgb) throws IOException;
+
+}
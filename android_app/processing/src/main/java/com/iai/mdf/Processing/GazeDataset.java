@@ -0,0 +1,252 @@
+package com.iai.mdf.Processing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+public class GazeDataset {
+
+    /**
+     * Binary container for processed samples: a header, then fixed-width little-endian records
+     * (numpy dtype in brackets):
+     *   name         64 bytes  image file name, ASCII, zero padded       [S64]
+     *   flags        int32     FLAG_*                                     [<i4]
+     *   face         4 int32   x, y, width, height                        [<i4, 4]
+     *   landmarks    98 float  49 (x, y) points                           [<f4, 98]
+     *   target       2 float   gaze target parsed from the name           [<f4, 2]
+     *   imageOffset  int64     row of the sample's crop in the action's normData.dat, -1 if none
+     * Header: int32 magic, int32 version, int32 record size, int32 landmark count, padded to
+     * HEADER_SIZE. The record count is (file size - HEADER_SIZE) / RECORD_SIZE, so an append
+     * cut short by a crash only loses its own partial record.
+     * A Writer appends through one FileChannel with a batch buffer, a Reader maps the file.
+     */
+
+    public static final String  DETECTION_FILE_NAME = "detections.bin";
+    public static final String  SAMPLE_FILE_NAME = "samples.bin";
+    public static final int     FLAG_DETECTED = 1;
+    public static final int     LANDMARK_NUM = 49;
+    public static final int     NAME_BYTES = 64;
+    public static final int     HEADER_SIZE = 32;
+    public static final int     RECORD_SIZE = NAME_BYTES + 4 + 4 * 4 + LANDMARK_NUM * 2 * 4 + 2 * 4 + 8;
+    private static final int    MAGIC = 0x47415a44;     // "GAZD"
+    private static final int    VERSION = 1;
+    private static final int    BATCH_RECORDS = 64;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+
+    public static class Record {
+
+        public String   name;
+        public int      flags;
+        public final int[]    face = new int[4];
+        public final float[]  landmarks = new float[LANDMARK_NUM * 2];
+        public float    targetX;
+        public float    targetY;
+        public long     imageOffset = -1;
+
+        public boolean isDetected(){
+            return (flags & FLAG_DETECTED) != 0;
+        }
+
+        public void setLandmarks(double[] values){
+            for (int i = 0; i < landmarks.length; ++i) {
+                landmarks[i] = (float) values[i];
+            }
+        }
+
+        // into a reused double array, the crop helpers take doubles
+        public void getLandmarks(double[] out){
+            for (int i = 0; i < landmarks.length; ++i) {
+                out[i] = landmarks[i];
+            }
+        }
+    }
+
+
+    public static class Writer implements Closeable, Flushable {
+
+        private final RandomAccessFile  raf;
+        private final FileChannel       channel;
+        private final ByteBuffer        batch;
+        private final byte[]            nameBytes = new byte[NAME_BYTES];
+        private long                    recordCount;
+
+        // appends to the file, creating it if needed
+        public Writer(File file) throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            try {
+                if( channel.size() < HEADER_SIZE ){
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(LANDMARK_NUM);
+                    header.rewind();
+                    channel.truncate(0);
+                    writeFully(header, 0);
+                    recordCount = 0;
+                } else {
+                    checkHeader(channel);
+                    recordCount = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+                    // drop a partial record left by a crash
+                    channel.truncate(HEADER_SIZE + recordCount * RECORD_SIZE);
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            batch = ByteBuffer.allocateDirect(RECORD_SIZE * BATCH_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // returns the index of the record
+        public synchronized long append(Record record) throws IOException {
+            if( batch.remaining() < RECORD_SIZE ){
+                flush();
+            }
+            encodeName(record.name, nameBytes);
+            batch.put(nameBytes);
+            batch.putInt(record.flags);
+            for (int v : record.face) {
+                batch.putInt(v);
+            }
+            for (float v : record.landmarks) {
+                batch.putFloat(v);
+            }
+            batch.putFloat(record.targetX);
+            batch.putFloat(record.targetY);
+            batch.putLong(record.imageOffset);
+            return recordCount++;
+        }
+
+        public synchronized void flush() throws IOException {
+            batch.flip();
+            long position = HEADER_SIZE + (recordCount - batch.remaining() / RECORD_SIZE) * RECORD_SIZE;
+            writeFully(batch, position);
+            batch.clear();
+        }
+
+        public synchronized long getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while( buffer.hasRemaining() ){
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile  raf;
+        private final MappedByteBuffer  map;
+        private final int               recordCount;
+        private final byte[]            nameBytes = new byte[NAME_BYTES];
+
+        public Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                checkHeader(channel);
+                recordCount = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) recordCount * RECORD_SIZE);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        // fills out with record index; not thread safe, use one Reader per thread
+        public void read(int index, Record out){
+            if( index < 0 || index >= recordCount ){
+                throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+            }
+            int position = HEADER_SIZE + index * RECORD_SIZE;
+            map.position(position);
+            map.get(nameBytes);
+            out.name = decodeName(nameBytes);
+            out.flags = map.getInt();
+            for (int i = 0; i < out.face.length; ++i) {
+                out.face[i] = map.getInt();
+            }
+            for (int i = 0; i < out.landmarks.length; ++i) {
+                out.landmarks[i] = map.getFloat();
+            }
+            out.targetX = map.getFloat();
+            out.targetY = map.getFloat();
+            out.imageOffset = map.getLong();
+        }
+
+        // image name -> record index, a later record wins over an earlier one
+        public HashMap<String, Integer> indexByName(){
+            HashMap<String, Integer> index = new HashMap<>(recordCount * 2);
+            for (int i = 0; i < recordCount; ++i) {
+                map.position(HEADER_SIZE + i * RECORD_SIZE);
+                map.get(nameBytes);
+                index.put(decodeName(nameBytes), i);
+            }
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+
+    private static void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        while( header.hasRemaining() ){
+            if( channel.read(header, header.position()) < 0 ){
+                throw new IOException("Truncated dataset header");
+            }
+        }
+        header.flip();
+        if( header.getInt()!=MAGIC || header.getInt()!=VERSION
+                || header.getInt()!=RECORD_SIZE || header.getInt()!=LANDMARK_NUM ){
+            throw new IOException("Not a dataset of this version");
+        }
+    }
+
+    private static void encodeName(String name, byte[] out){
+        byte[] bytes = name.getBytes(ASCII);
+        if( bytes.length > NAME_BYTES ){
+            throw new IllegalArgumentException("Image name longer than " + NAME_BYTES + " bytes: " + name);
+        }
+        System.arraycopy(bytes, 0, out, 0, bytes.length);
+        for (int i = bytes.length; i < NAME_BYTES; ++i) {
+            out[i] = 0;
+        }
+    }
+
+    private static String decodeName(byte[] bytes){
+        int length = 0;
+        while( length < bytes.length && bytes[length] != 0 ){
+            length++;
+        }
+        return new String(bytes, 0, length, ASCII);
+    }
+
+}
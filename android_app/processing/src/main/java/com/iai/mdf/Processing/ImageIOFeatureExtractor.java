@@ -0,0 +1,124 @@
+package com.iai.mdf.Processing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+public class ImageIOFeatureExtractor implements FeatureExtractor {
+
+    /**
+     * Desktop FeatureExtractor: decodes and encodes with ImageIO and detects with a
+     * FaceDetector. Gray conversion and resizing follow OpenCV's COLOR_BGR2GRAY and
+     * INTER_LINEAR, so the crops are close to the phone's but not bit-identical.
+     */
+
+    private final FaceDetector  detector;
+    private byte[]              gray = new byte[0];
+    private int[]               argb = new int[0];
+
+
+    public ImageIOFeatureExtractor(FaceDetector detector){
+        this.detector = detector;
+    }
+
+
+    // a detector holding native models can release them by implementing Closeable
+    @Override
+    public void close() throws IOException {
+        gray = new byte[0];
+        argb = new int[0];
+        if( detector instanceof Closeable ){
+            ((Closeable) detector).close();
+        }
+    }
+
+    @Override
+    public boolean detect(File image, GazeDataset.Record record) throws IOException {
+        BufferedImage img = ImageIO.read(image);
+        if( img == null ){
+            return false;
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = readPixels(img, 0, 0, width, height);
+        if( gray.length < width * height ){
+            gray = new byte[width * height];
+        }
+        for (int i = 0; i < width * height; ++i) {
+            int p = pixels[i];
+            // fixed point weights of OpenCV's BGR2GRAY
+            int r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            gray[i] = (byte) ((r * 4899 + g * 9617 + b * 1868 + 8192) >> 14);
+        }
+        double[] landmarks = new double[GazeDataset.LANDMARK_NUM * 2];
+        record.flags &= ~GazeDataset.FLAG_DETECTED;
+        if( detector.detect(gray, width, height, record.face, landmarks) ){
+            record.flags |= GazeDataset.FLAG_DETECTED;
+            record.setLandmarks(landmarks);
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] crop(File image, int[] rect, int rows, int cols, byte[] rgb) throws IOException {
+        BufferedImage img = ImageIO.read(image);
+        if( img == null || !EyeRegion.isInside(rect, img.getWidth(), img.getHeight()) ){
+            return null;
+        }
+        int srcWidth = rect[2];
+        int srcHeight = rect[3];
+        int[] pixels = readPixels(img, rect[0], rect[1], srcWidth, srcHeight);
+        BufferedImage crop = new BufferedImage(cols, rows, BufferedImage.TYPE_INT_RGB);
+        float scaleX = (float) srcWidth / cols;
+        float scaleY = (float) srcHeight / rows;
+        for (int r = 0; r < rows; ++r) {
+            // pixel centers map to pixel centers, the edge is replicated
+            float sy = Math.max(0, (r + 0.5f) * scaleY - 0.5f);
+            int y0 = Math.min((int) sy, srcHeight - 1);
+            int y1 = Math.min(y0 + 1, srcHeight - 1);
+            float fy = Math.min(sy - y0, 1);
+            for (int c = 0; c < cols; ++c) {
+                float sx = Math.max(0, (c + 0.5f) * scaleX - 0.5f);
+                int x0 = Math.min((int) sx, srcWidth - 1);
+                int x1 = Math.min(x0 + 1, srcWidth - 1);
+                float fx = Math.min(sx - x0, 1);
+                int p00 = pixels[y0 * srcWidth + x0], p01 = pixels[y0 * srcWidth + x1];
+                int p10 = pixels[y1 * srcWidth + x0], p11 = pixels[y1 * srcWidth + x1];
+                int out = 0;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    float top = ((p00 >> shift) & 0xff) * (1 - fx) + ((p01 >> shift) & 0xff) * fx;
+                    float bottom = ((p10 >> shift) & 0xff) * (1 - fx) + ((p11 >> shift) & 0xff) * fx;
+                    int v = Math.round(top * (1 - fy) + bottom * fy);
+                    out |= v << shift;
+                }
+                int i = (r * cols + c) * 3;
+                rgb[i] = (byte) (out >> 16);
+                rgb[i + 1] = (byte) (out >> 8);
+                rgb[i + 2] = (byte) out;
+                crop.setRGB(c, r, out);
+            }
+        }
+        return encode(crop, image.getName());
+    }
+
+    private int[] readPixels(BufferedImage img, int x, int y, int width, int height){
+        if( argb.length < width * height ){
+            argb = new int[width * height];
+        }
+        return img.getRGB(x, y, width, height, argb, 0, width);
+    }
+
+    private static byte[] encode(BufferedImage img, String name) throws IOException {
+        String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if( !ImageIO.write(img, format, out) ){
+            throw new IOException("No encoder for " + name);
+        }
+        return out.toByteArray();
+    }
+
+}
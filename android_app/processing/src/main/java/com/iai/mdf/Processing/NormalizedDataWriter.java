@@ -0,0 +1,98 @@
+package com.iai.mdf.Processing;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+public class NormalizedDataWriter implements Closeable, Flushable {
+
+    /**
+     * Appends crops to normData.dat the way the desktop Python reads them, as the native
+     * saveFloatArray() did: one crop per line, standardized to zero mean and unit sample
+     * deviation, in [channel][column][row] order, values printed like C's "%f" and
+     * separated by spaces. Standardization and re-ordering are TensorOps', as on the phone;
+     * a constant crop is written as zeros.
+     */
+
+    private final BufferedWriter    out;
+    private final StringBuilder     line = new StringBuilder();
+    private float[]                 pixels = new float[0];   // as read, row by row
+    private float[]                 values = new float[0];   // as written
+    private TensorShape             pixelShape;
+    private TensorShape             valueShape;
+
+
+    // appends to the file, creating it if needed
+    public NormalizedDataWriter(File file) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), Charset.forName("US-ASCII")), 1 << 16);
+    }
+
+
+    /**
+     * @param rgb rows * cols * 3 bytes, row by row, in R G B order
+     */
+    public void append(byte[] rgb, int rows, int cols) throws IOException {
+        int length = rows * cols * 3;
+        if( pixelShape == null || pixelShape.getHeight() != rows || pixelShape.getWidth() != cols ){
+            pixelShape = new TensorShape(1, rows, cols, 3, TensorShape.LAYOUT_NHWC);
+            valueShape = new TensorShape(1, rows, cols, 3, TensorShape.LAYOUT_NCWH);
+            pixels = new float[length];
+            values = new float[length];
+        }
+        for (int i = 0; i < length; ++i) {
+            pixels[i] = rgb[i] & 0xff;
+        }
+        TensorOps.standardizePerSample(pixels, pixelShape);
+        // row-major R G B --> channel, column, row
+        TensorOps.convertLayout(pixels, pixelShape, values, valueShape);
+        line.setLength(0);
+        for (int i = 0; i < length; ++i) {
+            if( i > 0 ){
+                line.append(' ');
+            }
+            appendFixed(line, values[i]);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    // C's "%f": six decimals, "nan" and "inf" for a constant crop
+    static void appendFixed(StringBuilder sb, float value){
+        if( Float.isNaN(value) ){
+            sb.append("nan");
+            return;
+        }
+        if( value < 0 || (value == 0 && 1 / value < 0) ){
+            sb.append('-');
+            value = -value;
+        }
+        if( Float.isInfinite(value) ){
+            sb.append("inf");
+            return;
+        }
+        long micros = Math.round(value * 1e6);
+        sb.append(micros / 1000000).append('.');
+        long fraction = micros % 1000000;
+        for (long digit = 100000; digit > 1 && fraction < digit; digit /= 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.iai.mdf.Processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+public class ProcessSessions {
+
+    /**
+     * Desktop runner of the offline pipeline, for sessions copied off the phone:
+     *   ProcessSessions --detector <class> [--threads n] [--feature left|right|both|none] <session folder>...
+     * The detector class implements FaceDetector and has a public no-argument constructor,
+     * one instance is created per worker thread. No such detector ships with this module,
+     * the phone's detector is native Android code; bring your own on the classpath, e.g. one
+     * wrapping desktop OpenCV. Outputs are the same as the app's
+     * DataProcessActivity, in each session's processedFolder, and are brought up to date
+     * incrementally like the app's.
+     */
+
+    private static final String USAGE = "usage: ProcessSessions --detector <FaceDetector class> "
+            + "[--threads n] [--feature left|right|both|none] <session folder>...\n"
+            + "  The FaceDetector class is not part of this module and must be on the classpath.\n"
+            + "  Only .jpg, .jpeg, .png, .bmp and .gif files in a session folder are processed.";
+
+
+    public static void main(String[] args) {
+        String detectorClass = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String feature = "both";
+        ArrayList<File> sessions = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if( args[i].equals("--detector") && i + 1 < args.length ){
+                    detectorClass = args[++i];
+                } else if( args[i].equals("--threads") && i + 1 < args.length ){
+                    threads = Integer.parseInt(args[++i]);
+                } else if( args[i].equals("--feature") && i + 1 < args.length ){
+                    feature = args[++i];
+                } else if( args[i].startsWith("--") ){
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                } else {
+                    sessions.add(new File(args[i]));
+                }
+            }
+            if( detectorClass == null ){
+                throw new IllegalArgumentException("No face detector is configured, pass --detector with a "
+                        + "FaceDetector class on the classpath; none ships with this module");
+            }
+            if( sessions.isEmpty() || threads < 1 ){
+                throw new IllegalArgumentException("Missing arguments");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        int[] features = parseFeatures(feature);
+        if( features == null ){
+            System.err.println("Unknown feature " + feature);
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            // fail once up front rather than once per session
+            loadDetectorClass(detectorClass);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        SessionProcessor processor = new SessionProcessor(threads, createFactory(detectorClass));
+        int status;
+        try {
+            status = processAll(processor, sessions, features) == 0 ? 0 : 1;
+        } catch (InterruptedException e) {
+            status = 130;
+        } finally {
+            try {
+                processor.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close the detectors: " + e.getMessage());
+            }
+        }
+        System.exit(status);
+    }
+
+    // the number of sessions that failed
+    private static int processAll(SessionProcessor processor, ArrayList<File> sessions, int[] features)
+            throws InterruptedException {
+        int failures = 0;
+        for (final File session : sessions) {
+            try {
+                for (int f : features) {
+                    long start = System.currentTimeMillis();
+                    int count = processor.process(session, f, new SessionProcessor.ProgressListener() {
+                        @Override
+                        public void onProgress(String stage, int done, int total, float imagesPerSecond) {
+                            System.out.print(String.format(Locale.US, "\r%s %s: %d/%d, %.1f images/s",
+                                    session.getName(), stage, done, total, imagesPerSecond));
+                        }
+                    });
+                    System.out.println(String.format(Locale.US, "\r%s %s: %d new images in %.1f s",
+                            session.getName(), getFeatureName(f), count, (System.currentTimeMillis() - start) / 1000f));
+                }
+            } catch (IOException e) {
+                failures++;
+                System.err.println(session.getPath() + " failed: " + e.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    private static int[] parseFeatures(String feature){
+        switch (feature){
+            case "left":
+                return new int[]{SessionProcessor.FEATURE_LEFT_EYE};
+            case "right":
+                return new int[]{SessionProcessor.FEATURE_RIGHT_EYE};
+            case "both":
+                return new int[]{SessionProcessor.FEATURE_LEFT_EYE, SessionProcessor.FEATURE_RIGHT_EYE};
+            case "none":
+                return new int[]{SessionProcessor.FEATURE_NONE};
+            default:
+                return null;
+        }
+    }
+
+    private static String getFeatureName(int feature){
+        switch (feature){
+            case SessionProcessor.FEATURE_LEFT_EYE:
+                return "left eye";
+            case SessionProcessor.FEATURE_RIGHT_EYE:
+                return "right eye";
+            default:
+                return "detection";
+        }
+    }
+
+    // a new detector for every worker, by reflection
+    static FeatureExtractor.Factory createFactory(final String detectorClass){
+        return new FeatureExtractor.Factory() {
+            @Override
+            public FeatureExtractor create(int workerIdx) throws IOException {
+                try {
+                    return new ImageIOFeatureExtractor(loadDetectorClass(detectorClass).newInstance());
+                } catch (InstantiationException | IllegalAccessException e) {
+                    throw new IOException("Cannot create the detector " + detectorClass + ": " + e, e);
+                }
+            }
+        };
+    }
+
+    static Class<? extends FaceDetector> loadDetectorClass(String detectorClass) throws IOException {
+        Class<?> type;
+        try {
+            type = Class.forName(detectorClass);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The detector " + detectorClass + " is not on the classpath", e);
+        }
+        if( !FaceDetector.class.isAssignableFrom(type) ){
+            throw new IOException("The detector " + detectorClass + " does not implement " + FaceDetector.class.getName());
+        }
+        try {
+            type.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IOException("The detector " + detectorClass + " has no public no-argument constructor", e);
+        }
+        return type.asSubclass(FaceDetector.class);
+    }
+
+}
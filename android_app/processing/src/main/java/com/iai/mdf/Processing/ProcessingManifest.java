@@ -0,0 +1,216 @@
+package com.iai.mdf.Processing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+public class ProcessingManifest {
+
+    /**
+     * Which processing stages are complete for each image of a session, and how long each
+     * output file was when they were. An image is keyed by name, size and modification time,
+     * so an image replaced since is processed again; stages are bits chosen by the caller.
+     * The outputs are append-only: a run truncates them to their committed length, drops
+     * whatever a crash left after it, appends, and commits the manifest again. commit()
+     * syncs the outputs before replacing the manifest through a temporary file, so stages
+     * are never marked done for data that is not on disk.
+     * Binary file: int magic, int version, int output count, then utf output name and long
+     * length, int image count, then utf name, long size, long mtime, int stages.
+     */
+
+    private static final Logger LOG = Logger.getLogger("ProcessingManifest");
+    public static final String  FILE_NAME = "manifest.bin";
+    private static final int    MAGIC = 0x474d414e;     // "GMAN"
+    private static final int    VERSION = 1;
+
+    private final File                      folder;
+    private final File                      file;
+    private final HashMap<String, Entry>    entries = new HashMap<>();
+    private final HashMap<String, Long>     outputLengths = new HashMap<>();
+
+
+    // reads the manifest of the folder, empty if there is none yet
+    public ProcessingManifest(File folder){
+        this.folder = folder;
+        this.file = new File(folder, FILE_NAME);
+        read();
+    }
+
+
+    public synchronized boolean isDone(File image, int stage){
+        Entry entry = entries.get(image.getName());
+        return entry!=null && entry.matches(image) && (entry.stages & stage) == stage;
+    }
+
+    // an image that changed since its last stage loses its other stages
+    public synchronized void markDone(File image, int stage){
+        Entry entry = entries.get(image.getName());
+        if( entry==null || !entry.matches(image) ){
+            entry = new Entry(image.length(), image.lastModified());
+            entries.put(image.getName(), entry);
+        }
+        entry.stages |= stage;
+    }
+
+    // the stage is to be run again for every image, its outputs start empty
+    public synchronized void resetStage(int stage, File... outputs){
+        for (Entry entry : entries.values()) {
+            entry.stages &= ~stage;
+        }
+        for (File output : outputs) {
+            outputLengths.put(keyOf(output), 0L);
+        }
+    }
+
+    // 0 for an output that has never been committed
+    public synchronized long getCommittedLength(File output){
+        Long length = outputLengths.get(keyOf(output));
+        return length==null ? 0 : length;
+    }
+
+    /**
+     * Makes the marks so far durable, with the current lengths of the outputs
+     * @param outputs Output files, flushed by their writers; they are synced first
+     */
+    public synchronized void commit(File... outputs) throws IOException {
+        for (File output : outputs) {
+            sync(output);
+            outputLengths.put(keyOf(output), output.length());
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(outputLengths.size());
+            for (Map.Entry<String, Long> output : outputLengths.entrySet()) {
+                out.writeUTF(output.getKey());
+                out.writeLong(output.getValue());
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> image : entries.entrySet()) {
+                Entry entry = image.getValue();
+                out.writeUTF(image.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modifiedTime);
+                out.writeInt(entry.stages);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if( !tempFile.renameTo(file) ){
+            throw new IOException("Cannot replace " + file.getPath());
+        }
+    }
+
+    /**
+     * Cuts an output back to its committed length, dropping what an interrupted run appended
+     * @return false if the output is shorter than committed, its stages must be run again
+     */
+    public synchronized boolean truncateToCommitted(File output) throws IOException {
+        long length = getCommittedLength(output);
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            if( raf.length() < length ){
+                return false;
+            }
+            raf.setLength(length);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // outputs are told apart by their path in the folder, e.g. "leftEye/samples.bin"
+    private String keyOf(File output){
+        String prefix = folder.getPath() + File.separator;
+        String path = output.getPath();
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : output.getAbsolutePath();
+    }
+
+    private static void sync(File output) throws IOException {
+        if( !output.exists() ){
+            return;
+        }
+        // fsync flushes the file's data whichever descriptor wrote it
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void read(){
+        if( !file.exists() ){
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if( in.readInt()!=MAGIC || in.readInt()!=VERSION ){
+                LOG.warning("Unknown manifest format, the session is processed again");
+                return;
+            }
+            int outputNum = in.readInt();
+            for (int i = 0; i < outputNum; ++i) {
+                outputLengths.put(in.readUTF(), in.readLong());
+            }
+            int imageNum = in.readInt();
+            for (int i = 0; i < imageNum; ++i) {
+                String name = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong());
+                entry.stages = in.readInt();
+                entries.put(name, entry);
+            }
+        } catch (IOException e) {
+            // commit() replaces the file as a whole, so this is not a crash mid-write
+            LOG.warning("Manifest read failed, the session is processed again: " + e.toString());
+            entries.clear();
+            outputLengths.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream){
+        if( stream!=null ){
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+
+    private static class Entry {
+
+        final long  size;
+        final long  modifiedTime;
+        int         stages;
+
+        Entry(long size, long modifiedTime){
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        boolean matches(File image){
+            return image.length()==size && image.lastModified()==modifiedTime;
+        }
+    }
+
+}
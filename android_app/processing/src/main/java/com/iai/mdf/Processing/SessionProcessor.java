@@ -0,0 +1,439 @@
+package com.iai.mdf.Processing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+public class SessionProcessor implements Closeable {
+
+    /**
+     * The offline pipeline of a collected session: detection and landmarks into
+     * detections.bin, then per eye the crop, standardized into normData.dat, the eye image,
+     * and the sample into samples.bin. Everything goes to the session's processedFolder.
+     * Images are spread over the workers of a BatchProcessor, each with its own
+     * FeatureExtractor, and written in name order. The ProcessingManifest keeps track of
+     * what is done, so a run only processes new or changed images and resumes after a crash.
+     * The extractors are kept from one process() to the next, close() releases them.
+     */
+
+    private static final Logger LOG = Logger.getLogger("SessionProcessor");
+    public static final String  PROCESSED_FOLDER_NAME = "processedFolder";
+    public static final String  LEFT_EYE_FOLDER_NAME = "leftEye";
+    public static final String  RIGHT_EYE_FOLDER_NAME = "rightEye";
+    public static final String  NORMALIZED_DATA_FILE_NAME = "normData.dat";
+    public static final int     FEATURE_NONE = -1;
+    public static final int     FEATURE_LEFT_EYE = 0;
+    public static final int     FEATURE_RIGHT_EYE = 1;
+    // stage bits of the session manifest
+    private static final int    STAGE_DETECT = 1;
+    private static final int    STAGE_LEFT_EYE = 2;
+    private static final int    STAGE_RIGHT_EYE = 4;
+    private static final int    CHECKPOINT_INTERVAL = 100;     // images between manifest commits
+    // what ImageIO decodes; other files in the session folder are not images
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+
+
+    public interface ProgressListener {
+        // stage is "Detected" or "Done"
+        void onProgress(String stage, int done, int total, float imagesPerSecond);
+    }
+
+
+    private final FeatureExtractor.Factory  factory;
+    private final FeatureExtractor[]        extractors;
+    private final BatchProcessor<File, FeatureExtractor, GazeDataset.Record>   detectionProcessor;
+    private final BatchProcessor<CropItem, FeatureExtractor, EyeCrop>         cropProcessor;
+
+
+    public SessionProcessor(int workerCount, FeatureExtractor.Factory factory){
+        this.factory = factory;
+        this.extractors = new FeatureExtractor[workerCount];
+        // both phases share the workers' extractors, they never run at the same time
+        BatchProcessor.WorkerFactory<FeatureExtractor> workerFactory = new BatchProcessor.WorkerFactory<FeatureExtractor>() {
+            @Override
+            public FeatureExtractor create(int workerIdx) throws IOException {
+                return getExtractor(workerIdx);
+            }
+        };
+        detectionProcessor = new BatchProcessor<>(workerCount, workerFactory,
+                new BatchProcessor.Task<File, FeatureExtractor, GazeDataset.Record>() {
+                    @Override
+                    public GazeDataset.Record process(FeatureExtractor extractor, File image) throws IOException {
+                        return detect(extractor, image);
+                    }
+                });
+        cropProcessor = new BatchProcessor<>(workerCount, workerFactory,
+                new BatchProcessor.Task<CropItem, FeatureExtractor, EyeCrop>() {
+                    @Override
+                    public EyeCrop process(FeatureExtractor extractor, CropItem item) throws IOException {
+                        return crop(extractor, item);
+                    }
+                });
+    }
+
+    // one worker per core
+    public SessionProcessor(FeatureExtractor.Factory factory){
+        this(Runtime.getRuntime().availableProcessors(), factory);
+    }
+
+    // the running process() returns once the images in progress are done
+    public void cancel(){
+        detectionProcessor.cancel();
+        cropProcessor.cancel();
+    }
+
+
+    // closes the workers' extractors, must not overlap a process(); the next one creates new ones
+    @Override
+    public void close() throws IOException {
+        // both processors hand out the extractors below, they must not keep the closed ones
+        detectionProcessor.releaseWorkers();
+        cropProcessor.releaseWorkers();
+        IOException failure = null;
+        synchronized (extractors) {
+            for (int i = 0; i < extractors.length; ++i) {
+                if( extractors[i] == null ){
+                    continue;
+                }
+                try {
+                    extractors[i].close();
+                } catch (IOException e) {
+                    if( failure == null ){
+                        failure = e;
+                    }
+                }
+                extractors[i] = null;
+            }
+        }
+        if( failure != null ){
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Brings the session's outputs up to date
+     * @param feature FEATURE_*, the crop to make after detection
+     * @return The number of images that were new to the last stage
+     */
+    public int process(File session, int feature, ProgressListener listener)
+            throws IOException, InterruptedException {
+        File processedFolder = new File(session, PROCESSED_FOLDER_NAME);
+        if( !processedFolder.isDirectory() && !processedFolder.mkdirs() ){
+            throw new IOException("Cannot create " + processedFolder.getPath());
+        }
+        ArrayList<File> images = listImages(session);
+        ProcessingManifest manifest = new ProcessingManifest(processedFolder);
+        int newImages = detectAll(images, processedFolder, manifest, listener);
+        if( feature == FEATURE_LEFT_EYE || feature == FEATURE_RIGHT_EYE ){
+            newImages = cropAll(images, processedFolder, manifest, feature, listener);
+        }
+        return newImages;
+    }
+
+    private int detectAll(ArrayList<File> images, File processedFolder, ProcessingManifest manifest,
+                          ProgressListener listener) throws IOException, InterruptedException {
+        File detectionFile = new File(processedFolder, GazeDataset.DETECTION_FILE_NAME);
+        prepareOutputs(manifest, STAGE_DETECT, detectionFile);
+        ArrayList<File> toDetect = listPending(images, manifest, STAGE_DETECT);
+        final GazeDataset.Writer detectionWriter = new GazeDataset.Writer(detectionFile);
+        try {
+            final Checkpointer checkpointer = new Checkpointer(manifest,
+                    new Flushable[]{detectionWriter}, new File[]{detectionFile});
+            detectionProcessor.run(toDetect,
+                    new BatchProcessor.ResultSink<File, GazeDataset.Record>() {
+                        @Override
+                        public void onResult(int index, File image, GazeDataset.Record record) throws IOException {
+                            if( record != null ){
+                                detectionWriter.append(record);
+                            }
+                            checkpointer.done(image, STAGE_DETECT);
+                        }
+                    },
+                    new StageProgress("Detected", listener));
+            checkpointer.commit();
+        } finally {
+            detectionWriter.close();
+        }
+        return toDetect.size();
+    }
+
+    private int cropAll(ArrayList<File> images, File processedFolder, ProcessingManifest manifest,
+                        int feature, ProgressListener listener) throws IOException, InterruptedException {
+        final boolean isLeft = feature == FEATURE_LEFT_EYE;
+        final int stage = isLeft ? STAGE_LEFT_EYE : STAGE_RIGHT_EYE;
+        final File eyeFolder = new File(processedFolder, isLeft ? LEFT_EYE_FOLDER_NAME : RIGHT_EYE_FOLDER_NAME);
+        if( !eyeFolder.isDirectory() && !eyeFolder.mkdirs() ){
+            throw new IOException("Cannot create " + eyeFolder.getPath());
+        }
+        File sampleFile = new File(eyeFolder, GazeDataset.SAMPLE_FILE_NAME);
+        File normalizedDataFile = new File(eyeFolder, NORMALIZED_DATA_FILE_NAME);
+        // the sample count and the normData.dat rows go back to the same commit
+        prepareOutputs(manifest, stage, sampleFile, normalizedDataFile);
+        ArrayList<CropItem> toCrop = new ArrayList<>();
+        GazeDataset.Reader detections = new GazeDataset.Reader(new File(processedFolder, GazeDataset.DETECTION_FILE_NAME));
+        try {
+            HashMap<String, Integer> detectionIdx = detections.indexByName();
+            for (File image : listPending(images, manifest, stage)) {
+                Integer idx = detectionIdx.get(image.getName());
+                GazeDataset.Record record = null;
+                if( idx != null ){
+                    record = new GazeDataset.Record();
+                    detections.read(idx, record);
+                }
+                toCrop.add(new CropItem(image, record, isLeft));
+            }
+        } finally {
+            detections.close();
+        }
+        final GazeDataset.Writer sampleWriter = new GazeDataset.Writer(sampleFile);
+        final NormalizedDataWriter normalizedDataWriter = new NormalizedDataWriter(normalizedDataFile);
+        try {
+            final Checkpointer checkpointer = new Checkpointer(manifest,
+                    new Flushable[]{sampleWriter, normalizedDataWriter},
+                    new File[]{sampleFile, normalizedDataFile});
+            cropProcessor.run(toCrop,
+                    new BatchProcessor.ResultSink<CropItem, EyeCrop>() {
+                        @Override
+                        public void onResult(int index, CropItem item, EyeCrop crop) throws IOException {
+                            if( crop != null ){
+                                normalizedDataWriter.append(crop.rgb, EyeRegion.ROWS, EyeRegion.COLUMNS);
+                                writeAtomically(new File(eyeFolder, item.image.getName()), crop.encoded);
+                                // the crop's row in normData.dat is the sample index
+                                item.record.imageOffset = sampleWriter.getRecordCount();
+                                sampleWriter.append(item.record);
+                            }
+                            checkpointer.done(item.image, stage);
+                        }
+                    },
+                    new StageProgress("Done", listener));
+            checkpointer.commit();
+        } finally {
+            try {
+                normalizedDataWriter.close();
+            } finally {
+                sampleWriter.close();
+            }
+        }
+        return toCrop.size();
+    }
+
+
+    /**
+     * Called on a worker thread
+     * @return The detection record, without FLAG_DETECTED if no face or landmarks are found;
+     * null if the image cannot be recorded
+     */
+    private GazeDataset.Record detect(FeatureExtractor extractor, File image) throws IOException {
+        if( image.getName().length() > GazeDataset.NAME_BYTES ){
+            LOG.warning("Name too long for the dataset, skipped " + image.getName());
+            return null;
+        }
+        // a miss is recorded too, it replaces the record of an earlier version of the image
+        GazeDataset.Record record = new GazeDataset.Record();
+        record.name = image.getName();
+        record.flags = 0;
+        record.imageOffset = -1;
+        setGazeTarget(image, record);
+        if( !extractor.detect(image, record) ){
+            LOG.warning("Cannot read " + image.getName());
+            return null;
+        }
+        return record;
+    }
+
+    // called on a worker thread; null if there is nothing to crop
+    private EyeCrop crop(FeatureExtractor extractor, CropItem item) throws IOException {
+        if( item.record == null || !item.record.isDetected() ){
+            LOG.info("Face is not detected in " + item.image.getName());
+            return null;
+        }
+        double[] landmarks = new double[GazeDataset.LANDMARK_NUM * 2];
+        item.record.getLandmarks(landmarks);
+        int[] rect = EyeRegion.getCropRect(landmarks, item.isLeft);
+        byte[] rgb = new byte[EyeRegion.ROWS * EyeRegion.COLUMNS * EyeRegion.CHANNELS];
+        byte[] encoded = extractor.crop(item.image, rect, EyeRegion.ROWS, EyeRegion.COLUMNS, rgb);
+        if( encoded == null ){
+            LOG.info("Eye is not inside " + item.image.getName());
+            return null;
+        }
+        return new EyeCrop(rgb, encoded);
+    }
+
+    // the dot position is in the name, "<time>_<index>_<x>_<y>.jpg"
+    static void setGazeTarget(File image, GazeDataset.Record record){
+        String nameWithExt = image.getName();
+        int dot = nameWithExt.lastIndexOf('.');
+        String[] comp = (dot > 0 ? nameWithExt.substring(0, dot) : nameWithExt).split("_");
+        record.targetX = Float.NaN;
+        record.targetY = Float.NaN;
+        if( comp.length < 4 ){
+            return;
+        }
+        try {
+            record.targetX = Float.parseFloat(comp[2]);
+            record.targetY = Float.parseFloat(comp[3]);
+        } catch (NumberFormatException e) {
+            LOG.info("No gaze target in " + nameWithExt);
+        }
+    }
+
+    private FeatureExtractor getExtractor(int workerIdx) throws IOException {
+        synchronized (extractors) {
+            if( extractors[workerIdx] != null ){
+                return extractors[workerIdx];
+            }
+        }
+        FeatureExtractor extractor = factory.create(workerIdx);
+        synchronized (extractors) {
+            extractors[workerIdx] = extractor;
+        }
+        return extractor;
+    }
+
+    // cuts the outputs back to the last commit; if one lost committed data, the stage starts over
+    private static void prepareOutputs(ProcessingManifest manifest, int stage, File... outputs) throws IOException {
+        boolean isIntact = true;
+        for (File output : outputs) {
+            isIntact &= manifest.truncateToCommitted(output);
+        }
+        if( !isIntact ){
+            LOG.warning("Outputs are shorter than the manifest, processing stage " + stage + " again");
+            manifest.resetStage(stage, outputs);
+            for (File output : outputs) {
+                manifest.truncateToCommitted(output);
+            }
+        }
+    }
+
+    private static ArrayList<File> listPending(ArrayList<File> images, ProcessingManifest manifest, int stage){
+        ArrayList<File> pending = new ArrayList<>();
+        for (File image : images) {
+            if( !manifest.isDone(image, stage) ){
+                pending.add(image);
+            }
+        }
+        return pending;
+    }
+
+    // the images of a session, sorted by name so the datasets come out in the same order every run
+    private static ArrayList<File> listImages(File session){
+        ArrayList<File> images = new ArrayList<>();
+        File[] files = session.listFiles();
+        if( files != null ){
+            for (File file : files) {
+                if( !file.isDirectory() && isImage(file) ){
+                    images.add(file);
+                }
+            }
+        }
+        Collections.sort(images);
+        return images;
+    }
+
+    private static boolean isImage(File file){
+        String name = file.getName().toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if( name.endsWith(extension) ){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // through a temporary name, a crash must not leave a truncated file
+    private static void writeAtomically(File file, byte[] content) throws IOException {
+        File tempFile = new File(file.getParent(), "tmp_" + file.getName());
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        if( !tempFile.renameTo(file) ){
+            throw new IOException("Cannot create " + file.getPath());
+        }
+    }
+
+
+    private static class CropItem {
+
+        final File                  image;
+        final GazeDataset.Record    record;     // null if the image has no detection record
+        final boolean               isLeft;
+
+        CropItem(File image, GazeDataset.Record record, boolean isLeft){
+            this.image = image;
+            this.record = record;
+            this.isLeft = isLeft;
+        }
+    }
+
+    private static class EyeCrop {
+
+        final byte[] rgb;
+        final byte[] encoded;
+
+        EyeCrop(byte[] rgb, byte[] encoded){
+            this.rgb = rgb;
+            this.encoded = encoded;
+        }
+    }
+
+    // marks images done in image order and commits every CHECKPOINT_INTERVAL of them,
+    // so a crash redoes at most that many
+    private static class Checkpointer {
+
+        private final ProcessingManifest    manifest;
+        private final Flushable[]           writers;
+        private final File[]                outputs;
+        private int                         uncommitted = 0;
+
+        Checkpointer(ProcessingManifest manifest, Flushable[] writers, File[] outputs){
+            this.manifest = manifest;
+            this.writers = writers;
+            this.outputs = outputs;
+        }
+
+        void done(File image, int stage) throws IOException {
+            manifest.markDone(image, stage);
+            if( ++uncommitted >= CHECKPOINT_INTERVAL ){
+                commit();
+            }
+        }
+
+        void commit() throws IOException {
+            for (Flushable writer : writers) {
+                writer.flush();
+            }
+            manifest.commit(outputs);
+            uncommitted = 0;
+        }
+    }
+
+    private static class StageProgress implements BatchProcessor.ProgressListener {
+
+        private final String            stage;
+        private final ProgressListener  listener;
+
+        StageProgress(String stage, ProgressListener listener){
+            this.stage = stage;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onProgress(int done, int total, float itemsPerSecond) {
+            if( listener != null ){
+                listener.onProgress(stage, done, total, itemsPerSecond);
+            }
+        }
+    }
+
+}
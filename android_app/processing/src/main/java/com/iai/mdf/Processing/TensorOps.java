@@ -0,0 +1,111 @@
+package com.iai.mdf.Processing;
+
+import java.nio.FloatBuffer;
+
+public class TensorOps {
+
+    /**
+     * Per-sample standardization and layout conversion of images stored in flat float arrays,
+     * described by a TensorShape. Plain Java, so the app and the desktop runner preprocess
+     * crops the same way.
+     */
+
+
+    // raw samples --> standardized samples; src and dst share the same shape and may not overlap
+    public static void standardizePerSample(int[] src, float[] dst, TensorShape shape){
+        int sampleLength = shape.getSampleLength();
+        for (int i = 0; i < shape.getLength(); ++i) {
+            dst[i] = src[i];
+        }
+        for (int n = 0; n < shape.getBatch(); ++n) {
+            standardizeRange(dst, n * sampleLength, sampleLength);
+        }
+    }
+
+    // in place: every sample becomes (x - mean) / stddev over all of its elements
+    public static void standardizePerSample(float[] data, TensorShape shape){
+        int sampleLength = shape.getSampleLength();
+        for (int n = 0; n < shape.getBatch(); ++n) {
+            standardizeRange(data, n * sampleLength, sampleLength);
+        }
+    }
+
+    public static void standardizePerSample(FloatBuffer data, TensorShape shape){
+        int sampleLength = shape.getSampleLength();
+        int base = data.position();
+        if (data.hasArray()) {
+            for (int n = 0; n < shape.getBatch(); ++n) {
+                standardizeRange(data.array(), data.arrayOffset() + base + n * sampleLength, sampleLength);
+            }
+            return;
+        }
+        for (int n = 0; n < shape.getBatch(); ++n) {
+            int offset = base + n * sampleLength;
+            double sum = 0;
+            double sumSq = 0;
+            for (int i = offset; i < offset + sampleLength; ++i) {
+                double x = data.get(i);
+                sum += x;
+                sumSq += x * x;
+            }
+            float mean = (float) (sum / sampleLength);
+            float invDev = inverseStdDev(sum, sumSq, sampleLength);
+            for (int i = offset; i < offset + sampleLength; ++i) {
+                data.put(i, (data.get(i) - mean) * invDev);
+            }
+        }
+    }
+
+    private static void standardizeRange(float[] data, int offset, int length){
+        double sum = 0;
+        double sumSq = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            double x = data[i];
+            sum += x;
+            sumSq += x * x;
+        }
+        float mean = (float) (sum / length);
+        float invDev = inverseStdDev(sum, sumSq, length);
+        for (int i = offset; i < offset + length; ++i) {
+            data[i] = (data[i] - mean) * invDev;
+        }
+    }
+
+    // 1 / sample standard deviation (n - 1), or 0 for a constant sample
+    private static float inverseStdDev(double sum, double sumSq, int length){
+        double variance = (sumSq - sum * sum / length) / (length - 1);
+        return variance > 0 ? (float) (1.0 / Math.sqrt(variance)) : 0;
+    }
+
+    // copies src into dst re-ordered to dst's layout; dst is written sequentially
+    public static void convertLayout(float[] src, TensorShape srcShape, float[] dst, TensorShape dstShape){
+        if (!srcShape.hasSameDimensions(dstShape)) {
+            throw new IllegalArgumentException("Tensor dimensions do not match");
+        }
+        int outer = dstShape.getDim(0);
+        int middle = dstShape.getDim(1);
+        int inner = dstShape.getDim(2);
+        int outerExtent = dstShape.getExtent(outer);
+        int middleExtent = dstShape.getExtent(middle);
+        int innerExtent = dstShape.getExtent(inner);
+        int outerStride = srcShape.getStride(outer);
+        int middleStride = srcShape.getStride(middle);
+        int innerStride = srcShape.getStride(inner);
+        int sampleLength = srcShape.getSampleLength();
+        int dstIndex = 0;
+        for (int n = 0; n < srcShape.getBatch(); ++n) {
+            int sampleBase = n * sampleLength;
+            for (int i = 0; i < outerExtent; ++i) {
+                int outerBase = sampleBase + i * outerStride;
+                for (int j = 0; j < middleExtent; ++j) {
+                    int srcIndex = outerBase + j * middleStride;
+                    for (int k = 0; k < innerExtent; ++k) {
+                        dst[dstIndex++] = src[srcIndex];
+                        srcIndex += innerStride;
+                    }
+                }
+            }
+        }
+    }
+
+}
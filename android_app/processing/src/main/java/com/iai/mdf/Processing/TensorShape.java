@@ -0,0 +1,101 @@
+package com.iai.mdf.Processing;
+
+public class TensorShape {
+
+    /**
+     * Shape and memory layout of a batch of images stored in a flat float array.
+     * The batch dimension is always outermost, so every sample is one contiguous block.
+     */
+
+    public static final int LAYOUT_NHWC = 0;    // TensorFlow input
+    public static final int LAYOUT_NCHW = 1;
+    public static final int LAYOUT_NCWH = 2;    // channel planes stored column by column, as the Python/MATLAB dumps
+    public static final int DIM_HEIGHT = 0;
+    public static final int DIM_WIDTH = 1;
+    public static final int DIM_CHANNEL = 2;
+    private static final int[][] DIM_ORDERS = {
+            {DIM_HEIGHT, DIM_WIDTH, DIM_CHANNEL},
+            {DIM_CHANNEL, DIM_HEIGHT, DIM_WIDTH},
+            {DIM_CHANNEL, DIM_WIDTH, DIM_HEIGHT}
+    };
+
+    private final int   batch;
+    private final int   layout;
+    private final int[] extents = new int[3];
+    private final int[] strides = new int[3];
+
+
+    public TensorShape(int batch, int height, int width, int channels, int layout){
+        if( layout < LAYOUT_NHWC || layout > LAYOUT_NCWH ){
+            throw new IllegalArgumentException("Unknown layout: " + layout);
+        }
+        this.batch = batch;
+        this.layout = layout;
+        extents[DIM_HEIGHT] = height;
+        extents[DIM_WIDTH] = width;
+        extents[DIM_CHANNEL] = channels;
+        // innermost dimension of the layout has stride 1
+        int[] order = DIM_ORDERS[layout];
+        int stride = 1;
+        for(int i = order.length - 1; i >= 0; --i){
+            strides[order[i]] = stride;
+            stride *= extents[order[i]];
+        }
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public int getHeight() {
+        return extents[DIM_HEIGHT];
+    }
+
+    public int getWidth() {
+        return extents[DIM_WIDTH];
+    }
+
+    public int getChannels() {
+        return extents[DIM_CHANNEL];
+    }
+
+    public int getLayout() {
+        return layout;
+    }
+
+    public int getExtent(int dim){
+        return extents[dim];
+    }
+
+    public int getStride(int dim){
+        return strides[dim];
+    }
+
+    // dimensions from outermost to innermost, batch excluded
+    public int getDim(int position){
+        return DIM_ORDERS[layout][position];
+    }
+
+    public int getSampleLength(){
+        return extents[DIM_HEIGHT] * extents[DIM_WIDTH] * extents[DIM_CHANNEL];
+    }
+
+    public int getLength(){
+        return batch * getSampleLength();
+    }
+
+    public int offsetOf(int n, int h, int w, int c){
+        return n * getSampleLength()
+                + h * strides[DIM_HEIGHT]
+                + w * strides[DIM_WIDTH]
+                + c * strides[DIM_CHANNEL];
+    }
+
+    public boolean hasSameDimensions(TensorShape other){
+        return batch == other.batch
+                && extents[DIM_HEIGHT] == other.extents[DIM_HEIGHT]
+                && extents[DIM_WIDTH] == other.extents[DIM_WIDTH]
+                && extents[DIM_CHANNEL] == other.extents[DIM_CHANNEL];
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.iai.mdf.Processing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchProcessorTest {
+
+    @Test
+    public void run_mergesInItemOrderAcrossWorkers() throws Exception {
+        final int workerCount = 4;
+        final AtomicInteger createdWorkers = new AtomicInteger(0);
+        final Set<String> usedThreads = Collections.synchronizedSet(new HashSet<String>());
+        BatchProcessor<Integer, int[], Integer> processor = new BatchProcessor<>(workerCount,
+                new BatchProcessor.WorkerFactory<int[]>() {
+                    @Override
+                    public int[] create(int workerIdx) {
+                        createdWorkers.incrementAndGet();
+                        return new int[]{workerIdx};
+                    }
+                },
+                new BatchProcessor.Task<Integer, int[], Integer>() {
+                    private final Random random = new Random(7);
+                    @Override
+                    public Integer process(int[] worker, Integer item) {
+                        usedThreads.add(Thread.currentThread().getName());
+                        int delay;
+                        synchronized (random) {
+                            delay = random.nextInt(3);
+                        }
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        // odd items give no result
+                        return item % 2 == 0 ? item * 10 : null;
+                    }
+                });
+        ArrayList<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 300; ++i) {
+            items.add(i);
+        }
+        final ArrayList<Integer> indices = new ArrayList<>();
+        final ArrayList<Integer> results = new ArrayList<>();
+        final int[] lastProgress = new int[1];
+        for (int pass = 0; pass < 2; ++pass) {
+            indices.clear();
+            results.clear();
+            int emitted = processor.run(items,
+                    new BatchProcessor.ResultSink<Integer, Integer>() {
+                        @Override
+                        public void onResult(int index, Integer item, Integer result) {
+                            indices.add(index);
+                            results.add(result);
+                        }
+                    },
+                    new BatchProcessor.ProgressListener() {
+                        @Override
+                        public void onProgress(int done, int total, float itemsPerSecond) {
+                            assertTrue(done > lastProgress[0] || done == total);
+                            lastProgress[0] = done;
+                        }
+                    });
+            assertEquals(300, emitted);
+            assertEquals(300, lastProgress[0]);
+            lastProgress[0] = 0;
+            for (int i = 0; i < 300; ++i) {
+                assertEquals(i, (int) indices.get(i));
+                assertEquals(i % 2 == 0 ? Integer.valueOf(i * 10) : null, results.get(i));
+            }
+        }
+        // workers are kept across runs, and every one of them took items
+        assertEquals(workerCount, createdWorkers.get());
+        assertTrue(usedThreads.size() > 1);
+    }
+
+    @Test
+    public void run_stopsAtTheFirstFailure() throws Exception {
+        BatchProcessor<Integer, Object, Integer> processor = new BatchProcessor<>(3,
+                new BatchProcessor.WorkerFactory<Object>() {
+                    @Override
+                    public Object create(int workerIdx) {
+                        return new Object();
+                    }
+                },
+                new BatchProcessor.Task<Integer, Object, Integer>() {
+                    @Override
+                    public Integer process(Object worker, Integer item) throws IOException {
+                        if( item == 50 ){
+                            throw new IOException("bad item");
+                        }
+                        return item;
+                    }
+                });
+        ArrayList<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            items.add(i);
+        }
+        final int[] emitted = new int[1];
+        try {
+            processor.run(items, new BatchProcessor.ResultSink<Integer, Integer>() {
+                @Override
+                public void onResult(int index, Integer item, Integer result) {
+                    emitted[0]++;
+                }
+            }, null);
+            fail("The failure is not reported");
+        } catch (IOException e) {
+            assertEquals("bad item", e.getMessage());
+        }
+        // nothing after the failed item reaches the sink
+        assertTrue(emitted[0] <= 50);
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.iai.mdf.Processing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class GazeDatasetTest {
+
+    @Test
+    public void dataset_roundTripsAndAppends() throws Exception {
+        File file = File.createTempFile("dataset", ".bin");
+        file.delete();
+        GazeDataset.Record record = new GazeDataset.Record();
+        GazeDataset.Writer writer = new GazeDataset.Writer(file);
+        // more than one write batch
+        for (int i = 0; i < 150; ++i) {
+            fill(record, i);
+            assertEquals(i, writer.append(record));
+        }
+        writer.close();
+        // reopened, appends after the existing records
+        writer = new GazeDataset.Writer(file);
+        assertEquals(150, writer.getRecordCount());
+        fill(record, 150);
+        writer.append(record);
+        writer.close();
+
+        GazeDataset.Reader reader = new GazeDataset.Reader(file);
+        assertEquals(151, reader.getRecordCount());
+        GazeDataset.Record read = new GazeDataset.Record();
+        for (int i = 0; i < 151; ++i) {
+            reader.read(i, read);
+            assertEquals(i + "_0_" + i + "_7.jpg", read.name);
+            assertTrue(read.isDetected());
+            assertEquals(i, read.face[0]);
+            assertEquals(i * 0.5f, read.landmarks[97], 0);
+            assertEquals(i, read.targetX, 0);
+            assertEquals(i * 10L, read.imageOffset);
+        }
+        HashMap<String, Integer> index = reader.indexByName();
+        assertEquals(Integer.valueOf(42), index.get("42_0_42_7.jpg"));
+        reader.close();
+        file.delete();
+    }
+
+    @Test
+    public void dataset_dropsPartialRecord() throws Exception {
+        File file = File.createTempFile("dataset", ".bin");
+        file.delete();
+        GazeDataset.Record record = new GazeDataset.Record();
+        GazeDataset.Writer writer = new GazeDataset.Writer(file);
+        fill(record, 1);
+        writer.append(record);
+        writer.close();
+        // a crash in the middle of the next record
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[GazeDataset.RECORD_SIZE / 2]);
+        out.close();
+        GazeDataset.Reader reader = new GazeDataset.Reader(file);
+        assertEquals(1, reader.getRecordCount());
+        reader.close();
+        writer = new GazeDataset.Writer(file);
+        fill(record, 2);
+        assertEquals(1, writer.append(record));
+        writer.close();
+        assertEquals(GazeDataset.HEADER_SIZE + 2 * GazeDataset.RECORD_SIZE, file.length());
+        file.delete();
+    }
+
+
+    private static void fill(GazeDataset.Record record, int i){
+        record.name = i + "_0_" + i + "_7.jpg";
+        record.flags = GazeDataset.FLAG_DETECTED;
+        record.face[0] = i;
+        for (int j = 0; j < record.landmarks.length; ++j) {
+            record.landmarks[j] = i * 0.5f;
+        }
+        record.targetX = i;
+        record.targetY = 7;
+        record.imageOffset = i * 10L;
+    }
+
+}
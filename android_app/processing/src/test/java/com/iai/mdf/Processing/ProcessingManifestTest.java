@@ -0,0 +1,88 @@
+package com.iai.mdf.Processing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ProcessingManifestTest {
+
+    private static final int STAGE_DETECT = 1;
+    private static final int STAGE_CROP = 2;
+
+    @Test
+    public void manifest_tracksStagesPerImageVersion() throws Exception {
+        File folder = createFolder();
+        File image = new File(folder, "1_0_0.5_0.5.jpg");
+        write(image, 100, false);
+        image.setLastModified(1000000L);
+
+        ProcessingManifest manifest = new ProcessingManifest(folder);
+        assertFalse(manifest.isDone(image, STAGE_DETECT));
+        manifest.markDone(image, STAGE_DETECT);
+        manifest.markDone(image, STAGE_CROP);
+        assertTrue(manifest.isDone(image, STAGE_DETECT | STAGE_CROP));
+        manifest.commit();
+
+        // read back
+        manifest = new ProcessingManifest(folder);
+        assertTrue(manifest.isDone(image, STAGE_DETECT));
+        assertTrue(manifest.isDone(image, STAGE_CROP));
+
+        // a replaced image starts over, its new stages only
+        write(image, 120, false);
+        image.setLastModified(2000000L);
+        assertFalse(manifest.isDone(image, STAGE_DETECT));
+        manifest.markDone(image, STAGE_DETECT);
+        assertTrue(manifest.isDone(image, STAGE_DETECT));
+        assertFalse(manifest.isDone(image, STAGE_CROP));
+    }
+
+    @Test
+    public void manifest_truncatesOutputsToTheLastCommit() throws Exception {
+        File folder = createFolder();
+        new File(folder, "leftEye").mkdir();
+        new File(folder, "rightEye").mkdir();
+        File left = new File(folder, "leftEye/normData.dat");
+        File right = new File(folder, "rightEye/normData.dat");
+        write(left, 40, false);
+        write(right, 10, false);
+
+        ProcessingManifest manifest = new ProcessingManifest(folder);
+        manifest.commit(left, right);
+        // an interrupted run appended without committing
+        write(left, 25, true);
+        manifest = new ProcessingManifest(folder);
+        assertEquals(40, manifest.getCommittedLength(left));
+        assertEquals(10, manifest.getCommittedLength(right));
+        assertTrue(manifest.truncateToCommitted(left));
+        assertEquals(40, left.length());
+
+        // an output that lost committed data is reported, and can be reset
+        write(right, 5, false);
+        assertFalse(manifest.truncateToCommitted(right));
+        manifest.resetStage(STAGE_CROP, right);
+        assertTrue(manifest.truncateToCommitted(right));
+        assertEquals(0, right.length());
+    }
+
+    private static File createFolder() throws IOException {
+        File folder = File.createTempFile("session", "");
+        folder.delete();
+        folder.mkdir();
+        return folder;
+    }
+
+    private static void write(File file, int length, boolean isAppend) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, isAppend);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+}
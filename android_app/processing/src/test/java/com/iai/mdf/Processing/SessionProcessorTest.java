@@ -0,0 +1,166 @@
+package com.iai.mdf.Processing;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class SessionProcessorTest {
+
+    @Test
+    public void process_runsThePipelineAndThenOnlyTheDelta() throws Exception {
+        File session = File.createTempFile("session", "");
+        session.delete();
+        session.mkdir();
+        for (int i = 0; i < 6; ++i) {
+            writeImage(session, "100" + i + "_" + i + "_0.25_0.75.png", false);
+        }
+        writeImage(session, "1006_6_0.5_0.5.png", true);
+        // not an image, left alone
+        FileWriter notes = new FileWriter(new File(session, "notes.txt"));
+        notes.write("session notes");
+        notes.close();
+        SessionProcessor processor = new SessionProcessor(3, ProcessSessions.createFactory(StubFaceDetector.class.getName()));
+
+        assertEquals(7, processor.process(session, SessionProcessor.FEATURE_LEFT_EYE, null));
+        File processed = new File(session, SessionProcessor.PROCESSED_FOLDER_NAME);
+        File eyeFolder = new File(processed, SessionProcessor.LEFT_EYE_FOLDER_NAME);
+        GazeDataset.Reader detections = new GazeDataset.Reader(new File(processed, GazeDataset.DETECTION_FILE_NAME));
+        GazeDataset.Record record = new GazeDataset.Record();
+        assertEquals(7, detections.getRecordCount());
+        detections.read(6, record);
+        // the blank image is recorded as a miss
+        assertEquals("1006_6_0.5_0.5.png", record.name);
+        assertFalse(record.isDetected());
+        detections.close();
+        checkSamples(eyeFolder, 6);
+        assertTrue(new File(eyeFolder, "1003_3_0.25_0.75.png").exists());
+
+        // nothing new
+        assertEquals(0, processor.process(session, SessionProcessor.FEATURE_LEFT_EYE, null));
+        checkSamples(eyeFolder, 6);
+
+        // one more image, and an interrupted run left a partial row behind
+        writeImage(session, "1007_7_0.25_0.75.png", false);
+        FileWriter partial = new FileWriter(new File(eyeFolder, SessionProcessor.NORMALIZED_DATA_FILE_NAME), true);
+        partial.write("0.1 0.2");
+        partial.close();
+        assertEquals(1, processor.process(session, SessionProcessor.FEATURE_LEFT_EYE, null));
+        checkSamples(eyeFolder, 7);
+    }
+
+    @Test
+    public void close_releasesTheExtractorsOfEveryWorker() throws Exception {
+        File session = File.createTempFile("session", "");
+        session.delete();
+        session.mkdir();
+        for (int i = 0; i < 4; ++i) {
+            writeImage(session, "100" + i + "_" + i + "_0.25_0.75.png", false);
+        }
+        final FeatureExtractor.Factory stubs = ProcessSessions.createFactory(StubFaceDetector.class.getName());
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        SessionProcessor processor = new SessionProcessor(2, new FeatureExtractor.Factory() {
+            @Override
+            public FeatureExtractor create(int workerIdx) throws IOException {
+                created.incrementAndGet();
+                final FeatureExtractor extractor = stubs.create(workerIdx);
+                return new FeatureExtractor() {
+                    @Override
+                    public boolean detect(File image, GazeDataset.Record record) throws IOException {
+                        return extractor.detect(image, record);
+                    }
+
+                    @Override
+                    public byte[] crop(File image, int[] rect, int rows, int cols, byte[] rgb) throws IOException {
+                        return extractor.crop(image, rect, rows, cols, rgb);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        closed.incrementAndGet();
+                        extractor.close();
+                    }
+                };
+            }
+        });
+        processor.process(session, SessionProcessor.FEATURE_LEFT_EYE, null);
+        assertEquals(0, closed.get());
+        processor.close();
+        assertEquals(created.get(), closed.get());
+        // closing twice releases nothing more, and a new run gets new extractors
+        processor.close();
+        assertEquals(created.get(), closed.get());
+        int firstRun = created.get();
+        writeImage(session, "1004_4_0.25_0.75.png", false);
+        assertEquals(1, processor.process(session, SessionProcessor.FEATURE_LEFT_EYE, null));
+        processor.close();
+        assertTrue(created.get() > firstRun);
+        assertEquals(created.get(), closed.get());
+    }
+
+    @Test
+    public void appendFixed_printsLikeC(){
+        StringBuilder sb = new StringBuilder();
+        NormalizedDataWriter.appendFixed(sb, 1.5f);
+        sb.append(' ');
+        NormalizedDataWriter.appendFixed(sb, -0.000004f);
+        sb.append(' ');
+        NormalizedDataWriter.appendFixed(sb, 0.0000126f);
+        sb.append(' ');
+        NormalizedDataWriter.appendFixed(sb, -2.25f);
+        sb.append(' ');
+        NormalizedDataWriter.appendFixed(sb, Float.NaN);
+        assertEquals("1.500000 -0.000004 0.000013 -2.250000 nan", sb.toString());
+    }
+
+    // samples and normData.dat rows match one to one, and every row is a standardized crop
+    private static void checkSamples(File eyeFolder, int count) throws IOException {
+        GazeDataset.Reader samples = new GazeDataset.Reader(new File(eyeFolder, GazeDataset.SAMPLE_FILE_NAME));
+        GazeDataset.Record record = new GazeDataset.Record();
+        assertEquals(count, samples.getRecordCount());
+        for (int i = 0; i < count; ++i) {
+            samples.read(i, record);
+            assertEquals(i, record.imageOffset);
+            assertEquals(0.25f, record.targetX, 0);
+            assertEquals(0.75f, record.targetY, 0);
+        }
+        samples.close();
+        BufferedReader in = new BufferedReader(new FileReader(new File(eyeFolder, SessionProcessor.NORMALIZED_DATA_FILE_NAME)));
+        int rows = 0;
+        String line;
+        while( (line = in.readLine()) != null ){
+            String[] values = line.split(" ");
+            assertEquals(EyeRegion.ROWS * EyeRegion.COLUMNS * EyeRegion.CHANNELS, values.length);
+            double sum = 0;
+            for (String value : values) {
+                sum += Double.parseDouble(value);
+            }
+            assertEquals(0, sum / values.length, 1e-3);
+            rows++;
+        }
+        in.close();
+        assertEquals(count, rows);
+    }
+
+    private static void writeImage(File folder, String name, boolean isBlank) throws IOException {
+        BufferedImage img = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < img.getHeight(); ++y) {
+            for (int x = 0; x < img.getWidth(); ++x) {
+                int v = (x * 7 + y * 3 + name.hashCode()) & 0xff;
+                img.setRGB(x, y, isBlank ? 0xffffff : (v << 16) | ((255 - v) << 8) | (v / 2));
+            }
+        }
+        ImageIO.write(img, "png", new File(folder, name));
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.iai.mdf.Processing;
+
+public class StubFaceDetector implements FaceDetector {
+
+    /**
+     * Detector for tests, no models needed: a face fills the middle of any image that is not
+     * blank, with the eye corners at fixed fractions of the image.
+     */
+
+    private static final int BLANK_LEVEL = 250;
+
+
+    @Override
+    public boolean detect(byte[] gray, int width, int height, int[] face, double[] landmarks) {
+        long sum = 0;
+        for (int i = 0; i < width * height; ++i) {
+            sum += gray[i] & 0xff;
+        }
+        if( sum >= (long) BLANK_LEVEL * width * height ){
+            return false;
+        }
+        face[0] = width / 4;
+        face[1] = height / 4;
+        face[2] = width / 2;
+        face[3] = height / 2;
+        for (int i = 0; i < landmarks.length; i += 2) {
+            landmarks[i] = width / 2.0;
+            landmarks[i + 1] = height / 2.0;
+        }
+        // right eye corners 19 and 22, left eye corners 25 and 28
+        setPoint(landmarks, 19, width * 0.25, height * 0.4);
+        setPoint(landmarks, 22, width * 0.45, height * 0.4);
+        setPoint(landmarks, 25, width * 0.55, height * 0.4);
+        setPoint(landmarks, 28, width * 0.75, height * 0.4);
+        return true;
+    }
+
+    private static void setPoint(double[] landmarks, int idx, double x, double y){
+        landmarks[idx * 2] = x;
+        landmarks[idx * 2 + 1] = y;
+    }
+
+}
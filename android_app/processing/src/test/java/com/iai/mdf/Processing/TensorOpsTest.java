@@ -0,0 +1,141 @@
+package com.iai.mdf.Processing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TensorOpsTest {
+
+    private static final int BATCH = 2;
+    private static final int ROWS = 36;
+    private static final int COLUMNS = 60;
+    private static final int CHANNELS = 3;
+
+
+    @Test
+    public void convertLayout_roundTripsBetweenNCWHAndNHWC() throws Exception {
+        TensorShape ncwh = new TensorShape(BATCH, ROWS, COLUMNS, CHANNELS, TensorShape.LAYOUT_NCWH);
+        TensorShape nhwc = new TensorShape(BATCH, ROWS, COLUMNS, CHANNELS, TensorShape.LAYOUT_NHWC);
+        float[] src = new float[ncwh.getLength()];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = i;
+        }
+        float[] converted = new float[src.length];
+        TensorOps.convertLayout(src, ncwh, converted, nhwc);
+        // every element moves to where its (n, h, w, c) is in the new layout
+        for (int n = 0; n < BATCH; ++n) {
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        assertEquals(src[ncwh.offsetOf(n, h, w, c)], converted[nhwc.offsetOf(n, h, w, c)], 0);
+                    }
+                }
+            }
+        }
+        // NCWH steps rows first, then columns; NHWC steps channels, then columns, then rows
+        assertEquals(src[1], converted[COLUMNS * CHANNELS], 0);
+        assertEquals(src[ROWS], converted[CHANNELS], 0);
+        float[] back = new float[src.length];
+        TensorOps.convertLayout(converted, nhwc, back, ncwh);
+        assertArrayEquals(src, back, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convertLayout_rejectsDifferentDimensions() throws Exception {
+        TensorOps.convertLayout(
+                new float[ROWS * COLUMNS * CHANNELS], new TensorShape(1, ROWS, COLUMNS, CHANNELS, TensorShape.LAYOUT_NCWH),
+                new float[ROWS * COLUMNS * CHANNELS], new TensorShape(1, COLUMNS, ROWS, CHANNELS, TensorShape.LAYOUT_NHWC));
+    }
+
+    @Test
+    public void standardization_matchesThe4DPath() throws Exception {
+        int[][][][] raw = randomImages(new Random(7));
+        float[][][][] expected = standardize4D(raw);
+        TensorShape shape = new TensorShape(BATCH, ROWS, COLUMNS, CHANNELS, TensorShape.LAYOUT_NHWC);
+        int[] flatRaw = new int[shape.getLength()];
+        int i = 0;
+        for (int n = 0; n < BATCH; ++n) {
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        flatRaw[i++] = raw[n][h][w][c];
+                    }
+                }
+            }
+        }
+        float[] flat = new float[shape.getLength()];
+        TensorOps.standardizePerSample(flatRaw, flat, shape);
+        FloatBuffer direct = ByteBuffer.allocateDirect(shape.getLength() * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int value : flatRaw) {
+            direct.put(value);
+        }
+        direct.rewind();
+        TensorOps.standardizePerSample(direct, shape);
+        i = 0;
+        for (int n = 0; n < BATCH; ++n) {
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c, ++i) {
+                        assertEquals(expected[n][h][w][c], flat[i], 1e-4);
+                        assertEquals(expected[n][h][w][c], direct.get(i), 1e-4);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[][][][] randomImages(Random random){
+        int[][][][] raw = new int[BATCH][ROWS][COLUMNS][CHANNELS];
+        for (int n = 0; n < BATCH; ++n) {
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        // samples of different brightness and contrast
+                        raw[n][h][w][c] = 40 * n + random.nextInt(100 + 100 * n);
+                    }
+                }
+            }
+        }
+        return raw;
+    }
+
+    // the per-sample standardization as it was done on 4-D arrays, in double precision
+    private static float[][][][] standardize4D(int[][][][] raw){
+        float[][][][] out = new float[BATCH][ROWS][COLUMNS][CHANNELS];
+        int length = ROWS * COLUMNS * CHANNELS;
+        for (int n = 0; n < BATCH; ++n) {
+            double mean = 0;
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        mean += raw[n][h][w][c];
+                    }
+                }
+            }
+            mean /= length;
+            double stdev = 0;
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        stdev += (raw[n][h][w][c] - mean) * (raw[n][h][w][c] - mean);
+                    }
+                }
+            }
+            stdev = Math.sqrt(stdev / (length - 1));
+            for (int h = 0; h < ROWS; ++h) {
+                for (int w = 0; w < COLUMNS; ++w) {
+                    for (int c = 0; c < CHANNELS; ++c) {
+                        out[n][h][w][c] = (float) ((raw[n][h][w][c] - mean) / stdev);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+}
@@ -236,54 +236,85 @@ class EyeCropper:
       # We need the phone specified for this functionality.
       raise ValueError("Must specify 'phone' argument to constructor.")
 
-    image_h, image_w, _ = self.__image_shape
-
-    # Normalize image dimensions and face box for the camera FOV.
-    fov_long, fov_short = self.__phone.get_camera_fov()
-    scale_w = FOV_NORM_LONG / fov_long
-    scale_h = FOV_NORM_SHORT / fov_short
-
-    diff_w = image_w - image_w * scale_w
-    diff_h = image_h - image_h * scale_h
-
-    # The face coordinates are going to shift, since we're effectively cutting
-    # part of the image off.
     face_bbox = self.__get_face_bbox(self.__points)
-    face_x, face_y, face_w, face_h = [float(x) for x in face_bbox]
-    face_x -= diff_w / 2
-    face_y -= diff_h / 2
-    face_w += diff_w
-    face_h += diff_h
-
-    # Convert to 25x25 grid coordinate system.
-    grid_x = face_x / image_w * 25.0
-    grid_y = face_y / image_h * 25.0
-    grid_w = face_w / image_w * 25.0
-    grid_h = face_h / image_h * 25.0
-
-    # Make sure everything's in-bounds.
-    grid_x = max(grid_x, 0.0)
-    grid_y = max(grid_y, 0.0)
-    if grid_x + grid_w > 25.0:
-      grid_w = 25.0 - grid_x
-    if grid_y + grid_h > 25.0:
-      grid_h = 25.0 - grid_y
-
-    return (int(grid_x), int(grid_y), int(grid_w), int(grid_h))
+    return compute_face_grid_box(face_bbox, self.__image_shape, self.__phone)
 
   def face_grid(self):
     """ Constructs the face grid input for the last image it cropped.
     Returns:
       A 25x25 matrix, where 1s represent the location of the face, and 0s
       represent the background. """
-    x, y, w, h = self.face_grid_box()
-
-
-    # Create the interior image.
-    face_box = np.ones((h, w))
-    # Create the background.
-    frame = np.zeros((25, 25))
-    # Superimpose it.
-    frame[y:(y + h), x:(x + w)] = face_box
-
-    return frame
+    return _make_face_grid(*self.face_grid_box())
+
+
+def compute_face_grid_box(face_bbox, image_shape, phone):
+  """ Computes the dimensions of the face grid for a face bounding box.
+  Args:
+    face_bbox: The face bounding box, in image coordinates.
+    image_shape: The shape of the image the face was found in.
+    phone: The configuration of the phone that produced the image.
+  Returns:
+    The face grid x and y positions, as well as the width and height, all as
+    one tuple. """
+  image_h, image_w = image_shape[:2]
+
+  # Normalize image dimensions and face box for the camera FOV.
+  fov_long, fov_short = phone.get_camera_fov()
+  scale_w = FOV_NORM_LONG / fov_long
+  scale_h = FOV_NORM_SHORT / fov_short
+
+  diff_w = image_w - image_w * scale_w
+  diff_h = image_h - image_h * scale_h
+
+  # The face coordinates are going to shift, since we're effectively cutting
+  # part of the image off.
+  face_x, face_y, face_w, face_h = [float(x) for x in face_bbox]
+  face_x -= diff_w / 2
+  face_y -= diff_h / 2
+  face_w += diff_w
+  face_h += diff_h
+
+  # Convert to 25x25 grid coordinate system.
+  grid_x = face_x / image_w * 25.0
+  grid_y = face_y / image_h * 25.0
+  grid_w = face_w / image_w * 25.0
+  grid_h = face_h / image_h * 25.0
+
+  # Make sure everything's in-bounds.
+  grid_x = max(grid_x, 0.0)
+  grid_y = max(grid_y, 0.0)
+  if grid_x + grid_w > 25.0:
+    grid_w = 25.0 - grid_x
+  if grid_y + grid_h > 25.0:
+    grid_h = 25.0 - grid_y
+
+  return (int(grid_x), int(grid_y), int(grid_w), int(grid_h))
+
+def compute_face_grid(face_bbox, image_shape, phone):
+  """ Constructs the face grid input for a face bounding box.
+  Args:
+    face_bbox: The face bounding box, in image coordinates.
+    image_shape: The shape of the image the face was found in.
+    phone: The configuration of the phone that produced the image.
+  Returns:
+    A 25x25 matrix, where 1s represent the location of the face, and 0s
+    represent the background. """
+  return _make_face_grid(*compute_face_grid_box(face_bbox, image_shape, phone))
+
+def _make_face_grid(x, y, w, h):
+  """ Draws a face grid box into a 25x25 matrix.
+  Args:
+    x: The x position of the box in the grid.
+    y: The y position of the box in the grid.
+    w: The width of the box in the grid.
+    h: The height of the box in the grid.
+  Returns:
+    The face grid. """
+  # Create the interior image.
+  face_box = np.ones((h, w))
+  # Create the background.
+  frame = np.zeros((25, 25))
+  # Superimpose it.
+  frame[y:(y + h), x:(x + w)] = face_box
+
+  return frame
@@ -9,7 +9,7 @@ import numpy as np
 import tensorflow as tf
 
 from ..common import config
-from ..common.eye_cropper import EyeCropper
+from ..common.eye_cropper import EyeCropper, compute_face_grid
 
 
 logger = logging.getLogger(__name__)
@@ -44,6 +44,8 @@ class GazePredictor(object):
       display: If true, it will enable a debug display that shows the image
                crops.
       drop_stale: If true, we want to automatically drop stale images. """
+    self._phone = phone
+
     # Initialize landmark and prediction processes.
     self._prediction_process = _CnnProcess(model, model_file, drop_stale=drop_stale)
     self._landmark_process = _LandmarkProcess(self._prediction_process,
@@ -75,6 +77,21 @@ class GazePredictor(object):
 
     self._landmark_process.add_new_input(image, seq_num, timestamp)
 
+  def process_crops(self, roi_frame, seq_num):
+    """ Adds crops that the client already extracted to the prediction
+    pipeline, skipping landmark detection.
+    Args:
+      roi_frame: The protocol.RoiFrame with the crops, resized to the network
+                 input size.
+      seq_num: The sequence number of the image. """
+    timestamp = time.time()
+
+    grid = compute_face_grid(roi_frame.face_bbox, roi_frame.image_shape,
+                             self._phone)
+    self._prediction_process.add_new_input(roi_frame.left_eye,
+                                           roi_frame.right_eye, roi_frame.face,
+                                           grid, seq_num, timestamp)
+
 class _CnnProcess(object):
   """ Runs the CNN prediction in a separate process on the GPU, so that it can
   be handled concurrently. """
@@ -0,0 +1,119 @@
+from collections import namedtuple
+import json
+import struct
+import time
+
+
+# Sent by a client right after it connects to ask for protocol version 2. The
+# server echoes it back to accept. Older servers skip over it while looking
+# for the JPEG start magic, and keep using the legacy protocol.
+HANDSHAKE = bytes(b"MGZ2")
+# Protocol versions.
+VERSION_LEGACY = 0
+VERSION_2 = 2
+
+# Version 2 frame header, big-endian: uint8 version, uint8 flags, uint16 header
+# length, uint32 sequence number, uint32 JPEG size, uint64 capture time in
+# wall-clock ms since the epoch, as stamped by the phone.
+# The JPEG data follows the header. The header length allows later versions to
+# append fields that older parsers skip.
+FRAME_HEADER = struct.Struct(">BBHIIQ")
+# Frame header flag that is set when the frame carries cropped regions instead
+# of a full JPEG image.
+FRAME_FLAG_ROI = 0x01
+
+# Region frame payload header, big-endian: uint16 image width, uint16 image
+# height, uint16 face x, y, width and height in image coordinates, and uint32
+# sizes of the left eye, right eye and face JPEG crops, which follow in that
+# order. All sizes are zero if the client found no face.
+ROI_HEADER = struct.Struct(">HHHHHHIII")
+
+# Crops received in a region frame.
+RoiFrame = namedtuple("RoiFrame", ["left_eye", "right_eye", "face", "face_bbox",
+                                   "image_shape"])
+
+# Version 2 response record, little-endian: uint32 sequence number, uint8
+# flags, three padding bytes, float32 x, float32 y, uint32 server timestamp in
+# ms.
+BINARY_RESPONSE = struct.Struct("<IB3xffI")
+# Flag bit that is set when the prediction is valid.
+FLAG_VALID = 0x01
+
+
+def server_timestamp():
+  """
+  Returns:
+    The current time in ms, truncated to 32 bits. """
+  return int(time.time() * 1000) & 0xFFFFFFFF
+
+def unpack_frame_header(data, offset=0):
+  """ Parses a version 2 frame header.
+  Args:
+    data: The buffer containing the header.
+    offset: Where the header starts in the buffer.
+  Returns:
+    The header length, flags, sequence number, data size and capture time, or
+    None if the header is invalid. """
+  version, flags, header_length, seq_num, size, capture_time = \
+      FRAME_HEADER.unpack_from(data, offset)
+  if version != VERSION_2 or header_length < FRAME_HEADER.size:
+    return None
+
+  return (header_length, flags, seq_num, size, capture_time)
+
+def unpack_roi_header(data):
+  """ Parses the payload header of a region frame.
+  Args:
+    data: The frame payload.
+  Returns:
+    The image shape, the face bounding box and the offsets of the left eye,
+    right eye and face crops, each as a (start, end) tuple. Returns None if the
+    payload is malformed or holds no face. """
+  if len(data) < ROI_HEADER.size:
+    return None
+  width, height, face_x, face_y, face_w, face_h, left_size, right_size, \
+      face_size = ROI_HEADER.unpack_from(data)
+  if left_size == 0 or right_size == 0 or face_size == 0:
+    return None
+  if ROI_HEADER.size + left_size + right_size + face_size != len(data):
+    return None
+
+  left_start = ROI_HEADER.size
+  right_start = left_start + left_size
+  face_start = right_start + right_size
+  return ((height, width, 3), [face_x, face_y, face_w, face_h],
+          (left_start, right_start), (right_start, face_start),
+          (face_start, face_start + face_size))
+
+def pack_json_response(prediction, seq_num):
+  """ Builds a newline-delimited JSON response.
+  Args:
+    prediction: The prediction, as a tuple, in cm. If None, it assumes the
+                prediction is invalid.
+    seq_num: The sequence number of the image that the prediction is for.
+  Returns:
+    The encoded response. """
+  response = {"SequenceNumber": seq_num, "Valid": prediction is not None}
+  if prediction is not None:
+    response["PredictX"] = prediction[0]
+    response["PredictY"] = prediction[1]
+
+  # Add a delimiter to the end.
+  return (json.dumps(response) + "\n").encode("utf-8")
+
+def pack_binary_response(prediction, seq_num):
+  """ Builds a fixed-size binary response.
+  Args:
+    prediction: The prediction, as a tuple, in cm. If None, it assumes the
+                prediction is invalid.
+    seq_num: The sequence number of the image that the prediction is for.
+  Returns:
+    The encoded response. """
+  flags = 0
+  x = y = -1.0
+  if prediction is not None:
+    flags |= FLAG_VALID
+    x, y = prediction[0], prediction[1]
+
+  return BINARY_RESPONSE.pack(seq_num & 0xFFFFFFFF, flags, x, y,
+                              server_timestamp())
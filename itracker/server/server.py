@@ -1,6 +1,5 @@
 from collections import deque
 from multiprocessing import Process
-import json
 import logging
 import socket
 import struct
@@ -10,6 +9,7 @@ import cv2
 import numpy as np
 
 from gaze_predictor import GazePredictor
+import protocol
 
 
 # Length of the buffer we use for reading data.
@@ -19,6 +19,8 @@ JPEG_MAGIC_START = bytes(b"\xFF\xD8")
 JPEG_MAGIC_END = bytes(b"\xFF\xD9")
 # Maximum size value before we assume that the size is invalid.
 MAX_SIZE = 1000000
+# Size that crops from region frames are resized to, to match the network input.
+CROP_SIZE = (224, 224)
 
 
 logger = logging.getLogger(__name__)
@@ -51,6 +53,8 @@ class Server(object):
 
     # A list of complete frames that we have received.
     self.__received_frames = deque()
+    # Protocol version negotiated with the current client.
+    self.__version = protocol.VERSION_LEGACY
 
     self.__listen(port)
 
@@ -70,6 +74,9 @@ class Server(object):
     # Current byte we are reading for the image size.
     self.__image_size_index = 0
 
+    # Received data that does not form a complete version 2 frame yet.
+    self.__pending = bytearray([])
+
   def __listen(self, port):
     """ Builds the socket and starts listening for connections.
     Args:
@@ -105,6 +112,40 @@ class Server(object):
 
       return True
 
+  def __extract_roi_frame(self, sequence_num):
+    """ Extracts the region frame stored in __current_frame, and adds its crops
+    to the __received_frames list. It also clears the current_frame array.
+    Args:
+      sequence_num: The sequence number of the new frame.
+    Returns:
+      False if the client found no face or the crops are invalid, true
+      otherwise. """
+    payload = self.__current_frame
+    self.__current_frame = bytearray([])
+
+    header = protocol.unpack_roi_header(payload)
+    crops = []
+    if header is not None:
+      image_shape, face_bbox = header[:2]
+      for start, end in header[2:]:
+        crop = cv2.imdecode(np.asarray(payload[start:end]), cv2.IMREAD_COLOR)
+        if crop is None:
+          break
+        crops.append(cv2.resize(crop, CROP_SIZE))
+
+    if len(crops) != 3:
+      # No face, or a crop we can't decode. Either way, nothing to predict.
+      logger.debug("No usable crops in frame %d." % (sequence_num))
+      self.send_response(None, sequence_num)
+      return False
+
+    left_eye, right_eye, face = crops
+    self.__received_frames.appendleft( \
+        (protocol.RoiFrame(left_eye, right_eye, face, face_bbox, image_shape),
+         sequence_num))
+
+    return True
+
   def __reset_state_machine(self):
     """ Resets the image reading state machine. """
     self.__current_frame = bytearray([])
@@ -207,6 +248,41 @@ class Server(object):
       # it. Copy what we have from the buffer before we clear it.
       self.__current_frame += self.__read_buffer[jpeg_start_index:size]
 
+  def __process_new_data_v2(self, size):
+    """ Processes a chunk of newly received data from a version 2 client. Every
+    frame starts with a header that gives its size, so there is no need to
+    scan for the JPEG magic.
+    Args:
+      size: The size of the new chunk of data.
+    Returns:
+      False if the framing was lost, true otherwise. """
+    self.__pending += self.__read_buffer[:size]
+
+    offset = 0
+    while len(self.__pending) - offset >= protocol.FRAME_HEADER.size:
+      header = protocol.unpack_frame_header(self.__pending, offset)
+      if header is None or header[3] > MAX_SIZE:
+        logger.error("Invalid frame header.")
+        return False
+      header_length, flags, sequence_num, image_size, capture_time = header
+
+      frame_end = offset + header_length + image_size
+      if len(self.__pending) < frame_end:
+        # Wait for the rest of the frame.
+        break
+
+      logger.debug("Frame %d was captured at %d." % (sequence_num,
+                                                      capture_time))
+      self.__current_frame = self.__pending[offset + header_length:frame_end]
+      if flags & protocol.FRAME_FLAG_ROI:
+        self.__extract_roi_frame(sequence_num)
+      else:
+        self.__extract_frame(sequence_num)
+      offset = frame_end
+
+    del self.__pending[:offset]
+    return True
+
   def wait_for_client(self):
     """ Waits until a client connects to the server. """
     logger.info("Waiting for client connection...")
@@ -215,11 +291,33 @@ class Server(object):
 
     logger.info("Got new connection from %s." % (str(self.__addr)))
 
+    self.__negotiate_version()
+
+  def __negotiate_version(self):
+    """ Checks whether the client asked for protocol version 2. Clients that
+    don't ask start directly with a legacy frame. """
+    self.__version = protocol.VERSION_LEGACY
+
+    handshake_length = len(protocol.HANDSHAKE)
+    try:
+      head = self.__client.recv(handshake_length,
+                                socket.MSG_PEEK | socket.MSG_WAITALL)
+    except socket.error:
+      return
+
+    if head == protocol.HANDSHAKE:
+      # Consume the handshake and accept.
+      self.__client.recv(handshake_length, socket.MSG_WAITALL)
+      self.__client.sendall(protocol.HANDSHAKE)
+      self.__version = protocol.VERSION_2
+
+      logger.info("Using protocol version 2.")
+
   def read_next_frame(self):
     """ Gets and returns the next complete JPEG frame from the client.
     Returns:
       The next frame and sequence number, or a None tuple if the client
-      disconnected. """
+      disconnected. For region frames, the frame is a protocol.RoiFrame. """
     # Read data from the socket until we have at least one new frame.
     while len(self.__received_frames) == 0:
       logger.debug("Waiting for new data...")
@@ -241,7 +339,14 @@ class Server(object):
 
         return (None, None)
 
-      self.__process_new_data(bytes_read)
+      if self.__version == protocol.VERSION_2:
+        if not self.__process_new_data_v2(bytes_read):
+          # There is no way to find the next frame, so drop the client.
+          self.__client.close()
+          self.__init_buffers()
+          return (None, None)
+      else:
+        self.__process_new_data(bytes_read)
 
     return self.__received_frames.pop()
 
@@ -254,15 +359,10 @@ class Server(object):
       valid: Whether the prediction is valid. """
     logger.debug("Sending prediction %s for %d." % (str(prediction), seq_num))
 
-    # Create JSON data to send.
-    response = {"SequenceNumber": seq_num, "Valid": prediction is not None}
-    if prediction is not None:
-      response["PredictX"] = prediction[0]
-      response["PredictY"] = prediction[1]
-    response = json.dumps(response)
-
-    # Add a delimiter to the end.
-    response += "\n"
+    if self.__version == protocol.VERSION_2:
+      response = protocol.pack_binary_response(prediction, seq_num)
+    else:
+      response = protocol.pack_json_response(prediction, seq_num)
 
     # Send the response on the socket.
     self.__client.sendall(response)
@@ -296,7 +396,11 @@ class ReceiveProcess(object):
     frame, sequence_num = self.__server.read_next_frame()
 
     # Now, send it to the gaze predictor.
-    self.__predictor.process_image(frame, sequence_num)
+    if isinstance(frame, protocol.RoiFrame):
+      # The client already cropped it.
+      self.__predictor.process_crops(frame, sequence_num)
+    else:
+      self.__predictor.process_image(frame, sequence_num)
     return frame is not None
 
   def run_forever(self):
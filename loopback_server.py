@@ -0,0 +1,131 @@
+#!/usr/bin/python
+
+
+import argparse
+import logging
+import socket
+import struct
+import time
+
+from itracker.server import protocol
+
+
+logging.basicConfig(format="%(asctime)s %(levelname)s: %(message)s",
+                    level=logging.INFO)
+
+
+# Port to listen on by default. The same as the real server.
+PORT = 6219
+# How often to log statistics, in s.
+REPORT_INTERVAL = 5.0
+
+
+def recv_exactly(client, length):
+  """ Reads an exact number of bytes from a socket.
+  Args:
+    client: The socket to read from.
+    length: The number of bytes to read.
+  Returns:
+    The bytes read, or None if the client disconnected. """
+  data = bytearray()
+  while len(data) < length:
+    chunk = client.recv(length - len(data))
+    if not chunk:
+      return None
+    data += chunk
+
+  return bytes(data)
+
+def serve_client(client, delay):
+  """ Answers every frame from a client with a fake prediction, without
+  decoding it. Used to measure the client side cost of the protocol.
+  Args:
+    client: The connected client socket.
+    delay: Time to wait before answering each frame, in s, to simulate
+           inference. """
+  client.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+
+  head = client.recv(len(protocol.HANDSHAKE),
+                     socket.MSG_PEEK | socket.MSG_WAITALL)
+  version = protocol.VERSION_LEGACY
+  if head == protocol.HANDSHAKE:
+    recv_exactly(client, len(protocol.HANDSHAKE))
+    client.sendall(protocol.HANDSHAKE)
+    version = protocol.VERSION_2
+  logging.info("Using protocol version %d." % (version))
+
+  frames = 0
+  frame_bytes = 0
+  report_start = time.time()
+  while True:
+    if version == protocol.VERSION_2:
+      header = recv_exactly(client, protocol.FRAME_HEADER.size)
+      if header is None:
+        break
+      header = protocol.unpack_frame_header(header)
+      if header is None:
+        logging.error("Invalid frame header.")
+        break
+      header_length, _, sequence_num, size, _ = header
+      frame = recv_exactly(client, header_length - protocol.FRAME_HEADER.size +
+                                   size)
+      if frame is None:
+        break
+    else:
+      size = recv_exactly(client, 4)
+      if size is None:
+        break
+      size = struct.unpack(">I", size)[0]
+      frame = recv_exactly(client, size + 1)
+      if frame is None:
+        break
+      sequence_num = ord(frame[-1:])
+
+    if delay > 0:
+      time.sleep(delay)
+
+    # A fixed, valid prediction.
+    prediction = (1.0, -2.0)
+    if version == protocol.VERSION_2:
+      client.sendall(protocol.pack_binary_response(prediction, sequence_num))
+    else:
+      client.sendall(protocol.pack_json_response(prediction, sequence_num))
+
+    frames += 1
+    frame_bytes += size
+    elapsed = time.time() - report_start
+    if elapsed >= REPORT_INTERVAL:
+      logging.info("%.1f frames/s, %.1f KB/frame." % \
+                   (frames / elapsed, frame_bytes / 1024.0 / frames))
+      frames = 0
+      frame_bytes = 0
+      report_start = time.time()
+
+def main():
+  parser = argparse.ArgumentParser( \
+      description="Loopback stand-in for the gaze server.")
+  parser.add_argument("-p", "--port", type=int, default=PORT,
+                      help="Port to listen on.")
+  parser.add_argument("-d", "--delay", type=float, default=0.0,
+                      help="Simulated inference time per frame, in s.")
+  args = parser.parse_args()
+
+  sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+  sock.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+  sock.bind(("", args.port))
+  sock.listen(1)
+  logging.info("Now listening on port %d." % (args.port))
+
+  while True:
+    client, addr = sock.accept()
+    logging.info("Got new connection from %s." % (str(addr)))
+    try:
+      serve_client(client, args.delay)
+    except socket.error:
+      pass
+    client.close()
+    logging.info("Client %s disconnected." % (str(addr)))
+
+
+if __name__ == "__main__":
+  main()